@@ -39,6 +39,31 @@ public class NetworkConfig {
   @Default("500")
   public final int queuedMaxRequests;
 
+  /**
+   * The share of the queued requests taken by the request handlers that are foreground requests, when both foreground
+   * and background requests are queued. Requests are only told apart if the server classifies them. The requests
+   * queued per disk by the server are taken by the disk threads in the same ratio.
+   */
+  @Config("queued.foreground.request.weight")
+  @Default("4")
+  public final int queuedForegroundRequestWeight;
+
+  /**
+   * The share of the queued requests taken by the request handlers that are background requests, when both foreground
+   * and background requests are queued
+   */
+  @Config("queued.background.request.weight")
+  @Default("1")
+  public final int queuedBackgroundRequestWeight;
+
+  /**
+   * The max number of background requests that have been taken by the request handlers and have not been responded to
+   * yet. Queued background requests wait until one of these is responded to.
+   */
+  @Config("max.background.requests.in.flight")
+  @Default("2147483647")
+  public final int maxBackgroundRequestsInFlight;
+
   /**
    * The port to listen and accept connections on
    */
@@ -86,5 +111,11 @@ public class NetworkConfig {
     socketRequestMaxBytes =
         verifiableProperties.getIntInRange("socket.request.max.bytes", 100 * 1024 * 1024, 1, Integer.MAX_VALUE);
     queuedMaxRequests = verifiableProperties.getIntInRange("queued.max.requests", 500, 1, Integer.MAX_VALUE);
+    queuedForegroundRequestWeight =
+        verifiableProperties.getIntInRange("queued.foreground.request.weight", 4, 1, Integer.MAX_VALUE);
+    queuedBackgroundRequestWeight =
+        verifiableProperties.getIntInRange("queued.background.request.weight", 1, 1, Integer.MAX_VALUE);
+    maxBackgroundRequestsInFlight = verifiableProperties
+        .getIntInRange("max.background.requests.in.flight", Integer.MAX_VALUE, 1, Integer.MAX_VALUE);
   }
 }
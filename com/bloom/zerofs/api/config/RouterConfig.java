@@ -131,6 +131,29 @@ public class RouterConfig {
   @Default("true")
   public final boolean routerGetCrossDcEnabled;
 
+  /**
+   * The max size of a chunk for its put request to be batched with the put requests of other chunks that are sent to
+   * the same replica of the same partition in the same poll. 0 disables the batching of put requests.
+   */
+  @Config("router.put.batch.max.blob.size.bytes")
+  @Default("0")
+  public final int routerPutBatchMaxBlobSizeBytes;
+
+  /**
+   * The max number of chunks whose put requests are sent in a single batch put request.
+   */
+  @Config("router.put.batch.max.blob.count")
+  @Default("16")
+  public final int routerPutBatchMaxBlobCount;
+
+  /**
+   * The max number of blobs whose delete requests to the same replica in the same poll are sent in a single batch
+   * delete request. 1 sends every delete request on its own.
+   */
+  @Config("router.delete.batch.max.blob.count")
+  @Default("1")
+  public final int routerDeleteBatchMaxBlobCount;
+
   /**
    * Create a RouterConfig instance.
    * @param verifiableProperties the properties map to refer to.
@@ -155,5 +178,11 @@ public class RouterConfig {
     routerGetRequestParallelism = verifiableProperties.getInt("router.get.request.parallelism", 2);
     routerGetSuccessTarget = verifiableProperties.getInt("router.get.success.target", 1);
     routerGetCrossDcEnabled = verifiableProperties.getBoolean("router.get.cross.dc.enabled", true);
+    routerPutBatchMaxBlobSizeBytes =
+        verifiableProperties.getIntInRange("router.put.batch.max.blob.size.bytes", 0, 0, Integer.MAX_VALUE);
+    routerPutBatchMaxBlobCount =
+        verifiableProperties.getIntInRange("router.put.batch.max.blob.count", 16, 2, Integer.MAX_VALUE);
+    routerDeleteBatchMaxBlobCount =
+        verifiableProperties.getIntInRange("router.delete.batch.max.blob.count", 1, 1, Integer.MAX_VALUE);
   }
 }
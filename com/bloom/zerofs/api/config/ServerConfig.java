@@ -33,8 +33,89 @@ public class ServerConfig {
   @Default("10")
   public final int serverSchedulerNumOfthreads;
 
+  /**
+   * The max number of messages whose record offsets are cached to serve gets of blob properties, user metadata,
+   * blob info and blob data without reading the message header. The cache is disabled if this is 0.
+   */
+  @Config("server.message.header.cache.max.entries")
+  @Default("0")
+  public final int serverMessageHeaderCacheMaxEntries;
+
+  /**
+   * The number of threads per disk that handle the requests for the partitions on that disk. Every disk has its own
+   * queue of requests, so that a slow disk does not hold up the request handler threads of the other disks. Requests
+   * are handled by the request handler threads themselves if this is 0.
+   */
+  @Config("server.disk.request.handler.num.of.threads")
+  @Default("0")
+  public final int serverDiskRequestHandlerNumOfThreads;
+
+  /**
+   * The number of requests of each class, foreground or background, that can be queued for a disk. Requests for a disk
+   * whose queue is full are answered with Retry_After_Backoff, instead of blocking the request handler threads.
+   */
+  @Config("server.disk.request.queue.size")
+  @Default("100")
+  public final int serverDiskRequestQueueSize;
+
+  /**
+   * The comma separated types of the requests that are queued as background requests, like ReplicaMetadataRequest.
+   * Background requests are taken by the request handlers in the ratio of the queued request weights of the network
+   * config, and their number in flight can be capped.
+   */
+  @Config("server.background.request.types")
+  @Default("")
+  public final String serverBackgroundRequestTypes;
+
+  /**
+   * The comma separated prefixes of the client ids of the requests that are queued as background requests, like
+   * replication- for the requests of the replicas of other servers
+   */
+  @Config("server.background.request.client.id.prefixes")
+  @Default("")
+  public final String serverBackgroundRequestClientIdPrefixes;
+
+  /**
+   * The max time in ms that a request can be queued for before it is handled. Requests that have been queued for
+   * longer are answered with Retry_After_Backoff without being handled. There is no max if this is 0.
+   */
+  @Config("server.request.queue.timeout.ms")
+  @Default("0")
+  public final long serverRequestQueueTimeoutMs;
+
+  /**
+   * The queue time in ms that the request queue is kept at. If requests have been queued for longer than this for a
+   * whole interval, the requests queued for longer than this are answered with Retry_After_Backoff until the queue
+   * has drained. The queue is not kept at a target if this is 0.
+   */
+  @Config("server.request.queue.target.ms")
+  @Default("0")
+  public final long serverRequestQueueTargetMs;
+
+  /**
+   * The interval in ms over which the queue times of requests are compared with the target queue time
+   */
+  @Config("server.request.queue.interval.ms")
+  @Default("100")
+  public final long serverRequestQueueIntervalMs;
+
   public ServerConfig(VerifiableProperties verifiableProperties) {
     serverRequestHandlerNumOfThreads = verifiableProperties.getInt("server.request.handler.num.of.threads", 7);
     serverSchedulerNumOfthreads = verifiableProperties.getInt("server.scheduler.num.of.threads", 10);
+    serverMessageHeaderCacheMaxEntries =
+        verifiableProperties.getIntInRange("server.message.header.cache.max.entries", 0, 0, Integer.MAX_VALUE);
+    serverDiskRequestHandlerNumOfThreads =
+        verifiableProperties.getIntInRange("server.disk.request.handler.num.of.threads", 0, 0, Integer.MAX_VALUE);
+    serverDiskRequestQueueSize =
+        verifiableProperties.getIntInRange("server.disk.request.queue.size", 100, 1, Integer.MAX_VALUE);
+    serverBackgroundRequestTypes = verifiableProperties.getString("server.background.request.types", "");
+    serverBackgroundRequestClientIdPrefixes =
+        verifiableProperties.getString("server.background.request.client.id.prefixes", "");
+    serverRequestQueueTimeoutMs =
+        verifiableProperties.getLongInRange("server.request.queue.timeout.ms", 0, 0, Long.MAX_VALUE);
+    serverRequestQueueTargetMs =
+        verifiableProperties.getLongInRange("server.request.queue.target.ms", 0, 0, Long.MAX_VALUE);
+    serverRequestQueueIntervalMs =
+        verifiableProperties.getLongInRange("server.request.queue.interval.ms", 100, 1, Long.MAX_VALUE);
   }
 }
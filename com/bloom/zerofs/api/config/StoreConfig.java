@@ -62,10 +62,11 @@ public class StoreConfig {
   public final int storeMaxNumberOfEntriesToReturnFromJournal;
 
   /**
-   * The factory class the store uses to create the journal.
+   * The factory class the store uses to create the journal. The ring buffer journal keeps the entries in arrays
+   * sorted by offset, while com.bloom.zerofs.store.InMemoryJournalFactory keeps them in a skip list.
    */
   @Config("store.journal.factory")
-  @Default("com.bloom.zerofs.commons.InMemoryJournalFactory")
+  @Default("com.bloom.zerofs.store.RingBufferJournalFactory")
   public final String storeJournalFactory;
 
   /**
@@ -75,6 +76,14 @@ public class StoreConfig {
   @Default("0.01")
   public final double storeIndexBloomMaxFalsePositiveProbability;
 
+  /**
+   * Whether new index segments use a blocked bloom filter, which keeps all the bits of a key in one cache line. The
+   * bloom filters already on disk are read regardless of this setting.
+   */
+  @Config("store.index.bloom.blocked.enabled")
+  @Default("false")
+  public final boolean storeIndexBloomBlockedEnabled;
+
   /**
    * How long (in days) a key must be in deleted state before it is hard deleted.
    */
@@ -96,6 +105,188 @@ public class StoreConfig {
   @Default("false")
   public final boolean storeEnableHardDelete;
 
+  /**
+   * Whether puts and deletes from concurrent requests are to be grouped and committed to the log as a batch
+   */
+  @Config("store.group.commit.enabled")
+  @Default("false")
+  public final boolean storeGroupCommitEnabled;
+
+  /**
+   * The max number of message write sets that can be committed together in a single batch
+   */
+  @Config("store.group.commit.max.batch.size")
+  @Default("64")
+  public final int storeGroupCommitMaxBatchSize;
+
+  /**
+   * The max number of bytes that are buffered for a single gathering write to the log. Message write sets larger
+   * than this are written directly to the log.
+   */
+  @Config("store.group.commit.max.batch.size.bytes")
+  @Default("1*1024*1024")
+  public final int storeGroupCommitMaxBatchSizeBytes;
+
+  /**
+   * Whether the log is to be synced to disk once per batch before any request in the batch is acknowledged
+   */
+  @Config("store.group.commit.sync.enabled")
+  @Default("false")
+  public final boolean storeGroupCommitSyncEnabled;
+
+  /**
+   * Whether puts and deletes from concurrent requests are to be copied to the log in parallel. Each request reserves
+   * its range of the log under the store lock and the ranges are added to the index in log order. This takes
+   * precedence over group commit.
+   */
+  @Config("store.concurrent.appends.enabled")
+  @Default("false")
+  public final boolean storeConcurrentAppendsEnabled;
+
+  /**
+   * The size of each log segment file. If this is not smaller than the capacity of the store, the log is kept in a
+   * single file.
+   */
+  @Config("store.segment.size.in.bytes")
+  @Default("Long.MAX_VALUE")
+  public final long storeSegmentSizeInBytes;
+
+  /**
+   * Whether space held by deleted and expired blobs in sealed log segments is to be reclaimed by compaction
+   */
+  @Config("store.enable.compaction")
+  @Default("false")
+  public final boolean storeEnableCompaction;
+
+  /**
+   * The min ratio of bytes in a sealed log segment that must be garbage before the segment is compacted
+   */
+  @Config("store.compaction.min.garbage.ratio")
+  @Default("0.5")
+  public final double storeCompactionMinGarbageRatio;
+
+  /**
+   * The frequency at which the log segments are checked for compaction
+   */
+  @Config("store.compaction.interval.seconds")
+  @Default("3600")
+  public final long storeCompactionIntervalSeconds;
+
+  /**
+   * The rate of I/O allowed for compaction.
+   */
+  @Config("store.compaction.bytes.per.sec")
+  @Default("1*1024*1024")
+  public final int storeCompactionBytesPerSec;
+
+  /**
+   * The max size in bytes of the cache of recently looked up keys in the index of a single store. The cache is
+   * disabled if this is 0.
+   */
+  @Config("store.index.key.cache.size.bytes")
+  @Default("0")
+  public final long storeIndexKeyCacheSizeBytes;
+
+  /**
+   * The max number of stores on the same disk that are started concurrently when the store manager starts.
+   */
+  @Config("store.startup.threads.per.disk")
+  @Default("1")
+  public final int storeStartupThreadsPerDisk;
+
+  /**
+   * Whether the entries of the in memory segments of the index are kept in off heap memory as serialized keys and
+   * values instead of as objects on the heap.
+   */
+  @Config("store.index.off.heap.active.segment.enabled")
+  @Default("false")
+  public final boolean storeIndexOffHeapActiveSegmentEnabled;
+
+  /**
+   * Every key at this interval in a memory mapped segment of the index is held in memory, so that a lookup only
+   * searches the entries between two of these keys in the mapped file. Keys are not held in memory if this is 0 or 1.
+   */
+  @Config("store.index.mapped.segment.fence.interval")
+  @Default("32")
+  public final int storeIndexMappedSegmentFenceInterval;
+
+  /**
+   * The version of the format that index segments are written to disk in. Version 1 encodes the values with relative
+   * offsets and variable length fields and compresses the shared prefixes of the keys. Both versions can be read
+   * regardless of this setting.
+   */
+  @Config("store.index.segment.format.version")
+  @Default("0")
+  public final short storeIndexSegmentFormatVersion;
+
+  /**
+   * The number of entries between two keys that are written in full in a version 1 index segment. A lookup in a
+   * mapped segment decodes up to this many entries.
+   */
+  @Config("store.index.segment.restart.interval")
+  @Default("16")
+  public final int storeIndexSegmentRestartInterval;
+
+  /**
+   * The size of the buffer that the log is read ahead into when recovering the messages that are not in the index
+   */
+  @Config("store.recovery.read.ahead.size.bytes")
+  @Default("4*1024*1024")
+  public final int storeRecoveryReadAheadSizeBytes;
+
+  /**
+   * The span of expiration times covered by a single bucket of the blobs that have a time to live
+   */
+  @Config("store.expiration.bucket.size.seconds")
+  @Default("3600")
+  public final long storeExpirationBucketSizeSeconds;
+
+  /**
+   * The frequency at which the expiration buckets are checked for blobs that have expired
+   */
+  @Config("store.expiration.scan.interval.seconds")
+  @Default("600")
+  public final long storeExpirationScanIntervalSeconds;
+
+  /**
+   * Whether each flush of the active index segment appends only the entries added since the last flush to a delta
+   * file, instead of rewriting the whole segment file. The segment file is written in full when the segment rolls over.
+   */
+  @Config("store.index.delta.persistence.enabled")
+  @Default("true")
+  public final boolean storeIndexDeltaPersistenceEnabled;
+
+  /**
+   * Whether adjacent sealed index segments are merged in the background into larger segments
+   */
+  @Config("store.index.merge.enabled")
+  @Default("false")
+  public final boolean storeIndexMergeEnabled;
+
+  /**
+   * The frequency at which the index segments are checked for segments to merge
+   */
+  @Config("store.index.merge.interval.seconds")
+  @Default("600")
+  public final long storeIndexMergeIntervalSeconds;
+
+  /**
+   * The max size of the files of two adjacent index segments for them to be merged. This bounds the size of a merged
+   * segment, which is built in memory before it is written.
+   */
+  @Config("store.index.merge.max.segment.size.bytes")
+  @Default("32*1024*1024")
+  public final long storeIndexMergeMaxSegmentSizeBytes;
+
+  /**
+   * The max size in bytes of the filter of a single store that maps the keys in its index to the segments they are in,
+   * so that a lookup only searches the segments that can have the key. Every key takes 8 bytes, and the filter is
+   * built twice as large while it is rebuilt. The filter is disabled if this is 0.
+   */
+  @Config("store.index.segment.locator.size.bytes")
+  @Default("0")
+  public final long storeIndexSegmentLocatorSizeBytes;
+
   public StoreConfig(VerifiableProperties verifiableProperties) {
 
     storeKeyFactory = verifiableProperties.getString("store.key.factory", "com.bloom.zerofs.commons.BlobIdFactory");
@@ -105,13 +296,59 @@ public class StoreConfig {
     storeIndexMaxNumberOfInmemElements = verifiableProperties.getInt("store.index.max.number.of.inmem.elements", 10000);
     storeIndexBloomMaxFalsePositiveProbability =
         verifiableProperties.getDoubleInRange("store.index.bloom.max.false.positive.probability", 0.01, 0.0, 1.0);
+    storeIndexBloomBlockedEnabled = verifiableProperties.getBoolean("store.index.bloom.blocked.enabled", false);
     storeJournalFactory =
-        verifiableProperties.getString("store.journal.factory", "com.bloom.zerofs.store.InMemoryJournalFactory");
+        verifiableProperties.getString("store.journal.factory", "com.bloom.zerofs.store.RingBufferJournalFactory");
     storeMaxNumberOfEntriesToReturnFromJournal =
         verifiableProperties.getIntInRange("store.max.number.of.entries.to.return.from.journal", 5000, 1, 10000);
     storeDeletedMessageRetentionDays = verifiableProperties.getInt("store.deleted.message.retention.days", 7);
     storeHardDeleteBytesPerSec = verifiableProperties.getInt("store.hard.delete.bytes.per.sec", 1 * 1024 * 1024);
     storeEnableHardDelete = verifiableProperties.getBoolean("store.enable.hard.delete", false);
+    storeGroupCommitEnabled = verifiableProperties.getBoolean("store.group.commit.enabled", false);
+    storeGroupCommitMaxBatchSize =
+        verifiableProperties.getIntInRange("store.group.commit.max.batch.size", 64, 1, Integer.MAX_VALUE);
+    storeGroupCommitMaxBatchSizeBytes =
+        verifiableProperties.getIntInRange("store.group.commit.max.batch.size.bytes", 1 * 1024 * 1024, 1,
+            Integer.MAX_VALUE);
+    storeGroupCommitSyncEnabled = verifiableProperties.getBoolean("store.group.commit.sync.enabled", false);
+    storeConcurrentAppendsEnabled = verifiableProperties.getBoolean("store.concurrent.appends.enabled", false);
+    storeSegmentSizeInBytes =
+        verifiableProperties.getLongInRange("store.segment.size.in.bytes", Long.MAX_VALUE, 1, Long.MAX_VALUE);
+    storeEnableCompaction = verifiableProperties.getBoolean("store.enable.compaction", false);
+    storeCompactionMinGarbageRatio =
+        verifiableProperties.getDoubleInRange("store.compaction.min.garbage.ratio", 0.5, 0.0, 1.0);
+    storeCompactionIntervalSeconds =
+        verifiableProperties.getLongInRange("store.compaction.interval.seconds", 3600, 1, Long.MAX_VALUE);
+    storeCompactionBytesPerSec = verifiableProperties.getInt("store.compaction.bytes.per.sec", 1 * 1024 * 1024);
+    storeIndexKeyCacheSizeBytes =
+        verifiableProperties.getLongInRange("store.index.key.cache.size.bytes", 0, 0, Long.MAX_VALUE);
+    storeStartupThreadsPerDisk =
+        verifiableProperties.getIntInRange("store.startup.threads.per.disk", 1, 1, Integer.MAX_VALUE);
+    storeIndexOffHeapActiveSegmentEnabled =
+        verifiableProperties.getBoolean("store.index.off.heap.active.segment.enabled", false);
+    storeIndexMappedSegmentFenceInterval =
+        verifiableProperties.getIntInRange("store.index.mapped.segment.fence.interval", 32, 0, Integer.MAX_VALUE);
+    storeIndexSegmentFormatVersion =
+        (short) verifiableProperties.getIntInRange("store.index.segment.format.version", 0, 0, 1);
+    storeIndexSegmentRestartInterval =
+        verifiableProperties.getIntInRange("store.index.segment.restart.interval", 16, 1, Integer.MAX_VALUE);
+    storeRecoveryReadAheadSizeBytes =
+        verifiableProperties.getIntInRange("store.recovery.read.ahead.size.bytes", 4 * 1024 * 1024, 0,
+            Integer.MAX_VALUE);
+    storeExpirationBucketSizeSeconds =
+        verifiableProperties.getLongInRange("store.expiration.bucket.size.seconds", 3600, 1, Long.MAX_VALUE);
+    storeExpirationScanIntervalSeconds =
+        verifiableProperties.getLongInRange("store.expiration.scan.interval.seconds", 600, 1, Long.MAX_VALUE);
+    storeIndexDeltaPersistenceEnabled =
+        verifiableProperties.getBoolean("store.index.delta.persistence.enabled", true);
+    storeIndexMergeEnabled = verifiableProperties.getBoolean("store.index.merge.enabled", false);
+    storeIndexMergeIntervalSeconds =
+        verifiableProperties.getLongInRange("store.index.merge.interval.seconds", 600, 1, Long.MAX_VALUE);
+    storeIndexMergeMaxSegmentSizeBytes =
+        verifiableProperties.getLongInRange("store.index.merge.max.segment.size.bytes", 32 * 1024 * 1024, 1,
+            Long.MAX_VALUE);
+    storeIndexSegmentLocatorSizeBytes =
+        verifiableProperties.getLongInRange("store.index.segment.locator.size.bytes", 0, 0, Long.MAX_VALUE);
   }
 }
 
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.api.network;
+
+/**
+ * Tells the background requests, like the ones of replication, apart from the foreground requests of the clients, so
+ * that the request response channel can keep the background requests from holding up the foreground requests.
+ */
+public interface RequestClassifier {
+
+  /**
+   * Classifies a request before it is queued. The input stream of the request is to be left at the position it was at.
+   * @param request The request to classify
+   * @return true if the request is a background request, false if it is a foreground request
+   */
+  boolean isBackground(Request request);
+}
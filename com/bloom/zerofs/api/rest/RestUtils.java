@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -117,6 +118,16 @@ public class RestUtils {
      * has been modified after the value set for this header.
      */
     public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    /**
+     * optional in DELETE request; comma separated list of ids of blobs to delete with a single request, in which case
+     * the URI does not name a blob.
+     */
+    public final static String DELETE_BLOB_IDS = "x-Amber-delete-blob-ids";
+    /**
+     * not allowed in request. Allowed in the response to a DELETE request with {@link #DELETE_BLOB_IDS} only; comma
+     * separated list of ids of the blobs that could not be deleted.
+     */
+    public final static String FAILED_BLOB_IDS = "x-Amber-failed-blob-ids";
   }
 
   /**
@@ -345,6 +356,33 @@ public class RestUtils {
     return toReturn;
   }
 
+  /**
+   * Gets the ids of the blobs to be deleted by a DELETE request that deletes a number of blobs.
+   * @param args a map of arguments to be used to look for {@link Headers#DELETE_BLOB_IDS}.
+   * @return the ids of the blobs in {@link Headers#DELETE_BLOB_IDS}, or null if the header is not present, in which case
+   *          the request deletes the blob named by its URI.
+   * @throws RestServiceException if {@link Headers#DELETE_BLOB_IDS} does not contain any blob id.
+   */
+  public static List<String> getDeleteBlobIds(Map<String, Object> args)
+      throws RestServiceException {
+    String blobIdsStr = getHeader(args, Headers.DELETE_BLOB_IDS, false);
+    if (blobIdsStr == null) {
+      return null;
+    }
+    List<String> blobIds = new ArrayList<String>();
+    for (String blobId : blobIdsStr.split(",")) {
+      blobId = blobId.trim();
+      if (!blobId.isEmpty()) {
+        blobIds.add(blobId);
+      }
+    }
+    if (blobIds.isEmpty()) {
+      throw new RestServiceException(Headers.DELETE_BLOB_IDS + "[" + blobIdsStr + "] does not contain any blob id",
+          RestServiceErrorCode.InvalidArgs);
+    }
+    return blobIds;
+  }
+
   /**
    * Gets the value of the header {@code header} in {@code args}.
    * @param args a map of arguments to be used to look for {@code header}.
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.api.router;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Tracks the deletes of the blobs of a {@link Router#deleteBlobs(List, Callback)} call, and completes the call once all
+ * of them have completed. The result of the call is a map from the id of every blob that could not be deleted to the
+ * exception its delete failed with, which is empty if all the blobs were deleted.
+ */
+public class BulkDeleteTracker {
+  private final FutureResult<Map<String, Exception>> futureResult;
+  private final Callback<Map<String, Exception>> callback;
+  private final Map<String, Exception> failedBlobIds = new ConcurrentHashMap<String, Exception>();
+  private final AtomicInteger remainingDeletes;
+
+  /**
+   * @param blobIds The ids of the blobs that are to be deleted.
+   * @param futureResult The {@link FutureResult} of the call, which is set once all the deletes have completed.
+   * @param callback The {@link Callback} of the call, which is invoked once all the deletes have completed. Can be
+   *                 null.
+   */
+  public BulkDeleteTracker(List<String> blobIds, FutureResult<Map<String, Exception>> futureResult,
+      Callback<Map<String, Exception>> callback) {
+    this.futureResult = futureResult;
+    this.callback = callback;
+    remainingDeletes = new AtomicInteger(blobIds.size());
+    if (blobIds.isEmpty()) {
+      complete();
+    }
+  }
+
+  /**
+   * @param blobId The id of a blob that is to be deleted.
+   * @return The {@link Callback} to pass to {@link Router#deleteBlob(String, Callback)} for the blob.
+   */
+  public Callback<Void> getCallback(final String blobId) {
+    return new Callback<Void>() {
+      @Override
+      public void onCompletion(Void result, Exception exception) {
+        if (exception != null) {
+          failedBlobIds.put(blobId, exception);
+        }
+        if (remainingDeletes.decrementAndGet() == 0) {
+          complete();
+        }
+      }
+    };
+  }
+
+  private void complete() {
+    Map<String, Exception> result = Collections.unmodifiableMap(failedBlobIds);
+    futureResult.done(result, null);
+    if (callback != null) {
+      callback.onCompletion(result, null);
+    }
+  }
+}
@@ -17,6 +17,8 @@ import com.bloom.zerofs.api.messageformat.BlobInfo;
 import com.bloom.zerofs.api.messageformat.BlobProperties;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 
@@ -93,6 +95,25 @@ public interface Router extends Closeable {
    */
   public Future<Void> deleteBlob(String blobId, Callback<Void> callback);
 
+  /**
+   * Requests for a number of blobs to be deleted asynchronously and returns a future that will eventually contain the
+   * ids of the blobs that could not be deleted, with the exception that the delete of each failed with.
+   * @param blobIds The IDs of the blobs that need to be deleted.
+   * @return A future that would contain the ids of the blobs that could not be deleted eventually. The map is empty if
+   *         all the blobs were deleted.
+   */
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds);
+
+  /**
+   * Requests for a number of blobs to be deleted asynchronously and invokes the {@link Callback} when the deletes of
+   * all of them complete.
+   * @param blobIds The IDs of the blobs that need to be deleted.
+   * @param callback The {@link Callback} which will be invoked on the completion of the deletes.
+   * @return A future that would contain the ids of the blobs that could not be deleted eventually. The map is empty if
+   *         all the blobs were deleted.
+   */
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds, Callback<Map<String, Exception>> callback);
+
   /**
    * Closes the router and releases any resources held by the router. If the router is already closed, then this
    * method has no effect.
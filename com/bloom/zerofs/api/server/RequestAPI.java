@@ -31,6 +31,16 @@ public interface RequestAPI {
   void handlePutRequest(Request request)
       throws IOException, InterruptedException;
 
+  /**
+   * Puts a number of blobs of the same partition into the store with a single write, and responds with the result
+   * of the put of every blob
+   * @param request The request that contains the blob property, user metadata and blob of every blob
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void handleBatchPutRequest(Request request)
+      throws IOException, InterruptedException;
+
   /**
    * Gets blob property, user metadata or the blob from the specified partition
    * @param request The request that contains the partition and id of the blob whose blob property, user metadata or
@@ -50,6 +60,16 @@ public interface RequestAPI {
   void handleDeleteRequest(Request request)
       throws IOException, InterruptedException;
 
+  /**
+   * Deletes a number of blobs from the stores, with a single write for the blobs of each partition, and responds with
+   * the result of the delete of every blob
+   * @param request The request that contains the ids of the blobs that need to be deleted
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void handleBatchDeleteRequest(Request request)
+      throws IOException, InterruptedException;
+
   /**
    * Gets the metadata required for replication
    * @param request The request that contains the partition for which the metadata is needed
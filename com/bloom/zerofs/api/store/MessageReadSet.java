@@ -36,6 +36,34 @@ public interface MessageReadSet {
   long writeTo(int index, WritableByteChannel channel, long relativeOffset, long maxSize)
       throws IOException;
 
+  /**
+   * Writes the messages in this set from firstIndex to lastIndex to the given channel, starting from the given
+   * relative offset in the first message and continuing with the following messages from their start, up to maxSize.
+   * The bytes written are the same as if writeTo was called for each of the messages in turn. Messages that directly
+   * follow each other in the underlying storage are written together. Less than the complete amount may be written,
+   * but no more than maxSize can be. The number of bytes written is returned
+   * @param firstIndex the index of the first message in the set that needs to be written
+   * @param lastIndex the index of the last message in the set that can be written
+   * @param channel the channel into which the data needs to be written to
+   * @param relativeOffset The relative offset into the first message from which the write needs to start
+   * @param maxSize The max size that needs to be written from the messages
+   * @return The total bytes that was written into the channel
+   * @throws IOException
+   */
+  long writeTo(int firstIndex, int lastIndex, WritableByteChannel channel, long relativeOffset, long maxSize)
+      throws IOException;
+
+  /**
+   * Reads the given number of bytes from the start of every message in this set into memory, so that the writes
+   * within them are served without going to the underlying storage. The bytes of messages that are close to each other
+   * in the underlying storage are read together.
+   * @param sizes The number of bytes to read from the start of every message, by index. A message with a size of 0 is
+   *              not read.
+   * @throws IOException
+   */
+  void prefetch(long[] sizes)
+      throws IOException;
+
   /**
    * Returns the total number of messages in this set
    * @return The total number of messages in this set
@@ -92,6 +92,16 @@ public interface Store {
    */
   long getSizeInBytes();
 
+  /**
+   * Returns the breakdown of the bytes that the records in the store occupy into valid, deleted and expired bytes.
+   * The stats are kept up to date as messages are written, so this does not scan the store.
+   * @return The stats of the store
+   * @throws StoreException with {@link StoreErrorCodes#Store_Stats_Unavailable} while the stats are rebuilt after the
+   *                        store has started
+   */
+  StoreStats getStoreStats()
+      throws StoreException;
+
   /**
    * Shutsdown the store
    */
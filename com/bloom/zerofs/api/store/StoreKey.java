@@ -15,7 +15,9 @@ package com.bloom.zerofs.api.store;
 
 /**
  * Represents the index key. To make an object part of an index key,
- * this interface can be implemented
+ * this interface can be implemented. The ordering of keys must be consistent
+ * with the unsigned lexicographic ordering of their serialized form, since
+ * persisted index segments are searched without deserializing the keys.
  */
 public abstract class StoreKey implements Comparable<StoreKey> {
 
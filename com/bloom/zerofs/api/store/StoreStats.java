@@ -0,0 +1,92 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.api.store;
+
+/**
+ * A breakdown of the bytes that the records in a store occupy in its log. The used bytes are the sum of the valid,
+ * delete record, expired and deleted bytes.
+ */
+public class StoreStats {
+  private final long usedBytes;
+  private final long validBytes;
+  private final long deleteRecordBytes;
+  private final long expiredBytes;
+  private final long hardDeletedBytes;
+
+  /**
+   * @param usedBytes The bytes of all the records in the log
+   * @param validBytes The bytes of the put records of blobs that are neither deleted nor known to have expired
+   * @param deleteRecordBytes The bytes of the delete records
+   * @param expiredBytes The bytes of the put records of blobs that are known to have expired
+   * @param hardDeletedBytes The bytes of the put records of deleted blobs that have been hard deleted
+   */
+  public StoreStats(long usedBytes, long validBytes, long deleteRecordBytes, long expiredBytes,
+      long hardDeletedBytes) {
+    this.usedBytes = usedBytes;
+    this.validBytes = validBytes;
+    this.deleteRecordBytes = deleteRecordBytes;
+    this.expiredBytes = expiredBytes;
+    this.hardDeletedBytes = hardDeletedBytes;
+  }
+
+  /**
+   * @return The bytes of all the records in the log
+   */
+  public long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return The bytes of the put records of blobs that are neither deleted nor known to have expired
+   */
+  public long getValidBytes() {
+    return validBytes;
+  }
+
+  /**
+   * @return The bytes of the delete records
+   */
+  public long getDeleteRecordBytes() {
+    return deleteRecordBytes;
+  }
+
+  /**
+   * @return The bytes of the put records of blobs that are known to have expired
+   */
+  public long getExpiredBytes() {
+    return expiredBytes;
+  }
+
+  /**
+   * @return The bytes of the put records of deleted blobs and of records that have been moved by compaction
+   */
+  public long getDeletedBytes() {
+    return usedBytes - validBytes - deleteRecordBytes - expiredBytes;
+  }
+
+  /**
+   * @return The bytes of the put records of deleted blobs that have been hard deleted. These are part of the deleted
+   * bytes.
+   */
+  public long getHardDeletedBytes() {
+    return hardDeletedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "StoreStats[usedBytes=" + usedBytes + ", validBytes=" + validBytes + ", deleteRecordBytes="
+        + deleteRecordBytes + ", expiredBytes=" + expiredBytes + ", deletedBytes=" + getDeletedBytes()
+        + ", hardDeletedBytes=" + hardDeletedBytes + "]";
+  }
+}
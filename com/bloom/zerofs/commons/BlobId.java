@@ -123,7 +123,11 @@ public class BlobId extends StoreKey {
     if (result == 0) {
       result = partitionId.compareTo(other.partitionId);
       if (result == 0) {
-        result = uuid.compareTo(other.uuid);
+        // the uuid is serialized with its length first, so shorter uuids order first
+        result = uuid.length() - other.uuid.length();
+        if (result == 0) {
+          result = uuid.compareTo(other.uuid);
+        }
       }
     }
     return result;
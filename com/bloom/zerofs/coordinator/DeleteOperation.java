@@ -100,6 +100,11 @@ final public class DeleteOperation extends Operation {
         setCurrentError(CoordinatorError.AmberUnavailable);
         errorCodeToReturn = ServerErrorCode.Disk_Unavailable;
         break;
+      case Retry_After_Backoff:
+        logger.trace(context + " Server returned Retry After Backoff error for DeleteOperation");
+        setCurrentError(CoordinatorError.AmberUnavailable);
+        errorCodeToReturn = ServerErrorCode.Retry_After_Backoff;
+        break;
       case IO_Error:
         logger.trace(context + " Server returned IO error for DeleteOperation");
         setCurrentError(CoordinatorError.UnexpectedInternalError);
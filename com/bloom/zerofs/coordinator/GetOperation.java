@@ -170,6 +170,10 @@ public abstract class GetOperation extends Operation {
         logger.trace(context + " Server returned Disk Unavailable error for GetOperation");
         setCurrentError(CoordinatorError.AmberUnavailable);
         break;
+      case Retry_After_Backoff:
+        logger.trace(context + " Server returned Retry After Backoff error for GetOperation");
+        setCurrentError(CoordinatorError.AmberUnavailable);
+        break;
       case Partition_Unknown:
         logger.trace(context + " Server returned Partition Unknown error for GetOperation");
         setCurrentError(CoordinatorError.BlobDoesNotExist);
@@ -119,6 +119,10 @@ final public class PutOperation extends Operation {
         logger.trace(context + " Server returned Disk Unavailable error for PutOperation ");
         setCurrentError(CoordinatorError.AmberUnavailable);
         break;
+      case Retry_After_Backoff:
+        logger.trace(context + " Server returned Retry After Backoff error for PutOperation ");
+        setCurrentError(CoordinatorError.AmberUnavailable);
+        break;
       case Partition_Unknown:
         logger.trace(context + " Server returned Partition Unknown error for PutOperation ");
         setCurrentError(CoordinatorError.UnexpectedInternalError);
@@ -15,8 +15,12 @@ package com.bloom.zerofs.frontend;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -203,10 +207,16 @@ class AmberBlobStorageService implements BlobStorageService {
     try {
       logger.trace("Handling DELETE request - {}", restRequest.getUri());
       checkAvailable();
-      DeleteCallback routerCallback = new DeleteCallback(restRequest, restResponseChannel);
+      List<String> blobIds = RestUtils.getDeleteBlobIds(restRequest.getArgs());
+      SecurityProcessRequestCallback securityCallback;
+      if (blobIds != null) {
+        BulkDeleteCallback routerCallback = new BulkDeleteCallback(restRequest, restResponseChannel, blobIds);
+        securityCallback = new SecurityProcessRequestCallback(restRequest, restResponseChannel, routerCallback);
+      } else {
+        DeleteCallback routerCallback = new DeleteCallback(restRequest, restResponseChannel);
+        securityCallback = new SecurityProcessRequestCallback(restRequest, restResponseChannel, routerCallback);
+      }
       preProcessingTime = System.currentTimeMillis() - processingStartTime;
-      SecurityProcessRequestCallback securityCallback =
-          new SecurityProcessRequestCallback(restRequest, restResponseChannel, routerCallback);
       securityService.processRequest(restRequest, securityCallback);
     } catch (Exception e) {
       submitResponse(restRequest, restResponseChannel, null, e);
@@ -384,6 +394,91 @@ class AmberBlobStorageService implements BlobStorageService {
     }
   }
 
+  /**
+   * Callback for {@link IdConverter} that is used when the inbound IDs of a DELETE of a number of blobs are converted.
+   * Forwards the request to the {@link Router} once all the IDs have been converted.
+   */
+  private class BulkInboundIdConverter {
+    private final RestRequest restRequest;
+    private final RestResponseChannel restResponseChannel;
+    private final BulkDeleteCallback bulkDeleteCallback;
+    private final String[] convertedIds;
+    private final AtomicInteger remainingConversions;
+    private final CallbackTracker callbackTracker;
+    private volatile Exception conversionException = null;
+
+    BulkInboundIdConverter(RestRequest restRequest, RestResponseChannel restResponseChannel,
+        BulkDeleteCallback bulkDeleteCallback) {
+      this.restRequest = restRequest;
+      this.restResponseChannel = restResponseChannel;
+      this.bulkDeleteCallback = bulkDeleteCallback;
+      convertedIds = new String[bulkDeleteCallback.receivedIds.size()];
+      remainingConversions = new AtomicInteger(convertedIds.length);
+      callbackTracker = new CallbackTracker(restRequest, OPERATION_TYPE_INBOUND_ID_CONVERSION,
+          frontendMetrics.inboundIdConversionTimeInMs, frontendMetrics.inboundIdConversionCallbackProcessingTimeInMs);
+    }
+
+    /**
+     * Converts all the received IDs.
+     */
+    void convert() {
+      callbackTracker.markOperationStart();
+      for (int i = 0; i < convertedIds.length; i++) {
+        idConverter.convert(restRequest, bulkDeleteCallback.receivedIds.get(i), getCallback(i));
+      }
+    }
+
+    /**
+     * @param index the index of the ID in the received IDs.
+     * @return the {@link Callback} for the conversion of the ID.
+     */
+    private Callback<String> getCallback(final int index) {
+      return new Callback<String>() {
+        @Override
+        public void onCompletion(String result, Exception exception) {
+          if (result == null && exception == null) {
+            exception = new IllegalStateException("Both result and exception cannot be null");
+          }
+          if (exception != null) {
+            conversionException = exception;
+          } else {
+            convertedIds[index] = result;
+          }
+          if (remainingConversions.decrementAndGet() == 0) {
+            onConversionsComplete();
+          }
+        }
+      };
+    }
+
+    /**
+     * Forwards the request to the {@link Router} once all the IDs have been converted, unless any conversion failed.
+     */
+    private void onConversionsComplete() {
+      callbackTracker.markOperationEnd();
+      Exception exception = conversionException;
+      if (exception == null) {
+        try {
+          List<String> blobIds = new ArrayList<String>(convertedIds.length);
+          for (int i = 0; i < convertedIds.length; i++) {
+            blobIds.add(convertedIds[i]);
+            bulkDeleteCallback.convertedToReceivedIds.put(convertedIds[i], bulkDeleteCallback.receivedIds.get(i));
+          }
+          logger.trace("Forwarding DELETE of {} blobs to the router", blobIds.size());
+          bulkDeleteCallback.markStartTime();
+          router.deleteBlobs(blobIds, bulkDeleteCallback);
+        } catch (Exception e) {
+          exception = e;
+        }
+      }
+
+      if (exception != null) {
+        submitResponse(restRequest, restResponseChannel, null, exception);
+      }
+      callbackTracker.markCallbackProcessingEnd();
+    }
+  }
+
   /**
    * Callback for {@link SecurityService#processRequest(RestRequest, Callback)}.
    */
@@ -401,6 +496,7 @@ class AmberBlobStorageService implements BlobStorageService {
     private HeadCallback headCallback;
     private PostCallback postCallback;
     private DeleteCallback deleteCallback;
+    private BulkDeleteCallback bulkDeleteCallback;
 
     private BlobProperties blobProperties;
     private byte[] userMetadata;
@@ -435,6 +531,13 @@ class AmberBlobStorageService implements BlobStorageService {
       this.deleteCallback = callback;
     }
 
+    SecurityProcessRequestCallback(RestRequest restRequest, RestResponseChannel restResponseChannel,
+        BulkDeleteCallback callback) {
+      this(restRequest, restResponseChannel, PROCESS_DELETE, frontendMetrics.deleteSecurityRequestTimeInMs,
+          frontendMetrics.deleteSecurityRequestCallbackProcessingTimeInMs);
+      this.bulkDeleteCallback = callback;
+    }
+
     private SecurityProcessRequestCallback(RestRequest restRequest, RestResponseChannel restResponseChannel,
         String operationType, Histogram operationTimeTracker, Histogram callbackProcessingTimeTracker) {
       this.restRequest = restRequest;
@@ -479,6 +582,10 @@ class AmberBlobStorageService implements BlobStorageService {
               router.putBlob(blobProperties, userMetadata, restRequest, postCallback);
               break;
             case DELETE:
+              if (bulkDeleteCallback != null) {
+                new BulkInboundIdConverter(restRequest, restResponseChannel, bulkDeleteCallback).convert();
+                break;
+              }
               receivedId = RestUtils.getOperationOrBlobIdFromUri(restRequest, RestUtils.getBlobSubResource(restRequest),
                   frontendConfig.frontendPathPrefixesToRemove);
               idConverterCallback = new InboundIdConverterCallback(restRequest, restResponseChannel, deleteCallback);
@@ -877,6 +984,74 @@ class AmberBlobStorageService implements BlobStorageService {
     }
   }
 
+  /**
+   * Callback for DELETE operations of a number of blobs. Sends an ACCEPTED response to the client with the IDs of the
+   * blobs that could not be deleted, if any. Submits response either to handle exceptions or to clean up after a
+   * response.
+   */
+  private class BulkDeleteCallback implements Callback<Map<String, Exception>> {
+    private final RestRequest restRequest;
+    private final RestResponseChannel restResponseChannel;
+    private final List<String> receivedIds;
+    private final Map<String, String> convertedToReceivedIds = new ConcurrentHashMap<String, String>();
+    private final CallbackTracker callbackTracker;
+
+    /**
+     * Create a callback for the DELETE of a number of blobs.
+     * @param restRequest the {@link RestRequest} for whose response this is a callback.
+     * @param restResponseChannel the {@link RestResponseChannel} over which response to {@code restRequest} can be
+     *                            sent.
+     * @param receivedIds the IDs of the blobs to delete, as received in {@code restRequest}.
+     */
+    BulkDeleteCallback(RestRequest restRequest, RestResponseChannel restResponseChannel, List<String> receivedIds) {
+      this.restRequest = restRequest;
+      this.restResponseChannel = restResponseChannel;
+      this.receivedIds = receivedIds;
+      callbackTracker = new CallbackTracker(restRequest, OPERATION_TYPE_DELETE, frontendMetrics.deleteTimeInMs,
+          frontendMetrics.deleteCallbackProcessingTimeInMs);
+    }
+
+    /**
+     * Updates the header with the acceptance of the request and the IDs of the blobs that could not be deleted, if
+     * any. Submits the response either for exception handling or for cleanup.
+     * @param routerResult The IDs of the blobs that could not be deleted, with the exception of each.
+     * @param routerException The exception that was reported on execution of the request (if any).
+     */
+    @Override
+    public void onCompletion(Map<String, Exception> routerResult, Exception routerException) {
+      callbackTracker.markOperationEnd();
+      try {
+        if (routerException == null) {
+          restResponseChannel.setHeader(RestUtils.Headers.DATE, new GregorianCalendar().getTime());
+          restResponseChannel.setStatus(ResponseStatus.Accepted);
+          if (!routerResult.isEmpty()) {
+            StringBuilder failedBlobIds = new StringBuilder();
+            for (Map.Entry<String, Exception> entry : routerResult.entrySet()) {
+              logger.trace("Delete of {} failed", entry.getKey(), entry.getValue());
+              failedBlobIds.append(failedBlobIds.length() == 0 ? "" : ",")
+                  .append(convertedToReceivedIds.get(entry.getKey()));
+            }
+            restResponseChannel.setHeader(RestUtils.Headers.FAILED_BLOB_IDS, failedBlobIds.toString());
+          }
+          restResponseChannel.setHeader(RestUtils.Headers.CONTENT_LENGTH, 0);
+        }
+      } catch (Exception e) {
+        frontendMetrics.deleteCallbackProcessingError.inc();
+        routerException = e;
+      } finally {
+        submitResponse(restRequest, restResponseChannel, null, routerException);
+        callbackTracker.markCallbackProcessingEnd();
+      }
+    }
+
+    /**
+     * Marks the start time of the operation.
+     */
+    void markStartTime() {
+      callbackTracker.markOperationStart();
+    }
+  }
+
   /**
    * Callback for HEAD operations. Sends the headers to the client if operation is successful. Submits response either
    * to handle exceptions or to clean up after a response.
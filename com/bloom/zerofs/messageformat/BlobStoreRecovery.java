@@ -37,40 +37,55 @@ import com.bloom.zerofs.tools.Utils;
  * from the read interface that represents the underlying store
  */
 public class BlobStoreRecovery implements MessageStoreRecovery {
+  /**
+   * The default size of the buffer that the log is read ahead into during recovery
+   */
+  public static final int Default_Read_Ahead_Size_In_Bytes = 4 * 1024 * 1024;
+
   private Logger logger = LoggerFactory.getLogger(getClass());
+  private final int readAheadSizeInBytes;
+
+  public BlobStoreRecovery() {
+    this(Default_Read_Ahead_Size_In_Bytes);
+  }
+
+  /**
+   * @param readAheadSizeInBytes The size of the buffer that the log is read ahead into. If this is 0, every read
+   *                             during recovery goes to the log.
+   */
+  public BlobStoreRecovery(int readAheadSizeInBytes) {
+    this.readAheadSizeInBytes = readAheadSizeInBytes;
+  }
 
   @Override
   public List<MessageInfo> recover(Read read, long startOffset, long endOffset, StoreKeyFactory factory)
       throws IOException {
     ArrayList<MessageInfo> messageRecovered = new ArrayList<MessageInfo>();
+    // a single stream reads the log sequentially for all the messages, so that the headers and the small fields of
+    // the records are served from the read ahead buffer
+    ReadInputStream stream = new ReadInputStream(read, startOffset, endOffset, readAheadSizeInBytes);
+    DataInputStream dataStream = new DataInputStream(stream);
     try {
-      while (startOffset < endOffset) {
+      while (stream.getCurrentPosition() < endOffset) {
         // read message header
-        ByteBuffer headerVersion = ByteBuffer.allocate(MessageFormatRecord.Version_Field_Size_In_Bytes);
-        if (startOffset + MessageFormatRecord.Version_Field_Size_In_Bytes > endOffset) {
+        ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
+        if (stream.getCurrentPosition() + MessageFormatRecord.Version_Field_Size_In_Bytes > endOffset) {
           throw new IndexOutOfBoundsException("Unable to read version. Reached end of stream");
         }
-        read.readInto(headerVersion, startOffset);
-        startOffset += headerVersion.capacity();
-        headerVersion.flip();
-        short version = headerVersion.getShort();
+        dataStream.readFully(header.array(), 0, MessageFormatRecord.Version_Field_Size_In_Bytes);
+        short version = header.getShort(0);
         switch (version) {
           case MessageFormatRecord.Message_Header_Version_V1:
-
-            ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
-            header.putShort(version);
-            if (startOffset + (MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize() - headerVersion.capacity())
+            if (stream.getCurrentPosition() + (header.capacity() - MessageFormatRecord.Version_Field_Size_In_Bytes)
                 > endOffset) {
               throw new IndexOutOfBoundsException("Unable to read version. Reached end of stream");
             }
-            read.readInto(header, startOffset);
-            startOffset += header.capacity() - headerVersion.capacity();
-            header.flip();
+            dataStream.readFully(header.array(), MessageFormatRecord.Version_Field_Size_In_Bytes,
+                header.capacity() - MessageFormatRecord.Version_Field_Size_In_Bytes);
             MessageFormatRecord.MessageHeader_Format_V1 headerFormat =
                 new MessageFormatRecord.MessageHeader_Format_V1(header);
             headerFormat.verifyHeader();
-            ReadInputStream stream = new ReadInputStream(read, startOffset, endOffset);
-            StoreKey key = factory.getStoreKey(new DataInputStream(stream));
+            StoreKey key = factory.getStoreKey(dataStream);
 
             // read the appropriate type of message based on the relative offset that is set
             if (headerFormat.getBlobPropertiesRecordRelativeOffset()
@@ -91,7 +106,6 @@ public class BlobStoreRecovery implements MessageStoreRecovery {
                       deleteFlag);
               messageRecovered.add(info);
             }
-            startOffset = stream.getCurrentPosition();
             break;
           default:
             throw new MessageFormatException("Version not known while reading message - " + version,
@@ -109,23 +123,43 @@ public class BlobStoreRecovery implements MessageStoreRecovery {
     }
     for (MessageInfo messageInfo : messageRecovered) {
       logger
-          .info("Message Recovered key {} size {} ttl {} deleted {}", messageInfo.getStoreKey(), messageInfo.getSize(),
+          .trace("Message Recovered key {} size {} ttl {} deleted {}", messageInfo.getStoreKey(), messageInfo.getSize(),
               messageInfo.getExpirationTimeInMs(), messageInfo.isDeleted());
     }
+    logger.info("Recovered {} messages from offset {} to {}", messageRecovered.size(), startOffset,
+        stream.getCurrentPosition());
     return messageRecovered;
   }
 }
 
+/**
+ * An input stream over a range of a {@link Read}. The stream can optionally read ahead into a buffer, so that the
+ * small reads of the fields of a message do not each go to the underlying store.
+ */
 class ReadInputStream extends InputStream {
 
   private final Read readable;
   private long currentPosition;
   private long endPosition;
+  private final int readAheadSizeInBytes;
+  // holds the bytes from the current position onwards when reading ahead
+  private ByteBuffer readAheadBuffer = null;
 
   ReadInputStream(Read readable, long startPosition, long endPosition) {
+    this(readable, startPosition, endPosition, 0);
+  }
+
+  /**
+   * @param readable The read interface to read from
+   * @param startPosition The position to start reading from
+   * @param endPosition The position up to which reads are allowed
+   * @param readAheadSizeInBytes The size of the read ahead buffer. If this is 0, every read goes to the readable.
+   */
+  ReadInputStream(Read readable, long startPosition, long endPosition, int readAheadSizeInBytes) {
     this.readable = readable;
     this.currentPosition = startPosition;
     this.endPosition = endPosition;
+    this.readAheadSizeInBytes = readAheadSizeInBytes;
   }
 
   @Override
@@ -134,6 +168,13 @@ class ReadInputStream extends InputStream {
     if (currentPosition + 1 > endPosition) {
       throw new IndexOutOfBoundsException("Trying to read outside the available read window");
     }
+    if (readAheadSizeInBytes > 0) {
+      if (readAheadBuffer == null || !readAheadBuffer.hasRemaining()) {
+        fillReadAheadBuffer();
+      }
+      currentPosition += 1;
+      return readAheadBuffer.get() & 0xFF;
+    }
     ByteBuffer buf = ByteBuffer.allocate(1);
     readable.readInto(buf, currentPosition);
     currentPosition += 1;
@@ -150,19 +191,57 @@ class ReadInputStream extends InputStream {
       throw new IndexOutOfBoundsException();
     } else if (len == 0) {
       return 0;
-    } else if (currentPosition + (len - off) > endPosition) {
+    } else if (currentPosition + len > endPosition) {
       throw new IndexOutOfBoundsException("Trying to read outside the available read window");
     }
 
+    int bytesRead = 0;
+    if (readAheadSizeInBytes > 0) {
+      while (bytesRead < len && len - bytesRead < readAheadSizeInBytes) {
+        if (readAheadBuffer == null || !readAheadBuffer.hasRemaining()) {
+          fillReadAheadBuffer();
+        }
+        int bytesToCopy = Math.min(readAheadBuffer.remaining(), len - bytesRead);
+        readAheadBuffer.get(b, off + bytesRead, bytesToCopy);
+        currentPosition += bytesToCopy;
+        bytesRead += bytesToCopy;
+      }
+      if (bytesRead == len) {
+        return len;
+      }
+      // the rest is larger than the read ahead buffer, so it is read directly after draining the buffer
+      if (readAheadBuffer != null && readAheadBuffer.hasRemaining()) {
+        int bytesToCopy = readAheadBuffer.remaining();
+        readAheadBuffer.get(b, off + bytesRead, bytesToCopy);
+        currentPosition += bytesToCopy;
+        bytesRead += bytesToCopy;
+      }
+    }
+
     ByteBuffer buf = ByteBuffer.wrap(b);
-    buf.position(off);
-    buf.limit(len);
+    buf.position(off + bytesRead);
+    buf.limit(off + len);
     readable.readInto(buf, currentPosition);
-    currentPosition += (buf.position() - off);
+    currentPosition += (buf.position() - off - bytesRead);
     return buf.position() - off;
   }
 
   public long getCurrentPosition() {
     return currentPosition;
   }
+
+  private void fillReadAheadBuffer()
+      throws IOException {
+    int size = (int) Math.min(readAheadSizeInBytes, endPosition - currentPosition);
+    if (readAheadBuffer == null) {
+      readAheadBuffer = ByteBuffer.allocate(size);
+    }
+    readAheadBuffer.clear();
+    readAheadBuffer.limit(size);
+    readable.readInto(readAheadBuffer, currentPosition);
+    readAheadBuffer.flip();
+    if (!readAheadBuffer.hasRemaining()) {
+      throw new IndexOutOfBoundsException("Unable to read ahead at position " + currentPosition);
+    }
+  }
 }
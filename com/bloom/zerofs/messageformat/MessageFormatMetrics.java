@@ -13,6 +13,7 @@
  */
 package com.bloom.zerofs.messageformat;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 
@@ -22,9 +23,15 @@ import com.codahale.metrics.MetricRegistry;
  */
 public class MessageFormatMetrics {
   public final Histogram calculateOffsetMessageFormatSendTime;
+  public final Counter messageHeaderCacheHitCount;
+  public final Counter messageHeaderCacheMissCount;
 
   public MessageFormatMetrics(MetricRegistry registry) {
     calculateOffsetMessageFormatSendTime =
         registry.histogram(MetricRegistry.name(MessageFormatSend.class, "CalculateOffsetMessageFormatSendTime"));
+    messageHeaderCacheHitCount =
+        registry.counter(MetricRegistry.name(MessageHeaderCache.class, "MessageHeaderCacheHitCount"));
+    messageHeaderCacheMissCount =
+        registry.counter(MetricRegistry.name(MessageHeaderCache.class, "MessageHeaderCacheMissCount"));
   }
 }
@@ -48,6 +48,7 @@ public class MessageFormatSend implements Send {
   private int currentWriteIndex;
   private long sizeWrittenFromCurrentIndex;
   private StoreKeyFactory storeKeyFactory;
+  private MessageHeaderCache headerCache;
   private Logger logger = LoggerFactory.getLogger(getClass());
 
   private class SendInfo {
@@ -71,9 +72,26 @@ public class MessageFormatSend implements Send {
   public MessageFormatSend(MessageReadSet readSet, MessageFormatFlags flag, MessageFormatMetrics metrics,
       StoreKeyFactory storeKeyFactory)
       throws IOException, MessageFormatException {
+    this(readSet, flag, metrics, storeKeyFactory, null);
+  }
+
+  /**
+   * Creates a send that looks up the record offsets of messages in the given cache before reading their headers
+   * @param readSet The messages to send
+   * @param flag The part of the messages to send
+   * @param metrics The message format metrics
+   * @param storeKeyFactory The factory to deserialize the keys in the message headers
+   * @param headerCache The cache of message header offsets. Can be null.
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  public MessageFormatSend(MessageReadSet readSet, MessageFormatFlags flag, MessageFormatMetrics metrics,
+      StoreKeyFactory storeKeyFactory, MessageHeaderCache headerCache)
+      throws IOException, MessageFormatException {
     this.readSet = readSet;
     this.flag = flag;
     this.storeKeyFactory = storeKeyFactory;
+    this.headerCache = headerCache;
     totalSizeToWrite = 0;
     long startTime = SystemTime.getInstance().milliseconds();
     calculateOffsets();
@@ -94,6 +112,22 @@ public class MessageFormatSend implements Send {
       infoList = new ArrayList<SendInfo>(messageCount);
       logger.trace("Calculate offsets of messages for one partition, MessageFormatFlag : {} number of messages : {}",
           flag, messageCount);
+      MessageHeaderCache.HeaderOffsets[] cachedHeaderOffsets = new MessageHeaderCache.HeaderOffsets[messageCount];
+      if (flag != MessageFormatFlags.All) {
+        // the headers that are not cached are read in one pass, reading those of adjacent messages together
+        long[] headerSizes = new long[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+          cachedHeaderOffsets[i] = headerCache == null ? null : headerCache.get(readSet.getKeyAt(i));
+          if (cachedHeaderOffsets[i] == null) {
+            headerSizes[i] = Math.min(readSet.sizeInBytes(i),
+                MessageFormatRecord.Version_Field_Size_In_Bytes + MessageFormatRecord.MessageHeader_Format_V1
+                    .getHeaderSize() + readSet.getKeyAt(i).sizeInBytes());
+          }
+        }
+        long startTime = SystemTime.getInstance().milliseconds();
+        readSet.prefetch(headerSizes);
+        logger.trace("Calculate offsets, prefetch headers time: {}", SystemTime.getInstance().milliseconds() - startTime);
+      }
       for (int i = 0; i < messageCount; i++) {
         if (flag == MessageFormatFlags.All) {
           // just copy over the total size and use relative offset to be 0
@@ -102,105 +136,65 @@ public class MessageFormatSend implements Send {
           infoList.add(i, new SendInfo(0, readSet.sizeInBytes(i)));
           totalSizeToWrite += readSet.sizeInBytes(i);
         } else {
-          // read header version
+          MessageHeaderCache.HeaderOffsets headerOffsets = cachedHeaderOffsets[i];
+          if (headerOffsets == null) {
+            headerOffsets = readHeaderOffsets(i);
+            if (headerCache != null) {
+              headerCache.put(readSet.getKeyAt(i), headerOffsets);
+            }
+          }
           long startTime = SystemTime.getInstance().milliseconds();
-          ByteBuffer headerVersion = ByteBuffer.allocate(MessageFormatRecord.Version_Field_Size_In_Bytes);
-          readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(headerVersion)), 0,
-              MessageFormatRecord.Version_Field_Size_In_Bytes);
-          logger.trace("Calculate offsets, read header version time: {}",
-              SystemTime.getInstance().milliseconds() - startTime);
-
-          headerVersion.flip();
-          short version = headerVersion.getShort();
-          switch (version) {
-            case MessageFormatRecord.Message_Header_Version_V1:
-
-              // read the header
-              startTime = SystemTime.getInstance().milliseconds();
-              ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
-              headerVersion.clear();
-              header.putShort(headerVersion.getShort());
-              readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(header)),
-                  MessageFormatRecord.Version_Field_Size_In_Bytes,
-                  MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
-                      - MessageFormatRecord.Version_Field_Size_In_Bytes);
-              logger.trace("Calculate offsets, read header time: {}",
-                  SystemTime.getInstance().milliseconds() - startTime);
+          if (flag == MessageFormatFlags.BlobProperties) {
+            int blobPropertiesRecordSize = headerOffsets.getUserMetadataRecordRelativeOffset() - headerOffsets
+                .getBlobPropertiesRecordRelativeOffset();
 
-              startTime = SystemTime.getInstance().milliseconds();
-              header.flip();
-              MessageFormatRecord.MessageHeader_Format_V1 headerFormat =
-                  new MessageFormatRecord.MessageHeader_Format_V1(header);
-              headerFormat.verifyHeader();
-              StoreKey storeKey = storeKeyFactory
-                  .getStoreKey(new DataInputStream(new MessageReadSetIndexInputStream(readSet, i, header.capacity())));
-              if (storeKey.compareTo(readSet.getKeyAt(i)) != 0) {
-                throw new MessageFormatException(
-                    "Id mismatch between metadata and store - metadataId " + readSet.getKeyAt(i) + " storeId "
-                        + storeKey, MessageFormatErrorCodes.Store_Key_Id_MisMatch);
-              }
-              logger.trace("Calculate offsets, verify header time: {}",
-                  SystemTime.getInstance().milliseconds() - startTime);
+            infoList.add(i,
+                new SendInfo(headerOffsets.getBlobPropertiesRecordRelativeOffset(), blobPropertiesRecordSize));
+            totalSizeToWrite += blobPropertiesRecordSize;
+            logger.trace("Calculate offsets, get total size of blob properties time: {}",
+                SystemTime.getInstance().milliseconds() - startTime);
+            logger.trace("Sending blob properties for message relativeOffset : {} size : {}",
+                infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
+          } else if (flag == MessageFormatFlags.BlobUserMetadata) {
+            int userMetadataRecordSize =
+                headerOffsets.getBlobRecordRelativeOffset() - headerOffsets.getUserMetadataRecordRelativeOffset();
 
-              startTime = SystemTime.getInstance().milliseconds();
-              if (flag == MessageFormatFlags.BlobProperties) {
-                int blobPropertiesRecordSize = headerFormat.getUserMetadataRecordRelativeOffset() - headerFormat
-                    .getBlobPropertiesRecordRelativeOffset();
+            infoList.add(i, new SendInfo(headerOffsets.getUserMetadataRecordRelativeOffset(), userMetadataRecordSize));
+            totalSizeToWrite += userMetadataRecordSize;
+            logger.trace("Calculate offsets, get total size of user metadata time: {}",
+                SystemTime.getInstance().milliseconds() - startTime);
+            logger.trace("Sending user metadata for message relativeOffset : {} size : {}",
+                infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
+          } else if (flag == MessageFormatFlags.BlobInfo) {
+            int blobPropertiesRecordPlusUserMetadataRecordSize =
+                headerOffsets.getBlobRecordRelativeOffset() - headerOffsets.getBlobPropertiesRecordRelativeOffset();
 
-                infoList.add(i,
-                    new SendInfo(headerFormat.getBlobPropertiesRecordRelativeOffset(), blobPropertiesRecordSize));
-                totalSizeToWrite += blobPropertiesRecordSize;
-                logger.trace("Calculate offsets, get total size of blob properties time: {}",
-                    SystemTime.getInstance().milliseconds() - startTime);
-                logger.trace("Sending blob properties for message relativeOffset : {} size : {}",
-                    infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
-              } else if (flag == MessageFormatFlags.BlobUserMetadata) {
-                int userMetadataRecordSize =
-                    headerFormat.getBlobRecordRelativeOffset() - headerFormat.getUserMetadataRecordRelativeOffset();
-
-                infoList
-                    .add(i, new SendInfo(headerFormat.getUserMetadataRecordRelativeOffset(), userMetadataRecordSize));
-                totalSizeToWrite += userMetadataRecordSize;
-                logger.trace("Calculate offsets, get total size of user metadata time: {}",
-                    SystemTime.getInstance().milliseconds() - startTime);
-                logger.trace("Sending user metadata for message relativeOffset : {} size : {}",
-                    infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
-              } else if (flag == MessageFormatFlags.BlobInfo) {
-                int blobPropertiesRecordPlusUserMetadataRecordSize =
-                    headerFormat.getBlobRecordRelativeOffset() - headerFormat.getBlobPropertiesRecordRelativeOffset();
-
-                infoList.add(i, new SendInfo(headerFormat.getBlobPropertiesRecordRelativeOffset(),
-                    blobPropertiesRecordPlusUserMetadataRecordSize));
-                totalSizeToWrite += blobPropertiesRecordPlusUserMetadataRecordSize;
-                logger.trace("Calculate offsets, get total size of blob info time: {}",
-                    SystemTime.getInstance().milliseconds() - startTime);
-                logger.trace("Sending blob info (blob properties + user metadata) for message relativeOffset : {} "
-                    + "size : {}", infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
-              } else if (flag == MessageFormatFlags.Blob) {
-                long blobRecordSize =
-                    headerFormat.getMessageSize() - (headerFormat.getBlobRecordRelativeOffset() - headerFormat
-                        .getBlobPropertiesRecordRelativeOffset());
-                infoList.add(i, new SendInfo(headerFormat.getBlobRecordRelativeOffset(), blobRecordSize));
-                totalSizeToWrite += blobRecordSize;
-                logger.trace("Calculate offsets, get total size of blob time: {}",
-                    SystemTime.getInstance().milliseconds() - startTime);
-                logger.trace("Sending data for message relativeOffset : {} size : {}", infoList.get(i).relativeOffset(),
-                    infoList.get(i).sizetoSend());
-              } else { //just return the header
-                int messageHeaderSize = MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
-                    + MessageFormatRecord.Version_Field_Size_In_Bytes;
-                infoList.add(i, new SendInfo(0, messageHeaderSize));
-                totalSizeToWrite += messageHeaderSize;
-                logger.trace("Calculate offsets, get total size of header time: {}",
-                    SystemTime.getInstance().milliseconds() - startTime);
-                logger.trace("Sending message header relativeOffset : {} size : {}", infoList.get(i).relativeOffset(),
-                    infoList.get(i).sizetoSend());
-              }
-              break;
-            default:
-              String message = "Version not known while reading message - version " + version +
-                  ", StoreKey " + readSet.getKeyAt(i);
-              throw new MessageFormatException(message, MessageFormatErrorCodes.Unknown_Format_Version);
+            infoList.add(i, new SendInfo(headerOffsets.getBlobPropertiesRecordRelativeOffset(),
+                blobPropertiesRecordPlusUserMetadataRecordSize));
+            totalSizeToWrite += blobPropertiesRecordPlusUserMetadataRecordSize;
+            logger.trace("Calculate offsets, get total size of blob info time: {}",
+                SystemTime.getInstance().milliseconds() - startTime);
+            logger.trace("Sending blob info (blob properties + user metadata) for message relativeOffset : {} "
+                + "size : {}", infoList.get(i).relativeOffset(), infoList.get(i).sizetoSend());
+          } else if (flag == MessageFormatFlags.Blob) {
+            long blobRecordSize =
+                headerOffsets.getMessageSize() - (headerOffsets.getBlobRecordRelativeOffset() - headerOffsets
+                    .getBlobPropertiesRecordRelativeOffset());
+            infoList.add(i, new SendInfo(headerOffsets.getBlobRecordRelativeOffset(), blobRecordSize));
+            totalSizeToWrite += blobRecordSize;
+            logger.trace("Calculate offsets, get total size of blob time: {}",
+                SystemTime.getInstance().milliseconds() - startTime);
+            logger.trace("Sending data for message relativeOffset : {} size : {}", infoList.get(i).relativeOffset(),
+                infoList.get(i).sizetoSend());
+          } else { //just return the header
+            int messageHeaderSize = MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
+                + MessageFormatRecord.Version_Field_Size_In_Bytes;
+            infoList.add(i, new SendInfo(0, messageHeaderSize));
+            totalSizeToWrite += messageHeaderSize;
+            logger.trace("Calculate offsets, get total size of header time: {}",
+                SystemTime.getInstance().milliseconds() - startTime);
+            logger.trace("Sending message header relativeOffset : {} size : {}", infoList.get(i).relativeOffset(),
+                infoList.get(i).sizetoSend());
           }
         }
       }
@@ -210,24 +204,96 @@ public class MessageFormatSend implements Send {
     }
   }
 
+  /**
+   * Reads and verifies the header of a message in the read set and returns the relative offsets of its records
+   * @param i The index of the message in the read set
+   * @return The relative offsets of the records of the message
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  private MessageHeaderCache.HeaderOffsets readHeaderOffsets(int i)
+      throws IOException, MessageFormatException {
+    // read header version
+    long startTime = SystemTime.getInstance().milliseconds();
+    ByteBuffer headerVersion = ByteBuffer.allocate(MessageFormatRecord.Version_Field_Size_In_Bytes);
+    readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(headerVersion)), 0,
+        MessageFormatRecord.Version_Field_Size_In_Bytes);
+    logger.trace("Calculate offsets, read header version time: {}", SystemTime.getInstance().milliseconds() - startTime);
+
+    headerVersion.flip();
+    short version = headerVersion.getShort();
+    switch (version) {
+      case MessageFormatRecord.Message_Header_Version_V1:
+
+        // read the header
+        startTime = SystemTime.getInstance().milliseconds();
+        ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
+        headerVersion.clear();
+        header.putShort(headerVersion.getShort());
+        readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(header)),
+            MessageFormatRecord.Version_Field_Size_In_Bytes,
+            MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
+                - MessageFormatRecord.Version_Field_Size_In_Bytes);
+        logger.trace("Calculate offsets, read header time: {}", SystemTime.getInstance().milliseconds() - startTime);
+
+        startTime = SystemTime.getInstance().milliseconds();
+        header.flip();
+        MessageFormatRecord.MessageHeader_Format_V1 headerFormat =
+            new MessageFormatRecord.MessageHeader_Format_V1(header);
+        headerFormat.verifyHeader();
+        StoreKey storeKey = storeKeyFactory
+            .getStoreKey(new DataInputStream(new MessageReadSetIndexInputStream(readSet, i, header.capacity())));
+        if (storeKey.compareTo(readSet.getKeyAt(i)) != 0) {
+          throw new MessageFormatException(
+              "Id mismatch between metadata and store - metadataId " + readSet.getKeyAt(i) + " storeId " + storeKey,
+              MessageFormatErrorCodes.Store_Key_Id_MisMatch);
+        }
+        logger.trace("Calculate offsets, verify header time: {}", SystemTime.getInstance().milliseconds() - startTime);
+        return new MessageHeaderCache.HeaderOffsets(headerFormat);
+      default:
+        String message = "Version not known while reading message - version " + version +
+            ", StoreKey " + readSet.getKeyAt(i);
+        throw new MessageFormatException(message, MessageFormatErrorCodes.Unknown_Format_Version);
+    }
+  }
+
   @Override
   public long writeTo(WritableByteChannel channel)
       throws IOException {
     long written = 0;
     if (!isSendComplete()) {
-      written = readSet.writeTo(currentWriteIndex, channel,
-          infoList.get(currentWriteIndex).relativeOffset() + sizeWrittenFromCurrentIndex,
-          infoList.get(currentWriteIndex).sizetoSend() - sizeWrittenFromCurrentIndex);
-      logger.trace("writeindex {} relativeOffset {} maxSize {} written {}", currentWriteIndex,
-          infoList.get(currentWriteIndex).relativeOffset() + sizeWrittenFromCurrentIndex,
-          infoList.get(currentWriteIndex).sizetoSend() - sizeWrittenFromCurrentIndex, written);
+      SendInfo currentInfo = infoList.get(currentWriteIndex);
+      long relativeOffset = currentInfo.relativeOffset() + sizeWrittenFromCurrentIndex;
+      long maxSize = currentInfo.sizetoSend() - sizeWrittenFromCurrentIndex;
+      // the whole messages that follow a message that is sent up to its end are sent with it in one write
+      int lastWriteIndex = currentWriteIndex;
+      if (currentInfo.relativeOffset() + currentInfo.sizetoSend() == readSet.sizeInBytes(currentWriteIndex)) {
+        while (lastWriteIndex + 1 < infoList.size() && infoList.get(lastWriteIndex + 1).relativeOffset() == 0
+            && infoList.get(lastWriteIndex + 1).sizetoSend() == readSet.sizeInBytes(lastWriteIndex + 1)) {
+          lastWriteIndex++;
+          maxSize += infoList.get(lastWriteIndex).sizetoSend();
+        }
+      }
+      if (lastWriteIndex == currentWriteIndex) {
+        written = readSet.writeTo(currentWriteIndex, channel, relativeOffset, maxSize);
+      } else {
+        written = readSet.writeTo(currentWriteIndex, lastWriteIndex, channel, relativeOffset, maxSize);
+      }
+      logger.trace("writeindex {} to {} relativeOffset {} maxSize {} written {}", currentWriteIndex, lastWriteIndex,
+          relativeOffset, maxSize, written);
       sizeWritten += written;
-      sizeWrittenFromCurrentIndex += written;
       logger.trace("size written in this loop : {} size written till now : {}", written, sizeWritten);
-      if (sizeWrittenFromCurrentIndex == infoList.get(currentWriteIndex).sizetoSend()) {
-        currentWriteIndex++;
-        sizeWrittenFromCurrentIndex = 0;
-      }
+      long sizeToAccount = written;
+      do {
+        long sizeLeftInCurrentIndex = infoList.get(currentWriteIndex).sizetoSend() - sizeWrittenFromCurrentIndex;
+        long sizeWrittenInCurrentIndex = Math.min(sizeLeftInCurrentIndex, sizeToAccount);
+        sizeWrittenFromCurrentIndex += sizeWrittenInCurrentIndex;
+        sizeToAccount -= sizeWrittenInCurrentIndex;
+        if (sizeWrittenFromCurrentIndex == infoList.get(currentWriteIndex).sizetoSend()) {
+          currentWriteIndex++;
+          sizeWrittenFromCurrentIndex = 0;
+        }
+      } while (sizeToAccount > 0);
     }
     return written;
   }
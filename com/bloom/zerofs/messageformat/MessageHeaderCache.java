@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.messageformat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.bloom.zerofs.api.store.StoreKey;
+
+
+/**
+ * A bounded LRU cache of the relative offsets of the records in a message, as read from the message header. The
+ * layout of a message never changes once it is written (hard deletes and compaction preserve the record sizes), so
+ * the offsets of a message can be reused for every later read of the same key without reading the header again.
+ */
+public class MessageHeaderCache {
+
+  /**
+   * The relative offsets of the records of a message from the start of the message
+   */
+  static class HeaderOffsets {
+    private final int blobPropertiesRecordRelativeOffset;
+    private final int userMetadataRecordRelativeOffset;
+    private final int blobRecordRelativeOffset;
+    private final long messageSize;
+
+    HeaderOffsets(MessageFormatRecord.MessageHeader_Format_V1 headerFormat) {
+      this.blobPropertiesRecordRelativeOffset = headerFormat.getBlobPropertiesRecordRelativeOffset();
+      this.userMetadataRecordRelativeOffset = headerFormat.getUserMetadataRecordRelativeOffset();
+      this.blobRecordRelativeOffset = headerFormat.getBlobRecordRelativeOffset();
+      this.messageSize = headerFormat.getMessageSize();
+    }
+
+    int getBlobPropertiesRecordRelativeOffset() {
+      return blobPropertiesRecordRelativeOffset;
+    }
+
+    int getUserMetadataRecordRelativeOffset() {
+      return userMetadataRecordRelativeOffset;
+    }
+
+    int getBlobRecordRelativeOffset() {
+      return blobRecordRelativeOffset;
+    }
+
+    long getMessageSize() {
+      return messageSize;
+    }
+  }
+
+  private final Map<StoreKey, HeaderOffsets> offsets;
+  private final MessageFormatMetrics metrics;
+
+  /**
+   * @param maxEntries The max number of messages whose offsets are cached
+   * @param metrics The message format metrics
+   */
+  public MessageHeaderCache(final int maxEntries, MessageFormatMetrics metrics) {
+    this.metrics = metrics;
+    this.offsets = new LinkedHashMap<StoreKey, HeaderOffsets>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<StoreKey, HeaderOffsets> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  HeaderOffsets get(StoreKey key) {
+    HeaderOffsets headerOffsets;
+    synchronized (offsets) {
+      headerOffsets = offsets.get(key);
+    }
+    if (headerOffsets == null) {
+      metrics.messageHeaderCacheMissCount.inc();
+    } else {
+      metrics.messageHeaderCacheHitCount.inc();
+    }
+    return headerOffsets;
+  }
+
+  void put(StoreKey key, HeaderOffsets headerOffsets) {
+    synchronized (offsets) {
+      offsets.put(key, headerOffsets);
+    }
+  }
+}
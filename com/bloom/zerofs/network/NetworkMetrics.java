@@ -190,6 +190,8 @@ class ServerNetworkMetrics extends NetworkMetrics {
   // SocketRequestResponseChannel metrics
   private final List<Gauge<Integer>> responseQueueSize;
   private final Gauge<Integer> requestQueueSize;
+  private final Gauge<Integer> backgroundRequestQueueSize;
+  private final Gauge<Integer> backgroundRequestsInFlight;
 
   // SocketServer metrics
   public final Counter acceptConnectionErrorCount;
@@ -208,6 +210,22 @@ class ServerNetworkMetrics extends NetworkMetrics {
       }
     };
     registry.register(MetricRegistry.name(SocketRequestResponseChannel.class, "RequestQueueSize"), requestQueueSize);
+    backgroundRequestQueueSize = new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return channel.getBackgroundRequestQueueSize();
+      }
+    };
+    registry.register(MetricRegistry.name(SocketRequestResponseChannel.class, "BackgroundRequestQueueSize"),
+        backgroundRequestQueueSize);
+    backgroundRequestsInFlight = new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return channel.getBackgroundRequestsInFlight();
+      }
+    };
+    registry.register(MetricRegistry.name(SocketRequestResponseChannel.class, "BackgroundRequestsInFlight"),
+        backgroundRequestsInFlight);
     responseQueueSize = new ArrayList<Gauge<Integer>>(channel.getNumberOfProcessors());
 
     for (int i = 0; i < channel.getNumberOfProcessors(); i++) {
@@ -15,16 +15,21 @@ package com.bloom.zerofs.network;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.bloom.zerofs.api.network.NetworkSendMetrics;
 import com.bloom.zerofs.api.network.Request;
+import com.bloom.zerofs.api.network.RequestClassifier;
 import com.bloom.zerofs.api.network.RequestResponseChannel;
 import com.bloom.zerofs.api.network.Response;
 import com.bloom.zerofs.api.network.Send;
@@ -116,19 +121,54 @@ interface ResponseListener {
 }
 
 /**
- * RequestResponse channel for socket server
+ * RequestResponse channel for socket server. If a {@link RequestClassifier} is given, the background requests are
+ * queued apart from the foreground requests, and the request handlers take the queued requests of the two classes in
+ * the ratio of their weights. The number of background requests that have been taken and not responded to can be
+ * capped, so that a burst of background requests cannot take up all the request handlers.
  */
 public class SocketRequestResponseChannel implements RequestResponseChannel {
   private final int numProcessors;
   private final int queueSize;
-  private final ArrayBlockingQueue<Request> requestQueue;
+  private final RequestClassifier requestClassifier;
+  private final int foregroundWeight;
+  private final int backgroundWeight;
+  private final int maxBackgroundRequestsInFlight;
+  private final ArrayDeque<Request> foregroundRequestQueue;
+  private final ArrayDeque<Request> backgroundRequestQueue;
+  private final Set<Request> backgroundRequestsInFlight;
+  private final ReentrantLock requestQueueLock = new ReentrantLock();
+  private final Condition requestAvailable = requestQueueLock.newCondition();
+  private final Condition foregroundRequestQueueNotFull = requestQueueLock.newCondition();
+  private final Condition backgroundRequestQueueNotFull = requestQueueLock.newCondition();
+  // the requests of each class taken while requests of both classes were queued
+  private int foregroundRequestsTaken = 0;
+  private int backgroundRequestsTaken = 0;
   private final ArrayList<BlockingQueue<Response>> responseQueues;
   private final ArrayList<ResponseListener> responseListeners;
 
   public SocketRequestResponseChannel(int numProcessors, int queueSize) {
+    this(numProcessors, queueSize, null, 1, 1, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param numProcessors The number of processors that responses are sent back through
+   * @param queueSize The max number of queued requests of each class
+   * @param requestClassifier Tells the background requests apart, or null if all the requests are foreground requests
+   * @param foregroundWeight The weight of the foreground requests
+   * @param backgroundWeight The weight of the background requests
+   * @param maxBackgroundRequestsInFlight The max number of background requests taken and not responded to
+   */
+  public SocketRequestResponseChannel(int numProcessors, int queueSize, RequestClassifier requestClassifier,
+      int foregroundWeight, int backgroundWeight, int maxBackgroundRequestsInFlight) {
     this.numProcessors = numProcessors;
     this.queueSize = queueSize;
-    this.requestQueue = new ArrayBlockingQueue<Request>(this.queueSize);
+    this.requestClassifier = requestClassifier;
+    this.foregroundWeight = foregroundWeight;
+    this.backgroundWeight = backgroundWeight;
+    this.maxBackgroundRequestsInFlight = maxBackgroundRequestsInFlight;
+    this.foregroundRequestQueue = new ArrayDeque<Request>();
+    this.backgroundRequestQueue = new ArrayDeque<Request>();
+    this.backgroundRequestsInFlight = new HashSet<Request>();
     responseQueues = new ArrayList<BlockingQueue<Response>>(this.numProcessors);
     responseListeners = new ArrayList<ResponseListener>();
 
@@ -141,13 +181,26 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
   @Override
   public void sendRequest(Request request)
       throws InterruptedException {
-    requestQueue.put(request);
+    boolean background = requestClassifier != null && requestClassifier.isBackground(request);
+    ArrayDeque<Request> requestQueue = background ? backgroundRequestQueue : foregroundRequestQueue;
+    Condition requestQueueNotFull = background ? backgroundRequestQueueNotFull : foregroundRequestQueueNotFull;
+    requestQueueLock.lockInterruptibly();
+    try {
+      while (requestQueue.size() >= queueSize) {
+        requestQueueNotFull.await();
+      }
+      requestQueue.add(request);
+      requestAvailable.signal();
+    } finally {
+      requestQueueLock.unlock();
+    }
   }
 
   /** Send a response back to the socket server to be sent over the network */
   @Override
   public void sendResponse(Send payloadToSend, Request originalRequest, ServerNetworkResponseMetrics metrics)
       throws InterruptedException {
+    onRequestCompleted(originalRequest);
     SocketServerResponse response = new SocketServerResponse(originalRequest, payloadToSend, metrics);
     response.onEnqueueIntoResponseQueue();
     responseQueues.get(response.getProcessor()).put(response);
@@ -162,6 +215,7 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
   @Override
   public void closeConnection(Request originalRequest)
       throws InterruptedException {
+    onRequestCompleted(originalRequest);
     SocketServerResponse response = new SocketServerResponse(originalRequest, null, null);
     responseQueues.get(response.getProcessor()).put(response);
     for (ResponseListener listener : responseListeners) {
@@ -173,7 +227,61 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
   @Override
   public Request receiveRequest()
       throws InterruptedException {
-    return requestQueue.take();
+    requestQueueLock.lockInterruptibly();
+    try {
+      while (true) {
+        boolean foregroundRequestQueued = !foregroundRequestQueue.isEmpty();
+        boolean backgroundRequestQueued = !backgroundRequestQueue.isEmpty()
+            && backgroundRequestsInFlight.size() < maxBackgroundRequestsInFlight;
+        if (!foregroundRequestQueued || !backgroundRequestQueued) {
+          // the weights only apply while both classes have requests to take
+          foregroundRequestsTaken = 0;
+          backgroundRequestsTaken = 0;
+        }
+        if (backgroundRequestQueued && (!foregroundRequestQueued
+            || (long) backgroundRequestsTaken * foregroundWeight < (long) foregroundRequestsTaken * backgroundWeight)) {
+          Request request = backgroundRequestQueue.poll();
+          backgroundRequestsInFlight.add(request);
+          backgroundRequestsTaken++;
+          onRequestTaken();
+          backgroundRequestQueueNotFull.signal();
+          return request;
+        } else if (foregroundRequestQueued) {
+          Request request = foregroundRequestQueue.poll();
+          foregroundRequestsTaken++;
+          onRequestTaken();
+          foregroundRequestQueueNotFull.signal();
+          return request;
+        }
+        requestAvailable.await();
+      }
+    } finally {
+      requestQueueLock.unlock();
+    }
+  }
+
+  private void onRequestTaken() {
+    if (foregroundRequestsTaken >= foregroundWeight && backgroundRequestsTaken >= backgroundWeight) {
+      foregroundRequestsTaken -= foregroundWeight;
+      backgroundRequestsTaken -= backgroundWeight;
+    }
+  }
+
+  /**
+   * Frees the slot of a background request once it has been responded to, so that another one can be taken
+   */
+  private void onRequestCompleted(Request originalRequest) {
+    if (requestClassifier == null) {
+      return;
+    }
+    requestQueueLock.lock();
+    try {
+      if (backgroundRequestsInFlight.remove(originalRequest)) {
+        requestAvailable.signal();
+      }
+    } finally {
+      requestQueueLock.unlock();
+    }
   }
 
   /** Get a response for the given processor if there is one */
@@ -187,7 +295,30 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
   }
 
   public int getRequestQueueSize() {
-    return requestQueue.size();
+    requestQueueLock.lock();
+    try {
+      return foregroundRequestQueue.size() + backgroundRequestQueue.size();
+    } finally {
+      requestQueueLock.unlock();
+    }
+  }
+
+  public int getBackgroundRequestQueueSize() {
+    requestQueueLock.lock();
+    try {
+      return backgroundRequestQueue.size();
+    } finally {
+      requestQueueLock.unlock();
+    }
+  }
+
+  public int getBackgroundRequestsInFlight() {
+    requestQueueLock.lock();
+    try {
+      return backgroundRequestsInFlight.size();
+    } finally {
+      requestQueueLock.unlock();
+    }
   }
 
   public int getResponseQueueSize(int processor) {
@@ -199,7 +330,16 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
   }
 
   public void shutdown() {
-    requestQueue.clear();
+    requestQueueLock.lock();
+    try {
+      foregroundRequestQueue.clear();
+      backgroundRequestQueue.clear();
+      backgroundRequestsInFlight.clear();
+      foregroundRequestQueueNotFull.signalAll();
+      backgroundRequestQueueNotFull.signalAll();
+    } finally {
+      requestQueueLock.unlock();
+    }
   }
 }
 
@@ -40,6 +40,7 @@ import com.bloom.zerofs.api.network.NetworkSend;
 import com.bloom.zerofs.api.network.NetworkServer;
 import com.bloom.zerofs.api.network.Port;
 import com.bloom.zerofs.api.network.PortType;
+import com.bloom.zerofs.api.network.RequestClassifier;
 import com.bloom.zerofs.api.network.RequestResponseChannel;
 import com.bloom.zerofs.tools.ByteBufferInputStream;
 import com.bloom.zerofs.tools.SystemTime;
@@ -72,6 +73,15 @@ public class SocketServer implements NetworkServer {
   private SSLFactory sslFactory;
 
   public SocketServer(NetworkConfig config, SSLConfig sslConfig, MetricRegistry registry, ArrayList<Port> portList) {
+    this(config, sslConfig, registry, portList, null);
+  }
+
+  /**
+   * @param requestClassifier Tells the background requests apart from the foreground requests when they are queued, or
+   *                          null if all the requests are foreground requests
+   */
+  public SocketServer(NetworkConfig config, SSLConfig sslConfig, MetricRegistry registry, ArrayList<Port> portList,
+      RequestClassifier requestClassifier) {
     this.host = config.hostName;
     this.port = config.port;
     this.numProcessorThreads = config.numIoThreads;
@@ -80,7 +90,10 @@ public class SocketServer implements NetworkServer {
     this.recvBufferSize = config.socketReceiveBufferBytes;
     this.maxRequestSize = config.socketRequestMaxBytes;
     processors = new ArrayList<Processor>(numProcessorThreads);
-    requestResponseChannel = new SocketRequestResponseChannel(numProcessorThreads, maxQueuedRequests);
+    requestResponseChannel =
+        new SocketRequestResponseChannel(numProcessorThreads, maxQueuedRequests, requestClassifier,
+            config.queuedForegroundRequestWeight, config.queuedBackgroundRequestWeight,
+            config.maxBackgroundRequestsInFlight);
     metrics = new ServerNetworkMetrics(requestResponseChannel, registry, processors);
     this.acceptors = new ArrayList<Acceptor>();
     this.ports = new HashMap<PortType, Port>();
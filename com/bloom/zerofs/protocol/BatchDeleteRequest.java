@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bloom.zerofs.api.clustermap.ClusterMap;
+import com.bloom.zerofs.commons.BlobId;
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * A request to delete a number of blobs, which can be of different partitions
+ */
+public class BatchDeleteRequest extends RequestOrResponse {
+  private final List<BlobId> blobIds;
+  private final long sizeInBytes;
+  private long sentBytes = 0;
+
+  private static final int Blob_Count_Size_InBytes = 4;
+  private static final short Batch_Delete_Request_Version_V1 = 1;
+
+  public BatchDeleteRequest(int correlationId, String clientId, List<BlobId> blobIds) {
+    super(RequestOrResponseType.BatchDeleteRequest, Batch_Delete_Request_Version_V1, correlationId, clientId);
+    if (blobIds.isEmpty()) {
+      throw new IllegalArgumentException("A batch delete request needs at least one blob");
+    }
+    long size = super.sizeInBytes() + Blob_Count_Size_InBytes;
+    for (BlobId blobId : blobIds) {
+      size += blobId.sizeInBytes();
+    }
+    this.blobIds = blobIds;
+    this.sizeInBytes = size;
+  }
+
+  public static BatchDeleteRequest readFrom(DataInputStream stream, ClusterMap map)
+      throws IOException {
+    short versionId = stream.readShort();
+    if (versionId != Batch_Delete_Request_Version_V1) {
+      throw new IllegalStateException("Unknown Request response version" + versionId);
+    }
+    int correlationId = stream.readInt();
+    String clientId = Utils.readIntString(stream);
+    int blobCount = stream.readInt();
+    List<BlobId> blobIds = new ArrayList<BlobId>(blobCount);
+    for (int i = 0; i < blobCount; i++) {
+      blobIds.add(new BlobId(stream, map));
+    }
+    return new BatchDeleteRequest(correlationId, clientId, blobIds);
+  }
+
+  /**
+   * @return The ids of the blobs to delete, in the order they were sent in
+   */
+  public List<BlobId> getBlobIds() {
+    return blobIds;
+  }
+
+  @Override
+  public long writeTo(WritableByteChannel channel)
+      throws IOException {
+    long written = 0;
+    if (bufferToSend == null) {
+      bufferToSend = ByteBuffer.allocate((int) sizeInBytes);
+      writeHeader();
+      bufferToSend.putInt(blobIds.size());
+      for (BlobId blobId : blobIds) {
+        bufferToSend.put(blobId.toBytes());
+      }
+      bufferToSend.flip();
+    }
+    if (bufferToSend.remaining() > 0) {
+      written = channel.write(bufferToSend);
+      sentBytes += written;
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isSendComplete() {
+    return sentBytes == sizeInBytes;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("BatchDeleteRequest[");
+    sb.append("BlobCount=").append(blobIds.size());
+    sb.append(", ").append("BlobIDs=").append(blobIds);
+    sb.append("]");
+    return sb.toString();
+  }
+}
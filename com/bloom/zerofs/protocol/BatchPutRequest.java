@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bloom.zerofs.api.clustermap.ClusterMap;
+import com.bloom.zerofs.api.clustermap.PartitionId;
+import com.bloom.zerofs.api.messageformat.BlobProperties;
+import com.bloom.zerofs.api.messageformat.BlobType;
+import com.bloom.zerofs.commons.BlobId;
+import com.bloom.zerofs.messageformat.BlobPropertiesSerDe;
+import com.bloom.zerofs.tools.ByteBufferInputStream;
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * A request to put a number of blobs of the same partition. Every blob is sent as the fields of a {@link PutRequest}
+ * followed by the blob. The blobs are meant to be small, and the whole request is put together in memory before it
+ * is sent.
+ */
+public class BatchPutRequest extends RequestOrResponse {
+  private final List<PutRequest> putRequests;
+  private final long sizeInBytes;
+  private long sentBytes = 0;
+
+  private static final int Blob_Count_Size_InBytes = 4;
+  private static final short Batch_Put_Request_Version_V1 = 1;
+
+  /**
+   * @param correlationId The correlation id of the request
+   * @param clientId The client id of the request
+   * @param putRequests The puts of the blobs, which need to be of the same partition. Their correlation ids and client
+   *                    ids are not sent.
+   */
+  public BatchPutRequest(int correlationId, String clientId, List<PutRequest> putRequests) {
+    super(RequestOrResponseType.BatchPutRequest, Batch_Put_Request_Version_V1, correlationId, clientId);
+    if (putRequests.isEmpty()) {
+      throw new IllegalArgumentException("A batch put request needs at least one blob");
+    }
+    PartitionId partitionId = putRequests.get(0).getBlobId().getPartition();
+    long size = super.sizeInBytes() + Blob_Count_Size_InBytes;
+    for (PutRequest putRequest : putRequests) {
+      if (!putRequest.getBlobId().getPartition().equals(partitionId)) {
+        throw new IllegalArgumentException("Blob " + putRequest.getBlobId() + " is not of partition " + partitionId);
+      }
+      size += putRequest.blobHeaderSizeInBytes() + putRequest.getBlobSize();
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Batch put request of size " + size + " is too large");
+    }
+    this.putRequests = putRequests;
+    this.sizeInBytes = size;
+  }
+
+  public static BatchPutRequest readFrom(DataInputStream stream, ClusterMap map)
+      throws IOException {
+    short versionId = stream.readShort();
+    if (versionId != Batch_Put_Request_Version_V1) {
+      throw new IllegalStateException("Unknown Request response version" + versionId);
+    }
+    int correlationId = stream.readInt();
+    String clientId = Utils.readIntString(stream);
+    int blobCount = stream.readInt();
+    List<PutRequest> putRequests = new ArrayList<PutRequest>(blobCount);
+    for (int i = 0; i < blobCount; i++) {
+      BlobId id = new BlobId(stream, map);
+      BlobProperties properties = BlobPropertiesSerDe.getBlobPropertiesFromStream(stream);
+      ByteBuffer metadata = Utils.readIntBuffer(stream);
+      BlobType blobType = BlobType.values()[stream.readShort()];
+      long blobSize = stream.readLong();
+      InputStream blobStream = new ByteBufferInputStream(stream, (int) blobSize);
+      putRequests.add(new PutRequest(correlationId, clientId, id, properties, metadata, blobStream, blobSize, blobType));
+    }
+    return new BatchPutRequest(correlationId, clientId, putRequests);
+  }
+
+  /**
+   * @return The puts of the blobs in this request, in the order they were sent in
+   */
+  public List<PutRequest> getPutRequests() {
+    return putRequests;
+  }
+
+  /**
+   * @return The partition of the blobs in this request
+   */
+  public PartitionId getPartition() {
+    return putRequests.get(0).getBlobId().getPartition();
+  }
+
+  @Override
+  public long writeTo(WritableByteChannel channel)
+      throws IOException {
+    long written = 0;
+    if (bufferToSend == null) {
+      bufferToSend = ByteBuffer.allocate((int) sizeInBytes);
+      writeHeader();
+      bufferToSend.putInt(putRequests.size());
+      for (PutRequest putRequest : putRequests) {
+        putRequest.writeBlobHeader(bufferToSend);
+        InputStream blobStream = putRequest.getBlobStream();
+        int blobEnd = bufferToSend.position() + (int) putRequest.getBlobSize();
+        while (bufferToSend.position() < blobEnd) {
+          int read = blobStream.read(bufferToSend.array(), bufferToSend.position(), blobEnd - bufferToSend.position());
+          if (read < 0) {
+            throw new IOException("Blob stream of " + putRequest.getBlobId() + " ended before the blob size");
+          }
+          bufferToSend.position(bufferToSend.position() + read);
+        }
+        // the blob has been read from the stream of the put, which is as good as the put having been sent
+        putRequest.sentBytes = putRequest.sizeInBytes();
+      }
+      bufferToSend.flip();
+    }
+    if (bufferToSend.remaining() > 0) {
+      written = channel.write(bufferToSend);
+      sentBytes += written;
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isSendComplete() {
+    return sentBytes == sizeInBytes;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("BatchPutRequest[");
+    sb.append("Partition=").append(getPartition());
+    sb.append(", ").append("BlobCount=").append(putRequests.size());
+    sb.append(", ").append("BlobIDs=[");
+    for (int i = 0; i < putRequests.size(); i++) {
+      sb.append(i == 0 ? "" : ", ").append(putRequests.get(i).getBlobId().getID());
+    }
+    sb.append("]]");
+    return sb.toString();
+  }
+}
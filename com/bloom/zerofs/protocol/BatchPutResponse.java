@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bloom.zerofs.commons.ServerErrorCode;
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * A Response to the Batch Put Request, with the result of the put of every blob in the order of the request
+ */
+public class BatchPutResponse extends Response {
+  private final List<ServerErrorCode> blobErrors;
+
+  private static final short Batch_Put_Response_Version_V1 = 1;
+  private static final int Blob_Count_Size_InBytes = 4;
+  private static final int Blob_Error_Size_InBytes = 2;
+
+  public BatchPutResponse(int correlationId, String clientId, ServerErrorCode error, List<ServerErrorCode> blobErrors) {
+    super(RequestOrResponseType.BatchPutResponse, Batch_Put_Response_Version_V1, correlationId, clientId, error);
+    this.blobErrors = blobErrors;
+  }
+
+  public static BatchPutResponse readFrom(DataInputStream stream)
+      throws IOException {
+    RequestOrResponseType type = RequestOrResponseType.values()[stream.readShort()];
+    if (type != RequestOrResponseType.BatchPutResponse) {
+      throw new IllegalArgumentException("The type of request response is not compatible: " + type);
+    }
+    Short versionId = stream.readShort();
+    int correlationId = stream.readInt();
+    String clientId = Utils.readIntString(stream);
+    ServerErrorCode error = ServerErrorCode.values()[stream.readShort()];
+    int blobCount = stream.readInt();
+    List<ServerErrorCode> blobErrors = new ArrayList<ServerErrorCode>(blobCount);
+    for (int i = 0; i < blobCount; i++) {
+      blobErrors.add(ServerErrorCode.values()[stream.readShort()]);
+    }
+    // ignore version for now
+    return new BatchPutResponse(correlationId, clientId, error, blobErrors);
+  }
+
+  /**
+   * @return The results of the puts of the blobs, in the order of the blobs in the request
+   */
+  public List<ServerErrorCode> getBlobErrors() {
+    return blobErrors;
+  }
+
+  @Override
+  public long writeTo(WritableByteChannel channel)
+      throws IOException {
+    if (bufferToSend == null) {
+      bufferToSend = ByteBuffer.allocate((int) sizeInBytes());
+      writeHeader();
+      bufferToSend.putInt(blobErrors.size());
+      for (ServerErrorCode blobError : blobErrors) {
+        bufferToSend.putShort((short) blobError.ordinal());
+      }
+      bufferToSend.flip();
+    }
+    return bufferToSend.remaining() > 0 ? channel.write(bufferToSend) : 0;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return super.sizeInBytes() + Blob_Count_Size_InBytes + blobErrors.size() * Blob_Error_Size_InBytes;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("BatchPutResponse[");
+    sb.append("ServerErrorCode=").append(getError());
+    sb.append(", ").append("BlobErrors=").append(blobErrors);
+    sb.append("]");
+    return sb.toString();
+  }
+}
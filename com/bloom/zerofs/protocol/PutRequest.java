@@ -118,6 +118,28 @@ public class PutRequest extends RequestOrResponse {
         UserMetadata_Size_InBytes + usermetadata.capacity() + Blob_Size_InBytes + BlobType_Size_InBytes;
   }
 
+  /**
+   * @return the size of the blob id, blob properties, user metadata, blob type and blob size of this request, which
+   * precede the blob in a {@link BatchPutRequest}
+   */
+  int blobHeaderSizeInBytes() {
+    return blobId.sizeInBytes() + BlobPropertiesSerDe.getBlobPropertiesSize(properties) + UserMetadata_Size_InBytes
+        + usermetadata.capacity() + BlobType_Size_InBytes + Blob_Size_InBytes;
+  }
+
+  /**
+   * Writes the blob id, blob properties, user metadata, blob type and blob size of this request to a buffer
+   * @param buffer The buffer to write to
+   */
+  void writeBlobHeader(ByteBuffer buffer) {
+    buffer.put(blobId.toBytes());
+    BlobPropertiesSerDe.putBlobPropertiesToBuffer(buffer, properties);
+    buffer.putInt(usermetadata.capacity());
+    buffer.put(usermetadata.duplicate());
+    buffer.putShort((short) blobType.ordinal());
+    buffer.putLong(blobSize);
+  }
+
   @Override
   public long writeTo(WritableByteChannel channel)
       throws IOException {
@@ -27,5 +27,9 @@ public enum RequestOrResponseType {
   TTLRequest, // Unsupported
   TTLResponse, // Unsupported
   ReplicaMetadataRequest,
-  ReplicaMetadataResponse
+  ReplicaMetadataResponse,
+  BatchPutRequest,
+  BatchPutResponse,
+  BatchDeleteRequest,
+  BatchDeleteResponse
 }
\ No newline at end of file
@@ -15,6 +15,8 @@ package com.bloom.zerofs.router;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -30,6 +32,7 @@ import com.bloom.zerofs.api.coordinator.CoordinatorException;
 import com.bloom.zerofs.api.messageformat.BlobInfo;
 import com.bloom.zerofs.api.messageformat.BlobOutput;
 import com.bloom.zerofs.api.messageformat.BlobProperties;
+import com.bloom.zerofs.api.router.BulkDeleteTracker;
 import com.bloom.zerofs.api.router.Callback;
 import com.bloom.zerofs.api.router.FutureResult;
 import com.bloom.zerofs.api.router.ReadableStreamChannel;
@@ -164,6 +167,21 @@ public class CoordinatorBackedRouter implements Router {
       metrics.operationPreProcessingTimeInMs.update(System.currentTimeMillis() - preProcessingStartTime);
     }
   }
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds) {
+    return deleteBlobs(blobIds, null);
+  }
+
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds, Callback<Map<String, Exception>> callback) {
+    FutureResult<Map<String, Exception>> futureResult = new FutureResult<Map<String, Exception>>();
+    BulkDeleteTracker bulkDeleteTracker = new BulkDeleteTracker(blobIds, futureResult, callback);
+    for (String blobId : blobIds) {
+      deleteBlob(blobId, bulkDeleteTracker.getCallback(blobId));
+    }
+    return futureResult;
+  }
+
 
   @Override
   public void close()
@@ -13,9 +13,16 @@
  */
 package com.bloom.zerofs.router;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,10 +38,14 @@ import com.bloom.zerofs.api.router.RouterErrorCode;
 import com.bloom.zerofs.api.router.RouterException;
 import com.bloom.zerofs.commons.BlobId;
 import com.bloom.zerofs.commons.ResponseHandler;
+import com.bloom.zerofs.commons.ServerErrorCode;
 import com.bloom.zerofs.network.RequestInfo;
 import com.bloom.zerofs.network.ResponseInfo;
+import com.bloom.zerofs.protocol.BatchDeleteRequest;
+import com.bloom.zerofs.protocol.BatchDeleteResponse;
 import com.bloom.zerofs.protocol.DeleteRequest;
 import com.bloom.zerofs.protocol.RequestOrResponse;
+import com.bloom.zerofs.tools.ByteBufferInputStream;
 import com.bloom.zerofs.tools.Time;
 
 
@@ -45,6 +56,9 @@ import com.bloom.zerofs.tools.Time;
 class DeleteManager {
   private final Set<DeleteOperation> deleteOperations;
   private final HashMap<Integer, DeleteOperation> correlationIdToDeleteOperation;
+  // The delete requests that were sent in a batch delete request, by the correlation id of the batch. The response to
+  // the batch is split into a response for each of them, which are handed over as if they had been sent on their own.
+  private final HashMap<Integer, List<RequestInfo>> batchCorrelationIdToRequestInfos;
   private final NotificationSystem notificationSystem;
   private final Time time;
   private final ResponseHandler responseHandler;
@@ -94,6 +108,7 @@ class DeleteManager {
     this.time = time;
     deleteOperations = Collections.newSetFromMap(new ConcurrentHashMap<DeleteOperation, Boolean>());
     correlationIdToDeleteOperation = new HashMap<Integer, DeleteOperation>();
+    batchCorrelationIdToRequestInfos = new HashMap<Integer, List<RequestInfo>>();
   }
 
   /**
@@ -123,6 +138,7 @@ class DeleteManager {
    */
   public void poll(List<RequestInfo> requestListToFill) {
     long startTime = time.milliseconds();
+    int firstRequestIndex = requestListToFill.size();
     requestRegistrationCallback.requestListToFill = requestListToFill;
     for (DeleteOperation op : deleteOperations) {
       boolean exceptionEncountered = false;
@@ -141,22 +157,94 @@ class DeleteManager {
         }
       }
     }
+    if (routerConfig.routerDeleteBatchMaxBlobCount > 1) {
+      batchDeleteRequests(requestListToFill, firstRequestIndex);
+    }
     routerMetrics.deleteManagerPollTimeMs.update(time.milliseconds() - startTime);
   }
 
+  /**
+   * Replaces the delete requests that were created in this poll and are to be sent to the same data node with a
+   * {@link BatchDeleteRequest}, so that the data node deletes them with a single request.
+   * @param requestList the list of requests created in this poll
+   * @param firstRequestIndex the index of the first request in the list that was created by the delete operations
+   */
+  private void batchDeleteRequests(List<RequestInfo> requestList, int firstRequestIndex) {
+    Map<List<Object>, List<RequestInfo>> requestInfosToBatch = new LinkedHashMap<List<Object>, List<RequestInfo>>();
+    for (RequestInfo requestInfo : requestList.subList(firstRequestIndex, requestList.size())) {
+      List<Object> key = Arrays.<Object>asList(requestInfo.getHost(), requestInfo.getPort().getPort(),
+          requestInfo.getPort().getPortType());
+      List<RequestInfo> requestInfos = requestInfosToBatch.get(key);
+      if (requestInfos == null || requestInfos.size() == routerConfig.routerDeleteBatchMaxBlobCount) {
+        // a full batch is sent as it is, and the requests that follow go into a new one
+        if (requestInfos != null) {
+          addBatchDeleteRequest(requestList, requestInfos);
+        }
+        requestInfos = new ArrayList<RequestInfo>();
+        requestInfosToBatch.put(key, requestInfos);
+      }
+      requestInfos.add(requestInfo);
+    }
+    for (List<RequestInfo> requestInfos : requestInfosToBatch.values()) {
+      addBatchDeleteRequest(requestList, requestInfos);
+    }
+  }
+
+  /**
+   * Replaces the given delete requests in the list with a single {@link BatchDeleteRequest}, if there is more than one
+   * @param requestList the list of requests to be sent
+   * @param requestInfos the delete requests to the same data node that are to be batched
+   */
+  private void addBatchDeleteRequest(List<RequestInfo> requestList, List<RequestInfo> requestInfos) {
+    if (requestInfos.size() < 2) {
+      return;
+    }
+    List<BlobId> blobIds = new ArrayList<BlobId>(requestInfos.size());
+    for (RequestInfo requestInfo : requestInfos) {
+      blobIds.add(((DeleteRequest) requestInfo.getRequest()).getBlobId());
+    }
+    BatchDeleteRequest batchDeleteRequest =
+        new BatchDeleteRequest(NonBlockingRouter.correlationIdGenerator.incrementAndGet(), routerConfig.routerHostname,
+            blobIds);
+    requestList.removeAll(requestInfos);
+    requestList.add(new RequestInfo(requestInfos.get(0).getHost(), requestInfos.get(0).getPort(), batchDeleteRequest));
+    batchCorrelationIdToRequestInfos.put(batchDeleteRequest.getCorrelationId(), requestInfos);
+    routerMetrics.deleteRequestBatchSize.update(requestInfos.size());
+  }
+
   /**
    * Handles responses received for each of the {@link DeleteOperation} within this delete manager.
    * @param responseInfo the {@link ResponseInfo} containing the response.
    */
   void handleResponse(ResponseInfo responseInfo) {
+    if (responseInfo.getRequest() instanceof BatchDeleteRequest) {
+      handleBatchDeleteResponse(responseInfo);
+      return;
+    }
+    handleResponse((DeleteRequest) responseInfo.getRequest(), responseInfo, null);
+  }
+
+  /**
+   * Hands over the response to a {@link DeleteRequest} to the {@link DeleteOperation} that issued it.
+   * @param deleteRequest the {@link DeleteRequest} that the response is for.
+   * @param responseInfo the {@link ResponseInfo} containing the response, or null if the request was sent as part of a
+   *                     batch whose response has been read.
+   * @param blobError the error returned for the blob of the request in the response to its batch, or null if there is
+   *                  none.
+   */
+  private void handleResponse(DeleteRequest deleteRequest, ResponseInfo responseInfo, ServerErrorCode blobError) {
     long startTime = time.milliseconds();
-    int correlationId = ((DeleteRequest) responseInfo.getRequest()).getCorrelationId();
+    int correlationId = deleteRequest.getCorrelationId();
     DeleteOperation deleteOperation = correlationIdToDeleteOperation.remove(correlationId);
     // If it is still an active operation, hand over the response. Otherwise, ignore.
     if (deleteOperations.contains(deleteOperation)) {
       boolean exceptionEncountered = false;
       try {
-        deleteOperation.handleResponse(responseInfo);
+        if (responseInfo != null) {
+          deleteOperation.handleResponse(responseInfo);
+        } else {
+          deleteOperation.handleBatchedResponse(deleteRequest, blobError);
+        }
       } catch (Exception e) {
         exceptionEncountered = true;
         deleteOperation.setOperationException(
@@ -174,6 +262,48 @@ class DeleteManager {
     }
   }
 
+  /**
+   * Splits the response to a {@link BatchDeleteRequest} into a response for each of the delete requests that were sent
+   * in it, and hands each of them over as if the delete request had been sent on its own.
+   * @param responseInfo the {@link ResponseInfo} containing the response to the batch.
+   */
+  private void handleBatchDeleteResponse(ResponseInfo responseInfo) {
+    BatchDeleteRequest batchDeleteRequest = (BatchDeleteRequest) responseInfo.getRequest();
+    List<RequestInfo> requestInfos = batchCorrelationIdToRequestInfos.remove(batchDeleteRequest.getCorrelationId());
+    if (requestInfos == null) {
+      routerMetrics.ignoredResponseCount.inc();
+      return;
+    }
+    List<ServerErrorCode> blobErrors = null;
+    if (responseInfo.getError() == null) {
+      try {
+        BatchDeleteResponse batchDeleteResponse =
+            BatchDeleteResponse.readFrom(new DataInputStream(new ByteBufferInputStream(responseInfo.getResponse())));
+        if (batchDeleteResponse.getCorrelationId() != batchDeleteRequest.getCorrelationId()
+            || batchDeleteResponse.getBlobErrors().size() != requestInfos.size()) {
+          routerMetrics.unknownReplicaResponseError.inc();
+          logger.error("The BatchDeleteResponse " + batchDeleteResponse + " with correlation id "
+              + batchDeleteResponse.getCorrelationId() + " does not match the BatchDeleteRequest " + batchDeleteRequest
+              + " with correlation id " + batchDeleteRequest.getCorrelationId());
+        } else {
+          blobErrors = batchDeleteResponse.getBlobErrors();
+        }
+      } catch (IOException e) {
+        logger.error("Response deserialization received an unexpected error for " + batchDeleteRequest, e);
+      }
+    }
+    Iterator<ServerErrorCode> blobErrorIterator = blobErrors == null ? null : blobErrors.iterator();
+    for (RequestInfo requestInfo : requestInfos) {
+      DeleteRequest deleteRequest = (DeleteRequest) requestInfo.getRequest();
+      if (responseInfo.getError() != null) {
+        handleResponse(deleteRequest, new ResponseInfo(deleteRequest, responseInfo.getError(), null), null);
+      } else {
+        // a response that cannot be read fails the delete the same way as an unreadable delete response would
+        handleResponse(deleteRequest, null, blobErrorIterator == null ? null : blobErrorIterator.next());
+      }
+    }
+  }
+
   /**
    * Called when the delete operation is completed. The {@code DeleteManager} also finishes the delete operation
    * by performing the callback and notification.
@@ -157,16 +157,11 @@ class DeleteOperation {
    */
   void handleResponse(ResponseInfo responseInfo) {
     DeleteRequest deleteRequest = (DeleteRequest) responseInfo.getRequest();
-    DeleteRequestInfo deleteRequestInfo = deleteRequestInfos.remove(deleteRequest.getCorrelationId());
-    // deleteRequestInfo can be null if this request was timed out before this response is received. No
-    // metric is updated here, as corresponding metrics have been updated when the request was timed out.
+    DeleteRequestInfo deleteRequestInfo = onResponseReceived(deleteRequest);
     if (deleteRequestInfo == null) {
       return;
     }
     ReplicaId replica = deleteRequestInfo.replica;
-    long requestLatencyMs = time.milliseconds() - deleteRequestInfo.startTimeMs;
-    routerMetrics.routerRequestLatencyMs.update(requestLatencyMs);
-    routerMetrics.getDataNodeBasedMetrics(replica.getDataNodeId()).deleteRequestLatencyMs.update(requestLatencyMs);
     // Check the error code from NetworkClient.
     if (responseInfo.getError() != null) {
       responseHandler.onRequestResponseException(replica, new IOException(("NetworkClient error.")));
@@ -199,6 +194,49 @@ class DeleteOperation {
     checkAndMaybeComplete();
   }
 
+  /**
+   * Handles the error that a replica returned for a {@link DeleteRequest} of this operation that was sent to it as
+   * part of a batch, the same way as the error in the response to the request had it been sent on its own.
+   * @param deleteRequest The delete request that was sent in the batch.
+   * @param serverErrorCode The error returned for the blob of the request, or null if the response to the batch could
+   *                        not be read.
+   */
+  void handleBatchedResponse(DeleteRequest deleteRequest, ServerErrorCode serverErrorCode) {
+    DeleteRequestInfo deleteRequestInfo = onResponseReceived(deleteRequest);
+    if (deleteRequestInfo == null) {
+      return;
+    }
+    ReplicaId replica = deleteRequestInfo.replica;
+    if (serverErrorCode == null) {
+      logger.error("Unable to recover the response to the batch of deleteRequest " + deleteRequest);
+      updateOperationState(replica, RouterErrorCode.UnexpectedInternalError);
+    } else {
+      responseHandler.onRequestResponseError(replica, serverErrorCode);
+      // The status of operation tracker will be updated within the processServerError method.
+      processServerError(replica, serverErrorCode);
+    }
+    checkAndMaybeComplete();
+  }
+
+  /**
+   * Stops tracking a request of this operation that a response has been received for, and updates the latency metrics
+   * of the request.
+   * @param deleteRequest The request that a response has been received for.
+   * @return The {@link DeleteRequestInfo} of the request, or null if the request is no longer tracked.
+   */
+  private DeleteRequestInfo onResponseReceived(DeleteRequest deleteRequest) {
+    DeleteRequestInfo deleteRequestInfo = deleteRequestInfos.remove(deleteRequest.getCorrelationId());
+    // deleteRequestInfo can be null if this request was timed out before this response is received. No
+    // metric is updated here, as corresponding metrics have been updated when the request was timed out.
+    if (deleteRequestInfo != null) {
+      long requestLatencyMs = time.milliseconds() - deleteRequestInfo.startTimeMs;
+      routerMetrics.routerRequestLatencyMs.update(requestLatencyMs);
+      routerMetrics.getDataNodeBasedMetrics(deleteRequestInfo.replica.getDataNodeId()).deleteRequestLatencyMs
+          .update(requestLatencyMs);
+    }
+    return deleteRequestInfo;
+  }
+
   /**
    * A wrapper class that is used to check if a request has been expired.
    */
@@ -256,6 +294,7 @@ class DeleteOperation {
         updateOperationState(replica, RouterErrorCode.UnexpectedInternalError);
         break;
       case Disk_Unavailable:
+      case Retry_After_Backoff:
         updateOperationState(replica, RouterErrorCode.AmberUnavailable);
         break;
       default:
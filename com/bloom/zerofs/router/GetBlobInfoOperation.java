@@ -308,6 +308,10 @@ class GetBlobInfoOperation extends GetOperation<BlobInfo> {
         logger.trace("Requested blob was not found on this server");
         setOperationException(new RouterException("Server returned: " + errorCode, RouterErrorCode.BlobDoesNotExist));
         break;
+      case Retry_After_Backoff:
+        logger.trace("Server shed the request as it was overloaded");
+        setOperationException(new RouterException("Server returned: " + errorCode, RouterErrorCode.AmberUnavailable));
+        break;
       default:
         setOperationException(
             new RouterException("Server returned: " + errorCode, RouterErrorCode.UnexpectedInternalError));
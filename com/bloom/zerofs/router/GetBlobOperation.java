@@ -828,6 +828,9 @@ class GetBlobOperation extends GetOperation<ReadableStreamChannel> {
         case Blob_Not_Found:
           setChunkException(new RouterException("Server returned: " + errorCode, RouterErrorCode.BlobDoesNotExist));
           break;
+        case Retry_After_Backoff:
+          setChunkException(new RouterException("Server returned: " + errorCode, RouterErrorCode.AmberUnavailable));
+          break;
         default:
           setChunkException(
               new RouterException("Server returned: " + errorCode, RouterErrorCode.UnexpectedInternalError));
@@ -16,6 +16,7 @@ package com.bloom.zerofs.router;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
@@ -31,6 +32,7 @@ import com.bloom.zerofs.api.config.RouterConfig;
 import com.bloom.zerofs.api.messageformat.BlobInfo;
 import com.bloom.zerofs.api.messageformat.BlobProperties;
 import com.bloom.zerofs.api.notification.NotificationSystem;
+import com.bloom.zerofs.api.router.BulkDeleteTracker;
 import com.bloom.zerofs.api.router.Callback;
 import com.bloom.zerofs.api.router.FutureResult;
 import com.bloom.zerofs.api.router.ReadableStreamChannel;
@@ -258,6 +260,35 @@ class NonBlockingRouter implements Router {
     }
     return futureResult;
   }
+  /**
+   * Requests for a number of blobs to be deleted asynchronously and returns a future that will eventually contain the
+   * ids of the blobs that could not be deleted.
+   * @param blobIds The IDs of the blobs that need to be deleted.
+   * @return A future that would contain the ids of the blobs that could not be deleted eventually.
+   */
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds) {
+    return deleteBlobs(blobIds, null);
+  }
+
+  /**
+   * Requests for a number of blobs to be deleted asynchronously and invokes the {@link Callback} when the deletes of
+   * all of them complete. Every blob is deleted by an operation of its own, and the delete requests of the operations
+   * that go to the same data node in the same poll are sent together if batching of delete requests is enabled.
+   * @param blobIds The IDs of the blobs that need to be deleted.
+   * @param callback The {@link Callback} which will be invoked on the completion of the deletes.
+   * @return A future that would contain the ids of the blobs that could not be deleted eventually.
+   */
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds, Callback<Map<String, Exception>> callback) {
+    FutureResult<Map<String, Exception>> futureResult = new FutureResult<Map<String, Exception>>();
+    BulkDeleteTracker bulkDeleteTracker = new BulkDeleteTracker(blobIds, futureResult, callback);
+    for (String blobId : blobIds) {
+      deleteBlob(blobId, bulkDeleteTracker.getCallback(blobId));
+    }
+    return futureResult;
+  }
+
 
   /**
    * Closes the router and releases any resources held by the router. If the router is already closed, then this
@@ -463,12 +494,14 @@ class NonBlockingRouter implements Router {
         RequestOrResponseType type = ((RequestOrResponse) responseInfo.getRequest()).getRequestType();
         switch (type) {
           case PutRequest:
+          case BatchPutRequest:
             putManager.handleResponse(responseInfo);
             break;
           case GetRequest:
             getManager.handleResponse(responseInfo);
             break;
           case DeleteRequest:
+          case BatchDeleteRequest:
             deleteManager.handleResponse(responseInfo);
             break;
           default:
@@ -83,6 +83,10 @@ public class NonBlockingRouterMetrics {
   public final Histogram putManagerHandleResponseTimeMs;
   public final Histogram getManagerHandleResponseTimeMs;
   public final Histogram deleteManagerHandleResponseTimeMs;
+  // number of put requests that are sent in a batch put request.
+  public final Histogram putRequestBatchSize;
+  // number of delete requests that are sent in a batch delete request.
+  public final Histogram deleteRequestBatchSize;
   // time spent in getting a chunk filled once it is available.
   public final Histogram chunkFillTimeMs;
   // time spent waiting for a chunk to become available for filling once data is available.
@@ -185,6 +189,9 @@ public class NonBlockingRouterMetrics {
         metricRegistry.histogram(MetricRegistry.name(GetManager.class, "GetManagerHandleResponseTimeMs"));
     deleteManagerHandleResponseTimeMs =
         metricRegistry.histogram(MetricRegistry.name(DeleteManager.class, "DeleteManagerHandleResponseTimeMs"));
+    putRequestBatchSize = metricRegistry.histogram(MetricRegistry.name(PutManager.class, "PutRequestBatchSize"));
+    deleteRequestBatchSize =
+        metricRegistry.histogram(MetricRegistry.name(DeleteManager.class, "DeleteRequestBatchSize"));
     chunkFillTimeMs = metricRegistry.histogram(MetricRegistry.name(PutManager.class, "ChunkFillTimeMs"));
     waitTimeForFreeChunkAvailabilityMs =
         metricRegistry.histogram(MetricRegistry.name(PutManager.class, "WaitTimeForFreeChunkAvailabilityMs"));
@@ -13,8 +13,14 @@
  */
 package com.bloom.zerofs.router;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,10 +42,14 @@ import com.bloom.zerofs.api.router.RouterErrorCode;
 import com.bloom.zerofs.api.router.RouterException;
 import com.bloom.zerofs.commons.ByteBufferAsyncWritableChannel;
 import com.bloom.zerofs.commons.ResponseHandler;
+import com.bloom.zerofs.commons.ServerErrorCode;
 import com.bloom.zerofs.network.RequestInfo;
 import com.bloom.zerofs.network.ResponseInfo;
+import com.bloom.zerofs.protocol.BatchPutRequest;
+import com.bloom.zerofs.protocol.BatchPutResponse;
 import com.bloom.zerofs.protocol.PutRequest;
 import com.bloom.zerofs.protocol.RequestOrResponse;
+import com.bloom.zerofs.tools.ByteBufferInputStream;
 import com.bloom.zerofs.tools.Time;
 import com.bloom.zerofs.tools.Utils;
 
@@ -63,6 +73,9 @@ class PutManager {
   // Because there is a guaranteed response from the NetworkClient for every request sent out, entries
   // get cleaned up periodically.
   private final Map<Integer, PutOperation> correlationIdToPutOperation;
+  // The put requests that were sent in a batch put request, by the correlation id of the batch. The response to the
+  // batch is split into a response for each of them, which are handed over as if they had been sent on their own.
+  private final Map<Integer, List<RequestInfo>> batchCorrelationIdToRequestInfos;
   private final AtomicBoolean isOpen = new AtomicBoolean(true);
   private final OperationCompleteCallback operationCompleteCallback;
   private final ReadyForPollCallback readyForPollCallback;
@@ -129,6 +142,7 @@ class PutManager {
     this.time = time;
     putOperations = Collections.newSetFromMap(new ConcurrentHashMap<PutOperation, Boolean>());
     correlationIdToPutOperation = new HashMap<Integer, PutOperation>();
+    batchCorrelationIdToRequestInfos = new HashMap<Integer, List<RequestInfo>>();
     chunkFillerThread = Utils.newThread("ChunkFillerThread-" + index, new ChunkFiller(), true);
     chunkFillerThread.start();
     routerMetrics.initializePutManagerMetrics(chunkFillerThread);
@@ -168,6 +182,7 @@ class PutManager {
    */
   void poll(List<RequestInfo> requestListToFill) {
     long startTime = time.milliseconds();
+    int firstRequestIndex = requestListToFill.size();
     requestRegistrationCallback.requestListToFill = requestListToFill;
     for (PutOperation op : putOperations) {
       try {
@@ -182,22 +197,98 @@ class PutManager {
         onComplete(op);
       }
     }
+    if (routerConfig.routerPutBatchMaxBlobSizeBytes > 0) {
+      batchPutRequests(requestListToFill, firstRequestIndex);
+    }
     routerMetrics.putManagerPollTimeMs.update(time.milliseconds() - startTime);
   }
 
+  /**
+   * Replaces the put requests of small chunks that were created in this poll and are to be sent to the same replica
+   * of the same partition with a {@link BatchPutRequest}, so that the replica writes them with a single request.
+   * @param requestList the list of requests created in this poll
+   * @param firstRequestIndex the index of the first request in the list that was created by the put operations
+   */
+  private void batchPutRequests(List<RequestInfo> requestList, int firstRequestIndex) {
+    Map<List<Object>, List<RequestInfo>> requestInfosToBatch = new LinkedHashMap<List<Object>, List<RequestInfo>>();
+    for (RequestInfo requestInfo : requestList.subList(firstRequestIndex, requestList.size())) {
+      PutRequest putRequest = (PutRequest) requestInfo.getRequest();
+      if (putRequest.getBlobSize() > routerConfig.routerPutBatchMaxBlobSizeBytes) {
+        continue;
+      }
+      List<Object> key = Arrays.<Object>asList(requestInfo.getHost(), requestInfo.getPort().getPort(),
+          requestInfo.getPort().getPortType(), putRequest.getBlobId().getPartition());
+      List<RequestInfo> requestInfos = requestInfosToBatch.get(key);
+      if (requestInfos == null || requestInfos.size() == routerConfig.routerPutBatchMaxBlobCount) {
+        // a full batch is sent as it is, and the requests that follow go into a new one
+        if (requestInfos != null) {
+          addBatchPutRequest(requestList, requestInfos);
+        }
+        requestInfos = new ArrayList<RequestInfo>();
+        requestInfosToBatch.put(key, requestInfos);
+      }
+      requestInfos.add(requestInfo);
+    }
+    for (List<RequestInfo> requestInfos : requestInfosToBatch.values()) {
+      addBatchPutRequest(requestList, requestInfos);
+    }
+  }
+
+  /**
+   * Replaces the given put requests in the list with a single {@link BatchPutRequest}, if there is more than one
+   * @param requestList the list of requests to be sent
+   * @param requestInfos the put requests to the same replica of the same partition that are to be batched
+   */
+  private void addBatchPutRequest(List<RequestInfo> requestList, List<RequestInfo> requestInfos) {
+    if (requestInfos.size() < 2) {
+      return;
+    }
+    List<PutRequest> putRequests = new ArrayList<PutRequest>(requestInfos.size());
+    for (RequestInfo requestInfo : requestInfos) {
+      putRequests.add((PutRequest) requestInfo.getRequest());
+    }
+    BatchPutRequest batchPutRequest =
+        new BatchPutRequest(NonBlockingRouter.correlationIdGenerator.incrementAndGet(), routerConfig.routerHostname,
+            putRequests);
+    requestList.removeAll(requestInfos);
+    requestList.add(new RequestInfo(requestInfos.get(0).getHost(), requestInfos.get(0).getPort(), batchPutRequest));
+    batchCorrelationIdToRequestInfos.put(batchPutRequest.getCorrelationId(), requestInfos);
+    routerMetrics.putRequestBatchSize.update(requestInfos.size());
+  }
+
   /**
    * Hands over the response to the associated PutOperation that issued the request.
    * @param responseInfo the {@link ResponseInfo} containing the response.
    */
   void handleResponse(ResponseInfo responseInfo) {
+    if (responseInfo.getRequest() instanceof BatchPutRequest) {
+      handleBatchPutResponse(responseInfo);
+      return;
+    }
+    handleResponse((PutRequest) responseInfo.getRequest(), responseInfo, null);
+  }
+
+  /**
+   * Hands over the response to a {@link PutRequest} to the associated PutOperation that issued the request.
+   * @param putRequest the {@link PutRequest} that the response is for.
+   * @param responseInfo the {@link ResponseInfo} containing the response, or null if the request was sent as part of a
+   *                     batch whose response has been read.
+   * @param blobError the error returned for the blob of the request in the response to its batch, or null if there is
+   *                  none.
+   */
+  private void handleResponse(PutRequest putRequest, ResponseInfo responseInfo, ServerErrorCode blobError) {
     long startTime = time.milliseconds();
-    int correlationId = ((PutRequest) responseInfo.getRequest()).getCorrelationId();
+    int correlationId = putRequest.getCorrelationId();
     // Get the PutOperation that generated the request.
     PutOperation putOperation = correlationIdToPutOperation.remove(correlationId);
     // If it is still an active operation, hand over the response. Otherwise, ignore.
     if (putOperations.contains(putOperation)) {
       try {
-        putOperation.handleResponse(responseInfo);
+        if (responseInfo != null) {
+          putOperation.handleResponse(responseInfo);
+        } else {
+          putOperation.handleBatchedResponse(putRequest, blobError);
+        }
       } catch (Exception e) {
         putOperation.setOperationExceptionAndComplete(
             new RouterException("Put handleResponse encountered unexpected error", e,
@@ -212,6 +303,48 @@ class PutManager {
     }
   }
 
+  /**
+   * Splits the response to a {@link BatchPutRequest} into a response for each of the put requests that were sent in
+   * it, and hands each of them over as if the put request had been sent on its own.
+   * @param responseInfo the {@link ResponseInfo} containing the response to the batch.
+   */
+  private void handleBatchPutResponse(ResponseInfo responseInfo) {
+    BatchPutRequest batchPutRequest = (BatchPutRequest) responseInfo.getRequest();
+    List<RequestInfo> requestInfos = batchCorrelationIdToRequestInfos.remove(batchPutRequest.getCorrelationId());
+    if (requestInfos == null) {
+      routerMetrics.ignoredResponseCount.inc();
+      return;
+    }
+    List<ServerErrorCode> blobErrors = null;
+    if (responseInfo.getError() == null) {
+      try {
+        BatchPutResponse batchPutResponse =
+            BatchPutResponse.readFrom(new DataInputStream(new ByteBufferInputStream(responseInfo.getResponse())));
+        if (batchPutResponse.getCorrelationId() != batchPutRequest.getCorrelationId()
+            || batchPutResponse.getBlobErrors().size() != requestInfos.size()) {
+          routerMetrics.unknownReplicaResponseError.inc();
+          logger.error("The BatchPutResponse " + batchPutResponse + " with correlation id "
+              + batchPutResponse.getCorrelationId() + " does not match the BatchPutRequest " + batchPutRequest
+              + " with correlation id " + batchPutRequest.getCorrelationId());
+        } else {
+          blobErrors = batchPutResponse.getBlobErrors();
+        }
+      } catch (IOException e) {
+        logger.error("Response deserialization received an unexpected error for " + batchPutRequest, e);
+      }
+    }
+    Iterator<ServerErrorCode> blobErrorIterator = blobErrors == null ? null : blobErrors.iterator();
+    for (RequestInfo requestInfo : requestInfos) {
+      PutRequest putRequest = (PutRequest) requestInfo.getRequest();
+      if (responseInfo.getError() != null) {
+        handleResponse(putRequest, new ResponseInfo(putRequest, responseInfo.getError(), null), null);
+      } else {
+        // a response that cannot be read fails the put the same way as an unreadable put response would
+        handleResponse(putRequest, null, blobErrorIterator == null ? null : blobErrorIterator.next());
+      }
+    }
+  }
+
   /**
    * Returns a list of ids of successfully put chunks that were part of unsuccessful put operations.
    */
@@ -272,6 +272,21 @@ class PutOperation {
     }
   }
 
+  /**
+   * Handle the error that a replica returned for a {@link PutRequest} that was sent to it as part of a batch, by
+   * handing it over to the correct {@link PutChunk} that issued the request.
+   * @param putRequest the {@link PutRequest} that was sent in the batch.
+   * @param putError the error returned for the blob of the request, or null if the response to the batch could not be
+   *                 read.
+   */
+  void handleBatchedResponse(PutRequest putRequest, ServerErrorCode putError) {
+    PutChunk putChunk = correlationIdToPutChunk.remove(putRequest.getCorrelationId());
+    putChunk.handleBatchedResponse(putRequest, putError);
+    if (putChunk.isComplete()) {
+      onChunkOperationComplete(putChunk);
+    }
+  }
+
   /**
    * Called when the operation on a {@link PutChunk} is complete: That is, the chunk is successfully put or there was
    * an irrecoverable error in doing so. The {@link PutChunk} guarantees that in the former case,
@@ -892,19 +907,10 @@ class PutOperation {
      */
     void handleResponse(ResponseInfo responseInfo) {
       int correlationId = ((PutRequest) responseInfo.getRequest()).getCorrelationId();
-      ChunkPutRequestInfo chunkPutRequestInfo = correlationIdToChunkPutRequestInfo.remove(correlationId);
+      ChunkPutRequestInfo chunkPutRequestInfo = onResponseReceived(correlationId);
       if (chunkPutRequestInfo == null) {
-        // Ignore right away. This could mean:
-        // - the response is valid for this chunk, but was timed out and removed from the map.
-        // - the response is for an earlier attempt of this chunk (slipped put scenario). And the map was cleared
-        // before attempting the slipped put.
-        // - the response is for an earlier chunk held by this PutChunk.
         return;
       }
-      long requestLatencyMs = time.milliseconds() - chunkPutRequestInfo.startTimeMs;
-      routerMetrics.routerRequestLatencyMs.update(requestLatencyMs);
-      routerMetrics.getDataNodeBasedMetrics(chunkPutRequestInfo.replicaId.getDataNodeId()).putRequestLatencyMs
-          .update(requestLatencyMs);
       boolean isSuccessful;
       if (responseInfo.getError() != null) {
         setChunkException(new RouterException("Operation timed out", RouterErrorCode.OperationTimedOut));
@@ -928,16 +934,7 @@ class PutOperation {
             isSuccessful = false;
             // we do not notify the ResponseHandler responsible for failure detection as this is an unexpected error.
           } else {
-            ServerErrorCode putError = putResponse.getError();
-            responseHandler.onRequestResponseError(chunkPutRequestInfo.replicaId, putError);
-            if (putError == ServerErrorCode.No_Error) {
-              logger.trace("The putRequest was successful");
-              isSuccessful = true;
-            } else {
-              // chunkException will be set within processServerError.
-              processServerError(putResponse.getError());
-              isSuccessful = false;
-            }
+            isSuccessful = onPutError(chunkPutRequestInfo, putResponse.getError());
           }
         } catch (IOException e) {
           // This should really not happen. Again, we do not notify the ResponseHandler responsible for failure
@@ -947,6 +944,82 @@ class PutOperation {
           isSuccessful = false;
         }
       }
+      onResponse(chunkPutRequestInfo, isSuccessful);
+    }
+
+    /**
+     * This method is the entry point for handling the error that a replica returned for a request sent out on behalf
+     * of this chunk as part of a batch. The error is handled the same way as the error in the response to the request
+     * had it been sent on its own.
+     * @param putRequest the request that was sent in the batch.
+     * @param putError the error returned for the blob of the request, or null if the response to the batch could not
+     *                 be read.
+     */
+    void handleBatchedResponse(PutRequest putRequest, ServerErrorCode putError) {
+      ChunkPutRequestInfo chunkPutRequestInfo = onResponseReceived(putRequest.getCorrelationId());
+      if (chunkPutRequestInfo == null) {
+        return;
+      }
+      boolean isSuccessful;
+      if (putError == null) {
+        // As with a response that cannot be read, we do not notify the ResponseHandler responsible for failure
+        // detection.
+        setChunkException(new RouterException("Batch response deserialization received an unexpected error",
+            RouterErrorCode.UnexpectedInternalError));
+        isSuccessful = false;
+      } else {
+        isSuccessful = onPutError(chunkPutRequestInfo, putError);
+      }
+      onResponse(chunkPutRequestInfo, isSuccessful);
+    }
+
+    /**
+     * Stops tracking a request sent out on behalf of this chunk that a response has been received for, and updates the
+     * latency metrics of the request.
+     * @param correlationId the correlation id of the request.
+     * @return the {@link ChunkPutRequestInfo} of the request, or null if the response is to be ignored.
+     */
+    private ChunkPutRequestInfo onResponseReceived(int correlationId) {
+      ChunkPutRequestInfo chunkPutRequestInfo = correlationIdToChunkPutRequestInfo.remove(correlationId);
+      if (chunkPutRequestInfo == null) {
+        // Ignore right away. This could mean:
+        // - the response is valid for this chunk, but was timed out and removed from the map.
+        // - the response is for an earlier attempt of this chunk (slipped put scenario). And the map was cleared
+        // before attempting the slipped put.
+        // - the response is for an earlier chunk held by this PutChunk.
+        return null;
+      }
+      long requestLatencyMs = time.milliseconds() - chunkPutRequestInfo.startTimeMs;
+      routerMetrics.routerRequestLatencyMs.update(requestLatencyMs);
+      routerMetrics.getDataNodeBasedMetrics(chunkPutRequestInfo.replicaId.getDataNodeId()).putRequestLatencyMs
+          .update(requestLatencyMs);
+      return chunkPutRequestInfo;
+    }
+
+    /**
+     * Notifies the response handler of the error returned by a replica and processes it.
+     * @param chunkPutRequestInfo the {@link ChunkPutRequestInfo} of the request.
+     * @param putError the error returned for the request.
+     * @return true if the put was successful.
+     */
+    private boolean onPutError(ChunkPutRequestInfo chunkPutRequestInfo, ServerErrorCode putError) {
+      responseHandler.onRequestResponseError(chunkPutRequestInfo.replicaId, putError);
+      if (putError == ServerErrorCode.No_Error) {
+        logger.trace("The putRequest was successful");
+        return true;
+      }
+      // chunkException will be set within processServerError.
+      processServerError(putError);
+      return false;
+    }
+
+    /**
+     * Notifies the operation tracker of the outcome of a request, and completes the operation on this chunk if it is
+     * eligible for completion.
+     * @param chunkPutRequestInfo the {@link ChunkPutRequestInfo} of the request.
+     * @param isSuccessful true if the put was successful.
+     */
+    private void onResponse(ChunkPutRequestInfo chunkPutRequestInfo, boolean isSuccessful) {
       if (isSuccessful) {
         operationTracker.onResponse(chunkPutRequestInfo.replicaId, true);
         if (RouterUtils.isRemoteReplica(routerConfig, chunkPutRequestInfo.replicaId)) {
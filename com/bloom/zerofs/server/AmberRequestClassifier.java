@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.config.ServerConfig;
+import com.bloom.zerofs.api.network.Request;
+import com.bloom.zerofs.api.network.RequestClassifier;
+import com.bloom.zerofs.protocol.RequestOrResponseType;
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * Classifies the requests to the server by their type and client id, which are read from the header that all the
+ * requests start with. The requests of the configured types, and the requests whose client ids start with one of the
+ * configured prefixes, are background requests.
+ */
+class AmberRequestClassifier implements RequestClassifier {
+  private final EnumSet<RequestOrResponseType> backgroundRequestTypes;
+  private final List<String> backgroundClientIdPrefixes;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  AmberRequestClassifier(ServerConfig serverConfig) {
+    backgroundRequestTypes = EnumSet.noneOf(RequestOrResponseType.class);
+    for (String type : serverConfig.serverBackgroundRequestTypes.split(",")) {
+      if (!type.trim().isEmpty()) {
+        backgroundRequestTypes.add(RequestOrResponseType.valueOf(type.trim()));
+      }
+    }
+    backgroundClientIdPrefixes = new ArrayList<String>();
+    for (String prefix : serverConfig.serverBackgroundRequestClientIdPrefixes.split(",")) {
+      if (!prefix.trim().isEmpty()) {
+        backgroundClientIdPrefixes.add(prefix.trim());
+      }
+    }
+  }
+
+  /**
+   * @return true if any request can be classified as a background request
+   */
+  boolean isEnabled() {
+    return !backgroundRequestTypes.isEmpty() || !backgroundClientIdPrefixes.isEmpty();
+  }
+
+  @Override
+  public boolean isBackground(Request request) {
+    InputStream stream = request.getInputStream();
+    if (stream == null || !stream.markSupported()) {
+      return false;
+    }
+    stream.mark(Integer.MAX_VALUE);
+    try {
+      DataInputStream dataInputStream = new DataInputStream(stream);
+      RequestOrResponseType type = RequestOrResponseType.values()[dataInputStream.readShort()];
+      // version id and correlation id
+      dataInputStream.readShort();
+      dataInputStream.readInt();
+      String clientId = Utils.readIntString(dataInputStream);
+      return isBackground(type, clientId);
+    } catch (Exception e) {
+      // the request is handled, and its error reported, as a foreground request
+      logger.trace("Could not read the header of request {}", request, e);
+      return false;
+    } finally {
+      try {
+        stream.reset();
+      } catch (IOException e) {
+        logger.error("Could not reset the stream of request {}", request, e);
+      }
+    }
+  }
+
+  /**
+   * @param type The type of a request
+   * @param clientId The client id of the request
+   * @return true if the request is a background request
+   */
+  boolean isBackground(RequestOrResponseType type, String clientId) {
+    if (backgroundRequestTypes.contains(type)) {
+      return true;
+    }
+    if (clientId != null) {
+      for (String prefix : backgroundClientIdPrefixes) {
+        if (clientId.startsWith(prefix)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -15,19 +15,30 @@ package com.bloom.zerofs.server;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.bloom.zerofs.api.clustermap.ClusterMap;
 import com.bloom.zerofs.api.clustermap.DataNodeId;
+import com.bloom.zerofs.api.clustermap.DiskId;
 import com.bloom.zerofs.api.clustermap.HardwareState;
 import com.bloom.zerofs.api.clustermap.PartitionId;
 import com.bloom.zerofs.api.clustermap.PartitionState;
 import com.bloom.zerofs.api.clustermap.ReplicaId;
+import com.bloom.zerofs.api.config.ServerConfig;
 import com.bloom.zerofs.api.messageformat.MessageFormatFlags;
 import com.bloom.zerofs.api.network.Request;
 import com.bloom.zerofs.api.network.RequestResponseChannel;
@@ -45,7 +56,9 @@ import com.bloom.zerofs.api.store.StoreErrorCodes;
 import com.bloom.zerofs.api.store.StoreException;
 import com.bloom.zerofs.api.store.StoreGetOptions;
 import com.bloom.zerofs.api.store.StoreInfo;
+import com.bloom.zerofs.api.store.StoreKey;
 import com.bloom.zerofs.api.store.StoreKeyFactory;
+import com.bloom.zerofs.commons.BlobId;
 import com.bloom.zerofs.commons.ServerErrorCode;
 import com.bloom.zerofs.messageformat.DeleteMessageFormatInputStream;
 import com.bloom.zerofs.messageformat.MessageFormatErrorCodes;
@@ -54,8 +67,13 @@ import com.bloom.zerofs.messageformat.MessageFormatInputStream;
 import com.bloom.zerofs.messageformat.MessageFormatMetrics;
 import com.bloom.zerofs.messageformat.MessageFormatSend;
 import com.bloom.zerofs.messageformat.MessageFormatWriteSet;
+import com.bloom.zerofs.messageformat.MessageHeaderCache;
 import com.bloom.zerofs.messageformat.PutMessageFormatInputStream;
 import com.bloom.zerofs.network.CompositeSend;
+import com.bloom.zerofs.protocol.BatchDeleteRequest;
+import com.bloom.zerofs.protocol.BatchDeleteResponse;
+import com.bloom.zerofs.protocol.BatchPutRequest;
+import com.bloom.zerofs.protocol.BatchPutResponse;
 import com.bloom.zerofs.protocol.DeleteRequest;
 import com.bloom.zerofs.protocol.DeleteResponse;
 import com.bloom.zerofs.protocol.GetOptions;
@@ -69,6 +87,7 @@ import com.bloom.zerofs.protocol.ReplicaMetadataRequest;
 import com.bloom.zerofs.protocol.ReplicaMetadataRequestInfo;
 import com.bloom.zerofs.protocol.ReplicaMetadataResponse;
 import com.bloom.zerofs.protocol.ReplicaMetadataResponseInfo;
+import com.bloom.zerofs.protocol.RequestOrResponse;
 import com.bloom.zerofs.protocol.RequestOrResponseType;
 import com.bloom.zerofs.replication.ReplicationManager;
 import com.bloom.zerofs.store.StoreManager;
@@ -95,13 +114,19 @@ public class AmberRequests implements RequestAPI {
   private final MessageFormatMetrics messageFormatMetrics;
   private final FindTokenFactory findTokenFactory;
   private final NotificationSystem notification;
-  private final ReplicationManager replicationManager;
+  // set once all the stores have started and replication has started
+  private volatile ReplicationManager replicationManager = null;
   private final StoreKeyFactory storeKeyFactory;
+  private final MessageHeaderCache messageHeaderCache;
+  private final DiskRequestHandlerPool diskRequestHandlerPool;
+  private final Map<PartitionId, DiskId> partitionToDiskId;
+  private final AmberRequestClassifier requestClassifier;
+  private final RequestAdmissionController admissionController;
 
   public AmberRequests(StoreManager storeManager, RequestResponseChannel requestResponseChannel, ClusterMap clusterMap,
       DataNodeId nodeId, MetricRegistry registry, FindTokenFactory findTokenFactory,
-      NotificationSystem operationNotification, ReplicationManager replicationManager,
-      StoreKeyFactory storeKeyFactory) {
+      NotificationSystem operationNotification, StoreKeyFactory storeKeyFactory, ServerConfig serverConfig,
+      DiskRequestHandlerPool diskRequestHandlerPool, AmberRequestClassifier requestClassifier) {
     this.storeManager = storeManager;
     this.requestResponseChannel = requestResponseChannel;
     this.clusterMap = clusterMap;
@@ -110,8 +135,27 @@ public class AmberRequests implements RequestAPI {
     this.messageFormatMetrics = new MessageFormatMetrics(registry);
     this.findTokenFactory = findTokenFactory;
     this.notification = operationNotification;
-    this.replicationManager = replicationManager;
     this.storeKeyFactory = storeKeyFactory;
+    this.messageHeaderCache = serverConfig.serverMessageHeaderCacheMaxEntries > 0 ? new MessageHeaderCache(
+        serverConfig.serverMessageHeaderCacheMaxEntries, messageFormatMetrics) : null;
+    this.diskRequestHandlerPool = diskRequestHandlerPool;
+    this.requestClassifier = requestClassifier;
+    this.admissionController = new RequestAdmissionController(serverConfig);
+    this.partitionToDiskId = new HashMap<PartitionId, DiskId>();
+    for (ReplicaId replicaId : clusterMap.getReplicaIds(nodeId)) {
+      partitionToDiskId.put(replicaId.getPartitionId(), replicaId.getDiskId());
+    }
+  }
+
+  /**
+   * Sets the replication manager once all the stores have started. Until then, requests for the partitions whose
+   * stores have started are served, requests for the other partitions fail with
+   * {@link ServerErrorCode#Partition_Unknown} and replica metadata requests fail with
+   * {@link ServerErrorCode#Retry_After_Backoff}.
+   * @param replicationManager The replication manager of the server
+   */
+  public void setReplicationManager(ReplicationManager replicationManager) {
+    this.replicationManager = replicationManager;
   }
 
   public void handleRequests(Request request)
@@ -123,6 +167,12 @@ public class AmberRequests implements RequestAPI {
         case PutRequest:
           handlePutRequest(request);
           break;
+        case BatchPutRequest:
+          handleBatchPutRequest(request);
+          break;
+        case BatchDeleteRequest:
+          handleBatchDeleteRequest(request);
+          break;
         case GetRequest:
           handleGetRequest(request);
           break;
@@ -141,13 +191,32 @@ public class AmberRequests implements RequestAPI {
     }
   }
 
-  public void handlePutRequest(Request request)
+  public void handlePutRequest(final Request request)
+      throws IOException, InterruptedException {
+    final PutRequest putRequest = PutRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
+    List<PartitionId> partitionIds = Collections.singletonList(putRequest.getBlobId().getPartition());
+    dispatch(request, putRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handlePutRequest(request, putRequest, shed);
+      }
+    });
+  }
+
+  private void handlePutRequest(Request request, PutRequest putRequest, boolean shed)
       throws IOException, InterruptedException {
-    PutRequest putRequest = PutRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
     long requestQueueTime = SystemTime.getInstance().milliseconds() - request.getStartTimeInMs();
     long totalTimeSpent = requestQueueTime;
     metrics.putBlobRequestQueueTimeInMs.update(requestQueueTime);
+    updateRequestClassMetrics(RequestOrResponseType.PutRequest, putRequest.getClientId(), requestQueueTime);
     metrics.putBlobRequestRate.mark();
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new PutResponse(putRequest.getCorrelationId(), putRequest.getClientId(),
+              ServerErrorCode.Retry_After_Backoff), requestQueueTime, metrics.putBlobResponseQueueTimeInMs,
+          metrics.putBlobSendTimeInMs, metrics.putBlobTotalTimeInMs);
+      return;
+    }
     long startTime = SystemTime.getInstance().milliseconds();
     PutResponse response = null;
     try {
@@ -202,9 +271,182 @@ public class AmberRequests implements RequestAPI {
         metrics.putBlobSendTimeInMs, metrics.putBlobTotalTimeInMs, totalTimeSpent, putRequest.getBlobSize(), metrics);
   }
 
-  public void handleGetRequest(Request request)
+  public void handleBatchPutRequest(final Request request)
+      throws IOException, InterruptedException {
+    final BatchPutRequest batchPutRequest =
+        BatchPutRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
+    List<PartitionId> partitionIds = Collections.singletonList(batchPutRequest.getPartition());
+    dispatch(request, batchPutRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handleBatchPutRequest(request, batchPutRequest, shed);
+      }
+    });
+  }
+
+  private void handleBatchPutRequest(Request request, BatchPutRequest batchPutRequest, boolean shed)
+      throws IOException, InterruptedException {
+    long requestQueueTime = SystemTime.getInstance().milliseconds() - request.getStartTimeInMs();
+    long totalTimeSpent = requestQueueTime;
+    metrics.batchPutBlobRequestQueueTimeInMs.update(requestQueueTime);
+    updateRequestClassMetrics(RequestOrResponseType.BatchPutRequest, batchPutRequest.getClientId(), requestQueueTime);
+    metrics.batchPutBlobRequestRate.mark();
+    List<PutRequest> putRequests = batchPutRequest.getPutRequests();
+    metrics.batchPutBlobCount.update(putRequests.size());
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new BatchPutResponse(batchPutRequest.getCorrelationId(), batchPutRequest.getClientId(),
+              ServerErrorCode.Retry_After_Backoff, Collections.nCopies(putRequests.size(),
+              ServerErrorCode.Retry_After_Backoff)), requestQueueTime, metrics.batchPutBlobResponseQueueTimeInMs,
+          metrics.batchPutBlobSendTimeInMs, metrics.batchPutBlobTotalTimeInMs);
+      return;
+    }
+    long startTime = SystemTime.getInstance().milliseconds();
+    List<ServerErrorCode> blobErrors = new ArrayList<ServerErrorCode>(putRequests.size());
+    BatchPutResponse response = null;
+    try {
+      ServerErrorCode error = validateRequest(batchPutRequest.getPartition(), true);
+      if (error != ServerErrorCode.No_Error) {
+        logger.error("Validating batch put request failed with error {} for request {}", error, batchPutRequest);
+        blobErrors.addAll(Collections.nCopies(putRequests.size(), error));
+      } else {
+        Store storeToPut = storeManager.getStore(batchPutRequest.getPartition());
+        List<StoreKey> blobIds = new ArrayList<StoreKey>(putRequests.size());
+        for (PutRequest putRequest : putRequests) {
+          blobIds.add(putRequest.getBlobId());
+        }
+        // the blobs that already exist are answered on their own, so that they do not fail the put of the others
+        Set<StoreKey> missingBlobIds = storeToPut.findMissingKeys(blobIds);
+        List<MessageFormatInputStream> streams = new ArrayList<MessageFormatInputStream>(putRequests.size());
+        ArrayList<MessageInfo> infoList = new ArrayList<MessageInfo>(putRequests.size());
+        List<PutRequest> putRequestsToWrite = new ArrayList<PutRequest>(putRequests.size());
+        // the index in blobErrors of each of the blobs to write
+        List<Integer> blobIndexesToWrite = new ArrayList<Integer>(putRequests.size());
+        for (PutRequest putRequest : putRequests) {
+          if (!missingBlobIds.remove(putRequest.getBlobId())) {
+            metrics.idAlreadyExistError.inc();
+            blobErrors.add(ServerErrorCode.Blob_Already_Exists);
+            continue;
+          }
+          MessageFormatInputStream stream =
+              new PutMessageFormatInputStream(putRequest.getBlobId(), putRequest.getBlobProperties(),
+                  putRequest.getUsermetadata(), putRequest.getBlobStream(), putRequest.getBlobSize(),
+                  putRequest.getBlobType());
+          streams.add(stream);
+          infoList.add(new MessageInfo(putRequest.getBlobId(), stream.getSize(), Utils
+              .addSecondsToEpochTime(putRequest.getBlobProperties().getCreationTimeInMs(),
+                  putRequest.getBlobProperties().getTimeToLiveInSeconds())));
+          putRequestsToWrite.add(putRequest);
+          blobIndexesToWrite.add(blobErrors.size());
+          blobErrors.add(ServerErrorCode.No_Error);
+        }
+        if (!infoList.isEmpty()) {
+          try {
+            storeToPut.put(new MessageFormatWriteSet(new SequenceInputStream(Collections.enumeration(streams)),
+                infoList, false));
+          } catch (StoreException e) {
+            if (e.getErrorCode() == StoreErrorCodes.Already_Exist) {
+              // a blob was put by another request since the missing keys were found, which fails the write of all the
+              // blobs before any of them is read. The store does not tell which blob it was, so every blob gets the
+              // result of its own put.
+              logger.trace("Store exception on a batch put with error code " + e.getErrorCode() + " for request "
+                  + batchPutRequest + ", putting its blobs one at a time", e);
+              for (int i = 0; i < infoList.size(); i++) {
+                blobErrors.set(blobIndexesToWrite.get(i),
+                    putBlob(storeToPut, streams.get(i), infoList.get(i), batchPutRequest));
+              }
+            } else {
+              logger.error("Store exception on a batch put with error code " + e.getErrorCode() + " for request "
+                  + batchPutRequest, e);
+              if (e.getErrorCode() == StoreErrorCodes.IOError) {
+                metrics.storeIOError.inc();
+              } else {
+                metrics.unExpectedStorePutError.inc();
+              }
+              for (int blobIndex : blobIndexesToWrite) {
+                blobErrors.set(blobIndex, ErrorMapping.getStoreErrorMapping(e.getErrorCode()));
+              }
+            }
+          }
+          for (int i = 0; i < putRequestsToWrite.size(); i++) {
+            if (blobErrors.get(blobIndexesToWrite.get(i)) == ServerErrorCode.No_Error) {
+              PutRequest putRequest = putRequestsToWrite.get(i);
+              metrics.blobSizeInBytes.update(putRequest.getBlobSize());
+              metrics.blobUserMetadataSizeInBytes.update(putRequest.getUsermetadata().limit());
+              if (notification != null) {
+                notification.onBlobReplicaCreated(currentNode.getHostname(), currentNode.getPort(),
+                    putRequest.getBlobId().getID(), BlobReplicaSourceType.PRIMARY);
+              }
+            }
+          }
+        }
+      }
+      response = new BatchPutResponse(batchPutRequest.getCorrelationId(), batchPutRequest.getClientId(),
+          ServerErrorCode.No_Error, blobErrors);
+    } catch (Exception e) {
+      logger.error("Unknown exception on a batch put for request " + batchPutRequest, e);
+      response = new BatchPutResponse(batchPutRequest.getCorrelationId(), batchPutRequest.getClientId(),
+          ServerErrorCode.Unknown_Error, Collections.nCopies(putRequests.size(), ServerErrorCode.Unknown_Error));
+    } finally {
+      long processingTime = SystemTime.getInstance().milliseconds() - startTime;
+      totalTimeSpent += processingTime;
+      publicAccessLogger.info("{} {} processingTime {}", batchPutRequest, response, processingTime);
+      metrics.batchPutBlobProcessingTimeInMs.update(processingTime);
+    }
+    requestResponseChannel.sendResponse(response, request,
+        new ServerNetworkResponseMetrics(metrics.batchPutBlobResponseQueueTimeInMs, metrics.batchPutBlobSendTimeInMs,
+            metrics.batchPutBlobTotalTimeInMs, null, null, totalTimeSpent));
+  }
+
+  /**
+   * Puts a blob of a batch put request with a write of its own to the store
+   * @param store The store of the partition of the batch
+   * @param stream The message of the blob, which has not been read yet
+   * @param info The info of the message of the blob
+   * @param batchPutRequest The batch put request
+   * @return The result of the put of the blob
+   * @throws IOException
+   */
+  private ServerErrorCode putBlob(Store store, MessageFormatInputStream stream, MessageInfo info,
+      BatchPutRequest batchPutRequest)
+      throws IOException {
+    try {
+      store.put(new MessageFormatWriteSet(stream, Collections.singletonList(info), false));
+      return ServerErrorCode.No_Error;
+    } catch (StoreException e) {
+      if (e.getErrorCode() == StoreErrorCodes.Already_Exist) {
+        metrics.idAlreadyExistError.inc();
+      } else {
+        logger.error("Store exception on a batch put with error code " + e.getErrorCode() + " for blob "
+            + info.getStoreKey() + " of request " + batchPutRequest, e);
+        if (e.getErrorCode() == StoreErrorCodes.IOError) {
+          metrics.storeIOError.inc();
+        } else {
+          metrics.unExpectedStorePutError.inc();
+        }
+      }
+      return ErrorMapping.getStoreErrorMapping(e.getErrorCode());
+    }
+  }
+
+  public void handleGetRequest(final Request request)
+      throws IOException, InterruptedException {
+    final GetRequest getRequest = GetRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
+    List<PartitionId> partitionIds = new ArrayList<PartitionId>(getRequest.getPartitionInfoList().size());
+    for (PartitionRequestInfo partitionRequestInfo : getRequest.getPartitionInfoList()) {
+      partitionIds.add(partitionRequestInfo.getPartition());
+    }
+    dispatch(request, getRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handleGetRequest(request, getRequest, shed);
+      }
+    });
+  }
+
+  private void handleGetRequest(Request request, GetRequest getRequest, boolean shed)
       throws IOException, InterruptedException {
-    GetRequest getRequest = GetRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
     Histogram responseQueueTime = null;
     Histogram responseSendTime = null;
     Histogram responseTotalTime = null;
@@ -241,6 +483,13 @@ public class AmberRequests implements RequestAPI {
       responseSendTime = metrics.getBlobAllSendTimeInMs;
       responseTotalTime = metrics.getBlobAllTotalTimeInMs;
     }
+    updateRequestClassMetrics(RequestOrResponseType.GetRequest, getRequest.getClientId(), requestQueueTime);
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new GetResponse(getRequest.getCorrelationId(), getRequest.getClientId(),
+              new ArrayList<PartitionResponseInfo>(), (Send) null, ServerErrorCode.Retry_After_Backoff),
+          requestQueueTime, responseQueueTime, responseSendTime, responseTotalTime);
+      return;
+    }
     long startTime = SystemTime.getInstance().milliseconds();
     GetResponse response = null;
     try {
@@ -273,7 +522,7 @@ public class AmberRequests implements RequestAPI {
             StoreInfo info = storeToGet.get(partitionRequestInfo.getBlobIds(), storeGetOptions);
             MessageFormatSend blobsToSend =
                 new MessageFormatSend(info.getMessageReadSet(), getRequest.getMessageFormatFlag(), messageFormatMetrics,
-                    storeKeyFactory);
+                    storeKeyFactory, messageHeaderCache);
             PartitionResponseInfo partitionResponseInfo =
                 new PartitionResponseInfo(partitionRequestInfo.getPartition(), info.getMessageReadSetInfo());
             messagesToSendList.add(blobsToSend);
@@ -340,13 +589,33 @@ public class AmberRequests implements RequestAPI {
         totalTimeSpent, response.sizeInBytes(), getRequest.getMessageFormatFlag(), metrics);
   }
 
-  public void handleDeleteRequest(Request request)
+  public void handleDeleteRequest(final Request request)
+      throws IOException, InterruptedException {
+    final DeleteRequest deleteRequest =
+        DeleteRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
+    List<PartitionId> partitionIds = Collections.singletonList(deleteRequest.getBlobId().getPartition());
+    dispatch(request, deleteRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handleDeleteRequest(request, deleteRequest, shed);
+      }
+    });
+  }
+
+  private void handleDeleteRequest(Request request, DeleteRequest deleteRequest, boolean shed)
       throws IOException, InterruptedException {
-    DeleteRequest deleteRequest = DeleteRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
     long requestQueueTime = SystemTime.getInstance().milliseconds() - request.getStartTimeInMs();
     long totalTimeSpent = requestQueueTime;
     metrics.deleteBlobRequestQueueTimeInMs.update(requestQueueTime);
+    updateRequestClassMetrics(RequestOrResponseType.DeleteRequest, deleteRequest.getClientId(), requestQueueTime);
     metrics.deleteBlobRequestRate.mark();
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new DeleteResponse(deleteRequest.getCorrelationId(), deleteRequest.getClientId(),
+              ServerErrorCode.Retry_After_Backoff), requestQueueTime, metrics.deleteBlobResponseQueueTimeInMs,
+          metrics.deleteBlobSendTimeInMs, metrics.deleteBlobTotalTimeInMs);
+      return;
+    }
     long startTime = SystemTime.getInstance().milliseconds();
     DeleteResponse response = null;
     try {
@@ -406,14 +675,241 @@ public class AmberRequests implements RequestAPI {
             metrics.deleteBlobTotalTimeInMs, null, null, totalTimeSpent));
   }
 
-  public void handleReplicaMetadataRequest(Request request)
+  public void handleBatchDeleteRequest(final Request request)
+      throws IOException, InterruptedException {
+    final BatchDeleteRequest batchDeleteRequest =
+        BatchDeleteRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap);
+    List<PartitionId> partitionIds = new ArrayList<PartitionId>(batchDeleteRequest.getBlobIds().size());
+    for (BlobId blobId : batchDeleteRequest.getBlobIds()) {
+      partitionIds.add(blobId.getPartition());
+    }
+    dispatch(request, batchDeleteRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handleBatchDeleteRequest(request, batchDeleteRequest, shed);
+      }
+    });
+  }
+
+  private void handleBatchDeleteRequest(Request request, BatchDeleteRequest batchDeleteRequest, boolean shed)
+      throws IOException, InterruptedException {
+    long requestQueueTime = SystemTime.getInstance().milliseconds() - request.getStartTimeInMs();
+    long totalTimeSpent = requestQueueTime;
+    metrics.batchDeleteBlobRequestQueueTimeInMs.update(requestQueueTime);
+    updateRequestClassMetrics(RequestOrResponseType.BatchDeleteRequest, batchDeleteRequest.getClientId(),
+        requestQueueTime);
+    metrics.batchDeleteBlobRequestRate.mark();
+    List<BlobId> blobIds = batchDeleteRequest.getBlobIds();
+    metrics.batchDeleteBlobCount.update(blobIds.size());
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new BatchDeleteResponse(batchDeleteRequest.getCorrelationId(),
+              batchDeleteRequest.getClientId(), ServerErrorCode.Retry_After_Backoff,
+              Collections.nCopies(blobIds.size(), ServerErrorCode.Retry_After_Backoff)), requestQueueTime,
+          metrics.batchDeleteBlobResponseQueueTimeInMs, metrics.batchDeleteBlobSendTimeInMs,
+          metrics.batchDeleteBlobTotalTimeInMs);
+      return;
+    }
+    long startTime = SystemTime.getInstance().milliseconds();
+    BatchDeleteResponse response = null;
+    try {
+      // the blobs are deleted with a write for each partition, in the order their partitions appear in the request
+      Map<PartitionId, List<Integer>> partitionToBlobIndexes = new LinkedHashMap<PartitionId, List<Integer>>();
+      for (int i = 0; i < blobIds.size(); i++) {
+        List<Integer> blobIndexes = partitionToBlobIndexes.get(blobIds.get(i).getPartition());
+        if (blobIndexes == null) {
+          blobIndexes = new ArrayList<Integer>();
+          partitionToBlobIndexes.put(blobIds.get(i).getPartition(), blobIndexes);
+        }
+        blobIndexes.add(i);
+      }
+      ServerErrorCode[] blobErrors = new ServerErrorCode[blobIds.size()];
+      for (Map.Entry<PartitionId, List<Integer>> entry : partitionToBlobIndexes.entrySet()) {
+        deleteBlobsOfPartition(batchDeleteRequest, entry.getKey(), entry.getValue(), blobErrors);
+      }
+      response = new BatchDeleteResponse(batchDeleteRequest.getCorrelationId(), batchDeleteRequest.getClientId(),
+          ServerErrorCode.No_Error, Arrays.asList(blobErrors));
+    } catch (Exception e) {
+      logger.error("Unknown exception for batch delete request " + batchDeleteRequest, e);
+      response = new BatchDeleteResponse(batchDeleteRequest.getCorrelationId(), batchDeleteRequest.getClientId(),
+          ServerErrorCode.Unknown_Error, Collections.nCopies(blobIds.size(), ServerErrorCode.Unknown_Error));
+      metrics.unExpectedStoreDeleteError.inc();
+    } finally {
+      long processingTime = SystemTime.getInstance().milliseconds() - startTime;
+      totalTimeSpent += processingTime;
+      publicAccessLogger.info("{} {} processingTime {}", batchDeleteRequest, response, processingTime);
+      metrics.batchDeleteBlobProcessingTimeInMs.update(processingTime);
+    }
+    requestResponseChannel.sendResponse(response, request,
+        new ServerNetworkResponseMetrics(metrics.batchDeleteBlobResponseQueueTimeInMs,
+            metrics.batchDeleteBlobSendTimeInMs, metrics.batchDeleteBlobTotalTimeInMs, null, null, totalTimeSpent));
+  }
+
+  /**
+   * Deletes the blobs of a partition in a batch delete request with a single write to the store of the partition. The
+   * blobs that are not in the store or are already deleted are answered on their own, so that they do not fail the
+   * delete of the others. If one of the blobs is deleted by another request, or goes missing, between the check and the
+   * write, the write fails as a whole and every blob of the write is deleted on its own instead.
+   * @param batchDeleteRequest The batch delete request
+   * @param partitionId The partition whose blobs are to be deleted
+   * @param blobIndexes The indexes of the blobs of the partition in the request
+   * @param blobErrors The results of the deletes of the blobs of the request, which are set for the given blobs
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  private void deleteBlobsOfPartition(BatchDeleteRequest batchDeleteRequest, PartitionId partitionId,
+      List<Integer> blobIndexes, ServerErrorCode[] blobErrors)
+      throws IOException, MessageFormatException {
+    List<BlobId> blobIds = batchDeleteRequest.getBlobIds();
+    ServerErrorCode error = validateRequest(partitionId, false);
+    if (error != ServerErrorCode.No_Error) {
+      logger.error("Validating batch delete request failed with error {} for partition {} of request {}", error,
+          partitionId, batchDeleteRequest);
+      for (int blobIndex : blobIndexes) {
+        blobErrors[blobIndex] = error;
+      }
+      return;
+    }
+    Store storeToDelete = storeManager.getStore(partitionId);
+    Set<StoreKey> blobIdsToDelete = new HashSet<StoreKey>();
+    List<InputStream> streams = new ArrayList<InputStream>(blobIndexes.size());
+    ArrayList<MessageInfo> infoList = new ArrayList<MessageInfo>(blobIndexes.size());
+    for (int blobIndex : blobIndexes) {
+      BlobId blobId = blobIds.get(blobIndex);
+      if (blobIdsToDelete.contains(blobId)) {
+        // a blob that appears more than once gets the result of the one delete of it
+        continue;
+      }
+      try {
+        if (storeToDelete.isKeyDeleted(blobId)) {
+          metrics.idDeletedError.inc();
+          blobErrors[blobIndex] = ServerErrorCode.Blob_Deleted;
+          continue;
+        }
+      } catch (StoreException e) {
+        if (e.getErrorCode() == StoreErrorCodes.ID_Not_Found) {
+          metrics.idNotFoundError.inc();
+        } else {
+          logger.error("Store exception on a batch delete with error code " + e.getErrorCode() + " for blob " + blobId
+              + " of request " + batchDeleteRequest, e);
+          metrics.unExpectedStoreDeleteError.inc();
+        }
+        blobErrors[blobIndex] = ErrorMapping.getStoreErrorMapping(e.getErrorCode());
+        continue;
+      }
+      MessageFormatInputStream stream = new DeleteMessageFormatInputStream(blobId);
+      streams.add(stream);
+      infoList.add(new MessageInfo(blobId, stream.getSize()));
+      blobIdsToDelete.add(blobId);
+    }
+    if (infoList.isEmpty()) {
+      return;
+    }
+    Map<StoreKey, ServerErrorCode> deleteErrors = new HashMap<StoreKey, ServerErrorCode>();
+    try {
+      storeToDelete.delete(
+          new MessageFormatWriteSet(new SequenceInputStream(Collections.enumeration(streams)), infoList, false));
+      for (MessageInfo info : infoList) {
+        deleteErrors.put(info.getStoreKey(), ServerErrorCode.No_Error);
+      }
+    } catch (StoreException e) {
+      if (e.getErrorCode() == StoreErrorCodes.ID_Deleted || e.getErrorCode() == StoreErrorCodes.ID_Not_Found) {
+        // a blob was deleted by another request, or went missing, since it was checked, which fails the write of all
+        // the blobs. The store does not tell which blob it was, so every blob gets the result of its own delete.
+        logger.trace("Store exception on a batch delete with error code " + e.getErrorCode() + " for request "
+            + batchDeleteRequest + ", deleting its blobs one at a time", e);
+        for (MessageInfo info : infoList) {
+          deleteErrors.put(info.getStoreKey(), deleteBlob(storeToDelete, info.getStoreKey(), batchDeleteRequest));
+        }
+      } else {
+        logger.error("Store exception on a batch delete with error code " + e.getErrorCode() + " for request "
+            + batchDeleteRequest, e);
+        metrics.unExpectedStoreDeleteError.inc();
+        for (MessageInfo info : infoList) {
+          deleteErrors.put(info.getStoreKey(), ErrorMapping.getStoreErrorMapping(e.getErrorCode()));
+        }
+      }
+    }
+    for (int blobIndex : blobIndexes) {
+      if (blobErrors[blobIndex] == null) {
+        blobErrors[blobIndex] = deleteErrors.get(blobIds.get(blobIndex));
+      }
+    }
+    if (notification != null) {
+      for (MessageInfo info : infoList) {
+        if (deleteErrors.get(info.getStoreKey()) == ServerErrorCode.No_Error) {
+          notification.onBlobReplicaDeleted(currentNode.getHostname(), currentNode.getPort(),
+              info.getStoreKey().getID(), BlobReplicaSourceType.PRIMARY);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes a blob of a batch delete request with a write of its own to the store
+   * @param store The store of the partition of the blob
+   * @param key The blob to delete
+   * @param batchDeleteRequest The batch delete request
+   * @return The result of the delete of the blob
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  private ServerErrorCode deleteBlob(Store store, StoreKey key, BatchDeleteRequest batchDeleteRequest)
+      throws IOException, MessageFormatException {
+    MessageFormatInputStream stream = new DeleteMessageFormatInputStream(key);
+    try {
+      store.delete(
+          new MessageFormatWriteSet(stream, Collections.singletonList(new MessageInfo(key, stream.getSize())), false));
+      return ServerErrorCode.No_Error;
+    } catch (StoreException e) {
+      if (e.getErrorCode() == StoreErrorCodes.ID_Deleted) {
+        metrics.idDeletedError.inc();
+      } else if (e.getErrorCode() == StoreErrorCodes.ID_Not_Found) {
+        metrics.idNotFoundError.inc();
+      } else {
+        logger.error("Store exception on a batch delete with error code " + e.getErrorCode() + " for blob " + key
+            + " of request " + batchDeleteRequest, e);
+        metrics.unExpectedStoreDeleteError.inc();
+      }
+      return ErrorMapping.getStoreErrorMapping(e.getErrorCode());
+    }
+  }
+
+  public void handleReplicaMetadataRequest(final Request request)
       throws IOException, InterruptedException {
-    ReplicaMetadataRequest replicaMetadataRequest =
+    final ReplicaMetadataRequest replicaMetadataRequest =
         ReplicaMetadataRequest.readFrom(new DataInputStream(request.getInputStream()), clusterMap, findTokenFactory);
+    List<PartitionId> partitionIds =
+        new ArrayList<PartitionId>(replicaMetadataRequest.getReplicaMetadataRequestInfoList().size());
+    for (ReplicaMetadataRequestInfo replicaMetadataRequestInfo : replicaMetadataRequest
+        .getReplicaMetadataRequestInfoList()) {
+      partitionIds.add(replicaMetadataRequestInfo.getPartitionId());
+    }
+    dispatch(request, replicaMetadataRequest, partitionIds, new RequestTask(request) {
+      @Override
+      void handle(boolean shed)
+          throws IOException, InterruptedException {
+        handleReplicaMetadataRequest(request, replicaMetadataRequest, shed);
+      }
+    });
+  }
+
+  private void handleReplicaMetadataRequest(Request request, ReplicaMetadataRequest replicaMetadataRequest,
+      boolean shed)
+      throws IOException, InterruptedException {
     long requestQueueTime = SystemTime.getInstance().milliseconds() - request.getStartTimeInMs();
     long totalTimeSpent = requestQueueTime;
     metrics.replicaMetadataRequestQueueTimeInMs.update(requestQueueTime);
+    updateRequestClassMetrics(RequestOrResponseType.ReplicaMetadataRequest, replicaMetadataRequest.getClientId(),
+        requestQueueTime);
     metrics.replicaMetadataRequestRate.mark();
+    if (shed || !admissionController.admit(requestQueueTime)) {
+      shedRequest(request, new ReplicaMetadataResponse(replicaMetadataRequest.getCorrelationId(),
+              replicaMetadataRequest.getClientId(), ServerErrorCode.Retry_After_Backoff), requestQueueTime,
+          metrics.replicaMetadataResponseQueueTimeInMs, metrics.replicaMetadataSendTimeInMs,
+          metrics.replicaMetadataTotalTimeInMs);
+      return;
+    }
 
     List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList =
         replicaMetadataRequest.getReplicaMetadataRequestInfoList();
@@ -427,6 +923,10 @@ public class AmberRequests implements RequestAPI {
         long partitionStartTimeInMs = SystemTime.getInstance().milliseconds();
         PartitionId partitionId = replicaMetadataRequestInfo.getPartitionId();
         ServerErrorCode error = validateRequest(partitionId, false);
+        if (error == ServerErrorCode.No_Error && replicationManager == null) {
+          // the lag of the remote replicas is tracked by replication, which starts once all the stores have started
+          error = ServerErrorCode.Retry_After_Backoff;
+        }
         logger.trace("{} Time used to validate metadata request: {}", partitionId,
             (SystemTime.getInstance().milliseconds() - partitionStartTimeInMs));
 
@@ -583,6 +1083,88 @@ public class AmberRequests implements RequestAPI {
     }
   }
 
+  /**
+   * Answers a request that has been queued for too long, or whose disk queue is full, without handling it
+   * @param request The request to shed
+   * @param response The response with the error to answer the request with
+   * @param requestQueueTime The time the request was queued for
+   * @param responseQueueTime The histogram of the response queue time of the request type
+   * @param responseSendTime The histogram of the response send time of the request type
+   * @param responseTotalTime The histogram of the total time of the request type
+   * @throws InterruptedException
+   */
+  private void shedRequest(Request request, Send response, long requestQueueTime, Histogram responseQueueTime,
+      Histogram responseSendTime, Histogram responseTotalTime)
+      throws InterruptedException {
+    logger.debug("Shedding request {} queued for {} ms", request, requestQueueTime);
+    metrics.requestsShedCount.inc();
+    requestResponseChannel.sendResponse(response, request,
+        new ServerNetworkResponseMetrics(responseQueueTime, responseSendTime, responseTotalTime, null, null,
+            requestQueueTime));
+  }
+
+  /**
+   * @return true if the request is a background request
+   */
+  private boolean isBackground(RequestOrResponse decodedRequest) {
+    return requestClassifier != null && requestClassifier.isBackground(decodedRequest.getRequestType(),
+        decodedRequest.getClientId());
+  }
+
+  /**
+   * Tracks the queue time and rate of the request by whether it is a foreground or a background request
+   */
+  private void updateRequestClassMetrics(RequestOrResponseType type, String clientId, long requestQueueTime) {
+    if (requestClassifier != null && requestClassifier.isBackground(type, clientId)) {
+      metrics.backgroundRequestQueueTimeInMs.update(requestQueueTime);
+      metrics.backgroundRequestRate.mark();
+    } else {
+      metrics.foregroundRequestQueueTimeInMs.update(requestQueueTime);
+      metrics.foregroundRequestRate.mark();
+    }
+  }
+
+  /**
+   * Handles a request on the threads of the disk that has its partitions, if the requests are queued per disk and all
+   * its partitions are on the same disk of this server. Otherwise, the request is handled on the calling thread. The
+   * request is queued for the disk as a foreground or a background request, as it was queued by the network. A
+   * request whose disk queue is full is shed on the calling thread, which answers it with
+   * {@link ServerErrorCode#Retry_After_Backoff} so that the client can tell that the server is overloaded.
+   * @param request The request to handle
+   * @param decodedRequest The request as it was read, whose type and client id classify it
+   * @param partitionIds The partitions of the request
+   * @param task The task that handles the request
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void dispatch(Request request, RequestOrResponse decodedRequest, List<PartitionId> partitionIds,
+      RequestTask task)
+      throws IOException, InterruptedException {
+    DiskId diskId = diskRequestHandlerPool == null ? null : getDiskId(partitionIds);
+    if (diskId == null) {
+      task.handle(false);
+    } else if (!diskRequestHandlerPool.submit(diskId, task, isBackground(decodedRequest))) {
+      logger.error("Request queue of disk {} is full, shedding request {}", diskId.getMountPath(), request);
+      metrics.diskRequestQueueFullError.inc();
+      task.handle(true);
+    }
+  }
+
+  /**
+   * @return The disk of this server that has all the given partitions, or null if there is no such disk
+   */
+  private DiskId getDiskId(List<PartitionId> partitionIds) {
+    DiskId diskId = null;
+    for (PartitionId partitionId : partitionIds) {
+      DiskId partitionDiskId = partitionToDiskId.get(partitionId);
+      if (partitionDiskId == null || (diskId != null && !diskId.equals(partitionDiskId))) {
+        return null;
+      }
+      diskId = partitionDiskId;
+    }
+    return diskId;
+  }
+
   private ServerErrorCode validateRequest(PartitionId partition, boolean checkPartitionState) {
     // 1. check if partition exist on this node
     if (storeManager.getStore(partition) == null) {
@@ -607,4 +1189,37 @@ public class AmberRequests implements RequestAPI {
     }
     return ServerErrorCode.No_Error;
   }
+
+  /**
+   * Handles a decoded request. Any exception that is thrown while the request is handled on a disk request handler
+   * thread closes the connection of the request.
+   */
+  private abstract class RequestTask implements Runnable {
+    private final Request request;
+
+    RequestTask(Request request) {
+      this.request = request;
+    }
+
+    /**
+     * @param shed true if the request is to be answered with {@link ServerErrorCode#Retry_After_Backoff} without
+     *             handling it
+     */
+    abstract void handle(boolean shed)
+        throws IOException, InterruptedException;
+
+    @Override
+    public void run() {
+      try {
+        handle(false);
+      } catch (Exception e) {
+        logger.error("Error while handling request " + request + " closing connection", e);
+        try {
+          requestResponseChannel.closeConnection(request);
+        } catch (InterruptedException ie) {
+          logger.error("Interrupted while closing connection for request " + request, ie);
+        }
+      }
+    }
+  }
 }
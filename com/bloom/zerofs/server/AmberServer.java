@@ -60,6 +60,7 @@ public class AmberServer {
   private NetworkServer networkServer = null;
   private AmberRequests requests = null;
   private RequestHandlerPool requestHandlerPool = null;
+  private DiskRequestHandlerPool diskRequestHandlerPool = null;
   private Scheduler scheduler = null;
   private StoreManager storeManager = null;
   private ReplicationManager replicationManager = null;
@@ -121,16 +122,12 @@ public class AmberServer {
       FindTokenFactory findTokenFactory = Utils.getObj(replicationConfig.replicationTokenFactory, storeKeyFactory);
       storeManager =
           new StoreManager(storeConfig, scheduler, registry, clusterMap.getReplicaIds(nodeId), storeKeyFactory,
-              new BlobStoreRecovery(), new BlobStoreHardDelete(), time);
+              new BlobStoreRecovery(storeConfig.storeRecoveryReadAheadSizeBytes), new BlobStoreHardDelete(), time);
+      // the stores start in the background, and the partition of every store is served as soon as it has started
       storeManager.start();
       // 启动连接池
       connectionPool = new BlockingChannelConnectionPool(connectionPoolConfig, sslConfig, registry);
       connectionPool.start();
-      // 启动同步管理器
-      replicationManager =
-          new ReplicationManager(replicationConfig, sslConfig, storeConfig, storeManager, storeKeyFactory, clusterMap,
-              scheduler, nodeId, connectionPool, registry, notificationSystem);
-      replicationManager.start();
       // 添加端口
       ArrayList<Port> ports = new ArrayList<Port>();
       ports.add(new Port(networkConfig.port, PortType.PLAINTEXT));
@@ -138,13 +135,31 @@ public class AmberServer {
         ports.add(new Port(nodeId.getSSLPort(), PortType.SSL));
       }
       // 启动网络服务器
-      networkServer = new SocketServer(networkConfig, sslConfig, registry, ports);
+      AmberRequestClassifier requestClassifier = new AmberRequestClassifier(serverConfig);
+      if (!requestClassifier.isEnabled()) {
+        requestClassifier = null;
+      }
+      networkServer = new SocketServer(networkConfig, sslConfig, registry, ports, requestClassifier);
+      if (serverConfig.serverDiskRequestHandlerNumOfThreads > 0) {
+        diskRequestHandlerPool = new DiskRequestHandlerPool(clusterMap.getReplicaIds(nodeId),
+            serverConfig.serverDiskRequestHandlerNumOfThreads, serverConfig.serverDiskRequestQueueSize,
+            networkConfig.queuedForegroundRequestWeight, networkConfig.queuedBackgroundRequestWeight, registry);
+      }
       requests =
           new AmberRequests(storeManager, networkServer.getRequestResponseChannel(), clusterMap, nodeId, registry,
-              findTokenFactory, notificationSystem, replicationManager, storeKeyFactory);
+              findTokenFactory, notificationSystem, storeKeyFactory, serverConfig, diskRequestHandlerPool,
+              requestClassifier);
       requestHandlerPool = new RequestHandlerPool(serverConfig.serverRequestHandlerNumOfThreads,
           networkServer.getRequestResponseChannel(), requests);
       networkServer.start();
+      logger.info("serving the partitions whose stores have started");
+      storeManager.awaitStart();
+      // 启动同步管理器
+      replicationManager =
+          new ReplicationManager(replicationConfig, sslConfig, storeConfig, storeManager, storeKeyFactory, clusterMap,
+              scheduler, nodeId, connectionPool, registry, notificationSystem);
+      replicationManager.start();
+      requests.setReplicationManager(replicationManager);
       // 服务器正常启动
       logger.info("started");
       long processingTime = SystemTime.getInstance().milliseconds() - startTime;
@@ -171,6 +186,9 @@ public class AmberServer {
       if (requestHandlerPool != null) {
         requestHandlerPool.shutdown();
       }
+      if (diskRequestHandlerPool != null) {
+        diskRequestHandlerPool.shutdown();
+      }
       if (replicationManager != null) {
         replicationManager.shutdown();
       }
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.clustermap.DiskId;
+import com.bloom.zerofs.api.clustermap.ReplicaId;
+import com.bloom.zerofs.tools.SystemTime;
+import com.bloom.zerofs.tools.Utils;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+
+/**
+ * A pool of threads for every disk of the server, each of which handles the requests from the queue of its disk. The
+ * requests for a disk that is slow only hold up the threads of that disk, and the requests for the other disks are
+ * handled by their own threads. Foreground and background requests are queued apart for every disk, and the threads
+ * of a disk take them in the ratio of their weights, as the request handlers do for the requests of the network, so
+ * that the weights still apply to the disk work once the request handlers only hand the requests over to the disks.
+ */
+class DiskRequestHandlerPool {
+  private final Map<DiskId, DiskRequestQueue> diskRequestQueues = new HashMap<DiskId, DiskRequestQueue>();
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param replicaIds The replicas on this server, whose disks get a queue and a pool of threads each
+   * @param numThreadsPerDisk The number of threads that handle the requests of a disk
+   * @param queueSize The max number of requests of each class that are queued for a disk
+   * @param foregroundWeight The weight of the foreground requests
+   * @param backgroundWeight The weight of the background requests
+   * @param registry The registry to which the metrics of the disk queues are added
+   */
+  DiskRequestHandlerPool(List<ReplicaId> replicaIds, int numThreadsPerDisk, int queueSize, int foregroundWeight,
+      int backgroundWeight, MetricRegistry registry) {
+    for (ReplicaId replicaId : replicaIds) {
+      DiskId diskId = replicaId.getDiskId();
+      if (!diskRequestQueues.containsKey(diskId)) {
+        diskRequestQueues.put(diskId,
+            new DiskRequestQueue(diskId, numThreadsPerDisk, queueSize, foregroundWeight, backgroundWeight, registry));
+      }
+    }
+  }
+
+  /**
+   * Adds a request to the queue of a disk, without waiting for there to be room in the queue
+   * @param diskId The disk that has the partition of the request
+   * @param task The task that handles the request
+   * @param background true if the request is a background request
+   * @return true if the request was queued, false if there is no queue for the disk or the queue is full
+   */
+  boolean submit(DiskId diskId, Runnable task, boolean background) {
+    DiskRequestQueue diskRequestQueue = diskRequestQueues.get(diskId);
+    return diskRequestQueue != null && diskRequestQueue.offer(task, background);
+  }
+
+  /**
+   * Shuts down the threads of all the disks once they have handled the requests that are queued
+   */
+  void shutdown() {
+    try {
+      logger.info("shutting down");
+      for (DiskRequestQueue diskRequestQueue : diskRequestQueues.values()) {
+        diskRequestQueue.shutdown();
+      }
+      logger.info("shut down completely");
+    } catch (Exception e) {
+      logger.error("error when shutting down disk request handler pool {}", e);
+    }
+  }
+
+  /**
+   * The queues of foreground and background requests of a disk and the threads that handle them
+   */
+  private static class DiskRequestQueue {
+    private final String mountPath;
+    private final int queueSize;
+    private final int foregroundWeight;
+    private final int backgroundWeight;
+    private final ArrayDeque<QueuedRequest> foregroundQueue = new ArrayDeque<QueuedRequest>();
+    private final ArrayDeque<QueuedRequest> backgroundQueue = new ArrayDeque<QueuedRequest>();
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition requestAvailable = queueLock.newCondition();
+    // the requests of each class taken while requests of both classes were queued
+    private int foregroundRequestsTaken = 0;
+    private int backgroundRequestsTaken = 0;
+    private boolean shutdown = false;
+    private final List<Thread> threads;
+    private final Histogram requestQueueTimeInMs;
+    private final Counter requestsRejectedCount;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    DiskRequestQueue(DiskId diskId, int numThreads, int queueSize, int foregroundWeight, int backgroundWeight,
+        MetricRegistry registry) {
+      mountPath = diskId.getMountPath();
+      this.queueSize = queueSize;
+      this.foregroundWeight = foregroundWeight;
+      this.backgroundWeight = backgroundWeight;
+      String name = mountPath + ".";
+      Gauge<Integer> requestQueueSize = new Gauge<Integer>() {
+        @Override
+        public Integer getValue() {
+          queueLock.lock();
+          try {
+            return foregroundQueue.size() + backgroundQueue.size();
+          } finally {
+            queueLock.unlock();
+          }
+        }
+      };
+      registry.register(MetricRegistry.name(DiskRequestHandlerPool.class, name + "RequestQueueSize"), requestQueueSize);
+      Gauge<Integer> backgroundRequestQueueSize = new Gauge<Integer>() {
+        @Override
+        public Integer getValue() {
+          queueLock.lock();
+          try {
+            return backgroundQueue.size();
+          } finally {
+            queueLock.unlock();
+          }
+        }
+      };
+      registry.register(MetricRegistry.name(DiskRequestHandlerPool.class, name + "BackgroundRequestQueueSize"),
+          backgroundRequestQueueSize);
+      requestQueueTimeInMs =
+          registry.histogram(MetricRegistry.name(DiskRequestHandlerPool.class, name + "RequestQueueTimeInMs"));
+      requestsRejectedCount =
+          registry.counter(MetricRegistry.name(DiskRequestHandlerPool.class, name + "RequestsRejectedCount"));
+      threads = new ArrayList<Thread>(numThreads);
+      for (int i = 0; i < numThreads; i++) {
+        Thread thread = Utils.daemonThread("disk-request-handler-" + mountPath + "-" + i, new Runnable() {
+          @Override
+          public void run() {
+            handleRequests();
+          }
+        });
+        threads.add(thread);
+        thread.start();
+      }
+    }
+
+    boolean offer(Runnable task, boolean background) {
+      ArrayDeque<QueuedRequest> queue = background ? backgroundQueue : foregroundQueue;
+      queueLock.lock();
+      try {
+        if (!shutdown && queue.size() < queueSize) {
+          queue.add(new QueuedRequest(task));
+          requestAvailable.signal();
+          return true;
+        }
+      } finally {
+        queueLock.unlock();
+      }
+      requestsRejectedCount.inc();
+      return false;
+    }
+
+    /**
+     * Takes the next request in the ratio of the weights of the two classes, or returns null once the queue has been
+     * shut down and all the queued requests have been taken
+     */
+    private QueuedRequest take()
+        throws InterruptedException {
+      queueLock.lockInterruptibly();
+      try {
+        while (true) {
+          boolean foregroundRequestQueued = !foregroundQueue.isEmpty();
+          boolean backgroundRequestQueued = !backgroundQueue.isEmpty();
+          if (!foregroundRequestQueued || !backgroundRequestQueued) {
+            // the weights only apply while both classes have requests to take
+            foregroundRequestsTaken = 0;
+            backgroundRequestsTaken = 0;
+          }
+          QueuedRequest queuedRequest = null;
+          if (backgroundRequestQueued && (!foregroundRequestQueued
+              || (long) backgroundRequestsTaken * foregroundWeight < (long) foregroundRequestsTaken * backgroundWeight)) {
+            queuedRequest = backgroundQueue.poll();
+            backgroundRequestsTaken++;
+          } else if (foregroundRequestQueued) {
+            queuedRequest = foregroundQueue.poll();
+            foregroundRequestsTaken++;
+          } else if (shutdown) {
+            return null;
+          }
+          if (queuedRequest != null) {
+            if (foregroundRequestsTaken >= foregroundWeight && backgroundRequestsTaken >= backgroundWeight) {
+              foregroundRequestsTaken -= foregroundWeight;
+              backgroundRequestsTaken -= backgroundWeight;
+            }
+            return queuedRequest;
+          }
+          requestAvailable.await();
+        }
+      } finally {
+        queueLock.unlock();
+      }
+    }
+
+    private void handleRequests() {
+      while (true) {
+        try {
+          QueuedRequest queuedRequest = take();
+          if (queuedRequest == null) {
+            logger.debug("Disk request handler for {} received shut down command", mountPath);
+            return;
+          }
+          requestQueueTimeInMs.update(SystemTime.getInstance().milliseconds() - queuedRequest.enqueueTimeInMs);
+          queuedRequest.task.run();
+        } catch (Throwable e) {
+          logger.error("Exception when handling request for disk " + mountPath, e);
+          // this is bad and we need to shutdown the app
+          Runtime.getRuntime().halt(1);
+        }
+      }
+    }
+
+    void shutdown()
+        throws InterruptedException {
+      queueLock.lock();
+      try {
+        shutdown = true;
+        requestAvailable.signalAll();
+      } finally {
+        queueLock.unlock();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+  }
+
+  /**
+   * A request in the queue of a disk, with the time it was queued at
+   */
+  private static class QueuedRequest {
+    private final Runnable task;
+    private final long enqueueTimeInMs;
+
+    QueuedRequest(Runnable task) {
+      this.task = task;
+      this.enqueueTimeInMs = SystemTime.getInstance().milliseconds();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.server;
+
+import com.bloom.zerofs.api.config.ServerConfig;
+import com.bloom.zerofs.tools.SystemTime;
+
+
+/**
+ * Decides whether a request that has been taken from the queue is still worth handling, by the time it has been
+ * queued for. A request that has been queued for longer than the queue timeout is shed, since the client has most
+ * likely stopped waiting for it.
+ * <p/>
+ * The queue is also kept short as in CoDel: if even the request that was queued for the shortest time in an interval
+ * was queued for longer than the target queue time, the queue is standing, that is, requests arrive faster than they
+ * are handled. Until an interval in which some request was queued for less than the target, requests that were queued
+ * for longer than the target are shed. Shed requests are answered right away, so the queue drains to the length that
+ * the handlers can serve within the target.
+ */
+class RequestAdmissionController {
+  private final long queueTimeoutMs;
+  private final long targetQueueTimeMs;
+  private final long intervalMs;
+  private long intervalStartTimeMs;
+  private long minQueueTimeInIntervalMs = Long.MAX_VALUE;
+  private boolean queueStanding = false;
+
+  RequestAdmissionController(ServerConfig serverConfig) {
+    this.queueTimeoutMs = serverConfig.serverRequestQueueTimeoutMs;
+    this.targetQueueTimeMs = serverConfig.serverRequestQueueTargetMs;
+    this.intervalMs = serverConfig.serverRequestQueueIntervalMs;
+    this.intervalStartTimeMs = SystemTime.getInstance().milliseconds();
+  }
+
+  /**
+   * @param queueTimeMs The time a request was queued for before it was taken to be handled
+   * @return true if the request is to be handled, false if it is to be shed
+   */
+  boolean admit(long queueTimeMs) {
+    if (queueTimeoutMs > 0 && queueTimeMs > queueTimeoutMs) {
+      return false;
+    }
+    if (targetQueueTimeMs <= 0) {
+      return true;
+    }
+    synchronized (this) {
+      long currentTimeMs = SystemTime.getInstance().milliseconds();
+      minQueueTimeInIntervalMs = Math.min(minQueueTimeInIntervalMs, queueTimeMs);
+      if (currentTimeMs - intervalStartTimeMs >= intervalMs) {
+        queueStanding = minQueueTimeInIntervalMs > targetQueueTimeMs;
+        minQueueTimeInIntervalMs = Long.MAX_VALUE;
+        intervalStartTimeMs = currentTimeMs;
+      }
+      return !queueStanding || queueTimeMs <= targetQueueTimeMs;
+    }
+  }
+}
@@ -34,6 +34,20 @@ public class ServerMetrics {
   public final Histogram putBlobSendTimeInMs;
   public final Histogram putBlobTotalTimeInMs;
 
+  public final Histogram batchPutBlobRequestQueueTimeInMs;
+  public final Histogram batchPutBlobProcessingTimeInMs;
+  public final Histogram batchPutBlobResponseQueueTimeInMs;
+  public final Histogram batchPutBlobSendTimeInMs;
+  public final Histogram batchPutBlobTotalTimeInMs;
+  public final Histogram batchPutBlobCount;
+
+  public final Histogram batchDeleteBlobRequestQueueTimeInMs;
+  public final Histogram batchDeleteBlobProcessingTimeInMs;
+  public final Histogram batchDeleteBlobResponseQueueTimeInMs;
+  public final Histogram batchDeleteBlobSendTimeInMs;
+  public final Histogram batchDeleteBlobTotalTimeInMs;
+  public final Histogram batchDeleteBlobCount;
+
   public final Histogram putSmallBlobProcessingTimeInMs;
   public final Histogram putSmallBlobSendTimeInMs;
   public final Histogram putSmallBlobTotalTimeInMs;
@@ -113,6 +127,8 @@ public class ServerMetrics {
   public final Histogram serverShutdownTimeInMs;
 
   public final Meter putBlobRequestRate;
+  public final Meter batchPutBlobRequestRate;
+  public final Meter batchDeleteBlobRequestRate;
   public final Meter getBlobRequestRate;
   public final Meter getBlobPropertiesRequestRate;
   public final Meter getBlobUserMetadataRequestRate;
@@ -133,6 +149,13 @@ public class ServerMetrics {
 
   public final Counter partitionUnknownError;
   public final Counter diskUnavailableError;
+  public final Counter diskRequestQueueFullError;
+  public final Counter requestsShedCount;
+
+  public final Histogram foregroundRequestQueueTimeInMs;
+  public final Meter foregroundRequestRate;
+  public final Histogram backgroundRequestQueueTimeInMs;
+  public final Meter backgroundRequestRate;
   public final Counter partitionReadOnlyError;
   public final Counter storeIOError;
   public final Counter unExpectedStorePutError;
@@ -156,6 +179,28 @@ public class ServerMetrics {
     putBlobSendTimeInMs = registry.histogram(MetricRegistry.name(AmberRequests.class, "PutBlobSendTime"));
     putBlobTotalTimeInMs = registry.histogram(MetricRegistry.name(AmberRequests.class, "PutBlobTotalTime"));
 
+    batchPutBlobRequestQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobRequestQueueTime"));
+    batchPutBlobProcessingTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobProcessingTime"));
+    batchPutBlobResponseQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobResponseQueueTime"));
+    batchPutBlobSendTimeInMs = registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobSendTime"));
+    batchPutBlobTotalTimeInMs = registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobTotalTime"));
+    batchPutBlobCount = registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchPutBlobCount"));
+
+    batchDeleteBlobRequestQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobRequestQueueTime"));
+    batchDeleteBlobProcessingTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobProcessingTime"));
+    batchDeleteBlobResponseQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobResponseQueueTime"));
+    batchDeleteBlobSendTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobSendTime"));
+    batchDeleteBlobTotalTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobTotalTime"));
+    batchDeleteBlobCount = registry.histogram(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobCount"));
+
     putSmallBlobProcessingTimeInMs =
         registry.histogram(MetricRegistry.name(AmberRequests.class, "PutSmallBlobProcessingTime"));
     putSmallBlobSendTimeInMs = registry.histogram(MetricRegistry.name(AmberRequests.class, "PutSmallBlobSendTime"));
@@ -269,6 +314,9 @@ public class ServerMetrics {
     serverShutdownTimeInMs = registry.histogram(MetricRegistry.name(AmberServer.class, "ServerShutdownTimeInMs"));
 
     putBlobRequestRate = registry.meter(MetricRegistry.name(AmberRequests.class, "PutBlobRequestRate"));
+    batchPutBlobRequestRate = registry.meter(MetricRegistry.name(AmberRequests.class, "BatchPutBlobRequestRate"));
+    batchDeleteBlobRequestRate =
+        registry.meter(MetricRegistry.name(AmberRequests.class, "BatchDeleteBlobRequestRate"));
     getBlobRequestRate = registry.meter(MetricRegistry.name(AmberRequests.class, "GetBlobRequestRate"));
     getBlobPropertiesRequestRate =
         registry.meter(MetricRegistry.name(AmberRequests.class, "GetBlobPropertiesRequestRate"));
@@ -291,6 +339,16 @@ public class ServerMetrics {
 
     partitionUnknownError = registry.counter(MetricRegistry.name(AmberRequests.class, "PartitionUnknownError"));
     diskUnavailableError = registry.counter(MetricRegistry.name(AmberRequests.class, "DiskUnavailableError"));
+    diskRequestQueueFullError =
+        registry.counter(MetricRegistry.name(AmberRequests.class, "DiskRequestQueueFullError"));
+    requestsShedCount = registry.counter(MetricRegistry.name(AmberRequests.class, "RequestsShedCount"));
+
+    foregroundRequestQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "ForegroundRequestQueueTimeInMs"));
+    foregroundRequestRate = registry.meter(MetricRegistry.name(AmberRequests.class, "ForegroundRequestRate"));
+    backgroundRequestQueueTimeInMs =
+        registry.histogram(MetricRegistry.name(AmberRequests.class, "BackgroundRequestQueueTimeInMs"));
+    backgroundRequestRate = registry.meter(MetricRegistry.name(AmberRequests.class, "BackgroundRequestRate"));
     partitionReadOnlyError = registry.counter(MetricRegistry.name(AmberRequests.class, "PartitionReadOnlyError"));
     storeIOError = registry.counter(MetricRegistry.name(AmberRequests.class, "StoreIOError"));
     idAlreadyExistError = registry.counter(MetricRegistry.name(AmberRequests.class, "IDAlreadyExistError"));
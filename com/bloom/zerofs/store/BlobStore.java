@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,7 @@ import com.bloom.zerofs.api.store.StoreGetOptions;
 import com.bloom.zerofs.api.store.StoreInfo;
 import com.bloom.zerofs.api.store.StoreKey;
 import com.bloom.zerofs.api.store.StoreKeyFactory;
+import com.bloom.zerofs.api.store.StoreStats;
 import com.bloom.zerofs.tools.FileLock;
 import com.bloom.zerofs.tools.Scheduler;
 import com.bloom.zerofs.tools.Time;
@@ -69,6 +71,11 @@ public class BlobStore implements Store {
   private MessageStoreHardDelete hardDelete;
   private StoreMetrics metrics;
   private Time time;
+  private GroupCommitWriter groupCommitWriter;
+  private ConcurrentLogWriter concurrentLogWriter;
+  private BlobStoreCompactor compactor;
+  private ExpiredBlobScanner expiredBlobScanner;
+  private IndexSegmentMerger indexSegmentMerger;
 
   public BlobStore(String storeId, StoreConfig config, Scheduler scheduler, MetricRegistry registry, String dataDir,
       long capacityInBytes, StoreKeyFactory factory, MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete,
@@ -114,11 +121,30 @@ public class BlobStore implements Store {
           throw new StoreException("Failed to acquire lock on file " + dataDir +
               ". Another process or thread is using this directory.", StoreErrorCodes.Initialization_Error);
         }
-        log = new Log(dataDir, capacityInBytes, metrics);
+        log = new Log(dataDir, capacityInBytes, config.storeSegmentSizeInBytes, metrics);
         index = new PersistentIndex(dataDir, scheduler, log, config, factory, recovery, hardDelete, metrics, time);
         // set the log end offset to the recovered offset from the index after initializing it
         log.setLogEndOffset(index.getCurrentEndOffset());
         metrics.initializeCapacityUsedMetric(log, capacityInBytes);
+        if (config.storeConcurrentAppendsEnabled) {
+          concurrentLogWriter = new ConcurrentLogWriter(log, index, lock, dataDir, metrics);
+        } else if (config.storeGroupCommitEnabled) {
+          groupCommitWriter = new GroupCommitWriter(log, index, lock, dataDir, config, metrics);
+        }
+        if (config.storeEnableCompaction && log.isSegmented()) {
+          compactor = new BlobStoreCompactor(dataDir, log, index, lock, config, metrics, time);
+          compactor.start();
+        }
+        expiredBlobScanner = new ExpiredBlobScanner(dataDir, log, index, compactor,
+            config.storeCompactionMinGarbageRatio, time);
+        scheduler.schedule("expired blob scanner " + dataDir, expiredBlobScanner,
+            config.storeExpirationScanIntervalSeconds, config.storeExpirationScanIntervalSeconds, TimeUnit.SECONDS);
+        if (config.storeIndexMergeEnabled) {
+          indexSegmentMerger =
+              new IndexSegmentMerger(dataDir, index, metrics, config.storeIndexMergeMaxSegmentSizeBytes);
+          scheduler.schedule("index segment merger " + dataDir, indexSegmentMerger,
+              config.storeIndexMergeIntervalSeconds, config.storeIndexMergeIntervalSeconds, TimeUnit.SECONDS);
+        }
         started = true;
       } catch (Exception e) {
         throw new StoreException("Error while starting store for dir " + dataDir, e,
@@ -182,6 +208,15 @@ public class BlobStore implements Store {
         }
       }
 
+      if (concurrentLogWriter != null) {
+        concurrentLogWriter.write(messageSetToWrite, false, indexEndOffsetBeforeCheck);
+        return;
+      }
+      if (groupCommitWriter != null) {
+        groupCommitWriter
+            .write(new GroupCommitWriter.PendingWrite(messageSetToWrite, false, indexEndOffsetBeforeCheck));
+        return;
+      }
       synchronized (lock) {
         // Validate that log end offset was not changed. If changed, check once again for existing
         // keys in store
@@ -240,6 +275,15 @@ public class BlobStore implements Store {
               StoreErrorCodes.ID_Deleted);
         }
       }
+      if (concurrentLogWriter != null) {
+        concurrentLogWriter.write(messageSetToDelete, true, indexEndOffsetBeforeCheck);
+        return;
+      }
+      if (groupCommitWriter != null) {
+        groupCommitWriter
+            .write(new GroupCommitWriter.PendingWrite(messageSetToDelete, true, indexEndOffsetBeforeCheck));
+        return;
+      }
       synchronized (lock) {
         long currentIndexEndOffset = index.getCurrentEndOffset();
         if (indexEndOffsetBeforeCheck != currentIndexEndOffset) {
@@ -322,9 +366,38 @@ public class BlobStore implements Store {
     return log.getLogEndOffset();
   }
 
+  @Override
+  public StoreStats getStoreStats()
+      throws StoreException {
+    checkStarted();
+    StoreStats stats = index.getStoreStats();
+    if (stats == null) {
+      throw new StoreException("Store stats of " + dataDir + " are being rebuilt",
+          StoreErrorCodes.Store_Stats_Unavailable);
+    }
+    return stats;
+  }
+
   @Override
   public void shutdown()
       throws StoreException {
+    if (expiredBlobScanner != null) {
+      expiredBlobScanner.shutdown();
+      expiredBlobScanner = null;
+    }
+    if (indexSegmentMerger != null) {
+      indexSegmentMerger.shutdown();
+      indexSegmentMerger = null;
+    }
+    // the compactor needs the write lock to move records, so it is stopped before the lock is taken
+    if (compactor != null) {
+      try {
+        compactor.shutdown();
+      } catch (InterruptedException e) {
+        logger.error("Store : " + dataDir + " interrupted while shutting down compaction", e);
+      }
+      compactor = null;
+    }
     synchronized (lock) {
       checkStarted();
       try {
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.config.StoreConfig;
+import com.bloom.zerofs.api.store.StoreErrorCodes;
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.tools.Throttler;
+import com.bloom.zerofs.tools.Time;
+import com.bloom.zerofs.tools.Utils;
+import com.codahale.metrics.Timer;
+
+
+/**
+ * Reclaims the space held by deleted and expired blobs in the sealed segments of a log. A sealed segment whose
+ * garbage ratio is above the configured threshold is compacted by copying its live records to the end of the log and
+ * adding index entries for their new offsets. The garbage ratio is taken from the store stats, so only the index
+ * entries of the segments that are compacted are read, at the rate of the compaction throttler. Gets are never
+ * blocked. The append of a single record and its index update are done under the store write lock, after waiting
+ * under the lock for the writes that have reserved a range of the log to be published, so puts are blocked for that
+ * wait and for the append. A record that is larger than the copy buffer is also read under the lock, a chunk at a
+ * time, while it is appended. The files of compacted segments are deleted in the next compaction run so that gets
+ * that looked up an old offset before the record was moved can still complete.
+ */
+class BlobStoreCompactor implements Runnable {
+  private final String dataDir;
+  private final Log log;
+  private final PersistentIndex index;
+  private final Object lock;
+  private final StoreMetrics metrics;
+  private final Time time;
+  private final double minGarbageRatio;
+  private final long compactionIntervalMs;
+  private final Throttler throttler;
+  private final List<LogSegment> segmentsPendingDelete = new ArrayList<LogSegment>();
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+  private final long throttlerCheckIntervalMs = 10;
+  private static final int Copy_Buffer_Size_In_Bytes = 4 * 1024 * 1024;
+  // reused for the copy of every record, allocated on the first copy
+  private ByteBuffer copyBuffer;
+  private Thread compactionThread;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  BlobStoreCompactor(String dataDir, Log log, PersistentIndex index, Object lock, StoreConfig config,
+      StoreMetrics metrics, Time time) {
+    this.dataDir = dataDir;
+    this.log = log;
+    this.index = index;
+    this.lock = lock;
+    this.metrics = metrics;
+    this.time = time;
+    this.minGarbageRatio = config.storeCompactionMinGarbageRatio;
+    this.compactionIntervalMs = config.storeCompactionIntervalSeconds * Time.MsPerSec;
+    this.throttler = new Throttler(config.storeCompactionBytesPerSec, throttlerCheckIntervalMs, true, time);
+  }
+
+  void start() {
+    logger.info("Compactor : {} starting compaction thread", dataDir);
+    compactionThread = Utils.newThread("compaction thread " + dataDir, this, true);
+    compactionThread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running.get()) {
+        try {
+          synchronized (compactionThread) {
+            if (!running.get()) {
+              break;
+            }
+            time.wait(compactionThread, compactionIntervalMs);
+          }
+          compact();
+        } catch (StoreException e) {
+          if (e.getErrorCode() != StoreErrorCodes.Store_Shutting_Down) {
+            metrics.compactionErrorCount.inc(1);
+            logger.error("Compactor : " + dataDir + " caught store exception during compaction ", e);
+          } else {
+            logger.trace("Caught exception during compaction", e);
+          }
+        } catch (InterruptedException e) {
+          logger.trace("Caught exception during compaction", e);
+        } catch (Exception e) {
+          // the run is retried at the next interval
+          metrics.compactionErrorCount.inc(1);
+          logger.error("Compactor : " + dataDir + " caught exception during compaction ", e);
+        }
+      }
+    } finally {
+      shutdownLatch.countDown();
+    }
+  }
+
+  /**
+   * Deletes the segments that were compacted in the previous run and compacts the sealed segments whose garbage ratio
+   * is above the threshold.
+   * @throws StoreException
+   * @throws InterruptedException
+   */
+  void compact()
+      throws StoreException, InterruptedException {
+    final Timer.Context context = metrics.compactionTime.time();
+    try {
+      if (!index.isStoreStatsAvailable()) {
+        logger.info("Compactor : {} skipping compaction until the store stats have been rebuilt", dataDir);
+        return;
+      }
+      deletePendingSegments();
+      for (LogSegment segment : log.getSealedSegments()) {
+        if (!running.get()) {
+          throw new StoreException("Aborting compaction as store is shutting down",
+              StoreErrorCodes.Store_Shutting_Down);
+        }
+        long segmentSize = segment.getEndOffset() - segment.getStartOffset();
+        long liveBytes = index.getLiveBytesInSegment(segment.getStartOffset());
+        double garbageRatio = segmentSize == 0 ? 1.0 : 1.0 - ((double) liveBytes / segmentSize);
+        logger.trace("Compactor : {} segment {} live bytes {} garbage ratio {}", dataDir,
+            segment.getFile().getAbsolutePath(), liveBytes, garbageRatio);
+        if (garbageRatio >= minGarbageRatio) {
+          compactSegment(segment);
+        }
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO exception while compacting store " + dataDir, e, StoreErrorCodes.IOError);
+    } finally {
+      context.stop();
+    }
+  }
+
+  /**
+   * Copies the live records of a segment to the end of the log and marks the segment for deletion. A record that is
+   * not live never becomes live again, so nothing that is live can remain in the segment once the records that were
+   * live when its entries were read have been copied.
+   * @param segment The segment to compact
+   */
+  private void compactSegment(LogSegment segment)
+      throws StoreException, IOException, InterruptedException {
+    index.addCompactedSegment(segment.getStartOffset(), segment.getEndOffset());
+    List<IndexEntry> liveEntries =
+        index.getLiveEntriesInRange(segment.getStartOffset(), segment.getEndOffset(), throttler);
+    logger.info("Compactor : {} compacting segment {} with {} live records", dataDir,
+        segment.getFile().getAbsolutePath(), liveEntries.size());
+    if (copyBuffer == null) {
+      copyBuffer = ByteBuffer.allocate(Copy_Buffer_Size_In_Bytes);
+    }
+    long bytesCopied = 0;
+    for (IndexEntry entry : liveEntries) {
+      if (!running.get()) {
+        throw new StoreException("Aborting compaction as store is shutting down", StoreErrorCodes.Store_Shutting_Down);
+      }
+      long offset = entry.getValue().getOffset();
+      long size = entry.getValue().getSize();
+      boolean buffered = size <= copyBuffer.capacity();
+      if (buffered) {
+        copyBuffer.clear();
+        copyBuffer.limit((int) size);
+        log.readInto(copyBuffer, offset);
+        copyBuffer.flip();
+      }
+      synchronized (lock) {
+        // writes that have reserved a range of the log are published before the record is appended after them
+        log.awaitReservedRanges(lock);
+        // the record may have been deleted or moved since the entries were read
+        if (!index.isLive(entry.getKey(), offset)) {
+          continue;
+        }
+        long newOffset = log.getLogEndOffset();
+        if (buffered) {
+          log.appendFrom(copyBuffer);
+        } else {
+          log.appendFrom(new LogRangeChannel(offset, offset + size), size);
+        }
+        index.addRelocatedEntry(entry, new FileSpan(newOffset, log.getLogEndOffset()));
+      }
+      bytesCopied += size;
+      throttler.maybeThrottle(size);
+    }
+    metrics.compactionBytesCopied.inc(bytesCopied);
+    segmentsPendingDelete.add(segment);
+  }
+
+  /**
+   * Reads a range of the log in order through the copy buffer, so that a record that does not fit in the buffer is
+   * copied a chunk at a time
+   */
+  private class LogRangeChannel implements ReadableByteChannel {
+    private long position;
+    private final long endOffset;
+    private boolean open = true;
+
+    LogRangeChannel(long startOffset, long endOffset) {
+      this.position = startOffset;
+      this.endOffset = endOffset;
+    }
+
+    @Override
+    public int read(ByteBuffer dst)
+        throws IOException {
+      if (position >= endOffset) {
+        return -1;
+      }
+      copyBuffer.clear();
+      copyBuffer.limit((int) Math.min(Math.min(dst.remaining(), copyBuffer.capacity()), endOffset - position));
+      log.readInto(copyBuffer, position);
+      copyBuffer.flip();
+      int bytesRead = copyBuffer.remaining();
+      dst.put(copyBuffer);
+      position += bytesRead;
+      return bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  private void deletePendingSegments()
+      throws StoreException, IOException {
+    if (segmentsPendingDelete.isEmpty()) {
+      return;
+    }
+    // recovery must not need the segments to tell the records that were moved out of them
+    index.persistIndex();
+    for (LogSegment segment : segmentsPendingDelete) {
+      log.deleteSegment(segment.getStartOffset());
+      index.removeSegmentCounts(segment.getStartOffset());
+      metrics.compactionSegmentsCompactedCount.inc(1);
+      metrics.compactionBytesReclaimed.inc(segment.getCapacityInBytes());
+    }
+    segmentsPendingDelete.clear();
+  }
+
+  /**
+   * Wakes up the compaction thread to check the sealed segments now instead of at the end of the current interval.
+   * Has no effect if a compaction is in progress.
+   */
+  void requestCompaction() {
+    synchronized (compactionThread) {
+      compactionThread.notify();
+    }
+  }
+
+  void shutdown()
+      throws InterruptedException {
+    if (running.get()) {
+      running.set(false);
+      synchronized (compactionThread) {
+        compactionThread.notify();
+      }
+      throttler.close();
+      shutdownLatch.await();
+      logger.info("Compactor : {} compaction thread shut down", dataDir);
+    }
+  }
+}
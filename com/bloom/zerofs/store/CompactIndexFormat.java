@@ -0,0 +1,178 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * Encodes and decodes the entries of a version 1 index segment file. The file has the following format
+ *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+ * | version | keysize | valuesize | fileendpointer | entrycount | restartinterval | entry 1 | ... | entry n |
+ * |(2 bytes)|(4 bytes)| (4 bytes) |    (8 bytes)   |  (4 bytes) |    (4 bytes)    |         |     |         |
+ *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+ * | restart 1 | ... | restart m | crc      |
+ * | (4 bytes) |     | (4 bytes) | (8 bytes)|
+ *  - - - - - - - - - - - - - - - - - - - - -
+ *  entrycount      - the number of entries in the segment
+ *  restartinterval - the number of entries between two restart points
+ *  entry           - an entry encoded as described below
+ *  restart         - the position in the file of every restartinterval-th entry, starting with the first entry
+ * <p/>
+ * Every entry is encoded as
+ *  sharedlength    - varint, the length of the prefix the key shares with the key of the previous entry. This is 0
+ *                    for the entries at restart points, so their keys can be read without reading earlier entries
+ *  suffixlength    - varint, the length of the rest of the key
+ *  suffix          - the rest of the key
+ *  size            - varint, the size of the record in the log
+ *  offset          - zigzag varint, the offset of the record relative to the start offset of the segment
+ *  flags           - 1 byte, the flags of the value
+ *  timetolive      - varint, the time to live in seconds plus one, rounded up, or 0 if the record does not expire
+ *  originaloffset  - zigzag varint, the offset of the record minus the original message offset
+ */
+final class CompactIndexFormat {
+  static final short Version = 1;
+  static final int Entry_Count_Field_Length = 4;
+  static final int Restart_Interval_Field_Length = 4;
+  static final int Restart_Field_Length = 4;
+
+  private CompactIndexFormat() {
+  }
+
+  /**
+   * Writes the entry count, the restart interval, the entries and the restart points. The stream should be
+   * positioned right after the fields that are common to all the versions of the segment file.
+   * @param stream The stream to write to. The number of bytes written to it so far is taken as the position in the
+   *               file, so it needs to be the stream that the whole file is written to.
+   * @param entries The entries to write in key order
+   * @param segmentStartOffset The start offset of the segment that the entries belong to
+   * @param restartInterval The number of entries between two restart points
+   * @throws IOException
+   */
+  static void writeEntries(DataOutputStream stream, List<IndexEntry> entries, long segmentStartOffset,
+      int restartInterval)
+      throws IOException {
+    // the entries are encoded in memory first so that the small fields are not written one by one to the file
+    ByteArrayOutputStream entriesStream = new ByteArrayOutputStream();
+    DataOutputStream entriesWriter = new DataOutputStream(entriesStream);
+    int firstEntryPosition = stream.size() + Entry_Count_Field_Length + Restart_Interval_Field_Length;
+    ByteBuffer restarts =
+        ByteBuffer.allocate(getNumberOfRestarts(entries.size(), restartInterval) * Restart_Field_Length);
+    byte[] previousKey = null;
+    for (int i = 0; i < entries.size(); i++) {
+      IndexEntry entry = entries.get(i);
+      byte[] key = entry.getKey().toBytes();
+      int shared = 0;
+      if (i % restartInterval == 0) {
+        restarts.putInt(firstEntryPosition + entriesWriter.size());
+      } else {
+        int length = Math.min(key.length, previousKey.length);
+        while (shared < length && key[shared] == previousKey[shared]) {
+          shared++;
+        }
+      }
+      writeVarLong(entriesWriter, shared);
+      writeVarLong(entriesWriter, key.length - shared);
+      entriesWriter.write(key, shared, key.length - shared);
+      IndexValue value = entry.getValue();
+      writeVarLong(entriesWriter, value.getSize());
+      writeVarLong(entriesWriter, zigZag(value.getOffset() - segmentStartOffset));
+      entriesWriter.writeByte(value.getFlags());
+      long timeToLiveInMs = value.getTimeToLiveInMs();
+      writeVarLong(entriesWriter, timeToLiveInMs < 0 ? 0 : (timeToLiveInMs + 999) / 1000 + 1);
+      writeVarLong(entriesWriter, zigZag(value.getOffset() - value.getOriginalMessageOffset()));
+      previousKey = key;
+    }
+    stream.writeInt(entries.size());
+    stream.writeInt(restartInterval);
+    entriesStream.writeTo(stream);
+    stream.write(restarts.array());
+  }
+
+  /**
+   * Reads the entry at the current position of the buffer and moves the position to the next entry
+   * @param buffer The buffer to read from
+   * @param key The key of the previous entry. This is overwritten with the key of the entry that is read.
+   * @param segmentStartOffset The start offset of the segment that the entry belongs to
+   * @return The value of the entry
+   */
+  static IndexValue readEntry(ByteBuffer buffer, byte[] key, long segmentStartOffset) {
+    int shared = (int) readVarLong(buffer);
+    int suffixLength = (int) readVarLong(buffer);
+    if (shared + suffixLength != key.length) {
+      throw new IllegalStateException(
+          "Key length " + (shared + suffixLength) + " at position " + buffer.position() + " does not match key size "
+              + key.length);
+    }
+    buffer.get(key, shared, suffixLength);
+    long size = readVarLong(buffer);
+    long offset = segmentStartOffset + unZigZag(readVarLong(buffer));
+    byte flags = buffer.get();
+    long timeToLiveInSecs = readVarLong(buffer);
+    long timeToLiveInMs = timeToLiveInSecs == 0 ? Utils.Infinite_Time : (timeToLiveInSecs - 1) * 1000;
+    long originalMessageOffset = offset - unZigZag(readVarLong(buffer));
+    return new IndexValue(size, offset, flags, timeToLiveInMs, originalMessageOffset);
+  }
+
+  /**
+   * Reads the key of the entry at a restart point
+   * @param buffer The buffer to read from
+   * @param position The position of the entry
+   * @param key The array to read the key into
+   */
+  static void readRestartKey(ByteBuffer buffer, int position, byte[] key) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(position);
+    readEntry(duplicate, key, 0);
+  }
+
+  static int getNumberOfRestarts(int numberOfEntries, int restartInterval) {
+    return (numberOfEntries + restartInterval - 1) / restartInterval;
+  }
+
+  private static void writeVarLong(DataOutputStream stream, long value)
+      throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      stream.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    stream.writeByte((int) value);
+  }
+
+  private static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
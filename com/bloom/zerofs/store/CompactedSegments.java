@@ -0,0 +1,166 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.bloom.zerofs.api.store.StoreErrorCodes;
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.tools.CrcInputStream;
+import com.bloom.zerofs.tools.CrcOutputStream;
+
+
+/**
+ * Keeps the ranges of the log segments whose records are being moved by compaction, and persists them before any
+ * record of a segment is moved. Recovery only accepts a record for a key that is already in the index as a record
+ * that compaction moved if the record it replaces is in one of these segments. A segment is dropped once its records
+ * have been moved, the index entries of the moved records have been persisted and the segment has been deleted. All
+ * the methods are thread safe.
+ */
+class CompactedSegments {
+  static final String Compacted_Segments_Filename = "compactedsegments";
+  static final short Compacted_Segments_Version_V1 = 1;
+
+  private final String dataDir;
+  // segment start offset -> segment end offset
+  private final TreeMap<Long, Long> segments = new TreeMap<Long, Long>();
+
+  private CompactedSegments(String dataDir) {
+    this.dataDir = dataDir;
+  }
+
+  /**
+   * Adds a segment whose records are about to be moved and persists the segments
+   * @param startOffset The start offset of the segment
+   * @param endOffset The end offset of the segment
+   * @throws StoreException
+   */
+  synchronized void add(long startOffset, long endOffset)
+      throws StoreException {
+    segments.put(startOffset, endOffset);
+    persist();
+  }
+
+  /**
+   * Removes a segment that has been deleted after the index entries of its moved records were persisted, and persists
+   * the segments
+   * @param startOffset The start offset of the segment
+   * @throws StoreException
+   */
+  synchronized void remove(long startOffset)
+      throws StoreException {
+    if (segments.remove(startOffset) != null) {
+      persist();
+    }
+  }
+
+  /**
+   * @param offset An offset in the log
+   * @return true if the offset is in one of the segments whose records are being moved by compaction
+   */
+  synchronized boolean contains(long offset) {
+    Map.Entry<Long, Long> entry = segments.floorEntry(offset);
+    return entry != null && offset < entry.getValue();
+  }
+
+  private void persist()
+      throws StoreException {
+    /* The compacted segments file format is as follows:
+       --
+       version
+       numSegments
+       --
+       segment1 {startOffset, endOffset}
+       ....
+       segmentN
+       --
+       crc
+       ---
+     */
+    File tempFile = new File(dataDir, Compacted_Segments_Filename + ".tmp");
+    File actual = new File(dataDir, Compacted_Segments_Filename);
+    try {
+      FileOutputStream fileStream = new FileOutputStream(tempFile);
+      CrcOutputStream crc = new CrcOutputStream(fileStream);
+      DataOutputStream writer = new DataOutputStream(crc);
+      try {
+        writer.writeShort(Compacted_Segments_Version_V1);
+        writer.writeInt(segments.size());
+        for (Map.Entry<Long, Long> entry : segments.entrySet()) {
+          writer.writeLong(entry.getKey());
+          writer.writeLong(entry.getValue());
+        }
+        writer.writeLong(crc.getValue());
+        fileStream.getChannel().force(true);
+        tempFile.renameTo(actual);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while persisting compacted segments to disk " + tempFile.getAbsolutePath(),
+          e, StoreErrorCodes.IOError);
+    }
+  }
+
+  /**
+   * Reads the segments from the compacted segments file of the store, if there is one
+   * @param dataDir The directory of the store
+   * @return The segments that were read, which are empty if there is no file
+   * @throws StoreException if the file could not be read or is corrupt
+   */
+  static CompactedSegments load(String dataDir)
+      throws StoreException {
+    CompactedSegments compactedSegments = new CompactedSegments(dataDir);
+    File segmentsFile = new File(dataDir, Compacted_Segments_Filename);
+    if (!segmentsFile.exists()) {
+      return compactedSegments;
+    }
+    try {
+      CrcInputStream crcStream = new CrcInputStream(new FileInputStream(segmentsFile));
+      DataInputStream stream = new DataInputStream(crcStream);
+      try {
+        short version = stream.readShort();
+        switch (version) {
+          case Compacted_Segments_Version_V1:
+            int numSegments = stream.readInt();
+            for (int i = 0; i < numSegments; i++) {
+              compactedSegments.segments.put(stream.readLong(), stream.readLong());
+            }
+            break;
+          default:
+            throw new StoreException("Invalid version in compacted segments " + dataDir,
+                StoreErrorCodes.Index_Version_Error);
+        }
+        long crc = crcStream.getValue();
+        if (crc != stream.readLong()) {
+          throw new StoreException("Crc check does not match for compacted segments file for dataDir " + dataDir,
+              StoreErrorCodes.Illegal_Index_State);
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      throw new StoreException("Failed to read compacted segments " + dataDir, e,
+          StoreErrorCodes.Initialization_Error);
+    }
+    return compactedSegments;
+  }
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.store.MessageInfo;
+import com.bloom.zerofs.api.store.MessageWriteSet;
+import com.bloom.zerofs.api.store.StoreErrorCodes;
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.api.store.StoreKey;
+import com.bloom.zerofs.api.store.Write;
+import com.codahale.metrics.Timer;
+
+
+/**
+ * Writes puts and deletes from concurrent callers to the log in parallel. Every caller validates its write set and
+ * reserves a range of the log for it under the store write lock, copies the write set into the range without the
+ * lock and then waits for the range to be published. Ranges are published in the order they were reserved: when a
+ * copy completes, the caller adds the entries of all the ranges that are completely written, up to the first one that
+ * is still being written, to the log and the index. So the index only ever refers to data that is in the log, in the
+ * same order as if the writes had been done one after the other.
+ * <p/>
+ * The keys of the write sets that have not been published are tracked, so that a put or delete of a key that is
+ * still being written fails validation as it would if the earlier write had completed. If a copy fails, its range and
+ * all the ranges after it are failed and released, since the log cannot have a gap.
+ */
+class ConcurrentLogWriter {
+  private final Log log;
+  private final PersistentIndex index;
+  private final Object lock;
+  private final String dataDir;
+  private final StoreMetrics metrics;
+  // the reservations that have not been published yet, in the order of their offsets. Guarded by the lock.
+  private final LinkedList<Reservation> reservations = new LinkedList<Reservation>();
+  // the latest values of the keys that are in reservations that have not been published yet. Guarded by the lock.
+  private final Map<StoreKey, IndexValue> valuesInFlight = new HashMap<StoreKey, IndexValue>();
+  // set when a copy fails, until all the reservations after it have been failed. Guarded by the lock.
+  private boolean releasingReservations = false;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * A range of the log that has been reserved for a write set
+   */
+  private static class Reservation {
+    private final long startOffset;
+    private final long endOffset;
+    private final List<IndexEntry> indexEntries;
+    private boolean written = false;
+    private boolean published = false;
+    private StoreException exception = null;
+
+    Reservation(long startOffset, long endOffset, List<IndexEntry> indexEntries) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+      this.indexEntries = indexEntries;
+    }
+  }
+
+  ConcurrentLogWriter(Log log, PersistentIndex index, Object lock, String dataDir, StoreMetrics metrics) {
+    this.log = log;
+    this.index = index;
+    this.lock = lock;
+    this.dataDir = dataDir;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Writes the write set to the log and the index. Returns only after the write set and all the write sets before it
+   * in the log have been added to the index.
+   * @param writeSet The message write set that needs to be written
+   * @param isDelete true if the write set contains delete records, false if it contains new messages
+   * @param indexEndOffsetBeforeCheck The end offset of the index when the caller checked the keys in the write set
+   * @throws StoreException if the write set conflicts with the index or could not be written
+   */
+  void write(MessageWriteSet writeSet, boolean isDelete, long indexEndOffsetBeforeCheck)
+      throws StoreException {
+    Reservation reservation;
+    long size = 0;
+    for (MessageInfo info : writeSet.getMessageSetInfo()) {
+      size += info.getSize();
+    }
+    synchronized (lock) {
+      // a write set that needs a new segment waits for the ranges before it to be published
+      boolean interrupted = false;
+      while (log.isExclusiveAppendWaiting() || releasingReservations || !log.canReserve(size)) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      List<IndexEntry> indexEntries = validateAndGetIndexEntries(writeSet, isDelete, indexEndOffsetBeforeCheck);
+      try {
+        long startOffset = log.reserve(size);
+        reservation = new Reservation(startOffset, startOffset + size, indexEntries);
+      } catch (IOException e) {
+        throw new StoreException("IO error while trying to reserve " + size + " bytes in store " + dataDir, e,
+            StoreErrorCodes.IOError);
+      } catch (RuntimeException e) {
+        throw new StoreException("Error while trying to reserve " + size + " bytes in store " + dataDir, e,
+            StoreErrorCodes.Unknown_Error);
+      }
+      for (IndexEntry entry : indexEntries) {
+        valuesInFlight.put(entry.getKey(), entry.getValue());
+      }
+      reservations.add(reservation);
+    }
+
+    StoreException exception = null;
+    try {
+      ReservedWrite reservedWrite = new ReservedWrite(reservation);
+      writeSet.writeTo(reservedWrite);
+      if (reservedWrite.position != reservation.endOffset) {
+        throw new IllegalStateException("Write set wrote up to " + reservedWrite.position + " instead of "
+            + reservation.endOffset);
+      }
+      logger.trace("Store : {} message set written to log at {}", dataDir, reservation.startOffset);
+    } catch (IOException e) {
+      exception =
+          new StoreException("IO error while trying to write to store " + dataDir, e, StoreErrorCodes.IOError);
+    } catch (Exception e) {
+      exception = new StoreException("Unknown error while trying to write to store " + dataDir, e,
+          StoreErrorCodes.Unknown_Error);
+    }
+
+    final Timer.Context context = metrics.concurrentAppendPublishWaitTime.time();
+    try {
+      synchronized (lock) {
+        reservation.written = true;
+        reservation.exception = exception;
+        publishWrittenReservations();
+        boolean interrupted = false;
+        while (!reservation.published) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } finally {
+      context.stop();
+    }
+    if (reservation.exception != null) {
+      throw reservation.exception;
+    }
+  }
+
+  /**
+   * Publishes the reservations at the head of the queue that have been written. Must be called with the lock held.
+   */
+  private void publishWrittenReservations() {
+    int publishedCount = 0;
+    while (!reservations.isEmpty() && reservations.getFirst().written) {
+      Reservation reservation = reservations.removeFirst();
+      if (reservation.exception == null && releasingReservations) {
+        reservation.exception = new StoreException("Failed to write to store " + dataDir + " since an earlier write "
+            + "to the log failed", StoreErrorCodes.IOError);
+      }
+      if (reservation.exception == null) {
+        try {
+          log.publishReserved(reservation.endOffset);
+          index.addToIndex(new ArrayList<IndexEntry>(reservation.indexEntries),
+              new FileSpan(reservation.startOffset, reservation.endOffset));
+          logger.trace("Store : {} message set at {} written to index", dataDir, reservation.startOffset);
+        } catch (StoreException e) {
+          reservation.exception = e;
+        } catch (Exception e) {
+          reservation.exception = new StoreException("Unknown error while trying to add entries to the index of "
+              + "store " + dataDir, e, StoreErrorCodes.Unknown_Error);
+        }
+      } else if (!releasingReservations) {
+        logger.error("Store : {} failed to write message set at {}, failing the writes after it", dataDir,
+            reservation.startOffset, reservation.exception);
+        releasingReservations = true;
+      }
+      for (IndexEntry entry : reservation.indexEntries) {
+        if (valuesInFlight.get(entry.getKey()) == entry.getValue()) {
+          valuesInFlight.remove(entry.getKey());
+        }
+      }
+      reservation.published = true;
+      publishedCount++;
+    }
+    if (releasingReservations && reservations.isEmpty()) {
+      log.releaseReserved();
+      releasingReservations = false;
+    }
+    if (publishedCount > 0) {
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Validates the write set against the index and the writes that have not been published yet and creates the index
+   * entries for it. Must be called with the lock held.
+   */
+  private List<IndexEntry> validateAndGetIndexEntries(MessageWriteSet writeSet, boolean isDelete,
+      long indexEndOffsetBeforeCheck)
+      throws StoreException {
+    List<MessageInfo> infoList = writeSet.getMessageSetInfo();
+    List<IndexEntry> entries = new ArrayList<IndexEntry>(infoList.size());
+    long currentIndexEndOffset = index.getCurrentEndOffset();
+    FileSpan fileSpanToCheck = null;
+    if (currentIndexEndOffset != indexEndOffsetBeforeCheck) {
+      fileSpanToCheck = new FileSpan(indexEndOffsetBeforeCheck, currentIndexEndOffset);
+    }
+    // the write set is always reserved at the end of the reserved ranges, which cannot change while the lock is held
+    long runningOffset = log.getReservedEndOffset();
+    Map<StoreKey, IndexValue> valuesInWriteSet = new HashMap<StoreKey, IndexValue>();
+    for (MessageInfo info : infoList) {
+      StoreKey key = info.getStoreKey();
+      IndexValue valueInFlight =
+          valuesInWriteSet.containsKey(key) ? valuesInWriteSet.get(key) : valuesInFlight.get(key);
+      IndexValue newValue;
+      if (!isDelete) {
+        if (valueInFlight != null || (fileSpanToCheck != null && index.findKey(key, fileSpanToCheck) != null)) {
+          throw new StoreException("Key already exists in store", StoreErrorCodes.Already_Exist);
+        }
+        newValue = new IndexValue(info.getSize(), runningOffset, (byte) 0, info.getExpirationTimeInMs());
+      } else {
+        IndexValue value = valueInFlight != null ? valueInFlight : index.findKey(key);
+        if (value == null) {
+          throw new StoreException("Cannot delete id " + key + " since it is not present in the index.",
+              StoreErrorCodes.ID_Not_Found);
+        } else if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+          throw new StoreException("Cannot delete id " + key + " since it is already deleted in the index.",
+              StoreErrorCodes.ID_Deleted);
+        }
+        newValue = new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs());
+        newValue.setFlag(IndexValue.Flags.Delete_Index);
+        newValue.setNewOffset(runningOffset);
+        newValue.setNewSize(info.getSize());
+      }
+      entries.add(new IndexEntry(key, newValue));
+      valuesInWriteSet.put(key, newValue);
+      runningOffset += info.getSize();
+    }
+    return entries;
+  }
+
+  /**
+   * A write interface that writes what is appended to it to the reserved range of the log, one part after the other
+   */
+  private class ReservedWrite implements Write {
+    private final Reservation reservation;
+    private long position;
+
+    ReservedWrite(Reservation reservation) {
+      this.reservation = reservation;
+      this.position = reservation.startOffset;
+    }
+
+    @Override
+    public int appendFrom(ByteBuffer buffer)
+        throws IOException {
+      checkSize(buffer.remaining());
+      int bytesWritten = log.writeReserved(buffer, position);
+      position += bytesWritten;
+      return bytesWritten;
+    }
+
+    @Override
+    public void appendFrom(ReadableByteChannel channel, long size)
+        throws IOException {
+      checkSize(size);
+      log.writeReserved(channel, position, size);
+      position += size;
+    }
+
+    @Override
+    public void writeFrom(ReadableByteChannel channel, long offset, long size)
+        throws IOException {
+      // positional writes may overwrite what has been appended so far, but cannot leave the reserved range
+      if (offset < reservation.startOffset || offset + size > reservation.endOffset) {
+        throw new IllegalArgumentException("Write of " + size + " bytes at " + offset + " is outside the reserved "
+            + "range from " + reservation.startOffset + " to " + reservation.endOffset);
+      }
+      log.writeReserved(channel, offset, size);
+    }
+
+    private void checkSize(long size) {
+      if (position + size > reservation.endOffset) {
+        throw new IllegalArgumentException("Write of " + size + " bytes at " + position + " exceeds the reserved "
+            + "range that ends at " + reservation.endOffset);
+      }
+    }
+  }
+}
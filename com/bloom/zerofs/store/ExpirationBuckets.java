@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Keeps track of the bytes of the blobs in a store that have a time to live, grouped into buckets by the time they
+ * expire and, within a bucket, by the log segment they are in. A bucket covers a fixed span of time and is keyed by
+ * the time at which its last blob expires. When that time has passed, the bytes of the bucket are moved to the
+ * expired bytes of their log segments, which tells how many bytes of every segment can be reclaimed because they
+ * expired, without reading the index.
+ * <p/>
+ * The bytes of a blob are removed from its bucket if the blob is deleted before it expires, and the bytes of a log
+ * segment are removed when the segment is compacted away. All the methods are thread safe.
+ */
+class ExpirationBuckets {
+  private final long bucketSizeInMs;
+  // bucket end time -> log segment start offset -> bytes that expire by the end of the bucket
+  private final TreeMap<Long, Map<Long, Long>> buckets = new TreeMap<Long, Map<Long, Long>>();
+  // log segment start offset -> bytes that have expired
+  private final Map<Long, Long> expiredBytesBySegment = new HashMap<Long, Long>();
+  private long pendingBytes = 0;
+  private long expiredBytes = 0;
+  // the buckets that end before this time have been expired
+  private long expiredUpToMs = 0;
+
+  /**
+   * @param bucketSizeInMs The span of expiration times that a single bucket covers
+   */
+  ExpirationBuckets(long bucketSizeInMs) {
+    if (bucketSizeInMs <= 0) {
+      throw new IllegalArgumentException("Invalid expiration bucket size " + bucketSizeInMs);
+    }
+    this.bucketSizeInMs = bucketSizeInMs;
+  }
+
+  /**
+   * Adds the bytes of a blob that expires at the given time
+   * @param expiresAtMs The time at which the blob expires
+   * @param segmentStartOffset The start offset of the log segment that holds the blob
+   * @param size The size of the blob in the log
+   */
+  synchronized void add(long expiresAtMs, long segmentStartOffset, long size) {
+    Map<Long, Long> bucket = buckets.get(getBucketEndTime(expiresAtMs));
+    if (bucket == null) {
+      bucket = new HashMap<Long, Long>();
+      buckets.put(getBucketEndTime(expiresAtMs), bucket);
+    }
+    addBytes(bucket, segmentStartOffset, size);
+    pendingBytes += size;
+  }
+
+  /**
+   * Removes the bytes of a blob that was added earlier and is deleted. If the bucket of the blob has expired already,
+   * the bytes are removed from the expired bytes of its log segment instead.
+   * @param expiresAtMs The time at which the blob expires
+   * @param segmentStartOffset The start offset of the log segment that holds the blob
+   * @param size The size of the blob in the log
+   */
+  synchronized void remove(long expiresAtMs, long segmentStartOffset, long size) {
+    long bucketEndTime = getBucketEndTime(expiresAtMs);
+    Map<Long, Long> bucket = buckets.get(bucketEndTime);
+    if (bucket != null) {
+      pendingBytes += addBytes(bucket, segmentStartOffset, -size);
+      if (bucket.isEmpty()) {
+        buckets.remove(bucketEndTime);
+      }
+    } else if (bucketEndTime < expiredUpToMs) {
+      expiredBytes += addBytes(expiredBytesBySegment, segmentStartOffset, -size);
+    }
+  }
+
+  /**
+   * Removes all the bytes of a log segment that has been removed from the log
+   * @param segmentStartOffset The start offset of the log segment
+   */
+  synchronized void removeSegment(long segmentStartOffset) {
+    Iterator<Map<Long, Long>> iterator = buckets.values().iterator();
+    while (iterator.hasNext()) {
+      Map<Long, Long> bucket = iterator.next();
+      Long bytes = bucket.remove(segmentStartOffset);
+      if (bytes != null) {
+        pendingBytes -= bytes;
+      }
+      if (bucket.isEmpty()) {
+        iterator.remove();
+      }
+    }
+    Long bytes = expiredBytesBySegment.remove(segmentStartOffset);
+    if (bytes != null) {
+      expiredBytes -= bytes;
+    }
+  }
+
+  /**
+   * Moves the bytes of all the buckets whose blobs have all expired at the given time to the expired bytes of their
+   * log segments
+   * @param timeInMs The current time
+   * @return The number of bytes that expired
+   */
+  synchronized long expireBuckets(long timeInMs) {
+    long bytesExpired = 0;
+    Iterator<Map.Entry<Long, Map<Long, Long>>> iterator = buckets.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Long, Map<Long, Long>> bucket = iterator.next();
+      // a blob is expired once the time is past its expiration time
+      if (bucket.getKey() >= timeInMs) {
+        break;
+      }
+      for (Map.Entry<Long, Long> segmentBytes : bucket.getValue().entrySet()) {
+        addBytes(expiredBytesBySegment, segmentBytes.getKey(), segmentBytes.getValue());
+        bytesExpired += segmentBytes.getValue();
+      }
+      iterator.remove();
+    }
+    pendingBytes -= bytesExpired;
+    expiredBytes += bytesExpired;
+    expiredUpToMs = Math.max(expiredUpToMs, timeInMs);
+    return bytesExpired;
+  }
+
+  /**
+   * @param segmentStartOffset The start offset of a log segment
+   * @return The bytes of the segment that are known to have expired
+   */
+  synchronized long getExpiredBytes(long segmentStartOffset) {
+    Long bytes = expiredBytesBySegment.get(segmentStartOffset);
+    return bytes == null ? 0 : bytes;
+  }
+
+  /**
+   * @return The bytes in the store that are known to have expired
+   */
+  synchronized long getExpiredBytes() {
+    return expiredBytes;
+  }
+
+  /**
+   * @return The bytes in the store that have a time to live and have not expired yet
+   */
+  synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * @return The number of buckets with blobs that have not expired yet
+   */
+  synchronized int getNumberOfBuckets() {
+    return buckets.size();
+  }
+
+  private long getBucketEndTime(long expiresAtMs) {
+    // the bucket that ends at a multiple of the bucket size at or after the expiration time
+    return (expiresAtMs / bucketSizeInMs + (expiresAtMs % bucketSizeInMs == 0 ? 0 : 1)) * bucketSizeInMs;
+  }
+
+  /**
+   * Adds bytes to the count of a segment, never going below zero. The count is removed when it reaches zero.
+   * @return The change in the count, which is less than the bytes removed if the count would have gone below zero
+   */
+  private long addBytes(Map<Long, Long> bytesBySegment, long segmentStartOffset, long bytes) {
+    Long current = bytesBySegment.get(segmentStartOffset);
+    long currentBytes = current == null ? 0 : current;
+    long newBytes = Math.max(currentBytes + bytes, 0);
+    if (newBytes == 0) {
+      bytesBySegment.remove(segmentStartOffset);
+    } else {
+      bytesBySegment.put(segmentStartOffset, newBytes);
+    }
+    return newBytes - currentBytes;
+  }
+}
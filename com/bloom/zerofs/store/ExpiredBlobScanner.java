@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.tools.Time;
+
+
+/**
+ * Periodically moves the expiration buckets of a store whose blobs have expired to the expired bytes of their log
+ * segments. The buckets are loaded from the index in the first run. If a sealed log segment has enough expired bytes
+ * to be compacted, the compactor is asked to run right away instead of at its next interval.
+ */
+class ExpiredBlobScanner implements Runnable {
+  private final String dataDir;
+  private final Log log;
+  private final PersistentIndex index;
+  private final BlobStoreCompactor compactor;
+  private final double minGarbageRatio;
+  private final Time time;
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param dataDir The directory of the store
+   * @param log The log of the store
+   * @param index The index of the store
+   * @param compactor The compactor of the store, or null if the store is not compacted
+   * @param minGarbageRatio The min ratio of bytes in a sealed segment that must be garbage before it is compacted
+   * @param time The time instance to use
+   */
+  ExpiredBlobScanner(String dataDir, Log log, PersistentIndex index, BlobStoreCompactor compactor,
+      double minGarbageRatio, Time time) {
+    this.dataDir = dataDir;
+    this.log = log;
+    this.index = index;
+    this.compactor = compactor;
+    this.minGarbageRatio = minGarbageRatio;
+    this.time = time;
+  }
+
+  @Override
+  public void run() {
+    if (!running.get()) {
+      return;
+    }
+    try {
+      index.loadExpirationBuckets();
+      ExpirationBuckets buckets = index.getExpirationBuckets();
+      long bytesExpired = buckets.expireBuckets(time.milliseconds());
+      logger.trace("Store : {} {} bytes expired, {} bytes expired in total", dataDir, bytesExpired,
+          buckets.getExpiredBytes());
+      if (compactor == null || bytesExpired == 0) {
+        return;
+      }
+      for (LogSegment segment : log.getSealedSegments()) {
+        long segmentSize = segment.getEndOffset() - segment.getStartOffset();
+        long expiredBytes = buckets.getExpiredBytes(segment.getStartOffset());
+        if (segmentSize > 0 && (double) expiredBytes / segmentSize >= minGarbageRatio) {
+          logger.info("Store : {} segment {} has {} expired bytes, requesting compaction", dataDir,
+              segment.getFile().getAbsolutePath(), expiredBytes);
+          compactor.requestCompaction();
+          break;
+        }
+      }
+    } catch (StoreException e) {
+      logger.error("Store : " + dataDir + " error while scanning for expired blobs", e);
+    }
+  }
+
+  /**
+   * Stops the scanner. Runs that are scheduled after this return right away.
+   */
+  void shutdown() {
+    running.set(false);
+  }
+}
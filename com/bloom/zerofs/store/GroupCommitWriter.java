@@ -0,0 +1,369 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.config.StoreConfig;
+import com.bloom.zerofs.api.store.MessageInfo;
+import com.bloom.zerofs.api.store.MessageWriteSet;
+import com.bloom.zerofs.api.store.StoreErrorCodes;
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.api.store.StoreKey;
+import com.bloom.zerofs.api.store.Write;
+import com.codahale.metrics.Timer;
+
+
+/**
+ * Commits puts and deletes from concurrent callers to the log and the index in batches. Every caller enqueues its
+ * write and then competes for the store write lock. The caller that gets the lock drains the queue, appends all the
+ * pending write sets to the log with a single gathering write, adds all the resulting entries to the index and
+ * optionally syncs the log once for the whole batch. Callers whose writes were committed by another caller find
+ * their write completed when they get the lock and return without doing any work.
+ */
+class GroupCommitWriter {
+  private final Log log;
+  private final PersistentIndex index;
+  private final Object lock;
+  private final String dataDir;
+  private final StoreMetrics metrics;
+  private final int maxBatchSize;
+  private final int maxBatchSizeInBytes;
+  private final boolean syncOnCommit;
+  private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * A put or delete that is waiting to be committed
+   */
+  static class PendingWrite {
+    private final MessageWriteSet writeSet;
+    private final boolean isDelete;
+    private final long indexEndOffsetBeforeCheck;
+    private long sizeInBytes = 0;
+    private boolean completed = false;
+    private StoreException exception = null;
+
+    /**
+     * @param writeSet The message write set that needs to be written
+     * @param isDelete true if the write set contains delete records, false if it contains new messages
+     * @param indexEndOffsetBeforeCheck The end offset of the index when the caller checked the keys in the write set
+     */
+    PendingWrite(MessageWriteSet writeSet, boolean isDelete, long indexEndOffsetBeforeCheck) {
+      this.writeSet = writeSet;
+      this.isDelete = isDelete;
+      this.indexEndOffsetBeforeCheck = indexEndOffsetBeforeCheck;
+      for (MessageInfo info : writeSet.getMessageSetInfo()) {
+        sizeInBytes += info.getSize();
+      }
+    }
+
+    void complete(StoreException exception) {
+      this.exception = exception;
+      this.completed = true;
+    }
+  }
+
+  GroupCommitWriter(Log log, PersistentIndex index, Object lock, String dataDir, StoreConfig config,
+      StoreMetrics metrics) {
+    this.log = log;
+    this.index = index;
+    this.lock = lock;
+    this.dataDir = dataDir;
+    this.metrics = metrics;
+    this.maxBatchSize = config.storeGroupCommitMaxBatchSize;
+    this.maxBatchSizeInBytes = config.storeGroupCommitMaxBatchSizeBytes;
+    this.syncOnCommit = config.storeGroupCommitSyncEnabled;
+  }
+
+  /**
+   * Writes the pending write to the log and the index, possibly together with the writes of other callers. Returns
+   * only after the write has been committed (and synced, if enabled).
+   * @param pendingWrite The write that needs to be committed
+   * @throws StoreException if the write could not be committed
+   */
+  void write(PendingWrite pendingWrite)
+      throws StoreException {
+    pendingWrites.add(pendingWrite);
+    synchronized (lock) {
+      while (!pendingWrite.completed) {
+        commitBatch();
+      }
+    }
+    if (pendingWrite.exception != null) {
+      throw pendingWrite.exception;
+    }
+  }
+
+  /**
+   * Drains the next batch of pending writes from the queue and commits it. Must be called with the lock held.
+   */
+  private void commitBatch() {
+    List<PendingWrite> batch = new ArrayList<PendingWrite>();
+    long batchSizeInBytes = 0;
+    PendingWrite next = pendingWrites.peek();
+    while (next != null && batch.size() < maxBatchSize && (batch.isEmpty()
+        || batchSizeInBytes + next.sizeInBytes <= maxBatchSizeInBytes)) {
+      pendingWrites.poll();
+      batch.add(next);
+      batchSizeInBytes += next.sizeInBytes;
+      next = pendingWrites.peek();
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    final Timer.Context context = metrics.groupCommitTime.time();
+    try {
+      List<PendingWrite> accepted = new ArrayList<PendingWrite>(batch.size());
+      ArrayList<IndexEntry> indexEntries = new ArrayList<IndexEntry>();
+      long writeStartOffset = log.getLogEndOffset();
+      // the latest values of the keys written in this batch, as they are not in the index yet
+      Map<StoreKey, IndexValue> valuesInBatch = new HashMap<StoreKey, IndexValue>();
+      long runningOffset = writeStartOffset;
+      for (PendingWrite pendingWrite : batch) {
+        try {
+          List<IndexEntry> entries = validateAndGetIndexEntries(pendingWrite, runningOffset, valuesInBatch);
+          for (IndexEntry entry : entries) {
+            valuesInBatch.put(entry.getKey(), entry.getValue());
+          }
+          indexEntries.addAll(entries);
+          accepted.add(pendingWrite);
+          runningOffset += pendingWrite.sizeInBytes;
+        } catch (StoreException e) {
+          pendingWrite.complete(e);
+        }
+      }
+      if (accepted.isEmpty()) {
+        return;
+      }
+      try {
+        BufferedBatchWrite batchWrite = new BufferedBatchWrite(log, maxBatchSizeInBytes);
+        for (PendingWrite pendingWrite : accepted) {
+          if (pendingWrite.sizeInBytes > maxBatchSizeInBytes) {
+            // large write sets are not buffered, write whatever is buffered so far and stream this one directly
+            batchWrite.flush();
+            pendingWrite.writeSet.writeTo(log);
+          } else {
+            pendingWrite.writeSet.writeTo(batchWrite);
+          }
+        }
+        batchWrite.flush();
+        logger.trace("Store : {} batch of {} message sets written to log", dataDir, accepted.size());
+        if (log.getLogEndOffset() != runningOffset) {
+          throw new IllegalStateException("Log end offset " + log.getLogEndOffset() + " after batch write does not "
+              + "match the expected end offset " + runningOffset);
+        }
+        index.addToIndex(indexEntries, new FileSpan(writeStartOffset, log.getLogEndOffset()));
+        logger.trace("Store : {} batch of {} message sets written to index", dataDir, accepted.size());
+        if (syncOnCommit) {
+          final Timer.Context syncContext = metrics.groupCommitSyncTime.time();
+          try {
+            log.flush();
+          } finally {
+            syncContext.stop();
+          }
+        }
+        metrics.groupCommitBatchSize.update(accepted.size());
+        metrics.groupCommitBatchSizeInBytes.update(runningOffset - writeStartOffset);
+        for (PendingWrite pendingWrite : accepted) {
+          pendingWrite.complete(null);
+        }
+      } catch (StoreException e) {
+        failAll(accepted, e);
+      } catch (IOException e) {
+        failAll(accepted, new StoreException("IO error while trying to commit batch to store " + dataDir, e,
+            StoreErrorCodes.IOError));
+      } catch (Exception e) {
+        failAll(accepted, new StoreException("Unknown error while trying to commit batch to store " + dataDir, e,
+            StoreErrorCodes.Unknown_Error));
+      }
+    } finally {
+      context.stop();
+    }
+  }
+
+  /**
+   * Validates the pending write against the index and the writes that precede it in the batch and creates the index
+   * entries for it.
+   * @param pendingWrite The write to validate
+   * @param writeStartOffset The offset in the log at which the write set will be written
+   * @param valuesInBatch The latest values of the keys that have been accepted in this batch so far
+   * @return The index entries that represent the write set
+   * @throws StoreException if the write set conflicts with the index or the batch
+   */
+  private List<IndexEntry> validateAndGetIndexEntries(PendingWrite pendingWrite, long writeStartOffset,
+      Map<StoreKey, IndexValue> valuesInBatch)
+      throws StoreException {
+    List<MessageInfo> infoList = pendingWrite.writeSet.getMessageSetInfo();
+    List<IndexEntry> entries = new ArrayList<IndexEntry>(infoList.size());
+    long currentIndexEndOffset = index.getCurrentEndOffset();
+    FileSpan fileSpanToCheck = null;
+    if (currentIndexEndOffset != pendingWrite.indexEndOffsetBeforeCheck) {
+      fileSpanToCheck = new FileSpan(pendingWrite.indexEndOffsetBeforeCheck, currentIndexEndOffset);
+    }
+    Map<StoreKey, IndexValue> valuesInWriteSet = new HashMap<StoreKey, IndexValue>();
+    long runningOffset = writeStartOffset;
+    for (MessageInfo info : infoList) {
+      StoreKey key = info.getStoreKey();
+      IndexValue valueInBatch = valuesInWriteSet.containsKey(key) ? valuesInWriteSet.get(key) : valuesInBatch.get(key);
+      IndexValue newValue;
+      if (!pendingWrite.isDelete) {
+        if (valueInBatch != null || (fileSpanToCheck != null && index.findKey(key, fileSpanToCheck) != null)) {
+          throw new StoreException("Key already exists in store", StoreErrorCodes.Already_Exist);
+        }
+        newValue = new IndexValue(info.getSize(), runningOffset, (byte) 0, info.getExpirationTimeInMs());
+      } else {
+        IndexValue value = valueInBatch != null ? valueInBatch : index.findKey(key);
+        if (value == null) {
+          throw new StoreException("Cannot delete id " + key + " since it is not present in the index.",
+              StoreErrorCodes.ID_Not_Found);
+        } else if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+          throw new StoreException("Cannot delete id " + key + " since it is already deleted in the index.",
+              StoreErrorCodes.ID_Deleted);
+        }
+        newValue = new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs());
+        newValue.setFlag(IndexValue.Flags.Delete_Index);
+        newValue.setNewOffset(runningOffset);
+        newValue.setNewSize(info.getSize());
+      }
+      entries.add(new IndexEntry(key, newValue));
+      valuesInWriteSet.put(key, newValue);
+      runningOffset += info.getSize();
+    }
+    return entries;
+  }
+
+  private void failAll(List<PendingWrite> pendingWrites, StoreException e) {
+    logger.error("Store : {} failed to commit batch of {} message sets", dataDir, pendingWrites.size(), e);
+    for (PendingWrite pendingWrite : pendingWrites) {
+      pendingWrite.complete(e);
+    }
+  }
+
+  /**
+   * A write interface that buffers everything that is appended to it so that it can be appended to the log later
+   * with a single gathering write. The buffered bytes are at the offsets right after the end of the log, which is
+   * where they will be appended, so positional writes to them go to the buffers and positional writes to the bytes
+   * before them go to the log. The buffers are appended to the log whenever they reach the max buffered size, so that
+   * the heap used by a batch stays bounded.
+   */
+  private static class BufferedBatchWrite implements Write {
+    private final Log log;
+    private final long maxBufferedSizeInBytes;
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private long bufferedSizeInBytes = 0;
+
+    BufferedBatchWrite(Log log, long maxBufferedSizeInBytes) {
+      this.log = log;
+      this.maxBufferedSizeInBytes = maxBufferedSizeInBytes;
+    }
+
+    @Override
+    public int appendFrom(ByteBuffer buffer)
+        throws IOException {
+      int size = buffer.remaining();
+      ByteBuffer copy = ByteBuffer.allocate(size);
+      copy.put(buffer);
+      copy.flip();
+      buffers.add(copy);
+      bufferedSizeInBytes += size;
+      maybeFlush();
+      return size;
+    }
+
+    @Override
+    public void appendFrom(ReadableByteChannel channel, long size)
+        throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException("Reached end of channel before reading " + size + " bytes");
+        }
+      }
+      buffer.flip();
+      buffers.add(buffer);
+      bufferedSizeInBytes += size;
+      maybeFlush();
+    }
+
+    @Override
+    public void writeFrom(ReadableByteChannel channel, long offset, long size)
+        throws IOException {
+      long bufferStartOffset = log.getLogEndOffset();
+      if (offset < bufferStartOffset) {
+        // the part of the range that has already been appended is written to the log
+        long sizeInLog = Math.min(size, bufferStartOffset - offset);
+        log.writeFrom(channel, offset, sizeInLog);
+        offset += sizeInLog;
+        size -= sizeInLog;
+      }
+      if (size == 0) {
+        return;
+      }
+      if (offset + size > bufferStartOffset + bufferedSizeInBytes) {
+        throw new IllegalArgumentException("Cannot write " + size + " bytes at offset " + offset
+            + " beyond the end of the buffered batch at " + (bufferStartOffset + bufferedSizeInBytes));
+      }
+      long bufferOffset = bufferStartOffset;
+      for (ByteBuffer buffer : buffers) {
+        long bufferEndOffset = bufferOffset + buffer.limit();
+        if (size > 0 && offset < bufferEndOffset) {
+          ByteBuffer target = buffer.duplicate();
+          target.position((int) (offset - bufferOffset));
+          target.limit((int) Math.min(buffer.limit(), offset - bufferOffset + size));
+          int sizeToRead = target.remaining();
+          while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+              throw new EOFException("Reached end of channel before reading " + size + " bytes");
+            }
+          }
+          offset += sizeToRead;
+          size -= sizeToRead;
+        }
+        bufferOffset = bufferEndOffset;
+      }
+    }
+
+    private void maybeFlush()
+        throws IOException {
+      if (bufferedSizeInBytes >= maxBufferedSizeInBytes) {
+        flush();
+      }
+    }
+
+    /**
+     * Appends all the buffered data to the log and clears the buffers
+     * @throws IOException
+     */
+    void flush()
+        throws IOException {
+      if (!buffers.isEmpty()) {
+        log.appendFrom(buffers.toArray(new ByteBuffer[buffers.size()]));
+        buffers.clear();
+        bufferedSizeInBytes = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.bloom.zerofs.api.store.StoreKey;
+
+
+/**
+ * The entries of an index segment that is writable and held in memory. Only one thread adds entries at any time,
+ * whereas lookups and iterations can happen concurrently with the adds.
+ */
+interface InMemorySegmentIndex {
+
+  /**
+   * @param key The key to find
+   * @return The value of the key or null if the key is not present
+   */
+  IndexValue get(StoreKey key);
+
+  /**
+   * Adds or replaces the value of a key
+   * @param key The key to add
+   * @param value The value of the key
+   * @return true if the key was not present before, false if its value has been replaced
+   */
+  boolean put(StoreKey key, IndexValue value);
+
+  /**
+   * @return The number of keys
+   */
+  int size();
+
+  /**
+   * Removes all the entries
+   */
+  void clear();
+
+  /**
+   * Returns the entries in key order starting with the given key (inclusive)
+   * @param fromKey The key to start from. If this is null, all the entries are returned
+   * @return An iterator over the entries
+   */
+  Iterator<IndexEntry> entries(StoreKey fromKey);
+
+  /**
+   * Writes the serialized key and value of every entry in key order, skipping the entries whose record ends beyond
+   * the given offset in the log
+   * @param stream The stream to write to
+   * @param safeEndPoint The offset in the log up to which entries are written
+   * @throws IOException
+   */
+  void writeTo(DataOutputStream stream, long safeEndPoint)
+      throws IOException;
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bloom.zerofs.api.store.StoreKey;
+
+
+/**
+ * A memory bounded cache of the latest index value of keys that are looked up in the index. Entries are evicted
+ * using the CLOCK algorithm: an entry that was hit since the clock hand last passed it gets a second chance.
+ * <p/>
+ * The cache is kept coherent with the index by invalidating a key whenever a new value is added for it. A value that
+ * was looked up in the index is only cached if no key was invalidated while it was being looked up, which ensures
+ * that a lookup racing with a write never leaves a stale value in the cache.
+ */
+class IndexKeyCache {
+  // approximate memory used by the map entry, the clock entry and the object headers of a cached key
+  private static final int Entry_Overhead_In_Bytes = 96;
+
+  private final long maxSizeInBytes;
+  private final StoreMetrics metrics;
+  private final ConcurrentHashMap<StoreKey, CacheEntry> entries = new ConcurrentHashMap<StoreKey, CacheEntry>();
+  private final ConcurrentLinkedQueue<CacheEntry> clock = new ConcurrentLinkedQueue<CacheEntry>();
+  private final AtomicLong sizeInBytes = new AtomicLong(0);
+  private final AtomicLong invalidations = new AtomicLong(0);
+
+  private static class CacheEntry {
+    private final StoreKey key;
+    private final IndexValue value;
+    private final int sizeInBytes;
+    private volatile boolean referenced = false;
+
+    CacheEntry(StoreKey key, IndexValue value) {
+      this.key = key;
+      this.value = value;
+      this.sizeInBytes = key.sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes + Entry_Overhead_In_Bytes;
+    }
+  }
+
+  IndexKeyCache(long maxSizeInBytes, StoreMetrics metrics) {
+    this.maxSizeInBytes = maxSizeInBytes;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return A stamp that needs to be passed to {@link #put(StoreKey, IndexValue, long)} for a value that is looked up
+   * in the index after this call
+   */
+  long getStamp() {
+    return invalidations.get();
+  }
+
+  /**
+   * Returns the cached value of a key
+   * @param key The key to look up
+   * @return The latest index value of the key if it is cached, null otherwise
+   */
+  IndexValue get(StoreKey key) {
+    CacheEntry entry = entries.get(key);
+    if (entry == null) {
+      metrics.keyCacheMissCount.inc(1);
+      return null;
+    }
+    entry.referenced = true;
+    metrics.keyCacheHitCount.inc(1);
+    return entry.value;
+  }
+
+  /**
+   * Caches the value of a key that was looked up in the index
+   * @param key The key that was looked up
+   * @param value The value found in the index
+   * @param stamp The stamp obtained before the key was looked up in the index
+   */
+  void put(StoreKey key, IndexValue value, long stamp) {
+    if (invalidations.get() != stamp) {
+      return;
+    }
+    CacheEntry entry = new CacheEntry(key, value);
+    if (entries.putIfAbsent(key, entry) != null) {
+      return;
+    }
+    // the size of an entry is accounted for until it leaves the clock, even if it is invalidated before that
+    clock.offer(entry);
+    sizeInBytes.addAndGet(entry.sizeInBytes);
+    if (invalidations.get() != stamp) {
+      // a write may have invalidated the key before the entry was added
+      entries.remove(key, entry);
+    }
+    if (sizeInBytes.get() > maxSizeInBytes) {
+      evict();
+    }
+  }
+
+  /**
+   * Invalidates a key. This needs to be called after a new value for the key is added to the index.
+   * @param key The key whose value has changed
+   */
+  void invalidate(StoreKey key) {
+    invalidations.incrementAndGet();
+    entries.remove(key);
+  }
+
+  private synchronized void evict() {
+    while (sizeInBytes.get() > maxSizeInBytes) {
+      CacheEntry entry = clock.poll();
+      if (entry == null) {
+        return;
+      }
+      if (entries.get(entry.key) != entry) {
+        // the entry has already been invalidated
+        sizeInBytes.addAndGet(-entry.sizeInBytes);
+      } else if (entry.referenced) {
+        entry.referenced = false;
+        clock.offer(entry);
+      } else {
+        entries.remove(entry.key, entry);
+        sizeInBytes.addAndGet(-entry.sizeInBytes);
+        metrics.keyCacheEvictionCount.inc(1);
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.nio.ByteBuffer;
+
+import com.bloom.zerofs.api.store.StoreKey;
+import com.bloom.zerofs.tools.FilterFactory;
+
+
+/**
+ * A key that is being looked up in the index segments. The serialized key and its bloom filter hash are computed
+ * once and used for every segment that is searched, instead of once per segment.
+ */
+class IndexLookupKey {
+  private final StoreKey key;
+  private final byte[] keyBytes;
+  private long[] hash = null;
+
+  IndexLookupKey(StoreKey key) {
+    this.key = key;
+    this.keyBytes = key.toBytes();
+  }
+
+  StoreKey getKey() {
+    return key;
+  }
+
+  byte[] getKeyBytes() {
+    return keyBytes;
+  }
+
+  /**
+   * @return The hash of the key for the bloom filters. It is only computed when the key is looked up in a mapped
+   * segment.
+   */
+  long[] getHash() {
+    if (hash == null) {
+      hash = FilterFactory.hash(ByteBuffer.wrap(keyBytes));
+    }
+    return hash;
+  }
+}
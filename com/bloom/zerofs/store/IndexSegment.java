@@ -24,10 +24,9 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -44,6 +43,8 @@ import com.bloom.zerofs.api.store.StoreException;
 import com.bloom.zerofs.api.store.StoreKey;
 import com.bloom.zerofs.api.store.StoreKeyFactory;
 import com.bloom.zerofs.tools.ByteBufferInputStream;
+import com.bloom.zerofs.tools.ByteBufferOutputStream;
+import com.bloom.zerofs.tools.Crc32;
 import com.bloom.zerofs.tools.CrcInputStream;
 import com.bloom.zerofs.tools.CrcOutputStream;
 import com.bloom.zerofs.tools.FilterFactory;
@@ -62,6 +63,7 @@ import com.bloom.zerofs.tools.SystemTime;
  */
 class IndexSegment {
   private AtomicLong startOffset;
+  private long tokenOffset;
   private AtomicLong endOffset;
   private File indexFile;
   private ReadWriteLock rwLock;
@@ -89,8 +91,25 @@ class IndexSegment {
   private long prevSegmentEndOffset = 0;
   private AtomicLong lastModifiedTimeSec; // an approximation of the last modified time.
   private AtomicInteger numberOfItems;
-  protected ConcurrentSkipListMap<StoreKey, IndexValue> index = null;
+  protected InMemorySegmentIndex index = null;
   private final StoreMetrics metrics;
+  private final int fenceInterval;
+  private final short persistedVersion;
+  private final int restartInterval;
+  // the version and the number of entries of the mapped file
+  private short mappedVersion = PersistentIndex.version;
+  private int mappedEntryCount = 0;
+  // every entriesPerFence-th key of the mapped file and its position, used to narrow down searches on the mapped file
+  private byte[] fenceKeys = null;
+  private int[] fencePositions = null;
+  private int entriesPerFence = 0;
+
+  private final static int Delta_Entry_Count_Field_Length = 4;
+  private final boolean deltaPersistenceEnabled;
+  private File deltaFile;
+  // the entries that have been added since the segment was last written to its file or its delta file
+  private final List<IndexEntry> unpersistedEntries = new ArrayList<IndexEntry>();
+  private long deltaEndOffset = 0;
 
   /**
    * Creates a new segment
@@ -103,20 +122,41 @@ class IndexSegment {
    */
   public IndexSegment(String dataDir, long startOffset, StoreKeyFactory factory, int keySize, int valueSize,
       StoreConfig config, StoreMetrics metrics) {
-    // create a new file with the start offset
-    indexFile = new File(dataDir, startOffset + "_" + PersistentIndex.Index_File_Name_Suffix);
+    this(dataDir, startOffset, startOffset, factory, keySize, valueSize, config, metrics);
+    index = createInMemoryIndex(config);
+    bloomFilter = createBloomFilter(config, config.storeIndexMaxNumberOfInmemElements);
+  }
+
+  /**
+   * Creates a new segment without its in memory index and bloom filter
+   * @param dataDir The data directory to use for this segment
+   * @param startOffset The start offset in the log that this segment represents
+   * @param tokenOffset The offset that find tokens refer to this segment by
+   * @param factory The store key factory used to create new store keys
+   * @param keySize The key size that this segment supports
+   * @param valueSize The value size that this segment supports
+   * @param config The store config used to initialize the index segment
+   */
+  private IndexSegment(String dataDir, long startOffset, long tokenOffset, StoreKeyFactory factory, int keySize,
+      int valueSize, StoreConfig config, StoreMetrics metrics) {
+    // create a new file with the start offset, and the token offset if the segment is a merged one
+    indexFile = new File(dataDir, startOffset + "_" + (tokenOffset != startOffset ? tokenOffset + "_" : "")
+        + PersistentIndex.Index_File_Name_Suffix);
+    deltaFile = new File(dataDir, startOffset + "_" + PersistentIndex.Index_Delta_File_Name_Suffix);
     bloomFile = new File(dataDir, startOffset + "_" + PersistentIndex.Bloom_File_Name_Suffix);
     this.rwLock = new ReentrantReadWriteLock();
     this.startOffset = new AtomicLong(startOffset);
+    this.tokenOffset = tokenOffset;
     this.endOffset = new AtomicLong(-1);
-    index = new ConcurrentSkipListMap<StoreKey, IndexValue>();
     mapped = new AtomicBoolean(false);
     sizeWritten = new AtomicLong(0);
     this.factory = factory;
     this.keySize = keySize;
     this.valueSize = valueSize;
-    bloomFilter = FilterFactory
-        .getFilter(config.storeIndexMaxNumberOfInmemElements, config.storeIndexBloomMaxFalsePositiveProbability);
+    this.fenceInterval = config.storeIndexMappedSegmentFenceInterval;
+    this.persistedVersion = config.storeIndexSegmentFormatVersion;
+    this.restartInterval = config.storeIndexSegmentRestartInterval;
+    this.deltaPersistenceEnabled = config.storeIndexDeltaPersistenceEnabled;
     numberOfItems = new AtomicInteger(0);
     this.metrics = metrics;
     this.lastModifiedTimeSec = new AtomicLong(0);
@@ -135,12 +175,17 @@ class IndexSegment {
   public IndexSegment(File indexFile, boolean isMapped, StoreKeyFactory factory, StoreConfig config,
       StoreMetrics metrics, Journal journal)
       throws StoreException {
+    this.fenceInterval = config.storeIndexMappedSegmentFenceInterval;
+    this.persistedVersion = config.storeIndexSegmentFormatVersion;
+    this.restartInterval = config.storeIndexSegmentRestartInterval;
+    this.deltaPersistenceEnabled = config.storeIndexDeltaPersistenceEnabled;
     try {
-      int startIndex = indexFile.getName().indexOf("_", 0);
-      String startOffsetValue = indexFile.getName().substring(0, startIndex);
-      startOffset = new AtomicLong(Long.parseLong(startOffsetValue));
+      startOffset = new AtomicLong(getStartOffset(indexFile.getName()));
+      tokenOffset = getTokenOffset(indexFile.getName());
       endOffset = new AtomicLong(-1);
       this.indexFile = indexFile;
+      this.deltaFile =
+          new File(indexFile.getParent(), startOffset + "_" + PersistentIndex.Index_Delta_File_Name_Suffix);
       this.lastModifiedTimeSec = new AtomicLong(indexFile.lastModified() / 1000);
       this.rwLock = new ReentrantReadWriteLock();
       this.factory = factory;
@@ -148,6 +193,10 @@ class IndexSegment {
       numberOfItems = new AtomicInteger(0);
       mapped = new AtomicBoolean(false);
       if (isMapped) {
+        // a segment is written in full before the next one is created, so a delta file left next to it is stale
+        if (deltaFile.exists()) {
+          deltaFile.delete();
+        }
         map(false);
         // Load the bloom filter for this index
         // We need to load the bloom filter only for mapped indexes
@@ -166,9 +215,8 @@ class IndexSegment {
         }
         stream.close();
       } else {
-        index = new ConcurrentSkipListMap<StoreKey, IndexValue>();
-        bloomFilter = FilterFactory
-            .getFilter(config.storeIndexMaxNumberOfInmemElements, config.storeIndexBloomMaxFalsePositiveProbability);
+        index = createInMemoryIndex(config);
+        bloomFilter = createBloomFilter(config, config.storeIndexMaxNumberOfInmemElements);
         bloomFile = new File(indexFile.getParent(), startOffset + "_" + PersistentIndex.Bloom_File_Name_Suffix);
         try {
           readFromFile(indexFile, journal);
@@ -179,6 +227,9 @@ class IndexSegment {
             // subsequent recovery process will add the missed out entries
             logger.error("Index Segment : {} error while reading from index {}", indexFile.getAbsolutePath(),
                 e.getMessage());
+            // the segment is written in full on the next flush, since the files do not match the entries in memory
+            prevSegmentEndOffset = -1;
+            deltaFile.delete();
           } else {
             throw e;
           }
@@ -191,6 +242,45 @@ class IndexSegment {
     this.metrics = metrics;
   }
 
+  /**
+   * Creates the in memory representation of the entries of a segment that is not mapped
+   * @param config The store config that determines whether the entries are kept on or off the heap
+   * @return The in memory index
+   */
+  private InMemorySegmentIndex createInMemoryIndex(StoreConfig config) {
+    if (config.storeIndexOffHeapActiveSegmentEnabled) {
+      return new OffHeapSegmentIndex(factory, config.storeIndexMaxNumberOfInmemElements);
+    }
+    return new SkipListSegmentIndex();
+  }
+
+  private static IFilter createBloomFilter(StoreConfig config, long numElements) {
+    if (config.storeIndexBloomBlockedEnabled) {
+      return FilterFactory.getBlockedFilter(numElements, config.storeIndexBloomMaxFalsePositiveProbability);
+    }
+    return FilterFactory.getFilter(numElements, config.storeIndexBloomMaxFalsePositiveProbability);
+  }
+
+  /**
+   * Returns the start offset of the segment of an index file. The name of the file of a segment is
+   * startoffset_index, or startoffset_tokenoffset_index if the segment was created by merging segments.
+   * @param indexFileName The name of the index file
+   * @return The start offset of the segment
+   */
+  static long getStartOffset(String indexFileName) {
+    return Long.parseLong(indexFileName.substring(0, indexFileName.indexOf("_")));
+  }
+
+  /**
+   * Returns the token offset of the segment of an index file
+   * @param indexFileName The name of the index file
+   * @return The token offset of the segment
+   */
+  static long getTokenOffset(String indexFileName) {
+    String[] parts = indexFileName.split("_");
+    return parts.length > 2 ? Long.parseLong(parts[1]) : Long.parseLong(parts[0]);
+  }
+
   /**
    * The start offset that this segment represents
    * @return The start offset that this segment represents
@@ -199,6 +289,17 @@ class IndexSegment {
     return startOffset.get();
   }
 
+  /**
+   * The offset that find tokens refer to this segment by. This is the start offset of the segment, unless the segment
+   * was created by merging segments, in which case it is the token offset of the last segment that was merged. Tokens
+   * with the token offset of an earlier merged segment are told apart by this, since they need to read the merged
+   * segment from its first key.
+   * @return The offset that find tokens refer to this segment by
+   */
+  public long getTokenOffset() {
+    return tokenOffset;
+  }
+
   /**
    * The end offset that this segment represents
    * @return The end offset that this segment represents
@@ -256,74 +357,283 @@ class IndexSegment {
    */
   public IndexValue find(StoreKey keyToFind)
       throws StoreException {
+    return find(new IndexLookupKey(keyToFind));
+  }
+
+  /**
+   * Finds an entry given a key whose serialized form and hash are computed once for all the segments searched
+   * @param keyToFind The key to find
+   * @return The blob index value that represents the key or null if not found
+   * @throws StoreException
+   */
+  IndexValue find(IndexLookupKey keyToFind)
+      throws StoreException {
     try {
       rwLock.readLock().lock();
       if (!(mapped.get())) {
-        return index.get(keyToFind);
+        return index.get(keyToFind.getKey());
       } else {
         // check bloom filter first
-        if (bloomFilter == null || bloomFilter.isPresent(ByteBuffer.wrap(keyToFind.toBytes()))) {
+        if (bloomFilter == null || bloomFilter.isPresent(keyToFind.getHash())) {
           metrics.bloomPositiveCount.inc(1);
           logger.trace(bloomFilter == null
               ? "IndexSegment {} bloom filter empty. Searching file with start offset {} and for key {} "
               : "IndexSegment {} found in bloom filter for index with start offset {} and for key {} ",
-              indexFile.getAbsolutePath(), startOffset.get(), keyToFind);
-          // binary search on the mapped file
-          ByteBuffer duplicate = mmap.duplicate();
-          int low = 0;
-          int high = numberOfEntries(duplicate) - 1;
-          logger.trace("binary search low : {} high : {}", low, high);
-          while (low <= high) {
-            int mid = (int) (Math.ceil(high / 2.0 + low / 2.0));
-            StoreKey found = getKeyAt(duplicate, mid);
-            logger.trace("Index Segment {} binary search - key found on iteration {}", indexFile.getAbsolutePath(),
-                found);
-            int result = found.compareTo(keyToFind);
-            if (result == 0) {
-              byte[] buf = new byte[valueSize];
-              duplicate.get(buf);
-              return new IndexValue(ByteBuffer.wrap(buf));
-            } else if (result < 0) {
-              low = mid + 1;
-            } else {
-              high = mid - 1;
-            }
+              indexFile.getAbsolutePath(), startOffset.get(), keyToFind.getKey());
+          MappedEntryCursor cursor = seek(keyToFind.getKeyBytes());
+          if (cursor != null) {
+            return cursor.getValue();
           }
           metrics.bloomFalsePositiveCount.inc(1);
         }
         return null;
       }
-    } catch (IOException e) {
-      throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " IO error while searching", e,
-          StoreErrorCodes.IOError);
     } finally {
       rwLock.readLock().unlock();
     }
   }
 
-  private int numberOfEntries(ByteBuffer mmap) {
-    return (mmap.capacity() - Index_Size_Excluding_Entries) / (keySize + valueSize);
+  /**
+   * Finds which of the given keys are present in this segment. The keys are expected in key order, so the search for
+   * every key in the mapped file starts where the search for the previous key ended, instead of at the start of the
+   * file.
+   * @param sortedKeys The keys to find in key order, without duplicates
+   * @return The keys that are present in the segment, in key order
+   * @throws StoreException
+   */
+  List<IndexLookupKey> findKeys(List<IndexLookupKey> sortedKeys)
+      throws StoreException {
+    List<IndexLookupKey> foundKeys = new ArrayList<IndexLookupKey>();
+    try {
+      rwLock.readLock().lock();
+      if (!(mapped.get())) {
+        for (IndexLookupKey key : sortedKeys) {
+          if (index.get(key.getKey()) != null) {
+            foundKeys.add(key);
+          }
+        }
+        return foundKeys;
+      }
+      ByteBuffer readBuf = mmap.duplicate();
+      int fromIndex = 0;
+      MappedEntryCursor cursor = null;
+      int cursorFence = -1;
+      for (IndexLookupKey key : sortedKeys) {
+        // check bloom filter first
+        if (bloomFilter != null && !bloomFilter.isPresent(key.getHash())) {
+          continue;
+        }
+        byte[] keyBytes = key.getKeyBytes();
+        metrics.bloomPositiveCount.inc(1);
+        boolean found = false;
+        if (mappedVersion != CompactIndexFormat.Version) {
+          int entryIndex = searchIndex(keyBytes, readBuf, fromIndex);
+          found = entryIndex >= 0;
+          fromIndex = found ? entryIndex + 1 : -(entryIndex + 1);
+        } else {
+          int fence = findFence(fenceKeys, keyBytes);
+          if (fence != -1) {
+            // a cursor that is already in the block of the key is at an entry that is not greater than the key, since
+            // the keys are in order. It only needs to move forward from there.
+            if (fence != cursorFence) {
+              cursor = new MappedEntryCursor(fence * entriesPerFence, fencePositions[fence]);
+              cursorFence = fence;
+              cursor.next();
+            }
+            int blockEnd = Math.min((fence + 1) * entriesPerFence, mappedEntryCount);
+            int result = cursor.compareKey(keyBytes);
+            while (result < 0 && cursor.nextEntry < blockEnd && cursor.next()) {
+              result = cursor.compareKey(keyBytes);
+            }
+            found = result == 0;
+          }
+        }
+        if (found) {
+          foundKeys.add(key);
+        } else {
+          metrics.bloomFalsePositiveCount.inc(1);
+        }
+      }
+      return foundKeys;
+    } finally {
+      rwLock.readLock().unlock();
+    }
   }
 
-  private StoreKey getKeyAt(ByteBuffer mmap, int index)
-      throws IOException {
-    mmap.position(
-        Version_Field_Length + Key_Size_Field_Length + Value_Size_Field_Length + Log_End_Offset_Field_Length + (index
-            * (keySize + valueSize)));
-    return factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(mmap)));
+  private int getEntryPosition(int index) {
+    return Version_Field_Length + Key_Size_Field_Length + Value_Size_Field_Length + Log_End_Offset_Field_Length + (index
+        * (keySize + valueSize));
   }
 
-  private int findIndex(StoreKey keyToFind, ByteBuffer mmap)
-      throws IOException {
-    // binary search on the mapped file
+  /**
+   * Compares the serialized key at the given index in the mapped file with the given serialized key. The keys are
+   * compared as unsigned bytes in lexicographic order, which is consistent with the ordering of the store keys.
+   * @param mmap The mapped file
+   * @param index The index of the entry whose key needs to be compared
+   * @param keyBytes The serialized key to compare with
+   * @return a negative value, zero or a positive value if the key at the index is less than, equal to or greater than
+   * the given key
+   */
+  private int compareKeyAt(ByteBuffer mmap, int index, byte[] keyBytes) {
+    int position = getEntryPosition(index);
+    int length = Math.min(keySize, keyBytes.length);
+    for (int i = 0; i < length; i++) {
+      int result = (mmap.get(position + i) & 0xff) - (keyBytes[i] & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return keySize - keyBytes.length;
+  }
+
+  /**
+   * Reads every fenceInterval-th key of a version 0 mapped file into memory. A lookup searches these keys first so
+   * that the binary search on the mapped file only touches the entries between two adjacent fence keys.
+   * @param mmap The mapped file
+   */
+  private void readFenceKeys(ByteBuffer mmap) {
+    if (fenceInterval <= 1) {
+      fenceKeys = null;
+      fencePositions = null;
+      return;
+    }
+    int numberOfFences = (mappedEntryCount + fenceInterval - 1) / fenceInterval;
+    byte[] fences = new byte[numberOfFences * keySize];
+    int[] positions = new int[numberOfFences];
+    ByteBuffer duplicate = mmap.duplicate();
+    for (int i = 0; i < numberOfFences; i++) {
+      positions[i] = getEntryPosition(i * fenceInterval);
+      duplicate.position(positions[i]);
+      duplicate.get(fences, i * keySize, keySize);
+    }
+    fenceKeys = fences;
+    fencePositions = positions;
+    entriesPerFence = fenceInterval;
+  }
+
+  /**
+   * Reads the keys at the restart points of a version 1 mapped file into memory. The entries between two restart
+   * points can only be decoded one after the other, so these keys are always needed to find an entry.
+   * @param mmap The mapped file
+   * @param interval The number of entries between two restart points
+   */
+  private void readRestartKeys(ByteBuffer mmap, int interval) {
+    int numberOfRestarts = CompactIndexFormat.getNumberOfRestarts(mappedEntryCount, interval);
+    byte[] fences = new byte[numberOfRestarts * keySize];
+    int[] positions = new int[numberOfRestarts];
+    byte[] key = new byte[Math.max(keySize, 0)];
+    int restartsPosition =
+        mmap.capacity() - Crc_Field_Length - numberOfRestarts * CompactIndexFormat.Restart_Field_Length;
+    for (int i = 0; i < numberOfRestarts; i++) {
+      positions[i] = mmap.getInt(restartsPosition + i * CompactIndexFormat.Restart_Field_Length);
+      CompactIndexFormat.readRestartKey(mmap, positions[i], key);
+      System.arraycopy(key, 0, fences, i * keySize, keySize);
+    }
+    fenceKeys = fences;
+    fencePositions = positions;
+    entriesPerFence = interval;
+  }
+
+  /**
+   * Returns a cursor on the entry with the given key in the mapped file
+   * @param keyBytes The serialized key to find
+   * @return The cursor whose current entry has the key or null if the key is not in the mapped file
+   */
+  private MappedEntryCursor seek(byte[] keyBytes) {
+    if (mappedVersion != CompactIndexFormat.Version) {
+      int entryIndex = findIndex(keyBytes, mmap.duplicate());
+      if (entryIndex == -1) {
+        return null;
+      }
+      MappedEntryCursor cursor = new MappedEntryCursor(entryIndex, getEntryPosition(entryIndex));
+      cursor.next();
+      return cursor;
+    }
+    int fence = findFence(fenceKeys, keyBytes);
+    if (fence == -1) {
+      return null;
+    }
+    // the entries after a restart point are decoded one after the other until the key is found or passed
+    MappedEntryCursor cursor = new MappedEntryCursor(fence * entriesPerFence, fencePositions[fence]);
+    for (int i = 0; i < entriesPerFence && cursor.next(); i++) {
+      int result = cursor.compareKey(keyBytes);
+      if (result == 0) {
+        return cursor;
+      } else if (result > 0) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  private int getFirstEntryPosition() {
+    return mappedVersion == CompactIndexFormat.Version ? getEntryPosition(0)
+        + CompactIndexFormat.Entry_Count_Field_Length + CompactIndexFormat.Restart_Interval_Field_Length
+        : getEntryPosition(0);
+  }
+
+  /**
+   * Finds the last fence key that is less than or equal to the given serialized key
+   * @param fences The serialized fence keys
+   * @param keyBytes The serialized key to find
+   * @return The index of the fence key or -1 if the key is less than all the keys in the segment
+   */
+  private int findFence(byte[] fences, byte[] keyBytes) {
     int low = 0;
-    int high = numberOfEntries(mmap) - 1;
+    int high = fences.length / keySize - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int position = mid * keySize;
+      int result = 0;
+      int length = Math.min(keySize, keyBytes.length);
+      for (int i = 0; i < length && result == 0; i++) {
+        result = (fences[position + i] & 0xff) - (keyBytes[i] & 0xff);
+      }
+      if (result == 0) {
+        result = keySize - keyBytes.length;
+      }
+      if (result == 0) {
+        return mid;
+      } else if (result < 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
+  }
+
+  private int findIndex(byte[] keyBytes, ByteBuffer mmap) {
+    int index = searchIndex(keyBytes, mmap, 0);
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * Searches for a serialized key in the entries of a version 0 mapped file starting from the given entry
+   * @param keyBytes The serialized key to find
+   * @param mmap The mapped file
+   * @param fromIndex The index of the first entry that can hold the key
+   * @return The index of the entry with the key if it is found, otherwise (-(insertion point) - 1). The insertion
+   * point is never less than fromIndex, so it can be passed as fromIndex when searching for a greater key.
+   */
+  private int searchIndex(byte[] keyBytes, ByteBuffer mmap, int fromIndex) {
+    // binary search on the mapped file
+    int low = fromIndex;
+    int high = mappedEntryCount - 1;
+    byte[] fences = fenceKeys;
+    if (fences != null) {
+      // only the entries between the fence key found and the next fence key can hold the key
+      int fence = findFence(fences, keyBytes);
+      if (fence == -1) {
+        return -(low + 1);
+      }
+      low = Math.max(low, fence * entriesPerFence);
+      high = Math.min(fence * entriesPerFence + entriesPerFence - 1, high);
+    }
     logger.trace("IndexSegment {} binary search low : {} high : {}", indexFile.getAbsolutePath(), low, high);
     while (low <= high) {
       int mid = (int) (Math.ceil(high / 2.0 + low / 2.0));
-      StoreKey found = getKeyAt(mmap, mid);
-      logger.trace("IndexSegment {} binary search - key found on iteration {}", indexFile.getAbsolutePath(), found);
-      int result = found.compareTo(keyToFind);
+      int result = compareKeyAt(mmap, mid, keyBytes);
       if (result == 0) {
         return mid;
       } else if (result < 0) {
@@ -332,7 +642,7 @@ class IndexSegment {
         high = mid - 1;
       }
     }
-    return -1;
+    return -(low + 1);
   }
 
   /**
@@ -353,11 +663,12 @@ class IndexSegment {
           + "originalMessageOffset {} fileEndOffset {}", indexFile.getAbsolutePath(), entry.getKey(),
           entry.getValue().getOffset(), entry.getValue().getSize(), entry.getValue().getTimeToLiveInMs(),
           entry.getValue().getOriginalMessageOffset(), fileEndOffset);
-      if (index.put(entry.getKey(), entry.getValue()) == null) {
+      if (index.put(entry.getKey(), entry.getValue())) {
         numberOfItems.incrementAndGet();
         sizeWritten.addAndGet(entry.getKey().sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
         bloomFilter.add(ByteBuffer.wrap(entry.getKey().toBytes()));
       }
+      addUnpersistedEntry(entry);
       endOffset.set(fileEndOffset);
       lastModifiedTimeSec.set(SystemTime.getInstance().milliseconds() / 1000);
       if (keySize == Key_Size_Invalid_Value) {
@@ -399,13 +710,15 @@ class IndexSegment {
             + "originalMessageOffset {} fileEndOffset {}", indexFile.getAbsolutePath(), entry.getKey(),
             entry.getValue().getOffset(), entry.getValue().getSize(), entry.getValue().getTimeToLiveInMs(),
             entry.getValue().getOriginalMessageOffset(), fileEndOffset);
-        if (index.put(entry.getKey(), entry.getValue()) == null) {
+        if (index.put(entry.getKey(), entry.getValue())) {
           numberOfItems.incrementAndGet();
           sizeWritten.addAndGet(entry.getKey().sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
           bloomFilter.add(ByteBuffer.wrap(entry.getKey().toBytes()));
         }
+        addUnpersistedEntry(entry);
       }
       endOffset.set(fileEndOffset);
+      lastModifiedTimeSec.set(SystemTime.getInstance().milliseconds() / 1000);
       if (keySize == Key_Size_Invalid_Value) {
         StoreKey key = entries.get(0).getKey();
         keySize = key.sizeInBytes();
@@ -485,23 +798,29 @@ class IndexSegment {
       try {
         rwLock.readLock().lock();
 
-        // write the current version
-        writer.writeShort(PersistentIndex.version);
+        // write the configured version
+        writer.writeShort(persistedVersion);
         // write key, value size and file end pointer for this index
         writer.writeInt(this.keySize);
         writer.writeInt(this.valueSize);
         writer.writeLong(safeEndPoint);
 
         // write the entries
-        for (Map.Entry<StoreKey, IndexValue> entry : index.entrySet()) {
-          if (entry.getValue().getOffset() + entry.getValue().getSize() <= safeEndPoint) {
-            writer.write(entry.getKey().toBytes());
-            writer.write(entry.getValue().getBytes().array());
-            logger.trace("IndexSegment : {} writing key - {} value - offset {} size {} fileEndOffset {}",
-                getFile().getAbsolutePath(), entry.getKey(), entry.getValue().getOffset(), entry.getValue().getSize(),
-                safeEndPoint);
+        if (persistedVersion == CompactIndexFormat.Version) {
+          List<IndexEntry> entriesToWrite = new ArrayList<IndexEntry>(index.size());
+          Iterator<IndexEntry> iterator = index.entries(null);
+          while (iterator.hasNext()) {
+            IndexEntry entry = iterator.next();
+            if (entry.getValue().getOffset() + entry.getValue().getSize() <= safeEndPoint) {
+              entriesToWrite.add(entry);
+            }
           }
+          CompactIndexFormat.writeEntries(writer, entriesToWrite, startOffset.get(), restartInterval);
+        } else {
+          index.writeTo(writer, safeEndPoint);
         }
+        logger.trace("IndexSegment : {} wrote {} entries up to fileEndOffset {}", getFile().getAbsolutePath(),
+            index.size(), safeEndPoint);
         prevSegmentEndOffset = safeEndPoint;
         long crcValue = crc.getValue();
         writer.writeLong(crcValue);
@@ -510,6 +829,14 @@ class IndexSegment {
         fileStream.getChannel().force(true);
         // swap temp file with the original file
         temp.renameTo(getFile());
+        // the file now has all the entries of the delta file. If this crashes before the delta file is deleted, the
+        // entries of the delta file are skipped on startup since they are not past the end offset of the file.
+        removePersistedEntries(safeEndPoint);
+        deltaEndOffset = safeEndPoint;
+        if (deltaFile.exists() && !deltaFile.delete()) {
+          logger.error("IndexSegment : {} could not delete the delta file {}", indexFile.getAbsolutePath(),
+              deltaFile.getAbsolutePath());
+        }
       } catch (IOException e) {
         throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
             " IO error while persisting index to disk", e, StoreErrorCodes.IOError);
@@ -521,6 +848,169 @@ class IndexSegment {
     }
   }
 
+  /**
+   * Persists the entries that have been added to the segment since it was last persisted, by appending them to the
+   * delta file of the segment. Only the entries whose records end before the safe end point are written. The segment
+   * is written in full instead if delta persistence is disabled or the segment has not been written to its file yet.
+   * Each flush appends a block in the following format
+   *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+   * | entrycount | fileendpointer |   key 1  | value 1  |  ...  |   key n   | value n   | crc      |
+   * | (4 bytes)  |    (8 bytes)   | (n bytes)| (n bytes)|       | (n bytes) | (n bytes) | (8 bytes)|
+   *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+   *  entrycount      - the number of entries in the block
+   *  fileendpointer  - the log end pointer that pertains to the block
+   *  key n / value n - the entries in the order they were added to the segment. A key can appear more than once.
+   *  crc             - the crc of the block
+   *
+   * @param safeEndPoint The offset in the log up to which the log has been flushed
+   * @throws IOException
+   * @throws StoreException
+   */
+  public void writeDeltaToFile(long safeEndPoint)
+      throws IOException, StoreException {
+    if (!deltaPersistenceEnabled || prevSegmentEndOffset <= 0) {
+      writeIndexToFile(safeEndPoint);
+      return;
+    }
+    if (deltaEndOffset == safeEndPoint || prevSegmentEndOffset == safeEndPoint) {
+      return;
+    }
+    if (safeEndPoint > getEndOffset()) {
+      throw new StoreException("SafeEndOffSet " + safeEndPoint + " is greater than current end offset for current " +
+          "index segment " + getEndOffset(), StoreErrorCodes.Illegal_Index_Operation);
+    }
+    List<IndexEntry> entriesToWrite = new ArrayList<IndexEntry>();
+    synchronized (unpersistedEntries) {
+      for (IndexEntry entry : unpersistedEntries) {
+        if (entry.getValue().getOffset() + entry.getValue().getSize() <= safeEndPoint) {
+          entriesToWrite.add(entry);
+        }
+      }
+    }
+    if (entriesToWrite.size() == 0) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(
+        Delta_Entry_Count_Field_Length + Log_End_Offset_Field_Length + entriesToWrite.size() * (keySize + valueSize)
+            + Crc_Field_Length);
+    CrcOutputStream crc = new CrcOutputStream(new ByteBufferOutputStream(buffer));
+    DataOutputStream writer = new DataOutputStream(crc);
+    writer.writeInt(entriesToWrite.size());
+    writer.writeLong(safeEndPoint);
+    for (IndexEntry entry : entriesToWrite) {
+      writer.write(entry.getKey().toBytes());
+      writer.write(entry.getValue().getBytes().array());
+    }
+    writer.writeLong(crc.getValue());
+    buffer.flip();
+    RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw");
+    long lengthBeforeWrite = raf.length();
+    try {
+      FileChannel channel = raf.getChannel();
+      long position = lengthBeforeWrite;
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      channel.force(true);
+    } catch (IOException e) {
+      // a partial block would hide the blocks appended after it, so it is removed
+      raf.getChannel().truncate(lengthBeforeWrite);
+      throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
+          " IO error while appending to the delta file", e, StoreErrorCodes.IOError);
+    } finally {
+      raf.close();
+    }
+    removePersistedEntries(safeEndPoint);
+    deltaEndOffset = safeEndPoint;
+    metrics.indexDeltaBytesWritten.inc(buffer.limit());
+    logger.trace("IndexSegment : {} appended {} entries up to fileEndOffset {} to the delta file",
+        indexFile.getAbsolutePath(), entriesToWrite.size(), safeEndPoint);
+  }
+
+  /**
+   * Reads the blocks of the delta file of the segment into the in memory index. Blocks whose end offset is not past
+   * the end offset of the segment file are already in the file and are skipped. Reading stops at the first block that
+   * is incomplete or fails the crc check, and the delta file is truncated there so that later blocks can be appended.
+   * @param fileEndOffset The log end offset of the segment file
+   * @param journal The journal to add the entries to
+   * @return The offset in the log at which the record of the last entry read ends or Long.MIN_VALUE if none was read
+   * @throws IOException
+   */
+  private long readDeltaFile(long fileEndOffset, Journal journal)
+      throws IOException {
+    long maxEndOffset = Long.MIN_VALUE;
+    if (!deltaFile.exists()) {
+      return maxEndOffset;
+    }
+    RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw");
+    try {
+      ByteBuffer contents = ByteBuffer.allocate((int) raf.length());
+      raf.readFully(contents.array());
+      int entrySize = keySize + valueSize;
+      int blocksRead = 0;
+      while (contents.remaining() >= Delta_Entry_Count_Field_Length + Log_End_Offset_Field_Length) {
+        int blockStart = contents.position();
+        int numberOfEntries = contents.getInt();
+        long blockEndOffset = contents.getLong();
+        if (numberOfEntries <= 0 || entrySize <= 0
+            || contents.remaining() < (long) numberOfEntries * entrySize + Crc_Field_Length) {
+          contents.position(blockStart);
+          break;
+        }
+        int blockLength = Delta_Entry_Count_Field_Length + Log_End_Offset_Field_Length + numberOfEntries * entrySize;
+        Crc32 crc = new Crc32();
+        crc.update(contents.array(), blockStart, blockLength);
+        contents.position(blockStart + blockLength);
+        if (crc.getValue() != contents.getLong()) {
+          contents.position(blockStart);
+          break;
+        }
+        if (blockEndOffset > fileEndOffset) {
+          ByteBuffer entries = ByteBuffer.wrap(contents.array(), blockStart + blockLength - numberOfEntries * entrySize,
+              numberOfEntries * entrySize);
+          byte[] value = new byte[valueSize];
+          for (int i = 0; i < numberOfEntries; i++) {
+            StoreKey key = factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(entries)));
+            entries.get(value);
+            IndexValue blobValue = new IndexValue(ByteBuffer.wrap(Arrays.copyOf(value, value.length)));
+            maxEndOffset = Math.max(maxEndOffset, addEntryFromFile(key, blobValue, blockEndOffset, journal));
+          }
+        }
+        deltaEndOffset = blockEndOffset;
+        blocksRead++;
+      }
+      if (contents.hasRemaining()) {
+        logger.error("IndexSegment : {} ignoring {} bytes at the end of the delta file that are incomplete or corrupt",
+            indexFile.getAbsolutePath(), contents.remaining());
+        raf.getChannel().truncate(contents.position());
+      }
+      logger.info("IndexSegment : {} read {} blocks from the delta file", indexFile.getAbsolutePath(), blocksRead);
+    } finally {
+      raf.close();
+    }
+    return maxEndOffset;
+  }
+
+  private void addUnpersistedEntry(IndexEntry entry) {
+    if (deltaPersistenceEnabled) {
+      synchronized (unpersistedEntries) {
+        unpersistedEntries.add(entry);
+      }
+    }
+  }
+
+  private void removePersistedEntries(long safeEndPoint) {
+    synchronized (unpersistedEntries) {
+      Iterator<IndexEntry> iterator = unpersistedEntries.iterator();
+      while (iterator.hasNext()) {
+        IndexValue value = iterator.next().getValue();
+        if (value.getOffset() + value.getSize() <= safeEndPoint) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
   /**
    * Memory maps the segment of index. Optionally, it also persist the bloom filter to disk
    * @param persistBloom True, if the bloom filter needs to be persisted. False otherwise.
@@ -540,11 +1030,21 @@ class IndexSegment {
           this.keySize = mmap.getInt();
           this.valueSize = mmap.getInt();
           this.endOffset.set(mmap.getLong());
+          this.mappedEntryCount = (mmap.capacity() - Index_Size_Excluding_Entries) / (keySize + valueSize);
+          readFenceKeys(mmap);
+          break;
+        case CompactIndexFormat.Version:
+          this.keySize = mmap.getInt();
+          this.valueSize = mmap.getInt();
+          this.endOffset.set(mmap.getLong());
+          this.mappedEntryCount = mmap.getInt();
+          readRestartKeys(mmap, mmap.getInt());
           break;
         default:
           throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
               " unknown version in index file", StoreErrorCodes.Index_Version_Error);
       }
+      mappedVersion = version;
       mapped.set(true);
       index = null;
     } finally {
@@ -554,12 +1054,30 @@ class IndexSegment {
     // we should be fine reading bloom filter here without synchronization as the index is read only
     // we only persist the bloom filter once during its entire lifetime
     if (persistBloom) {
-      CrcOutputStream crcStream = new CrcOutputStream(new FileOutputStream(bloomFile));
-      DataOutputStream stream = new DataOutputStream(crcStream);
+      writeBloomFilterToFile();
+    }
+  }
+
+  /**
+   * Writes the bloom filter to a temporary file that is then renamed to the bloom file, so that the bloom file is
+   * never left partially written
+   * @throws IOException
+   */
+  private void writeBloomFilterToFile()
+      throws IOException {
+    File temp = new File(bloomFile.getAbsolutePath() + ".tmp");
+    FileOutputStream fileStream = new FileOutputStream(temp);
+    CrcOutputStream crcStream = new CrcOutputStream(fileStream);
+    DataOutputStream stream = new DataOutputStream(crcStream);
+    try {
       FilterFactory.serialize(bloomFilter, stream);
       long crcValue = crcStream.getValue();
       stream.writeLong(crcValue);
+      fileStream.getChannel().force(true);
+    } finally {
+      stream.close();
     }
+    temp.renameTo(bloomFile);
   }
 
   /**
@@ -578,57 +1096,47 @@ class IndexSegment {
       short version = stream.readShort();
       switch (version) {
         case 0:
+        case CompactIndexFormat.Version:
           this.keySize = stream.readInt();
           this.valueSize = stream.readInt();
           long logEndOffset = stream.readLong();
           logger.trace("IndexSegment : {} reading log end offset {} from file", indexFile.getAbsolutePath(),
               logEndOffset);
           long maxEndOffset = Long.MIN_VALUE;
-          while (stream.available() > Crc_Field_Length) {
-            StoreKey key = factory.getStoreKey(stream);
-            byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
-            stream.read(value);
-            IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
-            // ignore entries that have offsets outside the log end offset that this index represents
-            if (blobValue.getOffset() + blobValue.getSize() <= logEndOffset) {
-              index.put(key, blobValue);
-              logger.trace("IndexSegment : {} putting key {} in index offset {} size {}", indexFile.getAbsolutePath(),
-                  key, blobValue.getOffset(), blobValue.getSize());
-              // regenerate the bloom filter for in memory indexes
-              bloomFilter.add(ByteBuffer.wrap(key.toBytes()));
-              // add to the journal
-              if (blobValue.getOffset() != blobValue.getOriginalMessageOffset()
-                  && blobValue.getOriginalMessageOffset() >= startOffset.get()) {
-                // we add an entry for the original message offset if it is within the same index segment
-                journal.addEntry(blobValue.getOriginalMessageOffset(), key);
-              }
-              journal.addEntry(blobValue.getOffset(), key);
-              sizeWritten.addAndGet(key.sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
-              numberOfItems.incrementAndGet();
-              if (blobValue.getOffset() + blobValue.getSize() > maxEndOffset) {
-                maxEndOffset = blobValue.getOffset() + blobValue.getSize();
-              }
-            } else {
-              logger.info(
-                  "IndexSegment : {} ignoring index entry outside the log end offset that was not synced logEndOffset {} "
-                      + "key {} entryOffset {} entrySize {} entryDeleteState {}", indexFile.getAbsolutePath(),
-                  logEndOffset, key, blobValue.getOffset(), blobValue.getSize(),
-                  blobValue.isFlagSet(IndexValue.Flags.Delete_Index));
+          if (version == CompactIndexFormat.Version) {
+            int numberOfEntries = stream.readInt();
+            // the restart interval is only needed to search the mapped file
+            stream.readInt();
+            // the entries are decoded from a buffer at the same positions that they have in the file
+            int firstEntryPosition = getEntryPosition(0) + CompactIndexFormat.Entry_Count_Field_Length
+                + CompactIndexFormat.Restart_Interval_Field_Length;
+            ByteBuffer contents = ByteBuffer.allocate(firstEntryPosition + stream.available() - Crc_Field_Length);
+            stream.readFully(contents.array(), firstEntryPosition, contents.capacity() - firstEntryPosition);
+            // the crc is verified before decoding, since the decoding of a corrupt file can fail in any way
+            verifyCrc(crcStream, stream);
+            contents.position(firstEntryPosition);
+            byte[] keyBytes = new byte[Math.max(keySize, 0)];
+            for (int i = 0; i < numberOfEntries; i++) {
+              IndexValue blobValue = CompactIndexFormat.readEntry(contents, keyBytes, startOffset.get());
+              StoreKey key =
+                  factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(ByteBuffer.wrap(keyBytes))));
+              maxEndOffset = Math.max(maxEndOffset, addEntryFromFile(key, blobValue, logEndOffset, journal));
+            }
+          } else {
+            while (stream.available() > Crc_Field_Length) {
+              StoreKey key = factory.getStoreKey(stream);
+              byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
+              stream.read(value);
+              IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
+              maxEndOffset = Math.max(maxEndOffset, addEntryFromFile(key, blobValue, logEndOffset, journal));
             }
+            verifyCrc(crcStream, stream);
           }
+          prevSegmentEndOffset = logEndOffset;
+          deltaEndOffset = logEndOffset;
+          maxEndOffset = Math.max(maxEndOffset, readDeltaFile(logEndOffset, journal));
           this.endOffset.set(maxEndOffset);
           logger.trace("IndexSegment : {} setting end offset for index {}", indexFile.getAbsolutePath(), maxEndOffset);
-          long crc = crcStream.getValue();
-          if (crc != stream.readLong()) {
-            // reset structures
-            this.keySize = Key_Size_Invalid_Value;
-            this.valueSize = Value_Size_Invalid_Value;
-            this.endOffset.set(0);
-            index.clear();
-            bloomFilter.clear();
-            throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " crc check does not match",
-                StoreErrorCodes.Index_Creation_Failure);
-          }
           break;
         default:
           throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
@@ -642,6 +1150,65 @@ class IndexSegment {
     }
   }
 
+  /**
+   * Adds an entry read from the index file to the in memory index, the bloom filter and the journal
+   * @param key The key of the entry
+   * @param blobValue The value of the entry
+   * @param logEndOffset The log end offset that the index file represents
+   * @param journal The journal to add the entry to
+   * @return The offset in the log at which the record of the entry ends or Long.MIN_VALUE if the entry was ignored
+   */
+  private long addEntryFromFile(StoreKey key, IndexValue blobValue, long logEndOffset, Journal journal) {
+    // ignore entries that have offsets outside the log end offset that this index represents
+    if (blobValue.getOffset() + blobValue.getSize() <= logEndOffset) {
+      // a key is only added again by the delta file, which holds the entries in the order they were added
+      boolean newKey = index.put(key, blobValue);
+      logger.trace("IndexSegment : {} putting key {} in index offset {} size {}", indexFile.getAbsolutePath(),
+          key, blobValue.getOffset(), blobValue.getSize());
+      // regenerate the bloom filter for in memory indexes
+      bloomFilter.add(ByteBuffer.wrap(key.toBytes()));
+      // add to the journal
+      if (newKey && blobValue.getOffset() != blobValue.getOriginalMessageOffset()
+          && blobValue.getOriginalMessageOffset() >= startOffset.get()) {
+        // we add an entry for the original message offset if it is within the same index segment
+        journal.addEntry(blobValue.getOriginalMessageOffset(), key);
+      }
+      journal.addEntry(blobValue.getOffset(), key);
+      if (newKey) {
+        sizeWritten.addAndGet(key.sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
+        numberOfItems.incrementAndGet();
+      }
+      return blobValue.getOffset() + blobValue.getSize();
+    }
+    logger.info(
+        "IndexSegment : {} ignoring index entry outside the log end offset that was not synced logEndOffset {} "
+            + "key {} entryOffset {} entrySize {} entryDeleteState {}", indexFile.getAbsolutePath(),
+        logEndOffset, key, blobValue.getOffset(), blobValue.getSize(),
+        blobValue.isFlagSet(IndexValue.Flags.Delete_Index));
+    return Long.MIN_VALUE;
+  }
+
+  /**
+   * Compares the crc of the bytes read so far with the crc that follows them in the file. The structures are reset
+   * if the crc does not match.
+   * @throws StoreException
+   * @throws IOException
+   */
+  private void verifyCrc(CrcInputStream crcStream, DataInputStream stream)
+      throws StoreException, IOException {
+    long crc = crcStream.getValue();
+    if (crc != stream.readLong()) {
+      // reset structures
+      this.keySize = Key_Size_Invalid_Value;
+      this.valueSize = Value_Size_Invalid_Value;
+      this.endOffset.set(0);
+      index.clear();
+      bloomFilter.clear();
+      throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " crc check does not match",
+          StoreErrorCodes.Index_Creation_Failure);
+    }
+  }
+
   /**
    * Gets all the entries upto maxEntries from the start of a given key (exclusive) or all entries if key is null,
    * till maxTotalSizeOfEntriesInBytes
@@ -658,39 +1225,27 @@ class IndexSegment {
       throws IOException {
     int entriesSizeAtStart = entries.size();
     if (mapped.get()) {
-      int index = 0;
-      if (key != null) {
-        index = findIndex(key, mmap.duplicate());
-      }
-      if (index != -1) {
-        ByteBuffer readBuf = mmap.duplicate();
-        int totalEntries = numberOfEntries(readBuf);
+      // the cursor is on the initial key if there is one, so that only the entries after it are included
+      MappedEntryCursor cursor =
+          key == null ? new MappedEntryCursor(0, getFirstEntryPosition()) : seek(key.toBytes());
+      if (cursor != null) {
         while (findEntriesCondition.proceed(currentTotalSizeOfEntriesInBytes.get(), this.getLastModifiedTime())
-            && index < totalEntries) {
-          StoreKey newKey = getKeyAt(readBuf, index);
-          byte[] buf = new byte[valueSize];
-          readBuf.get(buf);
-          // we include the key in the final list if it is not the initial key or if the initial key was null
-          if (key == null || newKey.compareTo(key) != 0) {
-            IndexValue newValue = new IndexValue(ByteBuffer.wrap(buf));
-            MessageInfo info =
-                new MessageInfo(newKey, newValue.getSize(), newValue.isFlagSet(IndexValue.Flags.Delete_Index),
-                    newValue.getTimeToLiveInMs());
-            entries.add(info);
-            currentTotalSizeOfEntriesInBytes.addAndGet(newValue.getSize());
-          }
-          index++;
+            && cursor.next()) {
+          IndexValue newValue = cursor.getValue();
+          MessageInfo info =
+              new MessageInfo(cursor.getKey(), newValue.getSize(), newValue.isFlagSet(IndexValue.Flags.Delete_Index),
+                  newValue.getTimeToLiveInMs());
+          entries.add(info);
+          currentTotalSizeOfEntriesInBytes.addAndGet(newValue.getSize());
         }
       } else {
         logger.error("IndexSegment : " + indexFile.getAbsolutePath() +
             " index not found for key " + key);
       }
     } else {
-      ConcurrentNavigableMap<StoreKey, IndexValue> tempMap = index;
-      if (key != null) {
-        tempMap = index.tailMap(key, true);
-      }
-      for (Map.Entry<StoreKey, IndexValue> entry : tempMap.entrySet()) {
+      Iterator<IndexEntry> iterator = index.entries(key);
+      while (iterator.hasNext()) {
+        IndexEntry entry = iterator.next();
         if (key == null || entry.getKey().compareTo(key) != 0) {
           MessageInfo info = new MessageInfo(entry.getKey(), entry.getValue().getSize(),
               entry.getValue().isFlagSet(IndexValue.Flags.Delete_Index), entry.getValue().getTimeToLiveInMs());
@@ -704,5 +1259,164 @@ class IndexSegment {
     }
     return entries.size() > entriesSizeAtStart;
   }
-}
 
+  /**
+   * Gets all the entries in this segment along with their index values
+   * @param entries The input entries list that needs to be filled. The entries list can have existing entries
+   * @throws IOException
+   */
+  public void getIndexEntries(List<IndexEntry> entries)
+      throws IOException {
+    try {
+      rwLock.readLock().lock();
+      if (mapped.get()) {
+        MappedEntryCursor cursor = new MappedEntryCursor(0, getFirstEntryPosition());
+        while (cursor.next()) {
+          entries.add(new IndexEntry(cursor.getKey(), cursor.getValue()));
+        }
+      } else {
+        Iterator<IndexEntry> iterator = index.entries(null);
+        while (iterator.hasNext()) {
+          entries.add(iterator.next());
+        }
+      }
+    } finally {
+      rwLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Creates a mapped segment that holds the latest value of every key in the given adjacent mapped segments. The
+   * merged segment has the start offset of the first segment and the token offset of the last one, and its bloom filter
+   * is sized for the number of keys it holds. The bloom filter is written over the bloom file of the first segment
+   * before the merged index file is written, so that if the store goes down in between, the first segment is loaded
+   * with a bloom filter that has all of its keys.
+   * @param segments The segments to merge, in the order of their start offsets
+   * @param dataDir The data directory of the segments
+   * @param factory The store key factory used to create new store keys
+   * @param config The store config used to initialize the index segment
+   * @param metrics The store metrics used to track metrics
+   * @return The merged segment
+   * @throws IOException
+   * @throws StoreException
+   */
+  static IndexSegment createMergedSegment(List<IndexSegment> segments, String dataDir, StoreKeyFactory factory,
+      StoreConfig config, StoreMetrics metrics)
+      throws IOException, StoreException {
+    IndexSegment first = segments.get(0);
+    IndexSegment last = segments.get(segments.size() - 1);
+    IndexSegment merged =
+        new IndexSegment(dataDir, first.getStartOffset(), last.getTokenOffset(), factory, first.getKeySize(),
+            first.getValueSize(), config, metrics);
+    // the merged segment can hold more keys than an active segment, so it is always kept on the heap until it is mapped
+    merged.index = new SkipListSegmentIndex();
+    long lastModifiedTimeSec = 0;
+    for (IndexSegment segment : segments) {
+      if (!segment.isMapped()) {
+        throw new StoreException("IndexSegment : " + segment.getFile().getAbsolutePath() + " cannot be merged since "
+            + "it is not mapped", StoreErrorCodes.Illegal_Index_Operation);
+      }
+      List<IndexEntry> entries = new ArrayList<IndexEntry>();
+      segment.getIndexEntries(entries);
+      // a key that is in more than one segment has its latest value in the later segment
+      for (IndexEntry entry : entries) {
+        merged.index.put(entry.getKey(), entry.getValue());
+      }
+      lastModifiedTimeSec = Math.max(lastModifiedTimeSec, segment.getLastModifiedTime());
+    }
+    merged.bloomFilter = createBloomFilter(config, Math.max(merged.index.size(), 1));
+    Iterator<IndexEntry> iterator = merged.index.entries(null);
+    while (iterator.hasNext()) {
+      merged.bloomFilter.add(ByteBuffer.wrap(iterator.next().getKey().toBytes()));
+    }
+    merged.numberOfItems.set(merged.index.size());
+    merged.endOffset.set(last.getEndOffset());
+    merged.writeBloomFilterToFile();
+    merged.writeIndexToFile(merged.getEndOffset());
+    merged.map(false);
+    // the time of the latest entry is kept across restarts, since the hard delete thread depends on it
+    merged.lastModifiedTimeSec.set(lastModifiedTimeSec);
+    merged.indexFile.setLastModified(lastModifiedTimeSec * 1000);
+    return merged;
+  }
+
+  /**
+   * Deletes the files of a segment that has been merged into another segment
+   * @param deleteBloomFile True, if the bloom file needs to be deleted as well. The bloom file of the first merged
+   *                        segment is the bloom file of the merged segment.
+   */
+  void deleteFiles(boolean deleteBloomFile) {
+    if (!indexFile.delete()) {
+      logger.error("IndexSegment : {} could not delete the index file", indexFile.getAbsolutePath());
+    }
+    if (deleteBloomFile && !bloomFile.delete()) {
+      logger.error("IndexSegment : {} could not delete the bloom file {}", indexFile.getAbsolutePath(),
+          bloomFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Reads the entries of the mapped file one after the other in key order
+   */
+  private class MappedEntryCursor {
+    private final ByteBuffer buffer;
+    private final byte[] key = new byte[Math.max(keySize, 0)];
+    private int nextEntry;
+    private IndexValue value = null;
+
+    /**
+     * @param entry The number of the first entry to read
+     * @param position The position of the first entry to read in the mapped file. For a version 1 file, this needs to
+     *                 be a restart point.
+     */
+    MappedEntryCursor(int entry, int position) {
+      this.buffer = mmap.duplicate();
+      this.buffer.position(position);
+      this.nextEntry = entry;
+    }
+
+    /**
+     * Moves the cursor to the next entry
+     * @return true if the cursor moved, false if there are no more entries
+     */
+    boolean next() {
+      if (nextEntry >= mappedEntryCount) {
+        return false;
+      }
+      if (mappedVersion == CompactIndexFormat.Version) {
+        value = CompactIndexFormat.readEntry(buffer, key, startOffset.get());
+      } else {
+        buffer.position(getEntryPosition(nextEntry));
+        buffer.get(key);
+        byte[] buf = new byte[valueSize];
+        buffer.get(buf);
+        value = new IndexValue(ByteBuffer.wrap(buf));
+      }
+      nextEntry++;
+      return true;
+    }
+
+    /**
+     * Compares the key of the current entry with the given serialized key as unsigned bytes in lexicographic order
+     */
+    int compareKey(byte[] keyBytes) {
+      int length = Math.min(key.length, keyBytes.length);
+      for (int i = 0; i < length; i++) {
+        int result = (key[i] & 0xff) - (keyBytes[i] & 0xff);
+        if (result != 0) {
+          return result;
+        }
+      }
+      return key.length - keyBytes.length;
+    }
+
+    StoreKey getKey()
+        throws IOException {
+      return factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(ByteBuffer.wrap(key))));
+    }
+
+    IndexValue getValue() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.store.StoreException;
+
+
+/**
+ * Periodically merges adjacent sealed segments of an index, so that the number of segments that a lookup goes through
+ * does not grow with the age of the store. In every run, the two adjacent mapped segments with the smallest files are
+ * merged, as long as their files together are not larger than the configured max size, until there are no such
+ * segments left. The segment that is being written to and the one before it until it is mapped are never merged.
+ */
+class IndexSegmentMerger implements Runnable {
+  private final String dataDir;
+  private final PersistentIndex index;
+  private final StoreMetrics metrics;
+  private final long maxSegmentSizeBytes;
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private final Object mergeLock = new Object();
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param dataDir The directory of the store
+   * @param index The index of the store
+   * @param metrics The store metrics used to track metrics
+   * @param maxSegmentSizeBytes The max size of the files of two adjacent segments for them to be merged
+   */
+  IndexSegmentMerger(String dataDir, PersistentIndex index, StoreMetrics metrics, long maxSegmentSizeBytes) {
+    this.dataDir = dataDir;
+    this.index = index;
+    this.metrics = metrics;
+    this.maxSegmentSizeBytes = maxSegmentSizeBytes;
+  }
+
+  @Override
+  public void run() {
+    synchronized (mergeLock) {
+      try {
+        List<IndexSegment> segmentsToMerge = getSegmentsToMerge();
+        boolean merged = false;
+        while (running.get() && segmentsToMerge != null) {
+          index.mergeSegments(segmentsToMerge);
+          merged = true;
+          segmentsToMerge = getSegmentsToMerge();
+        }
+        // the locator has slots for the values that were dropped by the merges
+        if (merged && running.get()) {
+          index.rebuildSegmentLocator();
+        }
+      } catch (StoreException e) {
+        metrics.indexSegmentMergeErrorCount.inc(1);
+        logger.error("Store : " + dataDir + " error while merging index segments ", e);
+      }
+    }
+  }
+
+  /**
+   * @return The two adjacent mapped segments with the smallest files that are to be merged, or null if there are none
+   */
+  private List<IndexSegment> getSegmentsToMerge() {
+    List<IndexSegment> segments = index.getIndexSegments();
+    int firstSegmentToMerge = -1;
+    long minSizeInBytes = Long.MAX_VALUE;
+    // the last segment is being written to, so only the segments before it are considered
+    for (int i = 0; i + 2 < segments.size(); i++) {
+      IndexSegment segment = segments.get(i);
+      IndexSegment nextSegment = segments.get(i + 1);
+      if (!segment.isMapped() || !nextSegment.isMapped()) {
+        continue;
+      }
+      long sizeInBytes = segment.getFile().length() + nextSegment.getFile().length();
+      if (sizeInBytes <= maxSegmentSizeBytes && sizeInBytes < minSizeInBytes) {
+        firstSegmentToMerge = i;
+        minSizeInBytes = sizeInBytes;
+      }
+    }
+    return firstSegmentToMerge == -1 ? null
+        : Arrays.asList(segments.get(firstSegmentToMerge), segments.get(firstSegmentToMerge + 1));
+  }
+
+  /**
+   * Stops the merges. Waits for the merge that is in progress, if any, to complete.
+   */
+  void shutdown() {
+    running.set(false);
+    synchronized (mergeLock) {
+      logger.info("Store : {} index segment merger shut down", dataDir);
+    }
+  }
+}
@@ -14,11 +14,18 @@
 package com.bloom.zerofs.store;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -26,7 +33,6 @@ import org.slf4j.LoggerFactory;
 
 import com.bloom.zerofs.api.store.Read;
 import com.bloom.zerofs.api.store.Write;
-import com.bloom.zerofs.tools.Utils;
 
 
 /**
@@ -34,71 +40,177 @@ import com.bloom.zerofs.tools.Utils;
  * For pre-allocated files, this tracks the end of valid file to ensure appends happen correctly.
  * It provides ability to read from arbitrary offset into the file. It can also provide a static view
  * of the log for a given set of offset,size pairs.
+ * The log is either a single preallocated file or a sequence of preallocated segment files that together hold a
+ * contiguous range of logical offsets. Segments whose data is no longer needed can be removed from the log to
+ * reclaim their space.
  */
 public class Log implements Read, Write {
 
+  public static final String Log_Segment_File_Name_Suffix = "log";
+  private static final String Log_File_Name = "log_current";
+
   private AtomicLong currentWriteOffset;
-  private final FileChannel fileChannel;
-  private final File file;
+  private final String dataDir;
   private final long capacityInBytes;
-  private static final String Log_File_Name = "log_current";
+  private final long segmentSizeInBytes;
+  private final boolean segmented;
+  private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+  private final Set<LogSegment> segmentsToFlush =
+      Collections.newSetFromMap(new ConcurrentHashMap<LogSegment, Boolean>());
+  private volatile LogSegment activeSegment;
+  // the offset up to which the log has been reserved for concurrent appends. This is ahead of the log end offset
+  // while reserved ranges are being written. Like the appends, it is guarded by the store write lock.
+  private volatile long reservedEndOffset = 0;
+  private int exclusiveAppendsWaiting = 0;
   private Logger logger = LoggerFactory.getLogger(getClass());
   private final StoreMetrics metrics;
 
   public Log(String dataDir, long capacityInBytes, StoreMetrics metrics)
       throws IOException {
-    file = new File(dataDir, Log_File_Name);
-    if (!file.exists()) {
-      // if the file does not exist, preallocate it
-      Utils.preAllocateFileIfNeeded(file, capacityInBytes);
-    }
+    this(dataDir, capacityInBytes, capacityInBytes, metrics);
+  }
+
+  /**
+   * Creates a log that is split into segments of the given size. If the segment size is not smaller than the capacity
+   * or if the directory already has a log that is not segmented, the log is backed by a single file.
+   * @param dataDir The directory in which the log files reside
+   * @param capacityInBytes The total capacity of the log on disk
+   * @param segmentSizeInBytes The size of each log segment file
+   * @param metrics The store metrics
+   * @throws IOException
+   */
+  public Log(String dataDir, long capacityInBytes, long segmentSizeInBytes, StoreMetrics metrics)
+      throws IOException {
+    this.dataDir = dataDir;
     this.capacityInBytes = capacityInBytes;
-    fileChannel = Utils.openChannel(file, true);
-    logger.trace("Log : {} file size on start {} ", dataDir, fileChannel.size());
+    this.metrics = metrics;
+    File singleFile = new File(dataDir, Log_File_Name);
+    File[] segmentFiles = new File(dataDir).listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith("_" + Log_Segment_File_Name_Suffix);
+      }
+    });
+    if (segmentSizeInBytes >= capacityInBytes || singleFile.exists() || segmentFiles == null) {
+      if (segmentSizeInBytes < capacityInBytes) {
+        logger.warn("Log : {} contains a log that is not segmented. Continuing without segmentation", dataDir);
+      }
+      this.segmented = false;
+      this.segmentSizeInBytes = capacityInBytes;
+      LogSegment segment = new LogSegment(singleFile, 0, capacityInBytes);
+      segments.put(0L, segment);
+    } else {
+      this.segmented = true;
+      this.segmentSizeInBytes = segmentSizeInBytes;
+      // File name pattern for a segment is startoffset_log, or startoffset_endoffset_log once sealed
+      for (File segmentFile : segmentFiles) {
+        String[] parts = segmentFile.getName().split("_");
+        long startOffset = Long.parseLong(parts[0]);
+        long sealedEndOffset = parts.length == 3 ? Long.parseLong(parts[1]) : -1;
+        segments.put(startOffset, new LogSegment(segmentFile, startOffset, segmentSizeInBytes, sealedEndOffset));
+      }
+      if (segments.size() == 0) {
+        segments.put(0L, new LogSegment(getSegmentFile(0), 0, segmentSizeInBytes));
+      }
+    }
+    activeSegment = segments.lastEntry().getValue();
+    logger.trace("Log : {} size on start {} number of segments {}", dataDir, sizeInBytes(), segments.size());
     // A log's write offset will always be set to the start of the log.
     // External components is responsible for setting it the right value
     currentWriteOffset = new AtomicLong(0);
-    this.metrics = metrics;
   }
 
   StoreMessageReadSet getView(List<BlobReadOptions> readOptions)
       throws IOException {
-    return new StoreMessageReadSet(file, fileChannel, readOptions, currentWriteOffset.get());
+    return new StoreMessageReadSet(this, readOptions, currentWriteOffset.get());
   }
 
+  /**
+   * @return The logical offset up to which the log can currently be read
+   */
   public long sizeInBytes()
       throws IOException {
-    return fileChannel.size();
+    LogSegment lastSegment = segments.lastEntry().getValue();
+    if (!segmented) {
+      return lastSegment.getFileChannel().size();
+    }
+    return lastSegment.getEndOffset();
   }
 
   public void setLogEndOffset(long endOffset)
       throws IOException {
-    long fileSize = fileChannel.size();
-    if (endOffset < 0 || endOffset > fileSize) {
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " endOffset " + endOffset +
-          " outside the file size " + fileSize);
+    long logSize = sizeInBytes();
+    if (endOffset < 0 || endOffset > logSize) {
+      throw new IllegalArgumentException("Log : " + dataDir + " endOffset " + endOffset +
+          " outside the log size " + logSize);
     }
-    fileChannel.position(endOffset);
-    logger.trace("Log : {} setting log end offset {}", file.getAbsolutePath(), endOffset);
+    LogSegment segment = segments.floorEntry(endOffset).getValue();
+    activeSegment = segment;
+    // segments beyond the end offset do not contain any data that is part of the log.
+    for (LogSegment segmentToRemove : segments.tailMap(endOffset, false).values()) {
+      logger.info("Log : {} removing segment {} that is beyond the log end offset {}", dataDir,
+          segmentToRemove.getFile().getAbsolutePath(), endOffset);
+      deleteSegment(segmentToRemove.getStartOffset());
+    }
+    logger.trace("Log : {} setting log end offset {}", dataDir, endOffset);
     this.currentWriteOffset.set(endOffset);
+    reservedEndOffset = endOffset;
   }
 
   public long getLogEndOffset() {
     return currentWriteOffset.get();
   }
 
+  /**
+   * @return The total number of bytes of disk that the log segments currently occupy.
+   */
+  public long getSizeOnDiskInBytes() {
+    return segmented ? segments.size() * segmentSizeInBytes : capacityInBytes;
+  }
+
+  public boolean isSegmented() {
+    return segmented;
+  }
+
+  public long getSegmentSizeInBytes() {
+    return segmentSizeInBytes;
+  }
+
   @Override
   public int appendFrom(ByteBuffer buffer)
       throws IOException {
-    if (currentWriteOffset.get() + buffer.remaining() > capacityInBytes) {
-      metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException(
-          "Log : " + file.getAbsolutePath() + " error trying to append to log from buffer since new data size " +
-              buffer.remaining() + " exceeds total log size " + capacityInBytes);
+    checkNoReservedRanges();
+    LogSegment segment = getSegmentForAppend(currentWriteOffset.get(), buffer.remaining());
+    int bytesWritten =
+        segment.getFileChannel().write(buffer, segment.toFilePosition(currentWriteOffset.get()));
+    reservedEndOffset = currentWriteOffset.addAndGet(bytesWritten);
+    logger.trace("Log: {} bytes appended to the log from bytebuffer byteswritten : {}", dataDir, bytesWritten);
+    return bytesWritten;
+  }
+
+  /**
+   * Appends all the given buffers to the log with a single gathering write. The caller is expected to ensure that
+   * no other append happens concurrently.
+   * @param buffers The buffers whose remaining bytes need to be appended to the log in order
+   * @return The number of bytes appended to the log
+   * @throws IOException
+   */
+  public long appendFrom(ByteBuffer[] buffers)
+      throws IOException {
+    long sizeToAppend = 0;
+    for (ByteBuffer buffer : buffers) {
+      sizeToAppend += buffer.remaining();
     }
-    int bytesWritten = fileChannel.write(buffer, currentWriteOffset.get());
-    currentWriteOffset.addAndGet(bytesWritten);
-    logger.trace("Log: {} bytes appended to the log from bytebuffer byteswritten : {}", file.getAbsolutePath(),
+    checkNoReservedRanges();
+    LogSegment segment = getSegmentForAppend(currentWriteOffset.get(), sizeToAppend);
+    FileChannel fileChannel = segment.getFileChannel();
+    fileChannel.position(segment.toFilePosition(currentWriteOffset.get()));
+    long bytesWritten = 0;
+    while (bytesWritten < sizeToAppend) {
+      bytesWritten += fileChannel.write(buffers);
+    }
+    reservedEndOffset = currentWriteOffset.addAndGet(bytesWritten);
+    logger.trace("Log : {} bytes appended to the log from {} buffers bytesWritten : {}", dataDir, buffers.length,
         bytesWritten);
     return bytesWritten;
   }
@@ -106,38 +218,300 @@ public class Log implements Read, Write {
   @Override
   public void appendFrom(ReadableByteChannel channel, long size)
       throws IOException {
-    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {}", file.getAbsolutePath(),
-        currentWriteOffset, capacityInBytes, size);
-    if (currentWriteOffset.get() + size > capacityInBytes) {
-      metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to append to log " +
-          "from channel since new data size " + size + "exceeds total log size " + capacityInBytes);
-    }
+    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {}", dataDir, currentWriteOffset,
+        capacityInBytes, size);
+    checkNoReservedRanges();
+    LogSegment segment = getSegmentForAppend(currentWriteOffset.get(), size);
     long bytesWritten = 0;
+    long position = segment.toFilePosition(currentWriteOffset.get());
     while (bytesWritten < size) {
-      bytesWritten += fileChannel.transferFrom(channel, currentWriteOffset.get() + bytesWritten, size - bytesWritten);
+      bytesWritten += segment.getFileChannel().transferFrom(channel, position + bytesWritten, size - bytesWritten);
     }
-    currentWriteOffset.addAndGet(bytesWritten);
-    logger.trace("Log : {} bytes appended to the log from read channel bytesWritten: {}", file.getAbsolutePath(),
-        bytesWritten);
+    reservedEndOffset = currentWriteOffset.addAndGet(bytesWritten);
+    logger.trace("Log : {} bytes appended to the log from read channel bytesWritten: {}", dataDir, bytesWritten);
   }
 
   @Override
   public void writeFrom(ReadableByteChannel channel, long offset, long size)
       throws IOException {
-    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {} offset to append at {}",
-        file.getAbsolutePath(), currentWriteOffset, capacityInBytes, size, offset);
+    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {} offset to append at {}", dataDir,
+        currentWriteOffset, capacityInBytes, size, offset);
     if (offset < 0 || offset + size > currentWriteOffset.get()) {
       metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to write to log " +
+      throw new IllegalArgumentException("Log : " + dataDir + " error trying to write to log " +
           "from channel since new data size " + size + "exceeds log end offset " + currentWriteOffset.get());
     }
+    LogSegment segment = getSegment(offset, size);
     long bytesWritten = 0;
+    long position = segment.toFilePosition(offset);
     while (bytesWritten < size) {
-      bytesWritten += fileChannel.transferFrom(channel, offset + bytesWritten, size - bytesWritten);
+      bytesWritten += segment.getFileChannel().transferFrom(channel, position + bytesWritten, size - bytesWritten);
+    }
+    if (segment != activeSegment) {
+      segmentsToFlush.add(segment);
+    }
+    logger.trace("Log : {} bytes written to the log from read channel at {}, bytesWritten: {}", dataDir, offset,
+        bytesWritten);
+  }
+
+  /**
+   * Reserves a range of the log right after the ranges reserved so far, so that it can be written to concurrently with
+   * other reserved ranges. The range is written to with {@link #writeReserved(ByteBuffer, long)} and
+   * {@link #writeReserved(ReadableByteChannel, long, long)} and becomes part of the log when it is published. Like
+   * the appends, this must be called with the store write lock held.
+   * @param size The size of the range to reserve
+   * @return The logical offset at which the reserved range starts
+   * @throws IOException
+   */
+  long reserve(long size)
+      throws IOException {
+    if (!canReserve(size)) {
+      throw new IllegalStateException("Log : " + dataDir + " cannot roll over to a new segment while the range from "
+          + currentWriteOffset.get() + " to " + reservedEndOffset + " is reserved");
+    }
+    long startOffset = reservedEndOffset;
+    getSegmentForAppend(startOffset, size);
+    reservedEndOffset = startOffset + size;
+    logger.trace("Log : {} reserved {} bytes at offset {}", dataDir, size, startOffset);
+    return startOffset;
+  }
+
+  /**
+   * A range can be reserved if it fits in the active segment, or if no other range is reserved. The log only rolls
+   * over to a new segment at the log end offset, so that releasing the reserved ranges never needs to undo a roll over.
+   * Must be called with the store write lock held.
+   * @param size The size of the range to reserve
+   * @return true if the range can be reserved now, false if the reserved ranges need to be published first
+   */
+  boolean canReserve(long size) {
+    return reservedEndOffset + size <= activeSegment.getEndOffset() || reservedEndOffset == currentWriteOffset.get();
+  }
+
+  /**
+   * @return The offset at which the next range will be reserved. Must be called with the store write lock held.
+   */
+  long getReservedEndOffset() {
+    return reservedEndOffset;
+  }
+
+  /**
+   * Writes the buffer to a reserved range of the log. The store write lock does not need to be held.
+   * @param buffer The buffer whose remaining bytes need to be written
+   * @param offset The logical offset to write at
+   * @return The number of bytes written
+   * @throws IOException
+   */
+  int writeReserved(ByteBuffer buffer, long offset)
+      throws IOException {
+    int size = buffer.remaining();
+    LogSegment segment = getReservedSegment(offset, size);
+    long position = segment.toFilePosition(offset);
+    int bytesWritten = 0;
+    while (bytesWritten < size) {
+      bytesWritten += segment.getFileChannel().write(buffer, position + bytesWritten);
+    }
+    onReservedWrite(segment);
+    return bytesWritten;
+  }
+
+  /**
+   * Writes from the channel to a reserved range of the log. The store write lock does not need to be held.
+   * @param channel The channel to read from
+   * @param offset The logical offset to write at
+   * @param size The number of bytes to write
+   * @throws IOException
+   */
+  void writeReserved(ReadableByteChannel channel, long offset, long size)
+      throws IOException {
+    LogSegment segment = getReservedSegment(offset, size);
+    long position = segment.toFilePosition(offset);
+    long bytesWritten = 0;
+    while (bytesWritten < size) {
+      bytesWritten += segment.getFileChannel().transferFrom(channel, position + bytesWritten, size - bytesWritten);
+    }
+    onReservedWrite(segment);
+  }
+
+  /**
+   * Makes the reserved ranges up to the given offset part of the log. The ranges need to be published in the order
+   * they were reserved, with the store write lock held.
+   * @param endOffset The offset at which the published range ends
+   */
+  void publishReserved(long endOffset) {
+    if (endOffset < currentWriteOffset.get() || endOffset > reservedEndOffset) {
+      throw new IllegalArgumentException("Log : " + dataDir + " cannot publish up to " + endOffset + " log end offset "
+          + currentWriteOffset.get() + " reserved end offset " + reservedEndOffset);
     }
-    logger.trace("Log : {} bytes written to the log from read channel at {}, bytesWritten: {}", file.getAbsolutePath(),
-        offset, bytesWritten);
+    currentWriteOffset.set(endOffset);
+  }
+
+  /**
+   * Releases the reserved ranges that have not been published, so that the next range is reserved at the log end
+   * offset again. Must be called with the store write lock held once no unpublished range is being written.
+   */
+  void releaseReserved() {
+    logger.info("Log : {} releasing the reserved range from {} to {}", dataDir, currentWriteOffset.get(),
+        reservedEndOffset);
+    reservedEndOffset = currentWriteOffset.get();
+  }
+
+  /**
+   * Waits until all the reserved ranges have been published, so that the log can be appended to directly. Reserving
+   * ranges is held off while this waits, which needs to be checked with {@link #isExclusiveAppendWaiting()} by the
+   * callers of {@link #reserve(long)}.
+   * @param lock The store write lock, which needs to be held by the caller
+   * @throws InterruptedException
+   */
+  void awaitReservedRanges(Object lock)
+      throws InterruptedException {
+    exclusiveAppendsWaiting++;
+    try {
+      while (reservedEndOffset != currentWriteOffset.get()) {
+        lock.wait();
+      }
+    } finally {
+      exclusiveAppendsWaiting--;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return true if a caller is waiting to append to the log directly. Must be called with the store write lock held.
+   */
+  boolean isExclusiveAppendWaiting() {
+    return exclusiveAppendsWaiting > 0;
+  }
+
+  private void checkNoReservedRanges() {
+    if (reservedEndOffset != currentWriteOffset.get()) {
+      throw new IllegalStateException("Log : " + dataDir + " cannot append while the range from "
+          + currentWriteOffset.get() + " to " + reservedEndOffset + " is reserved");
+    }
+  }
+
+  private LogSegment getReservedSegment(long offset, long size)
+      throws IOException {
+    if (offset < currentWriteOffset.get() || offset + size > reservedEndOffset) {
+      metrics.overflowWriteError.inc(1);
+      throw new IllegalArgumentException("Log : " + dataDir + " error trying to write " + size + " bytes at " + offset
+          + " outside the reserved range from " + currentWriteOffset.get() + " to " + reservedEndOffset);
+    }
+    return getSegment(offset, size);
+  }
+
+  private void onReservedWrite(LogSegment segment) {
+    // the active segment is flushed anyway. A segment that was sealed while it was being written to needs to be
+    // flushed as well.
+    if (segment != activeSegment) {
+      segmentsToFlush.add(segment);
+    }
+  }
+
+  /**
+   * Returns the segment that holds the given range of the log
+   * @param offset The logical offset at which the range starts
+   * @param size The size of the range
+   * @return The segment that holds the whole range
+   * @throws IOException if no single segment holds the range, for example because the segment has been removed.
+   */
+  LogSegment getSegment(long offset, long size)
+      throws IOException {
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+    if (entry == null || offset + size > entry.getValue().getEndOffset()) {
+      throw new IOException("Log : " + dataDir + " no segment contains the range at offset " + offset + " size " +
+          size);
+    }
+    return entry.getValue();
+  }
+
+  /**
+   * @param offset The logical offset in the log
+   * @return true if the offset is in a segment that is part of the log, false if it has been removed.
+   */
+  boolean containsOffset(long offset) {
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+    return entry != null && offset < entry.getValue().getEndOffset();
+  }
+
+  /**
+   * @param offset The logical offset in the log
+   * @return The start offset of the segment that holds the offset, or -1 if there is no such segment
+   */
+  long getSegmentStartOffset(long offset) {
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+    return entry == null || offset >= entry.getValue().getEndOffset() ? -1 : entry.getKey();
+  }
+
+  /**
+   * @return All the segments of the log, in order of their offsets.
+   */
+  List<LogSegment> getSegments() {
+    return new ArrayList<LogSegment>(segments.values());
+  }
+
+  /**
+   * @return The segments of the log that are sealed and no longer written to, in order of their offsets.
+   */
+  List<LogSegment> getSealedSegments() {
+    List<LogSegment> sealedSegments = new ArrayList<LogSegment>();
+    for (LogSegment segment : segments.values()) {
+      // a segment may still be written to after it is sealed, until the log end offset moves past it
+      if (segment.isSealed() && segment != activeSegment && segment.getEndOffset() <= currentWriteOffset.get()) {
+        sealedSegments.add(segment);
+      }
+    }
+    return sealedSegments;
+  }
+
+  /**
+   * Removes a segment from the log and deletes its file. Reads of offsets in the segment fail from then on.
+   * @param startOffset The start offset of the segment to delete
+   * @throws IOException
+   */
+  void deleteSegment(long startOffset)
+      throws IOException {
+    LogSegment segment = segments.get(startOffset);
+    if (segment == null || segment == activeSegment) {
+      throw new IllegalArgumentException("Log : " + dataDir + " cannot delete segment at " + startOffset);
+    }
+    segments.remove(startOffset);
+    segmentsToFlush.remove(segment);
+    segment.close();
+    if (!segment.getFile().delete()) {
+      logger.error("Log : {} failed to delete segment file {}", dataDir, segment.getFile().getAbsolutePath());
+    }
+    logger.info("Log : {} deleted segment {}", dataDir, segment.getFile().getAbsolutePath());
+  }
+
+  /**
+   * Returns the segment that the given number of bytes can be appended to, rolling over to a new segment if the
+   * active segment does not have enough space left. Appends never span segments.
+   */
+  private LogSegment getSegmentForAppend(long writeOffset, long size)
+      throws IOException {
+    if (writeOffset + size <= activeSegment.getEndOffset()) {
+      return activeSegment;
+    }
+    if (!segmented || size > segmentSizeInBytes || (segments.size() + 1) * segmentSizeInBytes > capacityInBytes) {
+      metrics.overflowWriteError.inc(1);
+      throw new IllegalArgumentException(
+          "Log : " + dataDir + " error trying to append to log since new data size " + size + " exceeds the "
+              + "available log size. log end offset " + writeOffset + " capacityInBytes " + capacityInBytes);
+    }
+    if (!activeSegment.isSealed()) {
+      File sealedFile = new File(dataDir,
+          activeSegment.getStartOffset() + "_" + writeOffset + "_" + Log_Segment_File_Name_Suffix);
+      activeSegment.seal(sealedFile, writeOffset);
+    }
+    LogSegment segment = new LogSegment(getSegmentFile(writeOffset), writeOffset, segmentSizeInBytes);
+    segments.put(writeOffset, segment);
+    activeSegment = segment;
+    logger.info("Log : {} rolled over to new segment at offset {}", dataDir, writeOffset);
+    return segment;
+  }
+
+  private File getSegmentFile(long startOffset) {
+    return new File(dataDir, startOffset + "_" + Log_Segment_File_Name_Suffix);
   }
 
   /**
@@ -145,25 +519,61 @@ public class Log implements Read, Write {
    */
   void close()
       throws IOException {
-    fileChannel.close();
+    for (LogSegment segment : segments.values()) {
+      segment.close();
+    }
   }
 
   public void flush()
       throws IOException {
-    fileChannel.force(true);
+    for (LogSegment segment : segmentsToFlush) {
+      segmentsToFlush.remove(segment);
+      segment.flush();
+    }
+    activeSegment.flush();
   }
 
   @Override
   public void readInto(ByteBuffer buffer, long position)
       throws IOException {
-    if (sizeInBytes() < position || (position + buffer.remaining() > sizeInBytes())) {
-      metrics.overflowReadError.inc(1);
-      logger.error("Log: {} Error trying to read outside the log range. log end position {} input buffer size {}",
-          file.getAbsolutePath(), sizeInBytes(), buffer.remaining());
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to read outside " +
-          "the log range. log end position " + sizeInBytes() + " input buffer size " + buffer.remaining());
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(position);
+    if (entry == null || position + buffer.remaining() > sizeInBytes()) {
+      throwReadOutsideLogRange(buffer);
+    }
+    // the offsets of the segments are contiguous, so a read that spans the end of a segment continues in the next one
+    while (true) {
+      LogSegment segment = entry.getValue();
+      long readEndOffset = Math.min(position + buffer.remaining(), segment.getEndOffset());
+      if (readEndOffset <= position) {
+        throwReadOutsideLogRange(buffer);
+      }
+      int limit = buffer.limit();
+      buffer.limit(buffer.position() + (int) (readEndOffset - position));
+      while (buffer.hasRemaining()) {
+        int bytesRead = segment.getFileChannel().read(buffer, segment.toFilePosition(position));
+        if (bytesRead < 0) {
+          break;
+        }
+        position += bytesRead;
+      }
+      boolean segmentExhausted = !buffer.hasRemaining() && position == segment.getEndOffset();
+      buffer.limit(limit);
+      if (!buffer.hasRemaining() || !segmentExhausted) {
+        return;
+      }
+      entry = segments.higherEntry(entry.getKey());
+      if (entry == null || entry.getKey() != position) {
+        throwReadOutsideLogRange(buffer);
+      }
     }
-    fileChannel.read(buffer, position);
   }
-}
 
+  private void throwReadOutsideLogRange(ByteBuffer buffer)
+      throws IOException {
+    metrics.overflowReadError.inc(1);
+    logger.error("Log: {} Error trying to read outside the log range. log end position {} input buffer size {}",
+        dataDir, sizeInBytes(), buffer.remaining());
+    throw new IllegalArgumentException("Log : " + dataDir + " error trying to read outside " +
+        "the log range. log end position " + sizeInBytes() + " input buffer size " + buffer.remaining());
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import com.bloom.zerofs.tools.Utils;
+
+
+/**
+ * A single preallocated file that holds a contiguous range of the log. The segment starts at a logical offset in the
+ * log and all positions in the underlying file are relative to that start offset. Once the log moves on to the next
+ * segment, the segment is sealed and its end offset is recorded in its file name.
+ */
+class LogSegment {
+  private static final long Unsealed_End_Offset = -1;
+  private File file;
+  private final FileChannel fileChannel;
+  private final long startOffset;
+  private final long capacityInBytes;
+  private volatile long sealedEndOffset;
+
+  /**
+   * Opens the segment, preallocating the file if it does not exist
+   * @param file The file that backs this segment
+   * @param startOffset The logical offset in the log at which this segment starts
+   * @param capacityInBytes The size of the segment file
+   * @param sealedEndOffset The logical end offset of the segment if it is sealed, -1 otherwise
+   * @throws IOException
+   */
+  LogSegment(File file, long startOffset, long capacityInBytes, long sealedEndOffset)
+      throws IOException {
+    if (!file.exists()) {
+      // if the file does not exist, preallocate it
+      Utils.preAllocateFileIfNeeded(file, capacityInBytes);
+    }
+    this.file = file;
+    this.fileChannel = Utils.openChannel(file, true);
+    this.startOffset = startOffset;
+    this.capacityInBytes = capacityInBytes;
+    this.sealedEndOffset = sealedEndOffset;
+  }
+
+  LogSegment(File file, long startOffset, long capacityInBytes)
+      throws IOException {
+    this(file, startOffset, capacityInBytes, Unsealed_End_Offset);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  FileChannel getFileChannel() {
+    return fileChannel;
+  }
+
+  /**
+   * @return The logical offset in the log at which this segment starts
+   */
+  long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return The logical offset in the log up to which this segment can hold data
+   */
+  long getCapacityEndOffset() {
+    return startOffset + capacityInBytes;
+  }
+
+  long getCapacityInBytes() {
+    return capacityInBytes;
+  }
+
+  boolean isSealed() {
+    return sealedEndOffset != Unsealed_End_Offset;
+  }
+
+  /**
+   * @return The logical offset in the log up to which this segment holds data. For a segment that is not sealed, this
+   * is the offset up to which it can hold data.
+   */
+  long getEndOffset() {
+    return isSealed() ? sealedEndOffset : getCapacityEndOffset();
+  }
+
+  /**
+   * Seals the segment at the given end offset. The segment is flushed and its file is renamed to record the end offset.
+   * @param sealedFile The file name that records the end offset of the segment
+   * @param endOffset The logical offset in the log at which this segment ends
+   * @throws IOException
+   */
+  void seal(File sealedFile, long endOffset)
+      throws IOException {
+    flush();
+    if (!file.renameTo(sealedFile)) {
+      throw new IOException("Failed to rename log segment " + file.getAbsolutePath() + " to " + sealedFile);
+    }
+    file = sealedFile;
+    sealedEndOffset = endOffset;
+  }
+
+  /**
+   * Converts a logical offset in the log into a position in the file of this segment
+   * @param offset The logical offset in the log
+   * @return The position in the segment file
+   */
+  long toFilePosition(long offset) {
+    return offset - startOffset;
+  }
+
+  void flush()
+      throws IOException {
+    fileChannel.force(true);
+  }
+
+  void close()
+      throws IOException {
+    fileChannel.close();
+  }
+}
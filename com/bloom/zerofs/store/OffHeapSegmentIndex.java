@@ -0,0 +1,383 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.bloom.zerofs.api.store.StoreKey;
+import com.bloom.zerofs.api.store.StoreKeyFactory;
+import com.bloom.zerofs.tools.ByteBufferInputStream;
+
+
+/**
+ * An in memory segment index that keeps the serialized keys and values off heap. Entries are appended to fixed width
+ * slots in direct memory slabs, in the same key and value layout as the index segment file. An open addressing hash
+ * table of slot numbers maps every key to the slot that holds its latest value. Replacing the value of a key appends
+ * a new slot and swings the hash table to it, so a slot is never modified after it has been published and lookups
+ * need no locks. Iterations go through the live slots sorted by their serialized keys, which is the order of the
+ * store keys. The sorted slots are kept between iterations, and only the slots that have been appended since are
+ * sorted and merged into them, so repeated iterations of a segment that is being written to stay cheap.
+ */
+class OffHeapSegmentIndex implements InMemorySegmentIndex {
+  private static final int Slab_Size_In_Entries = 1024;
+  private static final int Empty_Slot = -1;
+  private static final int Min_Table_Size = 16;
+
+  private final StoreKeyFactory factory;
+  private final int valueSize = IndexValue.Index_Value_Size_In_Bytes;
+  private volatile int keySize = -1;
+  private volatile int entrySize = -1;
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+  private volatile AtomicIntegerArray table;
+  private volatile int size = 0;
+  private int numberOfSlots = 0;
+  // the slots below this have been published to the hash table
+  private volatile int publishedSlots = 0;
+  private volatile SortedSlots sortedSlots = new SortedSlots(new int[0], 0);
+  private final Object sortLock = new Object();
+
+  /**
+   * The live slots sorted by their keys, as of a number of published slots
+   */
+  private static class SortedSlots {
+    final int[] slots;
+    final int numberOfSlots;
+
+    SortedSlots(int[] slots, int numberOfSlots) {
+      this.slots = slots;
+      this.numberOfSlots = numberOfSlots;
+    }
+  }
+
+  /**
+   * @param factory The factory used to deserialize the keys when iterating
+   * @param expectedNumberOfEntries The number of entries the hash table is sized for initially
+   */
+  OffHeapSegmentIndex(StoreKeyFactory factory, int expectedNumberOfEntries) {
+    this.factory = factory;
+    this.table = newTable(tableSizeFor(expectedNumberOfEntries));
+  }
+
+  @Override
+  public IndexValue get(StoreKey key) {
+    byte[] keyBytes = key.toBytes();
+    if (keyBytes.length != keySize) {
+      return null;
+    }
+    int slot = findSlot(table, keyBytes);
+    return slot == Empty_Slot ? null : getValueAt(slot);
+  }
+
+  @Override
+  public synchronized boolean put(StoreKey key, IndexValue value) {
+    byte[] keyBytes = key.toBytes();
+    if (keySize == -1) {
+      keySize = keyBytes.length;
+      entrySize = keySize + valueSize;
+    } else if (keyBytes.length != keySize) {
+      throw new IllegalArgumentException(
+          "Key size " + keyBytes.length + " of key " + key + " does not match key size " + keySize + " of the index");
+    }
+    if ((size + 1) * 2 > table.length()) {
+      rehash(table.length() * 2);
+    }
+    AtomicIntegerArray currentTable = table;
+    int mask = currentTable.length() - 1;
+    int bucket = hash(keyBytes) & mask;
+    while (true) {
+      int slot = currentTable.get(bucket);
+      if (slot == Empty_Slot) {
+        currentTable.set(bucket, append(keyBytes, value));
+        size++;
+        publishedSlots = numberOfSlots;
+        return true;
+      } else if (compareKeyAt(slot, keyBytes) == 0) {
+        currentTable.set(bucket, append(keyBytes, value));
+        publishedSlots = numberOfSlots;
+        return false;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public synchronized void clear() {
+    synchronized (sortLock) {
+      slabs = new ByteBuffer[0];
+      table = newTable(Min_Table_Size);
+      keySize = -1;
+      entrySize = -1;
+      size = 0;
+      numberOfSlots = 0;
+      publishedSlots = 0;
+      sortedSlots = new SortedSlots(new int[0], 0);
+    }
+  }
+
+  @Override
+  public Iterator<IndexEntry> entries(StoreKey fromKey) {
+    final int[] sortedSlots = getSortedSlots();
+    int start = 0;
+    if (fromKey != null) {
+      // binary search for the first key that is not less than the key to start from
+      byte[] keyBytes = fromKey.toBytes();
+      int low = 0;
+      int high = sortedSlots.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compareKeyAt(sortedSlots[mid], keyBytes) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      start = low;
+    }
+    final int startIndex = start;
+    return new Iterator<IndexEntry>() {
+      private int current = startIndex;
+
+      @Override
+      public boolean hasNext() {
+        return current < sortedSlots.length;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int slot = sortedSlots[current++];
+        return new IndexEntry(getKeyAt(slot), getValueAt(slot));
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Entries cannot be removed from the index");
+      }
+    };
+  }
+
+  @Override
+  public void writeTo(DataOutputStream stream, long safeEndPoint)
+      throws IOException {
+    byte[] entry = new byte[Math.max(entrySize, 0)];
+    for (int slot : getSortedSlots()) {
+      ByteBuffer slab = slabs[slot / Slab_Size_In_Entries];
+      int position = (slot % Slab_Size_In_Entries) * entrySize;
+      // the value starts with the size of the record followed by its offset
+      long recordSize = slab.getLong(position + keySize);
+      long recordOffset = slab.getLong(position + keySize + 8);
+      if (recordOffset + recordSize <= safeEndPoint) {
+        ByteBuffer duplicate = slab.duplicate();
+        duplicate.position(position);
+        duplicate.get(entry);
+        stream.write(entry);
+      }
+    }
+  }
+
+  /**
+   * Appends a key and value to a new slot. The slot is not visible to lookups until it is set in the hash table.
+   * @return The slot that the entry was written to
+   */
+  private int append(byte[] keyBytes, IndexValue value) {
+    int slabIndex = numberOfSlots / Slab_Size_In_Entries;
+    ByteBuffer[] currentSlabs = slabs;
+    if (slabIndex == currentSlabs.length) {
+      currentSlabs = Arrays.copyOf(currentSlabs, currentSlabs.length + 1);
+      currentSlabs[slabIndex] = ByteBuffer.allocateDirect(Slab_Size_In_Entries * entrySize);
+      slabs = currentSlabs;
+    }
+    ByteBuffer slab = currentSlabs[slabIndex].duplicate();
+    slab.position((numberOfSlots % Slab_Size_In_Entries) * entrySize);
+    slab.put(keyBytes);
+    slab.put(value.getBytes().array());
+    return numberOfSlots++;
+  }
+
+  private int findSlot(AtomicIntegerArray currentTable, byte[] keyBytes) {
+    int mask = currentTable.length() - 1;
+    int bucket = hash(keyBytes) & mask;
+    while (true) {
+      int slot = currentTable.get(bucket);
+      if (slot == Empty_Slot || compareKeyAt(slot, keyBytes) == 0) {
+        return slot;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+  }
+
+  private void rehash(int newTableSize) {
+    AtomicIntegerArray newTable = newTable(newTableSize);
+    AtomicIntegerArray currentTable = table;
+    int mask = newTableSize - 1;
+    for (int i = 0; i < currentTable.length(); i++) {
+      int slot = currentTable.get(i);
+      if (slot != Empty_Slot) {
+        int bucket = hash(getKeyBytesAt(slot)) & mask;
+        while (newTable.get(bucket) != Empty_Slot) {
+          bucket = (bucket + 1) & mask;
+        }
+        newTable.set(bucket, slot);
+      }
+    }
+    table = newTable;
+  }
+
+  /**
+   * Returns the live slots sorted by their keys. The slots that have been published since the last call are sorted and
+   * merged into the slots that were sorted then. A key that is in more than one slot is live in the latest of them.
+   */
+  private int[] getSortedSlots() {
+    SortedSlots current = sortedSlots;
+    if (current.numberOfSlots == publishedSlots) {
+      return current.slots;
+    }
+    synchronized (sortLock) {
+      current = sortedSlots;
+      int upToSlot = publishedSlots;
+      if (current.numberOfSlots == upToSlot) {
+        return current.slots;
+      }
+      Integer[] newSlots = new Integer[upToSlot - current.numberOfSlots];
+      for (int i = 0; i < newSlots.length; i++) {
+        newSlots[i] = current.numberOfSlots + i;
+      }
+      Arrays.sort(newSlots, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          int result = compareKeysAt(o1, o2);
+          return result != 0 ? result : Integer.compare(o1, o2);
+        }
+      });
+      int[] merged = new int[current.slots.length + newSlots.length];
+      int count = 0;
+      int oldIndex = 0;
+      for (int newIndex = 0; newIndex < newSlots.length; newIndex++) {
+        int newSlot = newSlots[newIndex];
+        if (newIndex + 1 < newSlots.length && compareKeysAt(newSlot, newSlots[newIndex + 1]) == 0) {
+          // a later slot has the key
+          continue;
+        }
+        int result = -1;
+        while (oldIndex < current.slots.length && (result = compareKeysAt(current.slots[oldIndex], newSlot)) < 0) {
+          merged[count++] = current.slots[oldIndex++];
+        }
+        if (result == 0) {
+          oldIndex++;
+        }
+        merged[count++] = newSlot;
+      }
+      while (oldIndex < current.slots.length) {
+        merged[count++] = current.slots[oldIndex++];
+      }
+      merged = Arrays.copyOf(merged, count);
+      sortedSlots = new SortedSlots(merged, upToSlot);
+      return merged;
+    }
+  }
+
+  /**
+   * Compares the keys at two slots as unsigned bytes in lexicographic order
+   */
+  private int compareKeysAt(int slot1, int slot2) {
+    ByteBuffer[] currentSlabs = slabs;
+    ByteBuffer slab1 = currentSlabs[slot1 / Slab_Size_In_Entries];
+    ByteBuffer slab2 = currentSlabs[slot2 / Slab_Size_In_Entries];
+    int position1 = (slot1 % Slab_Size_In_Entries) * entrySize;
+    int position2 = (slot2 % Slab_Size_In_Entries) * entrySize;
+    for (int i = 0; i < keySize; i++) {
+      int result = (slab1.get(position1 + i) & 0xff) - (slab2.get(position2 + i) & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compares the key at a slot with the given serialized key as unsigned bytes in lexicographic order
+   */
+  private int compareKeyAt(int slot, byte[] keyBytes) {
+    ByteBuffer slab = slabs[slot / Slab_Size_In_Entries];
+    int position = (slot % Slab_Size_In_Entries) * entrySize;
+    for (int i = 0; i < keySize; i++) {
+      int result = (slab.get(position + i) & 0xff) - (keyBytes[i] & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  private byte[] getKeyBytesAt(int slot) {
+    byte[] keyBytes = new byte[keySize];
+    ByteBuffer slab = slabs[slot / Slab_Size_In_Entries].duplicate();
+    slab.position((slot % Slab_Size_In_Entries) * entrySize);
+    slab.get(keyBytes);
+    return keyBytes;
+  }
+
+  private StoreKey getKeyAt(int slot) {
+    try {
+      return factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(ByteBuffer.wrap(getKeyBytesAt(slot)))));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to deserialize key in slot " + slot + " of the index", e);
+    }
+  }
+
+  private IndexValue getValueAt(int slot) {
+    byte[] value = new byte[valueSize];
+    ByteBuffer slab = slabs[slot / Slab_Size_In_Entries].duplicate();
+    slab.position((slot % Slab_Size_In_Entries) * entrySize + keySize);
+    slab.get(value);
+    return new IndexValue(ByteBuffer.wrap(value));
+  }
+
+  private static int hash(byte[] keyBytes) {
+    int h = Arrays.hashCode(keyBytes);
+    // spread the higher bits since the table size is a power of two
+    return h ^ (h >>> 16);
+  }
+
+  private static int tableSizeFor(int expectedNumberOfEntries) {
+    int tableSize = Min_Table_Size;
+    while (tableSize < expectedNumberOfEntries * 2 && tableSize < (1 << 30)) {
+      tableSize <<= 1;
+    }
+    return tableSize;
+  }
+
+  private static AtomicIntegerArray newTable(int tableSize) {
+    AtomicIntegerArray newTable = new AtomicIntegerArray(tableSize);
+    for (int i = 0; i < tableSize; i++) {
+      newTable.set(i, Empty_Slot);
+    }
+    return newTable;
+  }
+}
@@ -25,15 +25,20 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -41,6 +46,8 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +64,7 @@ import com.bloom.zerofs.api.store.StoreException;
 import com.bloom.zerofs.api.store.StoreGetOptions;
 import com.bloom.zerofs.api.store.StoreKey;
 import com.bloom.zerofs.api.store.StoreKeyFactory;
+import com.bloom.zerofs.api.store.StoreStats;
 import com.bloom.zerofs.tools.CrcInputStream;
 import com.bloom.zerofs.tools.CrcOutputStream;
 import com.bloom.zerofs.tools.Scheduler;
@@ -75,6 +83,7 @@ public class PersistentIndex {
 
   public static final String Index_File_Name_Suffix = "index";
   public static final String Bloom_File_Name_Suffix = "bloom";
+  public static final String Index_Delta_File_Name_Suffix = "indexdelta";
   private static final String Clean_Shutdown_Filename = "cleanshutdown";
   private static final String Cleanup_Token_Filename = "cleanuptoken";
   public static final short version = 0;
@@ -101,6 +110,34 @@ public class PersistentIndex {
   private long logEndOffsetOnStartup;
   private final StoreMetrics metrics;
   private Time time;
+  private IndexKeyCache keyCache = null;
+  private ExpirationBuckets expirationBuckets;
+  // the entries below this offset are added to the expiration buckets when they are loaded, the ones after it as they
+  // are added to the index
+  private long expirationBucketsLoadOffset;
+  private volatile boolean expirationBucketsLoaded = false;
+  private StoreStatsTracker statsTracker;
+  // the log segments whose records are being moved by compaction
+  private CompactedSegments compactedSegments;
+  // false while the store stats are rebuilt in the background, which is done if the persisted stats could not be used
+  private volatile boolean storeStatsAvailable = true;
+  // the records after this offset are counted as they are added to the index, the ones before it by the rebuild
+  private long storeStatsRebuildEndOffset = 0;
+  // the offset below which the records have been counted by the rebuild
+  private volatile long storeStatsRebuiltUpToOffset = Long.MAX_VALUE;
+  // held while an entry is counted and added to the index, and by the rebuild while it counts an index segment
+  private final Object storeStatsLock = new Object();
+  // held for writing while segments are replaced by a merged segment, and for reading by the operations that go
+  // through the segments in order, so that they see either the merged segment or all of the segments it replaces
+  private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+  // the locator of the segments of keys, which is null until it is built in the background after startup
+  private volatile SegmentLocator segmentLocator = null;
+  // the locator that is being rebuilt, which the keys that are added to the index are added to as well
+  private SegmentLocator segmentLocatorBeingBuilt = null;
+  private final Object segmentLocatorLock = new Object();
+  private final Object segmentLocatorBuildLock = new Object();
+  // true from the time a rebuild of the locator is scheduled because of its slots until the rebuild is done
+  private boolean segmentLocatorRebuildScheduled = false;
 
   private class IndexFilter implements FilenameFilter {
     @Override
@@ -148,13 +185,11 @@ public class PersistentIndex {
             throw new NullPointerException("arguments to compare two files is null");
           }
           // File name pattern for index is offset_name. We extract the offset from
-          // name to compare
-          int o1Index = o1.getName().indexOf("_", 0);
-          long o1Offset = Long.parseLong(o1.getName().substring(0, o1Index));
-          int o2Index = o2.getName().indexOf("_", 0);
-          long o2Offset = Long.parseLong(o2.getName().substring(0, o2Index));
+          // name to compare. A merged segment has the start offset of the first segment it replaces and sorts after it.
+          long o1Offset = IndexSegment.getStartOffset(o1.getName());
+          long o2Offset = IndexSegment.getStartOffset(o2.getName());
           if (o1Offset == o2Offset) {
-            return 0;
+            return Long.compare(IndexSegment.getTokenOffset(o1.getName()), IndexSegment.getTokenOffset(o2.getName()));
           } else if (o1Offset < o2Offset) {
             return -1;
           } else {
@@ -162,6 +197,7 @@ public class PersistentIndex {
           }
         }
       });
+      indexFiles = deleteMergedIndexFiles(datadir, indexFiles);
 
       for (int i = 0; i < indexFiles.length; i++) {
         boolean map = false;
@@ -181,6 +217,8 @@ public class PersistentIndex {
       logger.info("Index : " + datadir + " log end offset of index  before recovery " + log.getLogEndOffset());
       // perform recovery if required
       final Timer.Context context = metrics.recoveryTime.time();
+      statsTracker = readStoreStats();
+      compactedSegments = CompactedSegments.load(datadir);
       // Recover the last messages in the log into the index, if any.
       if (indexes.size() > 0) {
         IndexSegment lastSegment = indexes.lastEntry().getValue();
@@ -193,6 +231,17 @@ public class PersistentIndex {
       // set the log end offset to the recovered offset from the index after initializing it
       log.setLogEndOffset(getCurrentEndOffset());
       logEndOffsetOnStartup = log.getLogEndOffset();
+      if (getCurrentEndOffset() == 0) {
+        statsTracker = new StoreStatsTracker();
+      } else if (statsTracker == null || statsTracker.getEndOffset() != getCurrentEndOffset()) {
+        logger.info("Index : {} persisted store stats cannot be used, rebuilding them in the background", datadir);
+        statsTracker = new StoreStatsTracker();
+        storeStatsAvailable = false;
+        storeStatsRebuildEndOffset = getCurrentEndOffset();
+        storeStatsRebuiltUpToOffset = 0;
+      } else {
+        logger.info("Index : {} loaded store stats up to offset {}", datadir, statsTracker.getEndOffset());
+      }
 
       // After recovering the last messages, and setting the log end offset, let the hard delete thread do its recovery.
       // NOTE: It is safe to do the hard delete recovery after the regular recovery because we ensure that hard deletes
@@ -202,6 +251,12 @@ public class PersistentIndex {
       hardDeleter.performRecovery();
       logger.info("Index : " + datadir + " Finished performing hard delete recovery");
 
+      // the cache is only enabled after recovery, since recovery updates index values in place
+      if (config.storeIndexKeyCacheSizeBytes > 0) {
+        keyCache = new IndexKeyCache(config.storeIndexKeyCacheSizeBytes, metrics);
+      }
+      expirationBuckets = new ExpirationBuckets(config.storeExpirationBucketSizeSeconds * Time.MsPerSec);
+      expirationBucketsLoadOffset = getCurrentEndOffset();
       this.maxInMemoryIndexSizeInBytes = config.storeIndexMaxMemorySizeBytes;
       this.maxInMemoryNumElements = config.storeIndexMaxNumberOfInmemElements;
       this.sessionId = UUID.randomUUID();
@@ -226,6 +281,23 @@ public class PersistentIndex {
         hardDeleter.close();
       }
       metrics.initializeHardDeleteMetric(this, log);
+      metrics.initializeExpirationMetrics(this);
+      metrics.initializeStoreStatsMetrics(this);
+      if (!storeStatsAvailable) {
+        this.scheduler.schedule("index store stats rebuilder " + datadir, new Runnable() {
+          @Override
+          public void run() {
+            try {
+              rebuildStoreStats();
+            } catch (StoreException e) {
+              logger.error("Index : " + dataDir + " error while rebuilding the store stats ", e);
+            }
+          }
+        }, 0, -1, TimeUnit.SECONDS);
+      }
+      if (config.storeIndexSegmentLocatorSizeBytes > 0) {
+        scheduleSegmentLocatorRebuild();
+      }
     } catch (StoreException e) {
       throw e;
     } catch (Exception e) {
@@ -234,6 +306,37 @@ public class PersistentIndex {
     }
   }
 
+  /**
+   * Deletes the files of the segments that were merged into another segment, which are left behind if the store went
+   * down after the merged segment was written. A merged segment covers the segments whose start offsets are between
+   * its start offset and its token offset.
+   * @param datadir The directory of the index
+   * @param indexFiles The index files, sorted by start offset and token offset
+   * @return The index files that are left
+   */
+  private File[] deleteMergedIndexFiles(String datadir, File[] indexFiles) {
+    List<File> filesToLoad = new ArrayList<File>();
+    for (int i = 0; i < indexFiles.length; i++) {
+      long startOffset = IndexSegment.getStartOffset(indexFiles[i].getName());
+      boolean merged = false;
+      if (i + 1 < indexFiles.length && IndexSegment.getStartOffset(indexFiles[i + 1].getName()) == startOffset) {
+        // a merged segment with the same start offset follows. The bloom file is shared with it.
+        merged = true;
+      } else if (filesToLoad.size() > 0 &&
+          IndexSegment.getTokenOffset(filesToLoad.get(filesToLoad.size() - 1).getName()) >= startOffset) {
+        merged = true;
+        new File(datadir, startOffset + "_" + Bloom_File_Name_Suffix).delete();
+      }
+      if (merged) {
+        logger.info("Index : {} deleting index file {} of a segment that has been merged", datadir, indexFiles[i]);
+        indexFiles[i].delete();
+      } else {
+        filesToLoad.add(indexFiles[i]);
+      }
+    }
+    return filesToLoad.toArray(new File[filesToLoad.size()]);
+  }
+
   /**
    * Recovers a segment given the end offset in the log and a recovery handler
    * @param segmentToRecover The segment to recover. If this is null, it creates a new segment
@@ -256,7 +359,20 @@ public class PersistentIndex {
     if (messagesRecovered.size() > 0) {
       metrics.nonzeroMessageRecovery.inc(1);
     }
+    // the persisted store stats count the records up to their end offset, so only the records after it are counted.
+    // The stats are persisted after the index, so they cannot be used if they end before the recovery starts.
+    long statsEndOffset = Long.MAX_VALUE;
+    if (statsTracker != null) {
+      statsEndOffset = statsTracker.getEndOffset();
+      if (statsEndOffset < startOffsetForRecovery) {
+        statsTracker = null;
+      }
+    }
     long runningOffset = startOffsetForRecovery;
+    // the entries are added to the segment and the journal in one batch after all the messages are processed. A key
+    // that was recovered earlier in the batch is not in the index yet, so its recovered value is looked up first.
+    Map<StoreKey, IndexValue> recoveredValues = new LinkedHashMap<StoreKey, IndexValue>();
+    List<JournalEntry> recoveredJournalEntries = new ArrayList<JournalEntry>();
     // Iterate through the recovered messages and update the index
     for (MessageInfo info : messagesRecovered) {
       logger.trace("Index : {} recovering key {} offset {} size {}", dataDir, info.getStoreKey(), runningOffset,
@@ -267,11 +383,24 @@ public class PersistentIndex {
             IndexValue.Index_Value_Size_In_Bytes, config, metrics);
         indexes.put(startOffsetForRecovery, segmentToRecover);
       }
-      IndexValue value = findKey(info.getStoreKey());
+      IndexValue value = recoveredValues.get(info.getStoreKey());
+      if (value == null) {
+        value = findKey(info.getStoreKey());
+      }
       if (value != null) {
         // if the key already exists in the index, update it if it is deleted
         logger.info("Index : {} msg already exist with key {}", dataDir, info.getStoreKey());
-        if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+        long previousOffset = value.getOffset();
+        long previousSize = value.getSize();
+        boolean previousDeleted = value.isFlagSet(IndexValue.Flags.Delete_Index);
+        if (log.isSegmented() && previousDeleted == info.isDeleted() && previousSize == info.getSize()
+            && compactedSegments.contains(previousOffset)) {
+          // compaction copies live records to the end of the log, so a record may be found again at a new offset
+          logger.info("Index : {} recovered msg {} is a record that has been moved by compaction from offset {}",
+              dataDir, info, value.getOffset());
+          value = new IndexValue(info.getSize(), runningOffset, value.getFlags(), value.getTimeToLiveInMs(),
+              info.isDeleted() ? value.getOriginalMessageOffset() : runningOffset);
+        } else if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
           // key already has a deleted entry in the index!
           logger.error("Index: {} recovered msg {} is for a key that is already deleted in the index: "
               + "index offset {} Original Offset {}", dataDir, info, value.getOffset(),
@@ -285,25 +414,69 @@ public class PersistentIndex {
           throw new StoreException("Illegal message state during recovery. ", StoreErrorCodes.Initialization_Error);
         }
         validateFileSpan(new FileSpan(runningOffset, runningOffset + info.getSize()));
-        segmentToRecover.addEntry(new IndexEntry(info.getStoreKey(), value), runningOffset + info.getSize());
-        journal.addEntry(runningOffset, info.getStoreKey());
+        if (statsTracker != null && runningOffset >= statsEndOffset) {
+          // the record replaces the previous record of the key, which is either the put it deletes or the record
+          // that compaction moved
+          long previousSegmentStartOffset = log.getSegmentStartOffset(previousOffset);
+          if (previousDeleted) {
+            statsTracker.removeDeleteRecord(previousSegmentStartOffset, previousSize);
+          } else {
+            statsTracker.removePut(previousSegmentStartOffset, previousSize);
+          }
+          countRecoveredRecord(runningOffset, info.getSize(), info.isDeleted());
+        }
+        recoveredValues.put(info.getStoreKey(), value);
+        recoveredJournalEntries.add(new JournalEntry(runningOffset, info.getStoreKey()));
         if (value.getOriginalMessageOffset() != runningOffset && value.getOriginalMessageOffset() >= segmentToRecover
             .getStartOffset()) {
-          journal.addEntry(value.getOriginalMessageOffset(), info.getStoreKey());
+          recoveredJournalEntries.add(new JournalEntry(value.getOriginalMessageOffset(), info.getStoreKey()));
         }
-        logger.info("Index : {} updated message with key {} size {} ttl {} deleted {}", dataDir, info.getStoreKey(),
+        logger.trace("Index : {} updated message with key {} size {} ttl {} deleted {}", dataDir, info.getStoreKey(),
             value.getSize(), value.getTimeToLiveInMs(), info.isDeleted());
       } else {
         // create a new entry in the index
         IndexValue newValue = new IndexValue(info.getSize(), runningOffset, info.getExpirationTimeInMs());
         validateFileSpan(new FileSpan(runningOffset, runningOffset + info.getSize()));
-        segmentToRecover.addEntry(new IndexEntry(info.getStoreKey(), newValue), runningOffset + info.getSize());
-        journal.addEntry(runningOffset, info.getStoreKey());
-        logger.info("Index : {} adding new message to index with key {} size {} ttl {} deleted {}", dataDir,
+        if (statsTracker != null && runningOffset >= statsEndOffset) {
+          countRecoveredRecord(runningOffset, info.getSize(), false);
+        }
+        recoveredValues.put(info.getStoreKey(), newValue);
+        recoveredJournalEntries.add(new JournalEntry(runningOffset, info.getStoreKey()));
+        logger.trace("Index : {} adding new message to index with key {} size {} ttl {} deleted {}", dataDir,
             info.getStoreKey(), info.getSize(), info.getExpirationTimeInMs(), info.isDeleted());
       }
       runningOffset += info.getSize();
     }
+    if (recoveredValues.size() > 0) {
+      ArrayList<IndexEntry> recoveredEntries = new ArrayList<IndexEntry>(recoveredValues.size());
+      for (Map.Entry<StoreKey, IndexValue> entry : recoveredValues.entrySet()) {
+        recoveredEntries.add(new IndexEntry(entry.getKey(), entry.getValue()));
+      }
+      segmentToRecover.addEntries(recoveredEntries, runningOffset);
+      for (JournalEntry entry : recoveredJournalEntries) {
+        journal.addEntry(entry.getOffset(), entry.getKey());
+      }
+      logger.info("Index : {} recovered {} messages for {} keys up to offset {}", dataDir, messagesRecovered.size(),
+          recoveredValues.size(), runningOffset);
+    }
+  }
+
+  /**
+   * Counts a record that has been recovered into the index in the store stats
+   * @param offset The offset of the record in the log
+   * @param size The size of the record
+   * @param deleteRecord true if the record is added to the index as a delete entry
+   */
+  private void countRecoveredRecord(long offset, long size, boolean deleteRecord) {
+    long segmentStartOffset = log.getSegmentStartOffset(offset);
+    if (segmentStartOffset == -1) {
+      return;
+    }
+    if (deleteRecord) {
+      statsTracker.addDeleteRecord(segmentStartOffset, size, offset + size);
+    } else {
+      statsTracker.addPut(segmentStartOffset, size, offset + size);
+    }
   }
 
   /**
@@ -315,15 +488,111 @@ public class PersistentIndex {
   public void addToIndex(IndexEntry entry, FileSpan fileSpan)
       throws StoreException {
     validateFileSpan(fileSpan);
-    if (needToRollOverIndex(entry)) {
-      IndexSegment info = new IndexSegment(dataDir, entry.getValue().getOffset(), factory, entry.getKey().sizeInBytes(),
-          IndexValue.Index_Value_Size_In_Bytes, config, metrics);
-      info.addEntry(entry, fileSpan.getEndOffset());
-      indexes.put(info.getStartOffset(), info);
-    } else {
-      indexes.lastEntry().getValue().addEntry(entry, fileSpan.getEndOffset());
+    synchronized (storeStatsLock) {
+      updateByteCounts(entry, fileSpan);
+      if (needToRollOverIndex(entry)) {
+        IndexSegment info =
+            new IndexSegment(dataDir, entry.getValue().getOffset(), factory, entry.getKey().sizeInBytes(),
+                IndexValue.Index_Value_Size_In_Bytes, config, metrics);
+        info.addEntry(entry, fileSpan.getEndOffset());
+        indexes.put(info.getStartOffset(), info);
+      } else {
+        indexes.lastEntry().getValue().addEntry(entry, fileSpan.getEndOffset());
+      }
     }
     journal.addEntry(entry.getValue().getOffset(), entry.getKey());
+    if (keyCache != null) {
+      keyCache.invalidate(entry.getKey());
+    }
+    if (config.storeIndexSegmentLocatorSizeBytes > 0) {
+      addToSegmentLocator(entry.getKey(), indexes.lastKey());
+    }
+  }
+
+  private void addToSegmentLocator(StoreKey key, long segmentStartOffset) {
+    long[] hash = new IndexLookupKey(key).getHash();
+    synchronized (segmentLocatorLock) {
+      if (segmentLocator != null) {
+        segmentLocator.add(hash, segmentStartOffset);
+        if (!segmentLocatorRebuildScheduled && segmentLocatorBeingBuilt == null && segmentLocator.needsRebuild()) {
+          logger.info("Index : {} the segment locator is filled up with the slots of earlier values, rebuilding it",
+              dataDir);
+          segmentLocatorRebuildScheduled = true;
+          scheduleSegmentLocatorRebuild();
+        }
+      }
+      if (segmentLocatorBeingBuilt != null) {
+        segmentLocatorBeingBuilt.add(hash, segmentStartOffset);
+      }
+    }
+  }
+
+  private void scheduleSegmentLocatorRebuild() {
+    scheduler.schedule("index segment locator builder " + dataDir, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebuildSegmentLocator();
+        } catch (StoreException e) {
+          logger.error("Index : " + dataDir + " error while building the segment locator ", e);
+        }
+      }
+    }, 0, -1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Builds the locator of the segments of keys from the latest value of every key in the index and replaces the current
+   * one with it. The locator is built when the index is started, after segments are merged and when the slots of the
+   * values that have been replaced by later values have filled up the current one. Lookups use the current locator
+   * until the new one replaces it. Does nothing if the locator is disabled.
+   * @throws StoreException
+   */
+  void rebuildSegmentLocator()
+      throws StoreException {
+    if (config.storeIndexSegmentLocatorSizeBytes == 0) {
+      return;
+    }
+    synchronized (segmentLocatorBuildLock) {
+      SegmentLocator locator = new SegmentLocator(config.storeIndexSegmentLocatorSizeBytes);
+      synchronized (segmentLocatorLock) {
+        segmentLocatorBeingBuilt = locator;
+      }
+      final Timer.Context context = metrics.segmentLocatorBuildTime.time();
+      SegmentLocator currentLocator = segmentLocator;
+      try {
+        // the keys that are added from here on are added to the new locator as well
+        for (IndexSegment segment : getIndexSegments()) {
+          List<IndexEntry> entries = new ArrayList<IndexEntry>();
+          segment.getIndexEntries(entries);
+          for (IndexEntry entry : entries) {
+            // the earlier values of keys are only left out if there is a locator to find the latest values with. A
+            // key whose value is replaced after this is added to the new locator with the segment of its new value.
+            IndexValue latestValue = currentLocator == null ? null : findKey(entry.getKey());
+            if (currentLocator == null || (latestValue != null
+                && latestValue.getOffset() == entry.getValue().getOffset())) {
+              locator.add(new IndexLookupKey(entry.getKey()).getHash(), segment.getStartOffset());
+            }
+          }
+        }
+        if (!locator.isComplete()) {
+          logger.warn("Index : {} the segment locator is too small for the keys in the index, lookups search all the "
+              + "segments", dataDir);
+        }
+        synchronized (segmentLocatorLock) {
+          locator.markBuilt();
+          segmentLocator = locator;
+        }
+      } catch (IOException e) {
+        throw new StoreException("IO error while building the segment locator of index " + dataDir, e,
+            StoreErrorCodes.IOError);
+      } finally {
+        synchronized (segmentLocatorLock) {
+          segmentLocatorBeingBuilt = null;
+          segmentLocatorRebuildScheduled = false;
+        }
+        context.stop();
+      }
+    }
   }
 
   /**
@@ -407,7 +676,18 @@ public class PersistentIndex {
    */
   public IndexValue findKey(StoreKey key)
       throws StoreException {
-    return findKey(key, null);
+    if (keyCache == null) {
+      return findKey(key, null);
+    }
+    IndexValue value = keyCache.get(key);
+    if (value == null) {
+      long stamp = keyCache.getStamp();
+      value = findKey(key, null);
+      if (value != null) {
+        keyCache.put(key, value, stamp);
+      }
+    }
+    return value;
   }
 
   /**
@@ -423,6 +703,14 @@ public class PersistentIndex {
     final Timer.Context context = metrics.findTime.time();
     try {
       ConcurrentNavigableMap<Long, IndexSegment> segmentsMapToSearch = null;
+      SegmentLocator locator = segmentLocator;
+      if (fileSpan == null && locator != null) {
+        IndexLookupKey lookupKey = new IndexLookupKey(key);
+        long[] segmentStartOffsets = locator.getSegmentStartOffsets(lookupKey.getHash());
+        if (segmentStartOffsets != null) {
+          return findKeyInSegments(lookupKey, segmentStartOffsets);
+        }
+      }
       if (fileSpan == null) {
         logger.trace("Searching for " + key + " in the entire index");
         segmentsMapToSearch = indexes.descendingMap();
@@ -434,9 +722,10 @@ public class PersistentIndex {
             .descendingMap();
         metrics.segmentSizeForExists.update(segmentsMapToSearch.size());
       }
+      IndexLookupKey lookupKey = new IndexLookupKey(key);
       for (Map.Entry<Long, IndexSegment> entry : segmentsMapToSearch.entrySet()) {
         logger.trace("Index : {} searching index with start offset {}", dataDir, entry.getKey());
-        IndexValue value = entry.getValue().find(key);
+        IndexValue value = entry.getValue().find(lookupKey);
         if (value != null) {
           logger.trace("Index : {} found value offset {} size {} ttl {}", dataDir, value.getOffset(), value.getSize(),
               value.getTimeToLiveInMs());
@@ -449,6 +738,35 @@ public class PersistentIndex {
     return null;
   }
 
+  /**
+   * Finds the latest value of a key in the segments that the segment locator returned for it
+   * @param lookupKey The key to find
+   * @param segmentStartOffsets The segment start offsets that the locator returned for the key. An offset can be of a
+   *                            segment that has been merged into the segment before it.
+   * @return The latest value of the key or null if the key is not in the index
+   * @throws StoreException
+   */
+  private IndexValue findKeyInSegments(IndexLookupKey lookupKey, long[] segmentStartOffsets)
+      throws StoreException {
+    TreeMap<Long, IndexSegment> segmentsToSearch = new TreeMap<Long, IndexSegment>();
+    for (long segmentStartOffset : segmentStartOffsets) {
+      Map.Entry<Long, IndexSegment> entry = indexes.floorEntry(segmentStartOffset);
+      if (entry != null) {
+        segmentsToSearch.put(entry.getKey(), entry.getValue());
+      }
+    }
+    metrics.segmentsSearchedWithLocator.update(segmentsToSearch.size());
+    for (IndexSegment segment : segmentsToSearch.descendingMap().values()) {
+      IndexValue value = segment.find(lookupKey);
+      if (value != null) {
+        logger.trace("Index : {} found value offset {} size {} ttl {} in segment {}", dataDir, value.getOffset(),
+            value.getSize(), value.getTimeToLiveInMs(), segment.getStartOffset());
+        return value;
+      }
+    }
+    return null;
+  }
+
   /**
    * Marks the index entry represented by the key for delete
    * @param id The id of the entry that needs to be deleted
@@ -490,6 +808,11 @@ public class PersistentIndex {
         // use the Message format to read and provide the information. The range in log that we provide starts at the
         // original message offset and ends at the delete message's start offset (the original message surely cannot go
         // beyond the start offset of the delete message.
+        if (!log.containsOffset(value.getOriginalMessageOffset())) {
+          // the segment of the log that held the original message has been compacted away
+          throw new StoreException("Id " + id + " has been deleted and compacted in index " + dataDir,
+              StoreErrorCodes.ID_Deleted);
+        }
         try {
           MessageInfo deletedBlobInfo = hardDelete.getMessageInfo(log, value.getOriginalMessageOffset(), factory);
           return new BlobReadOptions(value.getOriginalMessageOffset(), deletedBlobInfo.getSize(),
@@ -503,30 +826,469 @@ public class PersistentIndex {
       }
     } else if (isExpired(value) && !getOptions.contains(StoreGetOptions.Store_Include_Expired)) {
       throw new StoreException("Id " + id + " has expired ttl in index " + dataDir, StoreErrorCodes.TTL_Expired);
+    } else if (!log.containsOffset(value.getOffset())) {
+      // only expired blobs are dropped by compaction while they are still the latest value for their key
+      throw new StoreException("Id " + id + " has expired ttl and has been compacted in index " + dataDir,
+          StoreErrorCodes.TTL_Expired);
     }
     return new BlobReadOptions(value.getOffset(), value.getSize(), value.getTimeToLiveInMs(), id);
   }
 
+  /**
+   * Counts the record of a new entry in the store stats. The bytes of a new put with a time to live are added to the
+   * expiration buckets, and the bytes of the put that a new delete entry deletes are removed from the counts and the
+   * buckets. Must be called before the entry is added to the index.
+   */
+  private void updateByteCounts(IndexEntry entry, FileSpan fileSpan)
+      throws StoreException {
+    IndexValue value = entry.getValue();
+    long segmentStartOffset = log.getSegmentStartOffset(value.getOffset());
+    if (!value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+      if (segmentStartOffset != -1) {
+        statsTracker.addPut(segmentStartOffset, value.getSize(), fileSpan.getEndOffset());
+        if (value.getTimeToLiveInMs() != Utils.Infinite_Time) {
+          expirationBuckets.add(value.getTimeToLiveInMs(), segmentStartOffset, value.getSize());
+        }
+      }
+      return;
+    }
+    if (segmentStartOffset != -1) {
+      statsTracker.addDeleteRecord(segmentStartOffset, value.getSize(), fileSpan.getEndOffset());
+    }
+    // the size of the put is not in the delete entry, so it is taken from the current entry of the key. A delete that
+    // has been moved by compaction finds the earlier delete entry instead.
+    IndexValue putValue = findKey(entry.getKey());
+    if (putValue == null || putValue.isFlagSet(IndexValue.Flags.Delete_Index)) {
+      return;
+    }
+    long putSegmentStartOffset = log.getSegmentStartOffset(putValue.getOffset());
+    if (putSegmentStartOffset == -1) {
+      return;
+    }
+    // while the stats are rebuilt, a put in an index segment that has not been counted yet is left to the rebuild,
+    // which finds that it has been deleted
+    if (putValue.getOffset() < storeStatsRebuiltUpToOffset || putValue.getOffset() >= storeStatsRebuildEndOffset) {
+      statsTracker.removePut(putSegmentStartOffset, putValue.getSize());
+    }
+    if (putValue.getTimeToLiveInMs() != Utils.Infinite_Time && (
+        value.getOriginalMessageOffset() >= expirationBucketsLoadOffset || expirationBucketsLoaded)) {
+      expirationBuckets.remove(putValue.getTimeToLiveInMs(), putSegmentStartOffset, putValue.getSize());
+    }
+  }
+
+  /**
+   * Reads the store stats that were persisted with the index. The records that are recovered after the offset they
+   * were persisted at are counted on top of them.
+   * @return The tracker of the persisted store stats, or null if there are none or they could not be read
+   */
+  private StoreStatsTracker readStoreStats() {
+    try {
+      return StoreStatsTracker.load(dataDir, log);
+    } catch (StoreException e) {
+      logger.error("Index : " + dataDir + " error while reading the persisted store stats, rebuilding them ", e);
+      return null;
+    }
+  }
+
+  /**
+   * Counts the records that were in the index when it was started in the store stats, if the persisted stats could
+   * not be used. The records that are added to the index after it started are counted as they are added. This reads
+   * all the index segments, so it is done once in the background after the store has started, and the stats are not
+   * available until it is done. Every index segment is counted while holding off the entries that are added to the
+   * index, so that a put that is deleted while the stats are rebuilt is either counted and removed or not counted.
+   * @throws StoreException
+   */
+  void rebuildStoreStats()
+      throws StoreException {
+    if (storeStatsAvailable) {
+      return;
+    }
+    final Timer.Context context = metrics.storeStatsRebuildTime.time();
+    long endOffset = storeStatsRebuildEndOffset;
+    segmentsLock.readLock().lock();
+    try {
+      for (Map.Entry<Long, IndexSegment> segmentEntry : indexes.headMap(endOffset).entrySet()) {
+        synchronized (storeStatsLock) {
+          List<IndexEntry> entries = new ArrayList<IndexEntry>();
+          segmentEntry.getValue().getIndexEntries(entries);
+          // log segment start offset -> {put bytes, delete record bytes} of the records that are the latest for their key
+          Map<Long, long[]> latestRecordBytes = new HashMap<Long, long[]>();
+          for (IndexEntry entry : entries) {
+            IndexValue value = entry.getValue();
+            long segmentStartOffset = log.getSegmentStartOffset(value.getOffset());
+            if (value.getOffset() >= endOffset || segmentStartOffset == -1) {
+              continue;
+            }
+            IndexValue latestValue = findKey(entry.getKey());
+            if (latestValue == null || latestValue.getOffset() != value.getOffset()) {
+              continue;
+            }
+            long[] bytes = latestRecordBytes.get(segmentStartOffset);
+            if (bytes == null) {
+              bytes = new long[2];
+              latestRecordBytes.put(segmentStartOffset, bytes);
+            }
+            bytes[value.isFlagSet(IndexValue.Flags.Delete_Index) ? 1 : 0] += value.getSize();
+          }
+          for (Map.Entry<Long, long[]> bytes : latestRecordBytes.entrySet()) {
+            statsTracker.addSegment(bytes.getKey(), 0, bytes.getValue()[0], bytes.getValue()[1], endOffset);
+          }
+          Long nextSegmentStartOffset = indexes.higherKey(segmentEntry.getKey());
+          storeStatsRebuiltUpToOffset =
+              nextSegmentStartOffset == null ? endOffset : Math.min(nextSegmentStartOffset, endOffset);
+        }
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while rebuilding the store stats of index " + dataDir, e,
+          StoreErrorCodes.IOError);
+    } finally {
+      segmentsLock.readLock().unlock();
+      context.stop();
+    }
+    for (LogSegment segment : log.getSegments()) {
+      if (segment.getStartOffset() >= endOffset) {
+        break;
+      }
+      statsTracker.addSegment(segment.getStartOffset(),
+          Math.min(segment.getEndOffset(), endOffset) - segment.getStartOffset(), 0, 0, endOffset);
+    }
+    storeStatsRebuiltUpToOffset = Long.MAX_VALUE;
+    storeStatsAvailable = true;
+    logger.info("Index : {} rebuilt store stats up to offset {} : {}", dataDir, endOffset,
+        statsTracker.getStats(0));
+  }
+
+  /**
+   * @return true if the store stats can be used, false while they are rebuilt after startup
+   */
+  boolean isStoreStatsAvailable() {
+    return storeStatsAvailable;
+  }
+
+  /**
+   * Records that the records of a log segment are about to be moved by compaction. Recovery only accepts a record
+   * that is found again at a new offset if the record it replaces is in such a segment.
+   * @param segmentStartOffset The start offset of the log segment
+   * @param segmentEndOffset The end offset of the log segment
+   * @throws StoreException
+   */
+  void addCompactedSegment(long segmentStartOffset, long segmentEndOffset)
+      throws StoreException {
+    compactedSegments.add(segmentStartOffset, segmentEndOffset);
+  }
+
+  /**
+   * Persists the index, so that the entries of the records that have been moved out of the compacted segments are
+   * persisted before the segments are deleted
+   * @throws StoreException
+   */
+  void persistIndex()
+      throws StoreException {
+    persistor.write();
+  }
+
+  /**
+   * Drops the counts of a log segment that has been removed from the log, and the record that its records were being
+   * moved by compaction
+   * @param segmentStartOffset The start offset of the log segment
+   * @throws StoreException
+   */
+  void removeSegmentCounts(long segmentStartOffset)
+      throws StoreException {
+    statsTracker.removeSegment(segmentStartOffset);
+    expirationBuckets.removeSegment(segmentStartOffset);
+    compactedSegments.remove(segmentStartOffset);
+  }
+
+  /**
+   * @return The segments of the index in the order of their start offsets
+   */
+  List<IndexSegment> getIndexSegments() {
+    segmentsLock.readLock().lock();
+    try {
+      return new ArrayList<IndexSegment>(indexes.values());
+    } finally {
+      segmentsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces adjacent mapped segments with a single segment that holds the latest value of every key in them. The
+   * merged segment is written and mapped before it replaces the segments, so lookups are never blocked. Lookups go
+   * through the segments from the latest one, and the merged segment is added before the segments after its start
+   * offset are removed, so a lookup finds the latest value of a key while the segments are replaced. The files of the
+   * replaced segments are deleted after they are replaced, while the lookups that are still reading them can go on
+   * with their mapped buffers.
+   * @param segments The adjacent mapped segments to merge, in the order of their start offsets
+   * @return The merged segment
+   * @throws StoreException
+   */
+  IndexSegment mergeSegments(List<IndexSegment> segments)
+      throws StoreException {
+    final Timer.Context context = metrics.indexSegmentMergeTime.time();
+    try {
+      IndexSegment merged = IndexSegment.createMergedSegment(segments, dataDir, factory, config, metrics);
+      segmentsLock.writeLock().lock();
+      try {
+        indexes.put(merged.getStartOffset(), merged);
+        for (int i = 1; i < segments.size(); i++) {
+          indexes.remove(segments.get(i).getStartOffset());
+        }
+      } finally {
+        segmentsLock.writeLock().unlock();
+      }
+      for (int i = 0; i < segments.size(); i++) {
+        segments.get(i).deleteFiles(i > 0);
+      }
+      metrics.indexSegmentsMergedCount.inc(segments.size());
+      logger.info("Index : {} merged {} segments into segment {} with start offset {} and end offset {}", dataDir,
+          segments.size(), merged.getFile().getAbsolutePath(), merged.getStartOffset(), merged.getEndOffset());
+      return merged;
+    } catch (IOException e) {
+      throw new StoreException("IO error while merging the segments of index " + dataDir, e, StoreErrorCodes.IOError);
+    } finally {
+      context.stop();
+    }
+  }
+
+  /**
+   * @return The breakdown of the bytes of the records in the log of the store, or null while the stats are rebuilt
+   */
+  public StoreStats getStoreStats() {
+    return storeStatsAvailable ? statsTracker.getStats(expirationBuckets.getExpiredBytes()) : null;
+  }
+
+  /**
+   * Adds the puts with a time to live that were in the index when it was started to the expiration buckets. The puts
+   * that are added to the index after it started are added to the buckets as they are added. This reads all the index
+   * segments, so it is done once in the background after the store has started.
+   * @throws StoreException
+   */
+  void loadExpirationBuckets()
+      throws StoreException {
+    if (expirationBucketsLoaded) {
+      return;
+    }
+    long loadedBytes = 0;
+    segmentsLock.readLock().lock();
+    try {
+      for (IndexSegment segment : indexes.headMap(expirationBucketsLoadOffset).values()) {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        segment.getIndexEntries(entries);
+        for (IndexEntry entry : entries) {
+          IndexValue value = entry.getValue();
+          if (value.getTimeToLiveInMs() == Utils.Infinite_Time || value.isFlagSet(IndexValue.Flags.Delete_Index)
+              || value.getOffset() >= expirationBucketsLoadOffset) {
+            continue;
+          }
+          // only the latest put of a key that has not been deleted or moved holds space until it expires
+          IndexValue latestValue = findKey(entry.getKey());
+          long segmentStartOffset = log.getSegmentStartOffset(value.getOffset());
+          if (latestValue != null && latestValue.getOffset() == value.getOffset() && segmentStartOffset != -1) {
+            expirationBuckets.add(value.getTimeToLiveInMs(), segmentStartOffset, value.getSize());
+            loadedBytes += value.getSize();
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while loading the expiration buckets of index " + dataDir, e,
+          StoreErrorCodes.IOError);
+    } finally {
+      segmentsLock.readLock().unlock();
+    }
+    expirationBucketsLoaded = true;
+    logger.info("Index : {} loaded {} bytes with a time to live into {} expiration buckets", dataDir, loadedBytes,
+        expirationBuckets.getNumberOfBuckets());
+  }
+
+  /**
+   * @return The buckets of the bytes in the store that have a time to live
+   */
+  ExpirationBuckets getExpirationBuckets() {
+    return expirationBuckets;
+  }
+
+  /**
+   * @return The bytes in the store that are known to have expired and have not been reclaimed yet
+   */
+  public long getExpiredBytes() {
+    return expirationBuckets.getExpiredBytes();
+  }
+
+  /**
+   * @return The bytes in the store that have a time to live and have not expired yet
+   */
+  public long getBytesPendingExpiration() {
+    return expirationBuckets.getPendingBytes();
+  }
+
   private boolean isExpired(IndexValue value){
     return value.getTimeToLiveInMs() != Utils.Infinite_Time && time.milliseconds() > value.getTimeToLiveInMs();
   }
 
+  /**
+   * Returns the bytes of the records in a log segment that are still live from the store stats, without reading the
+   * index. Puts that have expired are only left out once their expiration bucket has expired.
+   * @param segmentStartOffset The start offset of the log segment
+   * @return The live bytes of the segment, or -1 while the store stats are rebuilt
+   */
+  long getLiveBytesInSegment(long segmentStartOffset) {
+    if (!storeStatsAvailable) {
+      return -1;
+    }
+    long validBytes = statsTracker.getValidBytes(segmentStartOffset);
+    return Math.max(validBytes - expirationBuckets.getExpiredBytes(segmentStartOffset), 0);
+  }
+
+  /**
+   * Returns the entries of records in the given range of the log that are still live. A record is live if it is the
+   * latest value for its key and is not an expired put. Delete records are always live. The entries in the range are
+   * read first and then checked one by one outside the lock of the segments, at the rate allowed by the throttler.
+   * @param startOffset The start offset of the range in the log
+   * @param endOffset The end offset of the range in the log
+   * @param throttler The throttler that is told about the bytes of the index entries that are checked
+   * @return The live entries in the range, ordered by their offset in the log
+   * @throws StoreException
+   * @throws InterruptedException
+   */
+  List<IndexEntry> getLiveEntriesInRange(long startOffset, long endOffset, Throttler throttler)
+      throws StoreException, InterruptedException {
+    List<IndexEntry> entriesInRange = new ArrayList<IndexEntry>();
+    segmentsLock.readLock().lock();
+    try {
+      Long fromKey = indexes.floorKey(startOffset);
+      ConcurrentNavigableMap<Long, IndexSegment> segmentsToSearch =
+          indexes.subMap(fromKey == null ? startOffset : fromKey, true, endOffset, false);
+      for (IndexSegment segment : segmentsToSearch.values()) {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        segment.getIndexEntries(entries);
+        for (IndexEntry entry : entries) {
+          long offset = entry.getValue().getOffset();
+          if (offset >= startOffset && offset < endOffset) {
+            entriesInRange.add(entry);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while reading the entries of index " + dataDir, e, StoreErrorCodes.IOError);
+    } finally {
+      segmentsLock.readLock().unlock();
+    }
+    List<IndexEntry> liveEntries = new ArrayList<IndexEntry>();
+    for (IndexEntry entry : entriesInRange) {
+      if (isLive(entry.getKey(), entry.getValue().getOffset())) {
+        liveEntries.add(entry);
+      }
+      throttler.maybeThrottle(entry.getKey().sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
+    }
+    Collections.sort(liveEntries, new Comparator<IndexEntry>() {
+      @Override
+      public int compare(IndexEntry o1, IndexEntry o2) {
+        return Long.compare(o1.getValue().getOffset(), o2.getValue().getOffset());
+      }
+    });
+    return liveEntries;
+  }
+
+  /**
+   * Checks if the record of a key at the given offset in the log is live
+   * @param key The key of the record
+   * @param offset The offset of the record in the log
+   * @return true if the record is the latest value of the key and is not an expired put
+   * @throws StoreException
+   */
+  boolean isLive(StoreKey key, long offset)
+      throws StoreException {
+    IndexValue value = findKey(key);
+    return value != null && value.getOffset() == offset && (value.isFlagSet(IndexValue.Flags.Delete_Index)
+        || !isExpired(value));
+  }
+
+  /**
+   * Adds an entry for a record that has been copied to the end of the log by compaction. The new entry supersedes
+   * the entry at the old offset.
+   * @param entry The entry of the record at its old offset
+   * @param fileSpan The file span that the copied record occupies in the log
+   * @throws StoreException
+   */
+  void addRelocatedEntry(IndexEntry entry, FileSpan fileSpan)
+      throws StoreException {
+    IndexValue value = entry.getValue();
+    // the bytes of the record are counted again at the new offset
+    long segmentStartOffset = log.getSegmentStartOffset(value.getOffset());
+    if (segmentStartOffset != -1) {
+      if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+        statsTracker.removeDeleteRecord(segmentStartOffset, value.getSize());
+      } else {
+        statsTracker.removePut(segmentStartOffset, value.getSize());
+        if (value.getTimeToLiveInMs() != Utils.Infinite_Time) {
+          expirationBuckets.remove(value.getTimeToLiveInMs(), segmentStartOffset, value.getSize());
+        }
+      }
+    }
+    IndexValue newValue = new IndexValue(value.getSize(), fileSpan.getStartOffset(), value.getFlags(),
+        value.getTimeToLiveInMs(), value.isFlagSet(IndexValue.Flags.Delete_Index) ? value.getOriginalMessageOffset()
+        : fileSpan.getStartOffset());
+    addToIndex(new IndexEntry(entry.getKey(), newValue), fileSpan);
+  }
+
   /**
    * Returns the list of keys that are not found in the index from the given input keys. This also checks
-   * keys that are marked for deletion and those that have an expired ttl
+   * keys that are marked for deletion and those that have an expired ttl. The keys are sorted once and every segment
+   * is searched once for all the keys that have not been found in the newer segments, which stops as soon as all the
+   * keys are found.
    * @param keys The list of keys that needs to be tested against the index
    * @return The list of keys that are not found in the index
    * @throws StoreException
    */
   public Set<StoreKey> findMissingKeys(List<StoreKey> keys)
       throws StoreException {
-    Set<StoreKey> missingKeys = new HashSet<StoreKey>();
-    for (StoreKey key : keys) {
-      if (findKey(key) == null) {
-        missingKeys.add(key);
+    final Timer.Context context = metrics.findMissingKeysTime.time();
+    try {
+      // the keys that are in the key cache are in the index, so only the rest need to be searched for
+      Set<StoreKey> keysToFind = new TreeSet<StoreKey>();
+      for (StoreKey key : keys) {
+        if (keyCache == null || keyCache.get(key) == null) {
+          keysToFind.add(key);
+        }
+      }
+      List<IndexLookupKey> remainingKeys = new ArrayList<IndexLookupKey>(keysToFind.size());
+      for (StoreKey key : keysToFind) {
+        remainingKeys.add(new IndexLookupKey(key));
       }
+      int segmentsSearched = 0;
+      for (Map.Entry<Long, IndexSegment> entry : indexes.descendingMap().entrySet()) {
+        if (remainingKeys.isEmpty()) {
+          break;
+        }
+        logger.trace("Index : {} searching index with start offset {} for {} keys", dataDir, entry.getKey(),
+            remainingKeys.size());
+        List<IndexLookupKey> foundKeys = entry.getValue().findKeys(remainingKeys);
+        segmentsSearched++;
+        if (!foundKeys.isEmpty()) {
+          // both lists are in key order, so the keys that were not found can be picked out in a single pass
+          List<IndexLookupKey> keysNotFound = new ArrayList<IndexLookupKey>(remainingKeys.size() - foundKeys.size());
+          Iterator<IndexLookupKey> foundKeysIterator = foundKeys.iterator();
+          IndexLookupKey nextFoundKey = foundKeysIterator.next();
+          for (IndexLookupKey key : remainingKeys) {
+            if (key == nextFoundKey) {
+              nextFoundKey = foundKeysIterator.hasNext() ? foundKeysIterator.next() : null;
+            } else {
+              keysNotFound.add(key);
+            }
+          }
+          remainingKeys = keysNotFound;
+        }
+      }
+      metrics.segmentsSearchedForMissingKeys.update(segmentsSearched);
+      Set<StoreKey> missingKeys = new HashSet<StoreKey>();
+      for (IndexLookupKey key : remainingKeys) {
+        missingKeys.add(key.getKey());
+      }
+      return missingKeys;
+    } finally {
+      context.stop();
     }
-    return missingKeys;
   }
 
   /**
@@ -707,7 +1469,9 @@ public class PersistentIndex {
   /**
    * Finds entries starting from a key from the segment with start offset initialSegmentStartOffset. The key represents
    * the position in the segment starting from where entries needs to be fetched.
-   * @param initialSegmentStartOffset The segment start offset of the segment to start reading entries from.
+   * @param initialSegmentStartOffset The segment start offset of the segment to start reading entries from. If the
+   *                                  key is not null, this is the token offset of the segment, which can be that of a
+   *                                  segment that has since been merged into an earlier segment.
    * @param key The key representing the position (exclusive) in the segment to start reading entries from. If the key
    *            is null, all the keys will be read.
    * @param messageEntries the list to be populated with the MessageInfo for every entry that is read.
@@ -718,7 +1482,24 @@ public class PersistentIndex {
   private StoreFindToken findEntriesFromSegmentStartOffset(long initialSegmentStartOffset, StoreKey key,
       List<MessageInfo> messageEntries, FindEntriesCondition findEntriesCondition)
       throws IOException, StoreException {
-    long segmentStartOffset = initialSegmentStartOffset;
+    segmentsLock.readLock().lock();
+    try {
+      return findEntriesFromSegmentStartOffsetLocked(initialSegmentStartOffset, key, messageEntries,
+          findEntriesCondition);
+    } finally {
+      segmentsLock.readLock().unlock();
+    }
+  }
+
+  private StoreFindToken findEntriesFromSegmentStartOffsetLocked(long initialSegmentStartOffset, StoreKey key,
+      List<MessageInfo> messageEntries, FindEntriesCondition findEntriesCondition)
+      throws IOException, StoreException {
+    Map.Entry<Long, IndexSegment> initialSegmentEntry = indexes.floorEntry(initialSegmentStartOffset);
+    if (initialSegmentEntry == null) {
+      throw new IllegalArgumentException("Index : " + dataDir +
+          " findEntriesFromOffset segment start offset " + initialSegmentStartOffset + " is before the first segment");
+    }
+    long segmentStartOffset = initialSegmentEntry.getKey();
     if (segmentStartOffset == indexes.lastKey()) {
       // We would never have given away a token with a segmentStartOffset of the latest segment.
       throw new IllegalArgumentException("Index : " + dataDir +
@@ -728,16 +1509,25 @@ public class PersistentIndex {
     long newTokenSegmentStartOffset = StoreFindToken.Uninitialized_Offset;
     long newTokenOffsetInJournal = StoreFindToken.Uninitialized_Offset;
 
-    IndexSegment segmentToProcess = indexes.get(segmentStartOffset);
+    IndexSegment segmentToProcess = initialSegmentEntry.getValue();
     AtomicLong currentTotalSizeOfEntries = new AtomicLong(0);
 
+    if (key != null && segmentToProcess.getTokenOffset() != initialSegmentStartOffset) {
+      /* The segment of the token has been merged with the segments before it since the token was given away. The
+         entries of the segments before it were all read, but their keys are interleaved with the keys that were not,
+         so the merged segment is read from its first key. */
+      logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + initialSegmentStartOffset
+          + " has been merged into the segment with start offset " + segmentStartOffset);
+      key = null;
+    }
+
     /* First, get keys from the segment corresponding to the passed in segment start offset if the token has a non-null
        key. Otherwise, since all the keys starting from the offset have to be read, skip this and check in the journal
        first. */
     if (key != null) {
       if (segmentToProcess.getEntriesSince(key, findEntriesCondition, messageEntries, currentTotalSizeOfEntries)) {
         // if we did fetch entries from this segment, set the new token info accordingly.
-        newTokenSegmentStartOffset = segmentStartOffset;
+        newTokenSegmentStartOffset = segmentToProcess.getTokenOffset();
       }
       logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + segmentStartOffset +
           " with key " + key + " total entries received " + messageEntries.size());
@@ -791,7 +1581,7 @@ public class PersistentIndex {
       } else {
         // Read and populate from the first key in the segment with this segmentStartOffset
         if (segmentToProcess.getEntriesSince(null, findEntriesCondition, messageEntries, currentTotalSizeOfEntries)) {
-          newTokenSegmentStartOffset = segmentStartOffset;
+          newTokenSegmentStartOffset = segmentToProcess.getTokenOffset();
         }
         logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + segmentStartOffset +
             " with all the keys, total entries received " + messageEntries.size());
@@ -886,6 +1676,14 @@ public class PersistentIndex {
     } catch (Exception e) {
       logger.error("Index : " + dataDir + " error while persisting cleanup token ", e);
     }
+    // the stats are persisted again to include the hard deletes done before the hard delete thread stopped
+    try {
+      if (storeStatsAvailable) {
+        statsTracker.persist(dataDir);
+      }
+    } catch (StoreException e) {
+      logger.error("Index : " + dataDir + " error while persisting store stats ", e);
+    }
     File cleanShutdownFile = new File(dataDir, Clean_Shutdown_Filename);
     try {
       cleanShutdownFile.createNewFile();
@@ -1010,7 +1808,7 @@ public class PersistentIndex {
      * The last index segment is flushed whenever write is invoked.
      * @throws StoreException
      */
-    public void write()
+    public synchronized void write()
         throws StoreException {
       final Timer.Context context = metrics.indexFlushTime.time();
       try {
@@ -1047,7 +1845,12 @@ public class PersistentIndex {
             Map.Entry<Long, IndexSegment> infoEntry = indexes.lowerEntry(prevInfo.getStartOffset());
             prevInfo = infoEntry != null ? infoEntry.getValue() : null;
           }
-          currentInfo.writeIndexToFile(currentIndexEndOffsetBeforeFlush);
+          currentInfo.writeDeltaToFile(currentIndexEndOffsetBeforeFlush);
+        }
+        // the stats are persisted after the index, so they count at least the records in the persisted index. They
+        // are not persisted while they are rebuilt.
+        if (storeStatsAvailable) {
+          statsTracker.persist(dataDir);
         }
       } catch (IOException e) {
         throw new StoreException("IO error while writing index to file", e, StoreErrorCodes.IOError);
@@ -1166,6 +1969,21 @@ public class PersistentIndex {
         }
       }
     }
+
+    /**
+     * Prunes entries for messages that are in segments that have been removed from the log by compaction.
+     */
+    void pruneCompacted() {
+      Iterator<BlobReadOptions> blobReadOptionsListIterator = blobReadOptionsList.iterator();
+      Iterator<byte[]> messageStoreRecoveryListIterator = messageStoreRecoveryInfoList.iterator();
+      while (blobReadOptionsListIterator.hasNext()) {
+        messageStoreRecoveryListIterator.next();
+        if (!log.containsOffset(blobReadOptionsListIterator.next().getOffset())) {
+          blobReadOptionsListIterator.remove();
+          messageStoreRecoveryListIterator.remove();
+        }
+      }
+    }
   }
 
   protected class HardDeleteThread implements Runnable {
@@ -1239,6 +2057,7 @@ public class PersistentIndex {
         throws StoreException {
       try {
         readCleanupTokenAndPopulateRecoveryRange();
+        hardDeleteRecoveryRange.pruneCompacted();
         if (hardDeleteRecoveryRange.getSize() == 0) {
           return;
         }
@@ -1455,6 +2274,7 @@ public class PersistentIndex {
         }
 
         List<LogWriteInfo> logWriteInfoList = new ArrayList<LogWriteInfo>();
+        List<BlobReadOptions> hardDeletedList = new ArrayList<BlobReadOptions>();
 
         StoreMessageReadSet readSet = log.getView(readOptionsList);
         Iterator<HardDeleteInfo> hardDeleteIterator = hardDelete.getHardDeleteMessages(readSet, factory, null);
@@ -1476,6 +2296,7 @@ public class PersistentIndex {
             logWriteInfoList.add(new LogWriteInfo(hardDeleteInfo.getHardDeleteChannel(),
                 readOptions.getOffset() + hardDeleteInfo.getStartOffsetInMessage(),
                 hardDeleteInfo.getHardDeletedMessageSize()));
+            hardDeletedList.add(readOptions);
           }
         }
 
@@ -1497,6 +2318,9 @@ public class PersistentIndex {
           metrics.hardDeleteDoneCount.inc(1);
           throttler.maybeThrottle(logWriteInfo.size);
         }
+        for (BlobReadOptions readOptions : hardDeletedList) {
+          statsTracker.addHardDeleted(log.getSegmentStartOffset(readOptions.getOffset()), readOptions.getSize());
+        }
       } catch (InterruptedException e) {
         if (running.get()) {
           // We throw here because we do not want the tokens to be updated.
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloom.zerofs.api.store.StoreKey;
+
+
+/**
+ * A journal that keeps the most recent entries of a store in a fixed size ring buffer sorted by offset. The offsets
+ * are kept in a primitive array next to the entries, so finding the start of a range is a binary search over the
+ * offsets, and adding an entry when the journal is full overwrites the oldest entry instead of removing it.
+ * <p/>
+ * There can only be one writer at a time, while readers do not lock. An entry is only written to a position in the
+ * buffer after the oldest entry is moved past it, so a reader can tell that the entries it read were not overwritten
+ * by checking that the oldest entry has not moved past them. Entries are normally added in offset order. Adding an
+ * entry with an older offset, which only happens while the index is loaded or recovered, shifts the newer entries and
+ * makes concurrent readers retry.
+ */
+class RingBufferJournal implements Journal {
+  private static final int Max_Optimistic_Read_Attempts = 3;
+
+  private final AtomicLongArray offsets;
+  private final AtomicReferenceArray<JournalEntry> entries;
+  private final int capacity;
+  private final int maxEntriesToReturn;
+  private final String dataDir;
+  // the positions of the oldest entry and the position after the newest entry. They only grow and are mapped to
+  // the buffer modulo the capacity.
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  // odd while existing entries are being moved or replaced
+  private volatile long modificationCount = 0;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param dataDir The directory of the store that the journal belongs to
+   * @param maxEntriesToJournal The max number of entries to journal. The oldest entry is overwritten after the size
+   *                            is reached.
+   * @param maxEntriesToReturn The max number of entries to return from the journal when queried for entries.
+   */
+  public RingBufferJournal(String dataDir, int maxEntriesToJournal, int maxEntriesToReturn) {
+    if (maxEntriesToJournal <= 0) {
+      throw new IllegalArgumentException("Invalid journal size " + maxEntriesToJournal + " for " + dataDir);
+    }
+    this.capacity = maxEntriesToJournal;
+    this.offsets = new AtomicLongArray(maxEntriesToJournal);
+    this.entries = new AtomicReferenceArray<JournalEntry>(maxEntriesToJournal);
+    this.maxEntriesToReturn = maxEntriesToReturn;
+    this.dataDir = dataDir;
+  }
+
+  /**
+   * The entry that needs to be added to the journal.
+   * @param offset The offset that the key pertains to. If an entry with the offset is already present, its key is
+   *               replaced.
+   * @param key The key that the entry in the journal refers to.
+   */
+  @Override
+  public synchronized void addEntry(long offset, StoreKey key) {
+    if (key == null || offset < 0) {
+      throw new IllegalArgumentException("Invalid arguments passed to add to the journal");
+    }
+    long currentHead = head;
+    long currentTail = tail;
+    JournalEntry entry = new JournalEntry(offset, key);
+    if (currentTail == currentHead || offset > offsets.get(index(currentTail - 1))) {
+      if (currentTail - currentHead == capacity) {
+        // move the head before the oldest entry is overwritten
+        head = currentHead + 1;
+      }
+      set(currentTail, entry);
+      tail = currentTail + 1;
+    } else {
+      insert(currentHead, currentTail, entry);
+    }
+    logger.trace("Journal : {} offset {} key {} number of entries {}", dataDir, offset, key, tail - head);
+  }
+
+  /**
+   * Gets all the entries from the journal starting at the provided offset and till the maxEntriesToReturn or the
+   * end of the journal is reached.
+   * @param offset The offset from where the journal needs to return entries.
+   * @param inclusive true, if this offset is to be included in the returned entries.
+   * @return The entries in the journal starting from offset. If the offset is not in the journal, it returns null.
+   */
+  @Override
+  public List<JournalEntry> getEntriesSince(long offset, boolean inclusive) {
+    for (int attempt = 0; attempt < Max_Optimistic_Read_Attempts; attempt++) {
+      long modificationCountBeforeRead = modificationCount;
+      if ((modificationCountBeforeRead & 1) == 0) {
+        long currentHead = head;
+        long currentTail = tail;
+        long position = find(currentHead, currentTail, offset);
+        JournalEntry[] entriesSince = position == -1 ? null : read(position, currentTail, inclusive);
+        // the entries read are valid if no entry was moved and the oldest entry was not moved past the first one
+        // read. If the offset was not found, no entry may have been overwritten during the search.
+        if (modificationCount == modificationCountBeforeRead && head <= (position == -1 ? currentHead : position)) {
+          return toList(entriesSince);
+        }
+      }
+    }
+    // the journal is changing too fast to read without a lock
+    synchronized (this) {
+      long position = find(head, tail, offset);
+      return toList(position == -1 ? null : read(position, tail, inclusive));
+    }
+  }
+
+  @Override
+  public long getFirstOffset() {
+    return getOffsetAtEnd(true);
+  }
+
+  @Override
+  public long getLastOffset() {
+    return getOffsetAtEnd(false);
+  }
+
+  private long getOffsetAtEnd(boolean first) {
+    for (int attempt = 0; attempt < Max_Optimistic_Read_Attempts; attempt++) {
+      long modificationCountBeforeRead = modificationCount;
+      long currentHead = head;
+      long currentTail = tail;
+      if (currentTail == currentHead) {
+        return -1;
+      }
+      long offset = offsets.get(index(first ? currentHead : currentTail - 1));
+      if ((modificationCountBeforeRead & 1) == 0 && modificationCount == modificationCountBeforeRead
+          && head == currentHead) {
+        return offset;
+      }
+    }
+    synchronized (this) {
+      return tail == head ? -1 : offsets.get(index(first ? head : tail - 1));
+    }
+  }
+
+  /**
+   * Adds an entry whose offset is not greater than the offset of the newest entry. The newer entries are shifted
+   * one position to make space for it, or its key replaces the key of the entry with the same offset.
+   */
+  private void insert(long currentHead, long currentTail, JournalEntry entry) {
+    long low = currentHead;
+    long high = currentTail;
+    // find the first position whose offset is not less than the offset of the entry
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (offsets.get(index(mid)) < entry.getOffset()) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    boolean full = currentTail - currentHead == capacity;
+    if (low == currentHead && full && offsets.get(index(low)) != entry.getOffset()) {
+      // the entry is older than all the entries of a full journal
+      return;
+    }
+    modificationCount++;
+    try {
+      if (offsets.get(index(low)) == entry.getOffset()) {
+        set(low, entry);
+      } else {
+        if (full) {
+          head = currentHead + 1;
+        }
+        for (long position = currentTail; position > low; position--) {
+          set(position, entries.get(index(position - 1)));
+        }
+        set(low, entry);
+        tail = currentTail + 1;
+      }
+    } finally {
+      modificationCount++;
+    }
+  }
+
+  /**
+   * Finds the position of the entry with the given offset between the given positions
+   * @return The position of the entry or -1 if the offset is not in the journal
+   */
+  private long find(long currentHead, long currentTail, long offset) {
+    long low = currentHead;
+    long high = currentTail - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      long midOffset = offsets.get(index(mid));
+      if (midOffset == offset) {
+        return mid;
+      } else if (midOffset < offset) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return -1;
+  }
+
+  private JournalEntry[] read(long position, long currentTail, boolean inclusive) {
+    int entriesToReturn = (int) Math.min(currentTail - position, maxEntriesToReturn);
+    long from = inclusive ? position : position + 1;
+    int numberOfEntries = (int) Math.max(Math.min(entriesToReturn, currentTail - from), 0);
+    JournalEntry[] entriesSince = new JournalEntry[numberOfEntries];
+    for (int i = 0; i < numberOfEntries; i++) {
+      entriesSince[i] = entries.get(index(from + i));
+    }
+    return entriesSince;
+  }
+
+  private List<JournalEntry> toList(JournalEntry[] entriesSince) {
+    if (entriesSince == null) {
+      return null;
+    }
+    logger.trace("Journal : {} entries returned {}", dataDir, entriesSince.length);
+    return Arrays.asList(entriesSince);
+  }
+
+  private void set(long position, JournalEntry entry) {
+    int index = index(position);
+    offsets.set(index, entry.getOffset());
+    entries.set(index, entry);
+  }
+
+  private int index(long position) {
+    return (int) (position % capacity);
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A cuckoo filter over all the keys of an index that maps a short fingerprint of a key to the start offset of the
+ * segment that the key was added to. A lookup gets the start offsets of the few segments that can have the key instead
+ * of searching every segment. Every slot holds a 16 bit fingerprint and a 48 bit segment start offset in a long.
+ * A key can be in one of two buckets of four slots, and a key whose buckets are full moves the keys in its way to
+ * their other buckets.
+ * <p/>
+ * A key that is added again is added with the segment of its new value, and the slot of its earlier value is left in
+ * place, since it cannot be told apart from a key with the same fingerprint. The offsets of segments that have been
+ * merged into an earlier segment are not updated either, so they are to be mapped to the segment whose range has them.
+ * The locator counts the slots that are used, so that it can be rebuilt with only the latest value of every key once
+ * the slots of earlier values have taken up half of the slots that were free when it was built.
+ * <p/>
+ * If a key cannot be added because the filter is full, or its segment start offset does not fit in 48 bits, the
+ * filter is incomplete and can no longer be used for lookups. Adds are synchronized. Lookups are not, and retry if a
+ * key was moved while they read its buckets.
+ */
+class SegmentLocator {
+  private static final int Slots_Per_Bucket = 4;
+  private static final int Slot_Size_In_Bytes = 8;
+  private static final int Max_Kicks = 500;
+  private static final int Fingerprint_Shift = 48;
+  private static final long Offset_Mask = (1L << Fingerprint_Shift) - 1;
+
+  private final AtomicLongArray slots;
+  private final int bucketMask;
+  // odd while keys are being moved between buckets
+  private final AtomicLong version = new AtomicLong(0);
+  private volatile boolean complete = true;
+  private long kickSeed = 0;
+  private int usedSlots = 0;
+  // the slots that were used when the locator was built, or -1 while it is being built
+  private int usedSlotsWhenBuilt = -1;
+  private boolean completeWhenBuilt = false;
+
+  /**
+   * @param sizeInBytes The max memory to use for the slots
+   */
+  SegmentLocator(long sizeInBytes) {
+    long numberOfBuckets = Math.max(sizeInBytes / (Slots_Per_Bucket * Slot_Size_In_Bytes), 1);
+    numberOfBuckets = Math.min(Long.highestOneBit(numberOfBuckets), Integer.MAX_VALUE / Slots_Per_Bucket + 1);
+    slots = new AtomicLongArray((int) numberOfBuckets * Slots_Per_Bucket);
+    bucketMask = (int) numberOfBuckets - 1;
+  }
+
+  /**
+   * Adds a key to the locator
+   * @param hash The hash of the key
+   * @param segmentStartOffset The start offset of the segment that the key has been added to
+   */
+  synchronized void add(long[] hash, long segmentStartOffset) {
+    if (!complete) {
+      return;
+    }
+    if ((segmentStartOffset & ~Offset_Mask) != 0) {
+      complete = false;
+      return;
+    }
+    long fingerprint = getFingerprint(hash);
+    long slotValue = (fingerprint << Fingerprint_Shift) | segmentStartOffset;
+    int bucket = getBucket(hash);
+    int alternateBucket = getAlternateBucket(bucket, fingerprint);
+    if (contains(bucket, slotValue) || contains(alternateBucket, slotValue)) {
+      return;
+    }
+    if (addToBucket(bucket, slotValue) || addToBucket(alternateBucket, slotValue)) {
+      return;
+    }
+    version.incrementAndGet();
+    try {
+      for (int kick = 0; kick < Max_Kicks; kick++) {
+        int slot = bucket * Slots_Per_Bucket + (int) ((kickSeed++) & (Slots_Per_Bucket - 1));
+        long evicted = slots.getAndSet(slot, slotValue);
+        slotValue = evicted;
+        bucket = getAlternateBucket(bucket, evicted >>> Fingerprint_Shift);
+        if (addToBucket(bucket, slotValue)) {
+          return;
+        }
+      }
+      // the key that was moved out last has no slot left
+      complete = false;
+    } finally {
+      version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the start offsets of the segments that can have a key. These include the segment with the latest value of
+   * the key if the key is in the index, and can include segments that do not have the key.
+   * @param hash The hash of the key
+   * @return The segment start offsets, or null if the locator is incomplete and the key needs to be searched for in all
+   * the segments
+   */
+  long[] getSegmentStartOffsets(long[] hash) {
+    long fingerprint = getFingerprint(hash);
+    int bucket = getBucket(hash);
+    int alternateBucket = getAlternateBucket(bucket, fingerprint);
+    long[] offsets = new long[2 * Slots_Per_Bucket];
+    while (true) {
+      long versionBeforeRead = version.get();
+      if ((versionBeforeRead & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      int count = collect(bucket, fingerprint, offsets, 0);
+      if (alternateBucket != bucket) {
+        count = collect(alternateBucket, fingerprint, offsets, count);
+      }
+      if (!complete) {
+        return null;
+      }
+      if (version.get() == versionBeforeRead) {
+        return Arrays.copyOf(offsets, count);
+      }
+    }
+  }
+
+  /**
+   * @return true if every key that was added can be found
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Marks the locator as built from the keys in the index. The keys that are added after this are counted towards
+   * the need for a rebuild.
+   */
+  synchronized void markBuilt() {
+    usedSlotsWhenBuilt = usedSlots;
+    completeWhenBuilt = complete;
+  }
+
+  /**
+   * @return true if the locator was complete when it was built, and has since become incomplete or used half of the
+   * slots that were free when it was built. A locator that was incomplete when it was built cannot be helped by a
+   * rebuild.
+   */
+  synchronized boolean needsRebuild() {
+    if (usedSlotsWhenBuilt == -1 || !completeWhenBuilt) {
+      return false;
+    }
+    return !complete || usedSlots - usedSlotsWhenBuilt >= (slots.length() - usedSlotsWhenBuilt) / 2;
+  }
+
+  private int collect(int bucket, long fingerprint, long[] offsets, int count) {
+    for (int i = bucket * Slots_Per_Bucket; i < (bucket + 1) * Slots_Per_Bucket; i++) {
+      long slotValue = slots.get(i);
+      if (slotValue != 0 && (slotValue >>> Fingerprint_Shift) == fingerprint) {
+        offsets[count++] = slotValue & Offset_Mask;
+      }
+    }
+    return count;
+  }
+
+  private boolean contains(int bucket, long slotValue) {
+    for (int i = bucket * Slots_Per_Bucket; i < (bucket + 1) * Slots_Per_Bucket; i++) {
+      if (slots.get(i) == slotValue) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean addToBucket(int bucket, long slotValue) {
+    for (int i = bucket * Slots_Per_Bucket; i < (bucket + 1) * Slots_Per_Bucket; i++) {
+      if (slots.get(i) == 0) {
+        slots.set(i, slotValue);
+        usedSlots++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int getBucket(long[] hash) {
+    return (int) (hash[0] & bucketMask);
+  }
+
+  private int getAlternateBucket(int bucket, long fingerprint) {
+    // the alternate bucket of the alternate bucket is the bucket itself
+    return (int) ((bucket ^ (fingerprint * 0x5bd1e995L)) & bucketMask);
+  }
+
+  private static long getFingerprint(long[] hash) {
+    // a fingerprint of 0 would make the slot of a key at offset 0 look empty
+    long fingerprint = hash[1] >>> Fingerprint_Shift;
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+}
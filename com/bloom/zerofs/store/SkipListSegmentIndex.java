@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.bloom.zerofs.api.store.StoreKey;
+
+
+/**
+ * An in memory segment index that holds the keys and values as objects in a skip list
+ */
+class SkipListSegmentIndex implements InMemorySegmentIndex {
+  private final ConcurrentSkipListMap<StoreKey, IndexValue> index = new ConcurrentSkipListMap<StoreKey, IndexValue>();
+
+  @Override
+  public IndexValue get(StoreKey key) {
+    return index.get(key);
+  }
+
+  @Override
+  public boolean put(StoreKey key, IndexValue value) {
+    return index.put(key, value) == null;
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public void clear() {
+    index.clear();
+  }
+
+  @Override
+  public Iterator<IndexEntry> entries(StoreKey fromKey) {
+    ConcurrentNavigableMap<StoreKey, IndexValue> tempMap = fromKey == null ? index : index.tailMap(fromKey, true);
+    final Iterator<Map.Entry<StoreKey, IndexValue>> iterator = tempMap.entrySet().iterator();
+    return new Iterator<IndexEntry>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public IndexEntry next() {
+        Map.Entry<StoreKey, IndexValue> entry = iterator.next();
+        return new IndexEntry(entry.getKey(), entry.getValue());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Entries cannot be removed from the index");
+      }
+    };
+  }
+
+  @Override
+  public void writeTo(DataOutputStream stream, long safeEndPoint)
+      throws IOException {
+    for (Map.Entry<StoreKey, IndexValue> entry : index.entrySet()) {
+      if (entry.getValue().getOffset() + entry.getValue().getSize() <= safeEndPoint) {
+        stream.write(entry.getKey().toBytes());
+        stream.write(entry.getValue().getBytes().array());
+      }
+    }
+  }
+}
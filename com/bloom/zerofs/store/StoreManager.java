@@ -14,10 +14,22 @@
 package com.bloom.zerofs.store;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +45,10 @@ import com.bloom.zerofs.api.store.StoreException;
 import com.bloom.zerofs.api.store.StoreKeyFactory;
 import com.bloom.zerofs.tools.Scheduler;
 import com.bloom.zerofs.tools.Time;
+import com.bloom.zerofs.tools.Utils;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 
 /**
@@ -51,6 +66,13 @@ public class StoreManager {
   private MessageStoreRecovery recovery;
   private MessageStoreHardDelete hardDelete;
   private Time time;
+  private final Timer storeManagerStartTime;
+  private final Histogram storeStartTimeInMs;
+  private static final int Slowest_Stores_To_Log = 5;
+  private final List<ExecutorService> startExecutors = new ArrayList<ExecutorService>();
+  private final List<Future<Long>> startFutures = new ArrayList<Future<Long>>();
+  private final List<String> startingStoreIds = new ArrayList<String>();
+  private Timer.Context startContext;
 
   public StoreManager(StoreConfig config, Scheduler scheduler, MetricRegistry registry, List<ReplicaId> replicas,
       StoreKeyFactory factory, MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete, Time time)
@@ -64,6 +86,8 @@ public class StoreManager {
     this.recovery = recovery;
     this.hardDelete = hardDelete;
     this.time = time;
+    storeManagerStartTime = registry.timer(MetricRegistry.name(StoreManager.class, "StoreManagerStartTime"));
+    storeStartTimeInMs = registry.histogram(MetricRegistry.name(StoreManager.class, "StoreStartTimeInMs"));
     verifyConfigs();
   }
 
@@ -78,27 +102,133 @@ public class StoreManager {
     }
   }
 
-  public void start()
-      throws StoreException {
+  /**
+   * Starts creating and starting the stores of all the replicas on this node in the background and returns right
+   * away. Stores on different disks are started concurrently, and up to
+   * {@link StoreConfig#storeStartupThreadsPerDisk} stores are started concurrently on each disk. Each store is made
+   * available through {@link #getStore(PartitionId)} as soon as it has started. {@link #awaitStart()} waits for all
+   * of them.
+   */
+  public void start() {
     logger.info("Starting store manager");
-    // iterate through the replicas for this node and create the stores
+    startContext = storeManagerStartTime.time();
+    // group the replicas by disk so that the number of concurrent starts on every disk can be limited
+    Map<String, List<ReplicaId>> replicasByMountPath = new HashMap<String, List<ReplicaId>>();
     for (ReplicaId replica : replicas) {
       // check if mount path exist
       File file = new File(replica.getMountPath());
       if (!file.exists()) {
         throw new IllegalStateException("Mount path does not exist " + replica.getMountPath());
       }
-      // Partition id is used as the id of a store.
-      String storeId = replica.getPartitionId().toString();
-      Store store =
-          new BlobStore(storeId, config, scheduler, registry, replica.getReplicaPath(), replica.getCapacityInBytes(),
-              factory, recovery, hardDelete, time);
-      store.start();
-      stores.put(replica.getPartitionId(), store);
+      List<ReplicaId> replicasOnDisk = replicasByMountPath.get(replica.getMountPath());
+      if (replicasOnDisk == null) {
+        replicasOnDisk = new ArrayList<ReplicaId>();
+        replicasByMountPath.put(replica.getMountPath(), replicasOnDisk);
+      }
+      replicasOnDisk.add(replica);
+    }
+
+    for (Map.Entry<String, List<ReplicaId>> replicasOnDisk : replicasByMountPath.entrySet()) {
+      final String threadNamePrefix = "store startup " + replicasOnDisk.getKey() + " ";
+      final AtomicInteger threadId = new AtomicInteger(0);
+      ExecutorService executor =
+          Executors.newFixedThreadPool(Math.min(config.storeStartupThreadsPerDisk, replicasOnDisk.getValue().size()),
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  return Utils.newThread(threadNamePrefix + threadId.getAndIncrement(), runnable, true);
+                }
+              });
+      startExecutors.add(executor);
+      for (final ReplicaId replica : replicasOnDisk.getValue()) {
+        startingStoreIds.add(replica.getPartitionId().toString());
+        startFutures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call()
+              throws StoreException {
+            return startStore(replica);
+          }
+        }));
+      }
+      // the threads exit once the stores on the disk have started
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Waits for the stores that were started by {@link #start()} to finish starting. If the wait is interrupted, the
+   * interrupt is restored and the stores that have not started yet are not waited for.
+   * @throws StoreException if any of the stores failed to start, or the wait was interrupted
+   */
+  public void awaitStart()
+      throws StoreException {
+    try {
+      StoreException firstException = null;
+      final Map<String, Long> startTimesInMs = new HashMap<String, Long>();
+      for (int i = 0; i < startFutures.size(); i++) {
+        try {
+          startTimesInMs.put(startingStoreIds.get(i), startFutures.get(i).get());
+        } catch (ExecutionException e) {
+          logger.error("Store " + startingStoreIds.get(i) + " failed to start", e.getCause());
+          if (firstException == null) {
+            firstException = e.getCause() instanceof StoreException ? (StoreException) e.getCause()
+                : new StoreException("Error while starting store " + startingStoreIds.get(i), e.getCause(),
+                    StoreErrorCodes.Initialization_Error);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new StoreException(
+              "Interrupted while waiting for store " + startingStoreIds.get(i) + " to start", e,
+              StoreErrorCodes.Initialization_Error);
+        }
+      }
+      logSlowestStores(startTimesInMs);
+      if (firstException != null) {
+        throw firstException;
+      }
+    } finally {
+      startContext.stop();
     }
     logger.info("Starting store manager complete");
   }
 
+  /**
+   * Creates and starts the store of a replica and makes it available once it has started
+   * @param replica The replica whose store needs to be started
+   * @return The time taken to start the store in ms
+   * @throws StoreException
+   */
+  private long startStore(ReplicaId replica)
+      throws StoreException {
+    long startTimeMs = time.milliseconds();
+    // Partition id is used as the id of a store.
+    String storeId = replica.getPartitionId().toString();
+    Store store =
+        new BlobStore(storeId, config, scheduler, registry, replica.getReplicaPath(), replica.getCapacityInBytes(),
+            factory, recovery, hardDelete, time);
+    store.start();
+    stores.put(replica.getPartitionId(), store);
+    long startTimeTakenMs = time.milliseconds() - startTimeMs;
+    storeStartTimeInMs.update(startTimeTakenMs);
+    logger.info("Store {} started in {} ms", storeId, startTimeTakenMs);
+    return startTimeTakenMs;
+  }
+
+  private void logSlowestStores(final Map<String, Long> startTimesInMs) {
+    List<String> storeIds = new ArrayList<String>(startTimesInMs.keySet());
+    Collections.sort(storeIds, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        return startTimesInMs.get(o2).compareTo(startTimesInMs.get(o1));
+      }
+    });
+    StringBuilder sb = new StringBuilder();
+    for (String storeId : storeIds.subList(0, Math.min(Slowest_Stores_To_Log, storeIds.size()))) {
+      sb.append(" ").append(storeId).append(":").append(startTimesInMs.get(storeId)).append("ms");
+    }
+    logger.info("Started {} stores. Slowest stores to start:{}", storeIds.size(), sb.toString());
+  }
+
   public Store getStore(PartitionId id) {
     return stores.get(id);
   }
@@ -106,6 +236,18 @@ public class StoreManager {
   public void shutdown()
       throws StoreException {
     logger.info("Shutting down store manager");
+    // stores that have not started yet are not started, and the ones that are starting are waited for
+    for (Future<Long> startFuture : startFutures) {
+      startFuture.cancel(false);
+    }
+    try {
+      for (ExecutorService executor : startExecutors) {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting for the stores that are starting, shutting down the started stores");
+    }
     for (Map.Entry<PartitionId, Store> entry : stores.entrySet()) {
       entry.getValue().shutdown();
     }
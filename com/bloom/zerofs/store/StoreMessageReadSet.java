@@ -14,7 +14,6 @@
 package com.bloom.zerofs.store;
 
 import java.io.DataInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -113,17 +112,23 @@ class BlobReadOptions implements Comparable<BlobReadOptions> {
 
 /**
  * An implementation of MessageReadSet that maintains a list of
- * offsets from the underlying file channel
+ * offsets from the underlying file channel. The messages are sorted by their offsets, so messages that are adjacent
+ * in the log are adjacent in the set, and are read and transferred together.
  */
 class StoreMessageReadSet implements MessageReadSet {
 
+  // the max number of bytes between the prefetched ranges of two messages for them to be read together
+  private static final int Max_Prefetch_Gap_Bytes = 64 * 1024;
+  // the max number of bytes that the prefetched ranges of several messages are read together in
+  private static final int Max_Prefetch_Read_Bytes = 4 * 1024 * 1024;
+
   private final List<BlobReadOptions> readOptions;
-  private final FileChannel fileChannel;
-  private final File file;
+  private final Log log;
+  // the prefetched bytes from the start of every message, by index
+  private ByteBuffer[] prefetchedBuffers = null;
   private Logger logger = LoggerFactory.getLogger(getClass());
 
-  public StoreMessageReadSet(File file, FileChannel fileChannel, List<BlobReadOptions> readOptions,
-      long fileEndPosition)
+  public StoreMessageReadSet(Log log, List<BlobReadOptions> readOptions, long fileEndPosition)
       throws IOException {
 
     Collections.sort(readOptions);
@@ -131,11 +136,10 @@ class StoreMessageReadSet implements MessageReadSet {
       if (!readOption.validateFileEndOffset(fileEndPosition)) {
         throw new IllegalArgumentException("Invalid offset size pairs");
       }
-      logger.trace("MessageReadSet entry file: {} readOption: {} ", file.getAbsolutePath(), readOption);
+      logger.trace("MessageReadSet entry readOption: {} ", readOption);
     }
     this.readOptions = readOptions;
-    this.fileChannel = fileChannel;
-    this.file = file;
+    this.log = log;
   }
 
   @Override
@@ -144,14 +148,115 @@ class StoreMessageReadSet implements MessageReadSet {
     if (index >= readOptions.size()) {
       throw new IndexOutOfBoundsException("index " + index + " out of the messageset size " + readOptions.size());
     }
-    long startOffset = readOptions.get(index).getOffset() + relativeOffset;
-    long sizeToRead = Math.min(maxSize, readOptions.get(index).getSize() - relativeOffset);
+    BlobReadOptions readOption = readOptions.get(index);
+    long startOffset = readOption.getOffset() + relativeOffset;
+    long sizeToRead = Math.min(maxSize, readOption.getSize() - relativeOffset);
+    ByteBuffer prefetched = prefetchedBuffers == null ? null : prefetchedBuffers[index];
+    if (prefetched != null && relativeOffset + sizeToRead <= prefetched.capacity()) {
+      ByteBuffer buffer = prefetched.duplicate();
+      buffer.limit((int) (relativeOffset + sizeToRead));
+      buffer.position((int) relativeOffset);
+      return channel.write(buffer);
+    }
+    LogSegment segment = log.getSegment(readOption.getOffset(), readOption.getSize());
     logger.trace("Blob Message Read Set position {} count {}", startOffset, sizeToRead);
-    long written = fileChannel.transferTo(startOffset, sizeToRead, channel);
-    logger.trace("Written {} bytes to the write channel from the file channel : {}", written, file.getAbsolutePath());
+    long written = segment.getFileChannel().transferTo(segment.toFilePosition(startOffset), sizeToRead, channel);
+    logger.trace("Written {} bytes to the write channel from the file channel : {}", written,
+        segment.getFile().getAbsolutePath());
     return written;
   }
 
+  /**
+   * Writes the messages from firstIndex to lastIndex that follow each other in the same log segment in a single
+   * transfer. Stops at the first message that does not directly follow the one before it.
+   */
+  @Override
+  public long writeTo(int firstIndex, int lastIndex, WritableByteChannel channel, long relativeOffset, long maxSize)
+      throws IOException {
+    if (firstIndex > lastIndex || lastIndex >= readOptions.size()) {
+      throw new IndexOutOfBoundsException(
+          "indexes " + firstIndex + " to " + lastIndex + " out of the messageset size " + readOptions.size());
+    }
+    BlobReadOptions firstReadOption = readOptions.get(firstIndex);
+    LogSegment segment = log.getSegment(firstReadOption.getOffset(), firstReadOption.getSize());
+    long endOffset = firstReadOption.getOffset() + firstReadOption.getSize();
+    for (int i = firstIndex + 1; i <= lastIndex; i++) {
+      BlobReadOptions readOption = readOptions.get(i);
+      if (readOption.getOffset() != endOffset || endOffset + readOption.getSize() > segment.getEndOffset()) {
+        break;
+      }
+      endOffset += readOption.getSize();
+    }
+    if (endOffset == firstReadOption.getOffset() + firstReadOption.getSize()) {
+      return writeTo(firstIndex, channel, relativeOffset, maxSize);
+    }
+    long startOffset = firstReadOption.getOffset() + relativeOffset;
+    long sizeToRead = Math.min(maxSize, endOffset - startOffset);
+    logger.trace("Blob Message Read Set messages {} to {} position {} count {}", firstIndex, lastIndex, startOffset,
+        sizeToRead);
+    return segment.getFileChannel().transferTo(segment.toFilePosition(startOffset), sizeToRead, channel);
+  }
+
+  /**
+   * Reads the prefetched ranges of messages that are close to each other in the same log segment in a single read
+   */
+  @Override
+  public void prefetch(long[] sizes)
+      throws IOException {
+    if (sizes.length != readOptions.size()) {
+      throw new IllegalArgumentException(
+          "prefetch sizes " + sizes.length + " do not match the messageset size " + readOptions.size());
+    }
+    ByteBuffer[] buffers = new ByteBuffer[readOptions.size()];
+    int index = 0;
+    while (index < readOptions.size()) {
+      if (sizes[index] <= 0) {
+        index++;
+        continue;
+      }
+      BlobReadOptions firstReadOption = readOptions.get(index);
+      LogSegment segment = log.getSegment(firstReadOption.getOffset(), firstReadOption.getSize());
+      long readStartOffset = firstReadOption.getOffset();
+      long readEndOffset = readStartOffset + Math.min(sizes[index], firstReadOption.getSize());
+      int lastIndex = index;
+      for (int i = index + 1; i < readOptions.size(); i++) {
+        if (sizes[i] <= 0) {
+          continue;
+        }
+        BlobReadOptions readOption = readOptions.get(i);
+        long endOffset = readOption.getOffset() + Math.min(sizes[i], readOption.getSize());
+        if (readOption.getOffset() - readEndOffset > Max_Prefetch_Gap_Bytes
+            || endOffset - readStartOffset > Max_Prefetch_Read_Bytes || endOffset > segment.getEndOffset()) {
+          break;
+        }
+        readEndOffset = endOffset;
+        lastIndex = i;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) (readEndOffset - readStartOffset));
+      FileChannel fileChannel = segment.getFileChannel();
+      long position = segment.toFilePosition(readStartOffset);
+      while (buffer.hasRemaining()) {
+        int read = fileChannel.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new IOException("Reached the end of the log segment " + segment.getFile().getAbsolutePath()
+              + " while prefetching messages at offset " + readStartOffset);
+        }
+      }
+      logger.trace("Prefetched messages {} to {} position {} count {}", index, lastIndex, readStartOffset,
+          buffer.capacity());
+      for (int i = index; i <= lastIndex; i++) {
+        if (sizes[i] > 0) {
+          BlobReadOptions readOption = readOptions.get(i);
+          buffer.limit((int) (readOption.getOffset() + Math.min(sizes[i], readOption.getSize()) - readStartOffset));
+          buffer.position((int) (readOption.getOffset() - readStartOffset));
+          buffers[i] = buffer.slice();
+        }
+      }
+      index = lastIndex + 1;
+    }
+    prefetchedBuffers = buffers;
+  }
+
   @Override
   public int count() {
     return readOptions.size();
@@ -160,7 +265,7 @@ class StoreMessageReadSet implements MessageReadSet {
   @Override
   public long sizeInBytes(int index) {
     if (index >= readOptions.size()) {
-      throw new IndexOutOfBoundsException("index out of the messageset for file " + file.getAbsolutePath());
+      throw new IndexOutOfBoundsException("index out of the messageset size " + readOptions.size());
     }
     return readOptions.get(index).getSize();
   }
@@ -168,7 +273,7 @@ class StoreMessageReadSet implements MessageReadSet {
   @Override
   public StoreKey getKeyAt(int index) {
     if (index >= readOptions.size()) {
-      throw new IndexOutOfBoundsException("index out of the messageset for file " + file.getAbsolutePath());
+      throw new IndexOutOfBoundsException("index out of the messageset size " + readOptions.size());
     }
     return readOptions.get(index).getStoreKey();
   }
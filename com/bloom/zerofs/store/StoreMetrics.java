@@ -13,6 +13,7 @@
  */
 package com.bloom.zerofs.store;
 
+import com.bloom.zerofs.api.store.StoreStats;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
@@ -36,9 +37,11 @@ public class StoreMetrics {
   public final Counter overflowReadError;
   public final Timer recoveryTime;
   public final Timer findTime;
+  public final Timer findMissingKeysTime;
   public final Timer indexFlushTime;
   public final Timer cleanupTokenFlushTime;
   public final Timer hardDeleteTime;
+  public final Timer storeStatsRebuildTime;
   public final Counter nonzeroMessageRecovery;
   public final Counter bloomPositiveCount;
   public final Counter bloomFalsePositiveCount;
@@ -47,11 +50,38 @@ public class StoreMetrics {
   public final Counter hardDeleteFailedCount;
   public final Counter hardDeleteIncompleteRecoveryCount;
   public final Counter hardDeleteExceptionsCount;
+  public final Counter indexDeltaBytesWritten;
+  public final Timer indexSegmentMergeTime;
+  public final Counter indexSegmentsMergedCount;
+  public final Counter indexSegmentMergeErrorCount;
+  public final Timer segmentLocatorBuildTime;
+  public final Histogram segmentsSearchedWithLocator;
   public Gauge<Long> currentCapacityUsed;
   public Gauge<Long> currentHardDeleteProgress;
   public Gauge<Long> hardDeleteThreadRunning;
   public Gauge<Long> hardDeleteCaughtUp;
+  public Gauge<Long> expiredBytes;
+  public Gauge<Long> bytesPendingExpiration;
+  public Gauge<Long> usedBytes;
+  public Gauge<Long> validBytes;
+  public Gauge<Long> deletedBytes;
+  public Gauge<Long> deleteRecordBytes;
+  public Gauge<Long> hardDeletedBytes;
   public final Histogram segmentSizeForExists;
+  public final Histogram segmentsSearchedForMissingKeys;
+  public final Histogram groupCommitBatchSize;
+  public final Histogram groupCommitBatchSizeInBytes;
+  public final Timer groupCommitTime;
+  public final Timer groupCommitSyncTime;
+  public final Timer concurrentAppendPublishWaitTime;
+  public final Timer compactionTime;
+  public final Counter compactionSegmentsCompactedCount;
+  public final Counter compactionBytesCopied;
+  public final Counter compactionBytesReclaimed;
+  public final Counter compactionErrorCount;
+  public final Counter keyCacheHitCount;
+  public final Counter keyCacheMissCount;
+  public final Counter keyCacheEvictionCount;
   public Gauge<Double> percentageUsedCapacity;
   public Gauge<Double> percentageHardDeleteCompleted;
   private final MetricRegistry registry;
@@ -72,7 +102,10 @@ public class StoreMetrics {
     overflowWriteError = registry.counter(MetricRegistry.name(Log.class, name + "OverflowWriteError"));
     overflowReadError = registry.counter(MetricRegistry.name(Log.class, name + "OverflowReadError"));
     recoveryTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexRecoveryTime"));
+    storeStatsRebuildTime =
+        registry.timer(MetricRegistry.name(PersistentIndex.class, name + "StoreStatsRebuildTime"));
     findTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexFindTime"));
+    findMissingKeysTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexFindMissingKeysTime"));
     indexFlushTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexFlushTime"));
     cleanupTokenFlushTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "CleanupTokenFlushTime"));
     hardDeleteTime = registry.timer(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteTime"));
@@ -89,7 +122,41 @@ public class StoreMetrics {
         registry.counter(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteIncompleteRecoveryCount"));
     hardDeleteExceptionsCount =
         registry.counter(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteExceptionsCount"));
+    indexDeltaBytesWritten =
+        registry.counter(MetricRegistry.name(IndexSegment.class, name + "IndexDeltaBytesWritten"));
+    indexSegmentMergeTime =
+        registry.timer(MetricRegistry.name(IndexSegmentMerger.class, name + "IndexSegmentMergeTime"));
+    indexSegmentsMergedCount =
+        registry.counter(MetricRegistry.name(IndexSegmentMerger.class, name + "IndexSegmentsMergedCount"));
+    indexSegmentMergeErrorCount =
+        registry.counter(MetricRegistry.name(IndexSegmentMerger.class, name + "IndexSegmentMergeErrorCount"));
+    segmentLocatorBuildTime =
+        registry.timer(MetricRegistry.name(PersistentIndex.class, name + "SegmentLocatorBuildTime"));
+    segmentsSearchedWithLocator =
+        registry.histogram(MetricRegistry.name(PersistentIndex.class, name + "SegmentsSearchedWithLocator"));
     segmentSizeForExists = registry.histogram(MetricRegistry.name(IndexSegment.class, name + "SegmentSizeForExists"));
+    segmentsSearchedForMissingKeys =
+        registry.histogram(MetricRegistry.name(PersistentIndex.class, name + "SegmentsSearchedForMissingKeys"));
+    groupCommitBatchSize = registry.histogram(MetricRegistry.name(BlobStore.class, name + "GroupCommitBatchSize"));
+    groupCommitBatchSizeInBytes =
+        registry.histogram(MetricRegistry.name(BlobStore.class, name + "GroupCommitBatchSizeInBytes"));
+    groupCommitTime = registry.timer(MetricRegistry.name(BlobStore.class, name + "GroupCommitTime"));
+    groupCommitSyncTime = registry.timer(MetricRegistry.name(BlobStore.class, name + "GroupCommitSyncTime"));
+    concurrentAppendPublishWaitTime =
+        registry.timer(MetricRegistry.name(BlobStore.class, name + "ConcurrentAppendPublishWaitTime"));
+    compactionTime = registry.timer(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionTime"));
+    compactionSegmentsCompactedCount =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionSegmentsCompactedCount"));
+    compactionBytesCopied =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionBytesCopied"));
+    compactionBytesReclaimed =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionBytesReclaimed"));
+    compactionErrorCount =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionErrorCount"));
+    keyCacheHitCount = registry.counter(MetricRegistry.name(PersistentIndex.class, name + "KeyCacheHitCount"));
+    keyCacheMissCount = registry.counter(MetricRegistry.name(PersistentIndex.class, name + "KeyCacheMissCount"));
+    keyCacheEvictionCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "KeyCacheEvictionCount"));
   }
 
   public void initializeCapacityUsedMetric(final Log log, final long capacityInBytes) {
@@ -145,4 +212,71 @@ public class StoreMetrics {
     };
     registry.register(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteCaughtUp"), hardDeleteCaughtUp);
   }
+
+  public void initializeExpirationMetrics(final PersistentIndex index) {
+    expiredBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return index.getExpiredBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "ExpiredBytes"), expiredBytes);
+
+    bytesPendingExpiration = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return index.getBytesPendingExpiration();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "BytesPendingExpiration"),
+        bytesPendingExpiration);
+  }
+
+  public void initializeStoreStatsMetrics(final PersistentIndex index) {
+    // the gauges have no value while the stats are rebuilt after startup
+    usedBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        StoreStats stats = index.getStoreStats();
+        return stats == null ? null : stats.getUsedBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "UsedBytes"), usedBytes);
+
+    validBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        StoreStats stats = index.getStoreStats();
+        return stats == null ? null : stats.getValidBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "ValidBytes"), validBytes);
+
+    deletedBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        StoreStats stats = index.getStoreStats();
+        return stats == null ? null : stats.getDeletedBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "DeletedBytes"), deletedBytes);
+
+    deleteRecordBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        StoreStats stats = index.getStoreStats();
+        return stats == null ? null : stats.getDeleteRecordBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "DeleteRecordBytes"), deleteRecordBytes);
+
+    hardDeletedBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        StoreStats stats = index.getStoreStats();
+        return stats == null ? null : stats.getHardDeletedBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "HardDeletedBytes"), hardDeletedBytes);
+  }
 }
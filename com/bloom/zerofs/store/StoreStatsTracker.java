@@ -0,0 +1,297 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.bloom.zerofs.api.store.StoreErrorCodes;
+import com.bloom.zerofs.api.store.StoreException;
+import com.bloom.zerofs.api.store.StoreStats;
+import com.bloom.zerofs.tools.CrcInputStream;
+import com.bloom.zerofs.tools.CrcOutputStream;
+
+
+/**
+ * Keeps count of the bytes of the records in the log of a store, per log segment, as entries are added to the index.
+ * For every segment it counts the bytes of all the records, the bytes of the puts that have not been deleted or moved
+ * by compaction and the bytes of the delete records that have not been moved. The counts are for the records up to
+ * an end offset in the log, which is persisted along with them so that the records recovered after it on startup
+ * can be counted on top of them.
+ * <p/>
+ * The bytes of hard deleted puts are counted as the hard delete thread overwrites them. Since hard deletes can be
+ * redone during recovery, this count is approximate. All the methods are thread safe.
+ */
+class StoreStatsTracker {
+  static final String Store_Stats_Filename = "storestats";
+  static final short Store_Stats_Version_V1 = 1;
+
+  private final TreeMap<Long, SegmentBytes> segmentBytes = new TreeMap<Long, SegmentBytes>();
+  private long endOffset = 0;
+
+  private static class SegmentBytes {
+    long usedBytes = 0;
+    long putBytes = 0;
+    long deleteRecordBytes = 0;
+    long hardDeletedBytes = 0;
+  }
+
+  /**
+   * Counts a put record that has been added to the log
+   * @param segmentStartOffset The start offset of the log segment that holds the record
+   * @param size The size of the record
+   * @param endOffset The offset in the log up to which records have been counted after this one
+   */
+  synchronized void addPut(long segmentStartOffset, long size, long endOffset) {
+    SegmentBytes bytes = getOrCreate(segmentStartOffset);
+    bytes.usedBytes += size;
+    bytes.putBytes += size;
+    this.endOffset = Math.max(this.endOffset, endOffset);
+  }
+
+  /**
+   * Counts a delete record that has been added to the log
+   * @param segmentStartOffset The start offset of the log segment that holds the record
+   * @param size The size of the record
+   * @param endOffset The offset in the log up to which records have been counted after this one
+   */
+  synchronized void addDeleteRecord(long segmentStartOffset, long size, long endOffset) {
+    SegmentBytes bytes = getOrCreate(segmentStartOffset);
+    bytes.usedBytes += size;
+    bytes.deleteRecordBytes += size;
+    this.endOffset = Math.max(this.endOffset, endOffset);
+  }
+
+  /**
+   * Adds counts for a log segment that have been rebuilt from the index
+   * @param segmentStartOffset The start offset of the log segment
+   * @param usedBytes The bytes of all the records in the segment
+   * @param putBytes The bytes of the puts in the segment that have not been deleted or moved
+   * @param deleteRecordBytes The bytes of the delete records in the segment that have not been moved
+   * @param endOffset The offset in the log up to which records have been counted
+   */
+  synchronized void addSegment(long segmentStartOffset, long usedBytes, long putBytes, long deleteRecordBytes,
+      long endOffset) {
+    SegmentBytes bytes = getOrCreate(segmentStartOffset);
+    bytes.usedBytes += usedBytes;
+    bytes.putBytes += putBytes;
+    bytes.deleteRecordBytes += deleteRecordBytes;
+    this.endOffset = Math.max(this.endOffset, endOffset);
+  }
+
+  /**
+   * Removes the bytes of a put that has been deleted or moved from the bytes of the puts of its segment
+   * @param segmentStartOffset The start offset of the log segment that holds the put
+   * @param size The size of the put record
+   */
+  synchronized void removePut(long segmentStartOffset, long size) {
+    SegmentBytes bytes = segmentBytes.get(segmentStartOffset);
+    if (bytes != null) {
+      bytes.putBytes = Math.max(bytes.putBytes - size, 0);
+    }
+  }
+
+  /**
+   * Removes the bytes of a delete record that has been moved from the bytes of the delete records of its segment
+   * @param segmentStartOffset The start offset of the log segment that holds the delete record
+   * @param size The size of the delete record
+   */
+  synchronized void removeDeleteRecord(long segmentStartOffset, long size) {
+    SegmentBytes bytes = segmentBytes.get(segmentStartOffset);
+    if (bytes != null) {
+      bytes.deleteRecordBytes = Math.max(bytes.deleteRecordBytes - size, 0);
+    }
+  }
+
+  /**
+   * Counts a put of a deleted blob that has been overwritten by the hard delete thread
+   * @param segmentStartOffset The start offset of the log segment that holds the put
+   * @param size The size of the put record
+   */
+  synchronized void addHardDeleted(long segmentStartOffset, long size) {
+    SegmentBytes bytes = segmentBytes.get(segmentStartOffset);
+    if (bytes != null) {
+      bytes.hardDeletedBytes += size;
+    }
+  }
+
+  /**
+   * Removes all the counts of a log segment that has been removed from the log
+   * @param segmentStartOffset The start offset of the log segment
+   */
+  synchronized void removeSegment(long segmentStartOffset) {
+    segmentBytes.remove(segmentStartOffset);
+  }
+
+  /**
+   * @param segmentStartOffset The start offset of a log segment
+   * @return The bytes of the puts in the segment that have not been deleted or moved and of the delete records in the
+   *         segment that have not been moved. Puts that have expired are counted as well.
+   */
+  synchronized long getValidBytes(long segmentStartOffset) {
+    SegmentBytes bytes = segmentBytes.get(segmentStartOffset);
+    return bytes == null ? 0 : bytes.putBytes + bytes.deleteRecordBytes;
+  }
+
+  /**
+   * @return The offset in the log up to which the records have been counted
+   */
+  synchronized long getEndOffset() {
+    return endOffset;
+  }
+
+  /**
+   * @param expiredBytes The bytes of the puts that are known to have expired. These are counted as puts by this
+   *                     tracker until they are deleted or their segment is removed.
+   * @return The stats of the store
+   */
+  synchronized StoreStats getStats(long expiredBytes) {
+    long usedBytes = 0;
+    long putBytes = 0;
+    long deleteRecordBytes = 0;
+    long hardDeletedBytes = 0;
+    for (SegmentBytes bytes : segmentBytes.values()) {
+      usedBytes += bytes.usedBytes;
+      putBytes += bytes.putBytes;
+      deleteRecordBytes += bytes.deleteRecordBytes;
+      hardDeletedBytes += bytes.hardDeletedBytes;
+    }
+    expiredBytes = Math.min(expiredBytes, putBytes);
+    return new StoreStats(usedBytes, putBytes - expiredBytes, deleteRecordBytes, expiredBytes, hardDeletedBytes);
+  }
+
+  /**
+   * Writes the counts to the stats file of the store. The file is written to a temporary file first and renamed, so
+   * that a crash while writing leaves the previous file in place.
+   * @param dataDir The directory of the store
+   * @throws StoreException
+   */
+  void persist(String dataDir)
+      throws StoreException {
+    /* The stats file format is as follows:
+       --
+       version
+       endOffset
+       numSegments
+       --
+       segment1 {startOffset, usedBytes, putBytes, deleteRecordBytes, hardDeletedBytes}
+       ....
+       segmentN
+       --
+       crc
+       ---
+     */
+    File tempFile = new File(dataDir, Store_Stats_Filename + ".tmp");
+    File actual = new File(dataDir, Store_Stats_Filename);
+    try {
+      FileOutputStream fileStream = new FileOutputStream(tempFile);
+      CrcOutputStream crc = new CrcOutputStream(fileStream);
+      DataOutputStream writer = new DataOutputStream(crc);
+      try {
+        synchronized (this) {
+          writer.writeShort(Store_Stats_Version_V1);
+          writer.writeLong(endOffset);
+          writer.writeInt(segmentBytes.size());
+          for (Map.Entry<Long, SegmentBytes> entry : segmentBytes.entrySet()) {
+            writer.writeLong(entry.getKey());
+            writer.writeLong(entry.getValue().usedBytes);
+            writer.writeLong(entry.getValue().putBytes);
+            writer.writeLong(entry.getValue().deleteRecordBytes);
+            writer.writeLong(entry.getValue().hardDeletedBytes);
+          }
+        }
+        writer.writeLong(crc.getValue());
+        fileStream.getChannel().force(true);
+        tempFile.renameTo(actual);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while persisting store stats to disk " + tempFile.getAbsolutePath(), e,
+          StoreErrorCodes.IOError);
+    }
+  }
+
+  /**
+   * Reads the counts from the stats file of the store, if there is one
+   * @param dataDir The directory of the store
+   * @param log The log of the store. The counts of segments that are no longer in the log are dropped.
+   * @return The tracker with the counts that were read, or null if there is no stats file
+   * @throws StoreException if the file could not be read or is corrupt
+   */
+  static StoreStatsTracker load(String dataDir, Log log)
+      throws StoreException {
+    File statsFile = new File(dataDir, Store_Stats_Filename);
+    if (!statsFile.exists()) {
+      return null;
+    }
+    StoreStatsTracker tracker = new StoreStatsTracker();
+    try {
+      CrcInputStream crcStream = new CrcInputStream(new FileInputStream(statsFile));
+      DataInputStream stream = new DataInputStream(crcStream);
+      try {
+        short version = stream.readShort();
+        switch (version) {
+          case Store_Stats_Version_V1:
+            tracker.endOffset = stream.readLong();
+            int numSegments = stream.readInt();
+            for (int i = 0; i < numSegments; i++) {
+              SegmentBytes bytes = tracker.getOrCreate(stream.readLong());
+              bytes.usedBytes = stream.readLong();
+              bytes.putBytes = stream.readLong();
+              bytes.deleteRecordBytes = stream.readLong();
+              bytes.hardDeletedBytes = stream.readLong();
+            }
+            break;
+          default:
+            throw new StoreException("Invalid version in store stats " + dataDir, StoreErrorCodes.Index_Version_Error);
+        }
+        long crc = crcStream.getValue();
+        if (crc != stream.readLong()) {
+          throw new StoreException("Crc check does not match for store stats file for dataDir " + dataDir,
+              StoreErrorCodes.Illegal_Index_State);
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      throw new StoreException("Failed to read store stats " + dataDir, e, StoreErrorCodes.Initialization_Error);
+    }
+    // segments may have been removed by compaction after the stats were persisted
+    Iterator<Long> iterator = tracker.segmentBytes.keySet().iterator();
+    while (iterator.hasNext()) {
+      long segmentStartOffset = iterator.next();
+      if (log.getSegmentStartOffset(segmentStartOffset) != segmentStartOffset) {
+        iterator.remove();
+      }
+    }
+    return tracker;
+  }
+
+  private SegmentBytes getOrCreate(long segmentStartOffset) {
+    SegmentBytes bytes = segmentBytes.get(segmentStartOffset);
+    if (bytes == null) {
+      bytes = new SegmentBytes();
+      segmentBytes.put(segmentStartOffset, bytes);
+    }
+    return bytes;
+  }
+}
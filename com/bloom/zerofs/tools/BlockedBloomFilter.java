@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.tools;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A bloom filter that sets all the bits of a key in one block of 512 bits, which is the size of a cache line. The
+ * first half of the 128 bit murmur hash of the key picks the block and the second half picks the bits in the block,
+ * so a lookup reads a single cache line instead of one cache line per hash function. For the same number of bits,
+ * the false positive rate is a little higher than that of a standard bloom filter, so the filter is given an extra
+ * bit per element.
+ */
+public class BlockedBloomFilter extends BloomFilter {
+  static final int Block_Size_In_Bits = 512;
+  private static final int Block_Size_In_Words = Block_Size_In_Bits / 64;
+
+  private final OpenBitSet words;
+  private final long numberOfBlocks;
+
+  public BlockedBloomFilter(int hashes, OpenBitSet bs) {
+    super(hashes, bs);
+    if (bs.getNumWords() < Block_Size_In_Words) {
+      throw new IllegalArgumentException("Bit set of " + bs.capacity() + " bits is smaller than a block");
+    }
+    this.words = bs;
+    this.numberOfBlocks = bs.getNumWords() / Block_Size_In_Words;
+  }
+
+  protected long[] hash(ByteBuffer b, int position, int remaining, long seed) {
+    return MurmurHash.hash3_x64_128(b, position, remaining, seed);
+  }
+
+  @Override
+  public void add(ByteBuffer key) {
+    long[] hash = FilterFactory.hash(key);
+    long firstWord = getFirstWordOfBlock(hash);
+    long[] page = words.getPage((int) (firstWord / words.getPageSize()));
+    int blockStart = (int) (firstWord % words.getPageSize());
+    int h1 = (int) hash[1];
+    int h2 = (int) (hash[1] >>> 32) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      int bit = (h1 + i * h2) & (Block_Size_In_Bits - 1);
+      page[blockStart + (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  @Override
+  public boolean isPresent(ByteBuffer key) {
+    return isPresent(FilterFactory.hash(key));
+  }
+
+  @Override
+  public boolean isPresent(long[] hash) {
+    long firstWord = getFirstWordOfBlock(hash);
+    // the page size of the bit set is a multiple of the block size, so a block never spans two pages
+    long[] page = words.getPage((int) (firstWord / words.getPageSize()));
+    int blockStart = (int) (firstWord % words.getPageSize());
+    int h1 = (int) hash[1];
+    int h2 = (int) (hash[1] >>> 32) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      int bit = (h1 + i * h2) & (Block_Size_In_Bits - 1);
+      if ((page[blockStart + (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  int getSerializedVersion() {
+    return BloomFilterSerializer.Version_1;
+  }
+
+  private long getFirstWordOfBlock(long[] hash) {
+    return ((hash[0] >>> 1) % numberOfBlocks) * Block_Size_In_Words;
+  }
+}
@@ -61,10 +61,27 @@ public abstract class BloomFilter implements IFilter {
     return true;
   }
 
+  public boolean isPresent(long[] hash) {
+    long max = bitset.capacity();
+    for (int i = 0; i < hashCount; ++i) {
+      if (!bitset.get(Math.abs((hash[0] + (long) i * hash[1]) % max))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public void clear() {
     bitset.clear();
   }
 
+  /**
+   * @return The version of the format that the filter is serialized in
+   */
+  int getSerializedVersion() {
+    return BloomFilterSerializer.Version_0;
+  }
+
   public void close()
       throws IOException {
     bitset.close();
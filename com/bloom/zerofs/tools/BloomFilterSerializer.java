@@ -18,18 +18,41 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 
+/**
+ * Serializes the bloom filters. A version 0 filter is a {@link Murmur3BloomFilter} and starts with its hash count,
+ * which is always positive. The later versions start with the negated version, followed by the hash count.
+ * <p/>
+ * Version 1 is a {@link BlockedBloomFilter}.
+ */
 abstract class BloomFilterSerializer {
+  static final int Version_0 = 0;
+  static final int Version_1 = 1;
+
   public void serialize(BloomFilter bf, DataOutput out)
       throws IOException {
+    int version = bf.getSerializedVersion();
+    if (version != Version_0) {
+      out.writeInt(-version);
+    }
     out.writeInt(bf.hashCount);
     bf.bitset.serialize(out);
   }
 
   public BloomFilter deserialize(DataInput in)
       throws IOException {
-    int hashes = in.readInt();
-    IBitSet bs = OpenBitSet.deserialize(in);
-    return createFilter(hashes, bs);
+    int hashesOrVersion = in.readInt();
+    if (hashesOrVersion >= 0) {
+      IBitSet bs = OpenBitSet.deserialize(in);
+      return createFilter(hashesOrVersion, bs);
+    }
+    int version = -hashesOrVersion;
+    switch (version) {
+      case Version_1:
+        int hashes = in.readInt();
+        return new BlockedBloomFilter(hashes, OpenBitSet.deserialize(in));
+      default:
+        throw new IOException("Unknown bloom filter version " + version);
+    }
   }
 
   protected abstract BloomFilter createFilter(int hashes, IBitSet bs);
@@ -16,6 +16,7 @@ package com.bloom.zerofs.tools;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +29,7 @@ public class FilterFactory {
 
   public static void serialize(IFilter bf, DataOutput output)
       throws IOException {
-    Murmur3BloomFilter.serializer.serialize((Murmur3BloomFilter) bf, output);
+    Murmur3BloomFilter.serializer.serialize((BloomFilter) bf, output);
   }
 
   public static IFilter deserialize(DataInput input)
@@ -66,6 +67,30 @@ public class FilterFactory {
     return createFilter(spec.K, numElements, spec.bucketsPerElement);
   }
 
+  /**
+   * @return The smallest BlockedBloomFilter that can provide close to the given false positive probability rate for
+   *         the given number of elements.
+   */
+  public static IFilter getBlockedFilter(long numElements, double maxFalsePosProbability) {
+    int bucketsPerElement = BloomCalculations.maxBucketsPerElement(numElements);
+    BloomCalculations.BloomSpecification spec =
+        BloomCalculations.computeBloomSpec(bucketsPerElement, maxFalsePosProbability);
+    // one more bit per element makes up for the bits of a key being kept in a single block
+    long numBits = (numElements * (spec.bucketsPerElement + 1)) + BITSET_EXCESS;
+    long numBlocks = (numBits + BlockedBloomFilter.Block_Size_In_Bits - 1) / BlockedBloomFilter.Block_Size_In_Bits;
+    return new BlockedBloomFilter(spec.K, new OpenBitSet(numBlocks * BlockedBloomFilter.Block_Size_In_Bits));
+  }
+
+  /**
+   * Computes the hash of a key that {@link IFilter#isPresent(long[])} takes. This is the same for all the filters,
+   * so it only needs to be computed once to check a key against many filters.
+   * @param key The key to hash
+   * @return The hash of the key
+   */
+  public static long[] hash(ByteBuffer key) {
+    return MurmurHash.hash3_x64_128(key, key.position(), key.remaining(), 0L);
+  }
+
   private static IFilter createFilter(int hash, long numElements, int bucketsPer) {
     long numBits = (numElements * bucketsPer) + BITSET_EXCESS;
     IBitSet bitset = new OpenBitSet(numBits);
@@ -32,6 +32,14 @@ public interface IFilter extends Closeable {
    */
   public abstract boolean isPresent(ByteBuffer key);
 
+  /**
+   * Determines if a key was previously added to this filter, given the hash of the key. The hash of a key can be
+   * computed once with {@link FilterFactory#hash(ByteBuffer)} and used to check many filters.
+   * @param hash The hash of the key returned by {@link FilterFactory#hash(ByteBuffer)}
+   * @return true means "possibly present"; false means "definitely not present".
+   */
+  public abstract boolean isPresent(long[] hash);
+
   /**
    * Clears the filter
    */
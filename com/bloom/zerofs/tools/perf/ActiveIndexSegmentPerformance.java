@@ -0,0 +1,173 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.tools.perf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.bloom.zerofs.api.clustermap.ClusterMap;
+import com.bloom.zerofs.api.clustermap.PartitionId;
+import com.bloom.zerofs.api.config.ClusterMapConfig;
+import com.bloom.zerofs.api.config.StoreConfig;
+import com.bloom.zerofs.api.config.VerifiableProperties;
+import com.bloom.zerofs.clustermap.ClusterMapManager;
+import com.bloom.zerofs.commons.BlobId;
+import com.bloom.zerofs.commons.BlobIdFactory;
+import com.bloom.zerofs.messageformat.BlobStoreHardDelete;
+import com.bloom.zerofs.messageformat.BlobStoreRecovery;
+import com.bloom.zerofs.store.FileSpan;
+import com.bloom.zerofs.store.IndexEntry;
+import com.bloom.zerofs.store.IndexValue;
+import com.bloom.zerofs.store.Log;
+import com.bloom.zerofs.store.PersistentIndex;
+import com.bloom.zerofs.store.StoreMetrics;
+import com.bloom.zerofs.tools.Scheduler;
+import com.bloom.zerofs.tools.SystemTime;
+import com.codahale.metrics.MetricRegistry;
+
+
+/**
+ * Compares the heap used by and the lookup latency of the in memory segment of the index when its entries are kept
+ * in a skip list on the heap and when they are kept off heap. All the entries are added to a single in memory segment
+ * and random keys are looked up after that.
+ */
+public class ActiveIndexSegmentPerformance {
+
+  public static void main(String args[]) {
+    try {
+      OptionParser parser = new OptionParser();
+      ArgumentAcceptingOptionSpec<String> hardwareLayoutOpt =
+          parser.accepts("hardwareLayout", "The path of the hardware layout file").withRequiredArg()
+              .describedAs("hardware_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<String> partitionLayoutOpt =
+          parser.accepts("partitionLayout", "The path of the partition layout file").withRequiredArg()
+              .describedAs("partition_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<String> dataDirOpt =
+          parser.accepts("dataDir", "The directory in which the index and the log are created").withRequiredArg()
+              .describedAs("data_dir").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<Integer> numberOfEntriesOpt =
+          parser.accepts("numberOfEntries", "The number of entries added to the in memory segment").withRequiredArg()
+              .describedAs("The number of entries").ofType(Integer.class).defaultsTo(100000);
+
+      ArgumentAcceptingOptionSpec<Integer> numberOfLookupsOpt =
+          parser.accepts("numberOfLookups", "The number of random lookups done after the entries are added")
+              .withRequiredArg().describedAs("The number of lookups").ofType(Integer.class).defaultsTo(1000000);
+
+      OptionSet options = parser.parse(args);
+
+      ArrayList<OptionSpec<?>> listOpt = new ArrayList<OptionSpec<?>>();
+      listOpt.add(hardwareLayoutOpt);
+      listOpt.add(partitionLayoutOpt);
+      listOpt.add(dataDirOpt);
+
+      for (OptionSpec opt : listOpt) {
+        if (!options.has(opt)) {
+          System.err.println("Missing required argument \"" + opt + "\"");
+          parser.printHelpOn(System.err);
+          System.exit(1);
+        }
+      }
+
+      int numberOfEntries = options.valueOf(numberOfEntriesOpt);
+      int numberOfLookups = options.valueOf(numberOfLookupsOpt);
+      String dataDir = options.valueOf(dataDirOpt);
+      ClusterMap map = new ClusterMapManager(options.valueOf(hardwareLayoutOpt), options.valueOf(partitionLayoutOpt),
+          new ClusterMapConfig(new VerifiableProperties(new Properties())));
+      PartitionId partitionId = map.getWritablePartitionIds().get(0);
+      List<String> ids = new ArrayList<String>(numberOfEntries);
+      for (int i = 0; i < numberOfEntries; i++) {
+        ids.add(new BlobId(partitionId).getID());
+      }
+
+      for (boolean offHeap : new boolean[]{false, true}) {
+        File indexDir = new File(dataDir, offHeap ? "offheap" : "skiplist");
+        if (!indexDir.mkdirs() && !indexDir.isDirectory()) {
+          throw new IllegalStateException("Could not create directory " + indexDir.getAbsolutePath());
+        }
+        runTest(indexDir.getAbsolutePath(), offHeap, ids, numberOfLookups, map);
+      }
+    } catch (Exception e) {
+      System.out.println("Exiting process with exception " + e);
+    }
+  }
+
+  private static void runTest(String dataDir, boolean offHeap, List<String> ids, int numberOfLookups, ClusterMap map)
+      throws Exception {
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", Integer.toString(ids.size()));
+    props.setProperty("store.index.max.memory.size.bytes", Integer.toString(Integer.MAX_VALUE));
+    props.setProperty("store.index.off.heap.active.segment.enabled", Boolean.toString(offHeap));
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreMetrics metrics = new StoreMetrics(dataDir, new MetricRegistry());
+    Scheduler scheduler = new Scheduler(1, "index", true);
+    scheduler.startup();
+    Log log = new Log(dataDir, (long) ids.size() * 1000, metrics);
+    PersistentIndex index =
+        new PersistentIndex(dataDir, scheduler, log, config, new BlobIdFactory(map), new BlobStoreRecovery(),
+            new BlobStoreHardDelete(), metrics, SystemTime.getInstance());
+
+    long heapBefore = usedHeap();
+    long addStartTime = System.nanoTime();
+    long offset = 0;
+    for (String id : ids) {
+      // the keys are deserialized from the id, as they would be when they arrive in a request
+      IndexEntry entry = new IndexEntry(new BlobId(id, map), new IndexValue(1000, offset, (byte) 0, -1));
+      index.addToIndex(entry, new FileSpan(offset, offset + 1000));
+      offset += 1000;
+    }
+    long addTimeNs = System.nanoTime() - addStartTime;
+    long heapAfter = usedHeap();
+
+    List<BlobId> keysToLookup = new ArrayList<BlobId>(ids.size());
+    for (String id : ids) {
+      keysToLookup.add(new BlobId(id, map));
+    }
+    Random random = new Random();
+    long lookupStartTime = System.nanoTime();
+    for (int i = 0; i < numberOfLookups; i++) {
+      if (index.findKey(keysToLookup.get(random.nextInt(keysToLookup.size()))) == null) {
+        System.out.println("Error id not found in index");
+      }
+    }
+    long lookupTimeNs = System.nanoTime() - lookupStartTime;
+
+    System.out.println((offHeap ? "Off heap" : "Skip list") + " segment with " + ids.size() + " entries");
+    System.out.println("  Heap used by the index in bytes : " + (heapAfter - heapBefore) + " ("
+        + (heapAfter - heapBefore) / ids.size() + " per entry)");
+    System.out.println("  Average time taken per add : " + addTimeNs / ids.size() + " Nano Seconds");
+    System.out.println("  Average time taken per lookup : " + lookupTimeNs / numberOfLookups + " Nano Seconds");
+
+    index.close();
+    scheduler.shutdown();
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
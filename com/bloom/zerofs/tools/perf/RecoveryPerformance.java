@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 Bloom Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.bloom.zerofs.tools.perf;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.bloom.zerofs.api.clustermap.ClusterMap;
+import com.bloom.zerofs.api.clustermap.PartitionId;
+import com.bloom.zerofs.api.config.ClusterMapConfig;
+import com.bloom.zerofs.api.config.VerifiableProperties;
+import com.bloom.zerofs.api.messageformat.BlobProperties;
+import com.bloom.zerofs.api.messageformat.BlobType;
+import com.bloom.zerofs.api.store.MessageInfo;
+import com.bloom.zerofs.clustermap.ClusterMapManager;
+import com.bloom.zerofs.commons.BlobId;
+import com.bloom.zerofs.commons.BlobIdFactory;
+import com.bloom.zerofs.messageformat.BlobStoreRecovery;
+import com.bloom.zerofs.messageformat.PutMessageFormatInputStream;
+import com.bloom.zerofs.store.Log;
+import com.bloom.zerofs.store.StoreMetrics;
+import com.bloom.zerofs.tools.SystemTime;
+import com.codahale.metrics.MetricRegistry;
+
+
+/**
+ * Writes put messages to a new log and measures the rate at which they are recovered, once without reading ahead
+ * and once with the given read ahead size.
+ */
+public class RecoveryPerformance {
+
+  public static void main(String args[]) {
+    try {
+      OptionParser parser = new OptionParser();
+      ArgumentAcceptingOptionSpec<String> hardwareLayoutOpt =
+          parser.accepts("hardwareLayout", "The path of the hardware layout file").withRequiredArg()
+              .describedAs("hardware_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<String> partitionLayoutOpt =
+          parser.accepts("partitionLayout", "The path of the partition layout file").withRequiredArg()
+              .describedAs("partition_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<String> dataDirOpt =
+          parser.accepts("dataDir", "The directory in which the log is created").withRequiredArg()
+              .describedAs("data_dir").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<Integer> numberOfMessagesOpt =
+          parser.accepts("numberOfMessages", "The number of messages written to the log").withRequiredArg()
+              .describedAs("The number of messages").ofType(Integer.class).defaultsTo(100000);
+
+      ArgumentAcceptingOptionSpec<Integer> blobSizeOpt =
+          parser.accepts("blobSize", "The size of the blob in each message").withRequiredArg()
+              .describedAs("The blob size in bytes").ofType(Integer.class).defaultsTo(4096);
+
+      ArgumentAcceptingOptionSpec<Integer> readAheadSizeOpt =
+          parser.accepts("readAheadSize", "The size of the read ahead buffer used during recovery").withRequiredArg()
+              .describedAs("The read ahead size in bytes").ofType(Integer.class)
+              .defaultsTo(BlobStoreRecovery.Default_Read_Ahead_Size_In_Bytes);
+
+      OptionSet options = parser.parse(args);
+
+      ArrayList<OptionSpec<?>> listOpt = new ArrayList<OptionSpec<?>>();
+      listOpt.add(hardwareLayoutOpt);
+      listOpt.add(partitionLayoutOpt);
+      listOpt.add(dataDirOpt);
+
+      for (OptionSpec opt : listOpt) {
+        if (!options.has(opt)) {
+          System.err.println("Missing required argument \"" + opt + "\"");
+          parser.printHelpOn(System.err);
+          System.exit(1);
+        }
+      }
+
+      int numberOfMessages = options.valueOf(numberOfMessagesOpt);
+      int blobSize = options.valueOf(blobSizeOpt);
+      int readAheadSize = options.valueOf(readAheadSizeOpt);
+      String dataDir = options.valueOf(dataDirOpt);
+      ClusterMap map = new ClusterMapManager(options.valueOf(hardwareLayoutOpt), options.valueOf(partitionLayoutOpt),
+          new ClusterMapConfig(new VerifiableProperties(new Properties())));
+      PartitionId partitionId = map.getWritablePartitionIds().get(0);
+
+      // write the messages to the log
+      StoreMetrics metrics = new StoreMetrics(dataDir, new MetricRegistry());
+      Log log = new Log(dataDir, (long) numberOfMessages * (blobSize + 1024), metrics);
+      byte[] blob = new byte[blobSize];
+      byte[] userMetadata = new byte[100];
+      new Random().nextBytes(blob);
+      for (int i = 0; i < numberOfMessages; i++) {
+        PutMessageFormatInputStream stream =
+            new PutMessageFormatInputStream(new BlobId(partitionId), new BlobProperties(blobSize, "perf"),
+                ByteBuffer.wrap(userMetadata), new ByteArrayInputStream(blob), blobSize, BlobType.DataBlob);
+        log.appendFrom(Channels.newChannel(stream), stream.getSize());
+      }
+      log.flush();
+      long endOffset = log.getLogEndOffset();
+      System.out.println("Wrote " + numberOfMessages + " messages of " + endOffset + " bytes to the log");
+
+      for (int size : new int[]{0, readAheadSize}) {
+        long startTimeInMs = SystemTime.getInstance().milliseconds();
+        List<MessageInfo> messagesRecovered = new BlobStoreRecovery(size).recover(log, 0, endOffset,
+            new BlobIdFactory(map));
+        long timeTakenInMs = Math.max(SystemTime.getInstance().milliseconds() - startTimeInMs, 1);
+        System.out.println("Read ahead size " + size + " : recovered " + messagesRecovered.size() + " messages in "
+            + timeTakenInMs + " ms at " + ((double) endOffset / (1024 * 1024)) / ((double) timeTakenInMs / 1000)
+            + " MB/s");
+      }
+    } catch (Exception e) {
+      System.out.println("Exiting process with exception " + e);
+    }
+  }
+}
@@ -13,6 +13,8 @@
  */
 package com.bloom.zerofs.tools.perf.rest;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Future;
 
@@ -21,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import com.bloom.zerofs.api.messageformat.BlobInfo;
 import com.bloom.zerofs.api.messageformat.BlobProperties;
+import com.bloom.zerofs.api.router.BulkDeleteTracker;
 import com.bloom.zerofs.api.router.Callback;
 import com.bloom.zerofs.api.router.FutureResult;
 import com.bloom.zerofs.api.router.ReadableStreamChannel;
@@ -204,6 +207,27 @@ class PerfRouter implements Router {
     }
     return futureResult;
   }
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds) {
+    return deleteBlobs(blobIds, null);
+  }
+
+  /**
+   * Does nothing. Simply indicates success for every blob immediately.
+   * @param blobIds (ignored).
+   * @param callback the {@link Callback} to invoke on operation completion.
+   * @return a {@link FutureResult} that will eventually contain the result of the operation.
+   */
+  @Override
+  public Future<Map<String, Exception>> deleteBlobs(List<String> blobIds, Callback<Map<String, Exception>> callback) {
+    FutureResult<Map<String, Exception>> futureResult = new FutureResult<Map<String, Exception>>();
+    BulkDeleteTracker bulkDeleteTracker = new BulkDeleteTracker(blobIds, futureResult, callback);
+    for (String blobId : blobIds) {
+      deleteBlob(blobId, bulkDeleteTracker.getCallback(blobId));
+    }
+    return futureResult;
+  }
+
 
   @Override
   public void close() {